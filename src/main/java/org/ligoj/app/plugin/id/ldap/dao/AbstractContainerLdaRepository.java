@@ -11,7 +11,7 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.commons.collections4.IteratorUtils;
 import org.apache.commons.lang3.ObjectUtils;
@@ -50,12 +50,41 @@ public abstract class AbstractContainerLdaRepository<T extends ContainerOrg, C e
 
 	protected static final Sort.Order DEFAULT_ORDER = new Sort.Order(Direction.ASC, "name");
 
+	/**
+	 * Natural order of the containers, the same than a sorted set without comparator.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static final Comparator<Object> NATURAL_ORDER = (a, b) -> ((Comparable) a).compareTo(b);
+
 	@Autowired
 	protected InMemoryPagination inMemoryPagination;
 
 	@Setter
 	protected LdapTemplate template;
 
+	/**
+	 * Page size of the searches returning all entries. When zero or negative, the paged results are not used.
+	 */
+	@Setter
+	@Getter
+	protected int pageSize;
+
+	/**
+	 * Minimal amount of entries of a chunk filtered in parallel by the in-memory queries. When zero or negative, the
+	 * queries are single-threaded.
+	 */
+	@Setter
+	@Getter
+	protected int parallelThreshold;
+
+	/**
+	 * Pool of the parallel in-memory queries, owned by the user repository of the same node. When <code>null</code>,
+	 * the queries are single-threaded.
+	 */
+	@Setter
+	@Getter
+	protected ForkJoinPool parallelPool;
+
 	@Autowired
 	@Setter
 	protected LdapCacheRepository ldapCacheRepository;
@@ -128,44 +157,34 @@ public abstract class AbstractContainerLdaRepository<T extends ContainerOrg, C e
 	@Override
 	public Page<T> findAll(final Set<T> groups, final String criteria, final Pageable pageable,
 			final Map<String, Comparator<T>> customComparators) {
-		// Create the set with the right comparator
+		// Get the comparator of the requested order, natural order by default
 		final List<Sort.Order> orders = IteratorUtils
 				.toList(ObjectUtils.defaultIfNull(pageable.getSort(), new ArrayList<Sort.Order>()).iterator());
 		orders.add(DEFAULT_ORDER);
 		final Sort.Order order = orders.get(0);
-		Comparator<T> comparator = customComparators.get(order.getProperty());
+		final Comparator<T> custom = customComparators.get(order.getProperty());
+		Comparator<? super T> comparator = custom == null ? NATURAL_ORDER : custom;
 		if (order.getDirection() == Direction.DESC) {
 			comparator = Collections.reverseOrder(comparator);
 		}
-		final Set<T> result = new TreeSet<>(comparator);
 
-		// Filter the groups, filtering by the criteria
-		addFilteredByPattern(groups, criteria, result);
+		// Filter the groups, filtering by the criteria, then sort them
+		final List<T> sorted = ParallelFilter.sort(groups,
+				g -> StringUtils.isEmpty(criteria) || matchPattern(g, criteria), comparator, parallelThreshold,
+				parallelPool);
+
+		// Like a sorted set, the equal containers are only listed once
+		final List<T> result = new ArrayList<>(sorted.size());
+		for (final T container : sorted) {
+			if (result.isEmpty() || comparator.compare(result.get(result.size() - 1), container) != 0) {
+				result.add(container);
+			}
+		}
 
 		// Apply in-memory pagination
 		return inMemoryPagination.newPage(result, pageable);
 	}
 
-	/**
-	 * For each group, check and add it.
-	 */
-	private void addFilteredByPattern(final Set<T> visibleGroups, final String criteria, final Set<T> result) {
-		for (final T group : visibleGroups) {
-			// Check the group matches
-			addFilteredByPattern(criteria, result, group);
-		}
-	}
-
-	/**
-	 * Check the pattern against the given group.
-	 */
-	private void addFilteredByPattern(final String criteria, final Set<T> result, final T group) {
-		if (StringUtils.isEmpty(criteria) || matchPattern(group, criteria)) {
-			// Pattern match
-			result.add(group);
-		}
-	}
-
 	/**
 	 * Indicates the given group matches to the given pattern.
 	 */
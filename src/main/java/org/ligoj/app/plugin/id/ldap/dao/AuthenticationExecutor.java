@@ -0,0 +1,188 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * Bounded executor of the authentications of a node. The LDAP calls are not run by the calling thread, so a slow or
+ * stalled directory only ties up the threads of this executor. An attempt waits for its result until a deadline, and
+ * is rejected immediately when all threads are busy and the queue is full.
+ */
+public class AuthenticationExecutor {
+
+	/**
+	 * Maximal time in milliseconds an attempt waits for its result.
+	 */
+	@Getter
+	private final long timeout;
+
+	/**
+	 * The bounded executor.
+	 */
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Amount of attempts currently running.
+	 */
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	/**
+	 * Amount of attempts abandoned after their deadline.
+	 */
+	private final AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * Amount of attempts rejected because the queue was full.
+	 */
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Build an executor.
+	 *
+	 * @param name
+	 *            The name of the threads, used to identify the node.
+	 * @param threads
+	 *            The maximal amount of concurrent attempts. Must be positive.
+	 * @param queue
+	 *            The maximal amount of waiting attempts. When zero or negative, an attempt is rejected when all
+	 *            threads are busy.
+	 * @param timeout
+	 *            The maximal time in milliseconds an attempt waits for its result, including the time spent in the
+	 *            queue. When zero or negative, there is no limit.
+	 */
+	public AuthenticationExecutor(final String name, final int threads, final int queue, final long timeout) {
+		this.timeout = timeout;
+		final BlockingQueue<Runnable> workQueue = queue > 0 ? new ArrayBlockingQueue<>(queue)
+				: new SynchronousQueue<>();
+		final AtomicInteger counter = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, workQueue, r -> {
+			final Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Run an attempt and wait for its result.
+	 *
+	 * @param task
+	 *            The attempt.
+	 * @param <T>
+	 *            The result type.
+	 * @return The result of the attempt.
+	 * @throws TimeoutException
+	 *             When the deadline is reached. The attempt is then interrupted.
+	 * @throws RejectedExecutionException
+	 *             When all threads are busy and the queue is full.
+	 */
+	public <T> T execute(final Callable<T> task) throws TimeoutException {
+		final Future<T> future;
+		try {
+			future = executor.submit(() -> {
+				inFlight.incrementAndGet();
+				try {
+					return task.call();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+		try {
+			return timeout > 0 ? future.get(timeout, TimeUnit.MILLISECONDS) : future.get();
+		} catch (final TimeoutException e) {
+			timedOut.incrementAndGet();
+			future.cancel(true);
+			throw e;
+		} catch (final InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted authentication", e);
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Failed authentication", e.getCause());
+		}
+	}
+
+	/**
+	 * Return the amount of attempts waiting for a thread.
+	 *
+	 * @return The amount of queued attempts.
+	 */
+	public int getQueued() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Return the amount of attempts currently running.
+	 *
+	 * @return The amount of in-flight attempts.
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * Return the amount of attempts abandoned after their deadline since the creation of this executor.
+	 *
+	 * @return The amount of timed out attempts.
+	 */
+	public long getTimedOut() {
+		return timedOut.get();
+	}
+
+	/**
+	 * Return the amount of attempts rejected because the queue was full since the creation of this executor.
+	 *
+	 * @return The amount of rejected attempts.
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	/**
+	 * Interrupt the running attempts and release the threads.
+	 */
+	public void close() {
+		close(0);
+	}
+
+	/**
+	 * Reject the new attempts and wait for the running ones, then interrupt the remaining attempts and release the
+	 * threads.
+	 *
+	 * @param timeout
+	 *            The maximal time in milliseconds to wait for the running attempts.
+	 */
+	public void close(final long timeout) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch (final InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.pool2.BasePooledObjectFactory;
+import org.apache.commons.pool2.PooledObject;
+import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.support.LdapUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pool of connections only used to check the credentials of the users with a simple bind. Each check rebinds a
+ * borrowed connection as the user, so the connection is set up once for many authentications. These connections are
+ * never used for another operation, and the credentials are removed from their environment after each bind.
+ */
+@Slf4j
+public class AuthenticationPool {
+
+	/**
+	 * JNDI connection pool property. The connections of this pool are rebound, so they must not be shared.
+	 */
+	private static final String LDAP_CONNECT_POOL = "com.sun.jndi.ldap.connect.pool";
+
+	/**
+	 * The pooled connections.
+	 */
+	private final GenericObjectPool<LdapContext> pool;
+
+	/**
+	 * Build a pool of connections of the given context source.
+	 *
+	 * @param contextSource
+	 *            The context source creating the connections.
+	 * @param config
+	 *            The pool configuration.
+	 */
+	public AuthenticationPool(final ContextSource contextSource, final GenericObjectPoolConfig config) {
+		pool = new GenericObjectPool<>(new BasePooledObjectFactory<LdapContext>() {
+
+			@Override
+			public LdapContext create() throws NamingException {
+				final LdapContext context = (LdapContext) contextSource.getReadOnlyContext();
+				context.removeFromEnvironment(LDAP_CONNECT_POOL);
+				return context;
+			}
+
+			@Override
+			public PooledObject<LdapContext> wrap(final LdapContext context) {
+				return new DefaultPooledObject<>(context);
+			}
+
+			@Override
+			public void destroyObject(final PooledObject<LdapContext> pooled) throws NamingException {
+				pooled.getObject().close();
+			}
+		}, config);
+	}
+
+	/**
+	 * Check the credentials of a user with a simple bind.
+	 *
+	 * @param dn
+	 *            The DN of the user.
+	 * @param password
+	 *            The password of the user. An empty password is rejected since it would be an anonymous bind.
+	 * @return <code>true</code> when the credentials are valid.
+	 */
+	public boolean authenticate(final String dn, final String password) {
+		if (StringUtils.isEmpty(password)) {
+			return false;
+		}
+		try {
+			try {
+				return borrowAndBind(dn, password);
+			} catch (final CommunicationException e) {
+				// The idle connection has been closed by the server, retry once with a new one
+				log.info("Authentication connection lost, retry with a new one: {}", e.getMessage());
+				return borrowAndBind(dn, password);
+			}
+		} catch (final NamingException e) {
+			throw LdapUtils.convertLdapException(e);
+		} catch (final RuntimeException e) {
+			throw e;
+		} catch (final Exception e) {
+			throw new IllegalStateException("Unable to borrow an authentication connection", e);
+		}
+	}
+
+	/**
+	 * Borrow a connection and bind it as the given user. The connection is destroyed when the bind fails for another
+	 * reason than invalid credentials.
+	 */
+	private boolean borrowAndBind(final String dn, final String password) throws Exception {
+		final LdapContext context = pool.borrowObject();
+		final boolean result;
+		try {
+			result = bind(context, dn, password);
+		} catch (final NamingException e) {
+			pool.invalidateObject(context);
+			throw e;
+		}
+		pool.returnObject(context);
+		return result;
+	}
+
+	private boolean bind(final LdapContext context, final String dn, final String password) throws NamingException {
+		context.addToEnvironment(Context.SECURITY_PRINCIPAL, dn);
+		context.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+		try {
+			context.reconnect(null);
+			return true;
+		} catch (@SuppressWarnings("unused") final AuthenticationException e) {
+			return false;
+		} finally {
+			// The password is not kept by the idle connection
+			context.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+		}
+	}
+
+	/**
+	 * Return the amount of connections currently used to authenticate a user.
+	 *
+	 * @return The amount of borrowed connections.
+	 */
+	public int getNumActive() {
+		return pool.getNumActive();
+	}
+
+	/**
+	 * Return the amount of idle connections.
+	 *
+	 * @return The amount of idle connections.
+	 */
+	public int getNumIdle() {
+		return pool.getNumIdle();
+	}
+
+	/**
+	 * Close the idle connections and this pool.
+	 */
+	public void close() {
+		pool.close();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Batched writer of the cache entities. The pending rows are sent with JDBC batches, and the persistence context is
+ * flushed and cleared every batch, so the memory used by a reset does not depend on the amount of entries.
+ */
+@Slf4j
+public class CacheBatchWriter {
+
+	private final EntityManager em;
+
+	/**
+	 * Amount of rows of a batch. When zero or negative, the rows are only written by an explicit {@link #flush()}.
+	 */
+	@Getter
+	private final int batchSize;
+
+	/**
+	 * Start time of this writer.
+	 */
+	private final long start = System.currentTimeMillis();
+
+	/**
+	 * Amount of rows written since the last flush.
+	 */
+	private int pending;
+
+	/**
+	 * Amount of inserted rows.
+	 */
+	@Getter
+	private int inserted;
+
+	/**
+	 * Amount of updated rows.
+	 */
+	@Getter
+	private int updated;
+
+	/**
+	 * Amount of deleted rows.
+	 */
+	@Getter
+	private int deleted;
+
+	/**
+	 * Build a writer using the given entity manager.
+	 *
+	 * @param em
+	 *            The entity manager.
+	 * @param batchSize
+	 *            Amount of rows of a batch. When zero or negative, the rows are only written by an explicit
+	 *            {@link #flush()}.
+	 */
+	public CacheBatchWriter(final EntityManager em, final int batchSize) {
+		this.em = em;
+		this.batchSize = batchSize;
+		if (batchSize > 0) {
+			em.unwrap(Session.class).setJdbcBatchSize(batchSize);
+		}
+	}
+
+	/**
+	 * Persist a new entity.
+	 *
+	 * @param entity
+	 *            The entity to persist.
+	 */
+	public void persist(final Object entity) {
+		em.persist(entity);
+		inserted++;
+		written();
+	}
+
+	/**
+	 * Merge an existing entity.
+	 *
+	 * @param entity
+	 *            The entity to merge.
+	 */
+	public void merge(final Object entity) {
+		em.merge(entity);
+		updated++;
+		written();
+	}
+
+	/**
+	 * Count the rows inserted by a bulk statement.
+	 *
+	 * @param count
+	 *            The amount of inserted rows.
+	 */
+	public void inserted(final int count) {
+		inserted += count;
+	}
+
+	/**
+	 * Count the rows deleted by a bulk statement.
+	 *
+	 * @param count
+	 *            The amount of deleted rows.
+	 */
+	public void deleted(final int count) {
+		deleted += count;
+	}
+
+	/**
+	 * Return the amount of written rows: inserted, updated and deleted.
+	 *
+	 * @return The amount of written rows.
+	 */
+	public long getRows() {
+		return (long) inserted + updated + deleted;
+	}
+
+	/**
+	 * Write the pending rows and clear the persistence context.
+	 */
+	public void flush() {
+		em.flush();
+		em.clear();
+		pending = 0;
+	}
+
+	/**
+	 * Return the write rate since the creation of this writer.
+	 *
+	 * @return The amount of written rows per second.
+	 */
+	public long getRate() {
+		return getRows() * 1000 / Math.max(1, System.currentTimeMillis() - start);
+	}
+
+	private void written() {
+		if (batchSize > 0 && ++pending >= batchSize) {
+			flush();
+			log.debug("{} rows written, {} rows/s", getRows(), getRate());
+		}
+	}
+}
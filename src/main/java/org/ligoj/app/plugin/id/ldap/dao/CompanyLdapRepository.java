@@ -3,10 +3,11 @@
  */
 package org.ligoj.app.plugin.id.ldap.dao;
 
-import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
 
 import javax.naming.ldap.LdapName;
 
@@ -21,7 +22,11 @@ import org.ligoj.app.plugin.id.ldap.dao.LdapCacheRepository.LdapData;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.filter.AndFilter;
+import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.Filter;
 
+import lombok.Getter;
 import lombok.Setter;
 
 /**
@@ -29,12 +34,16 @@ import lombok.Setter;
  */
 public class CompanyLdapRepository extends AbstractContainerLdaRepository<CompanyOrg, CacheCompany> implements ICompanyRepository {
 
-	private static final String ORGANIZATIONAL_UNIT = "organizationalUnit";
+	/**
+	 * LDAP class of companies.
+	 */
+	public static final String ORGANIZATIONAL_UNIT = "organizationalUnit";
 
 	/**
 	 * Companies location. May be equals to the people DN or more often a subtree of people OU.
 	 */
 	@Setter
+	@Getter
 	private String companyBaseDn;
 
 	/**
@@ -77,12 +86,8 @@ public class CompanyLdapRepository extends AbstractContainerLdaRepository<Compan
 	 * @return the companies. Key is the normalized name.
 	 */
 	public Map<String, CompanyOrg> findAllNoCache() {
-		final Map<String, CompanyOrg> companiesNameToDn = new HashMap<>();
-		for (final DirContextAdapter company : template.search(companyBaseDn, "objectClass=" + ORGANIZATIONAL_UNIT,
-				(Object ctx) -> (DirContextAdapter) ctx)) {
-			final CompanyOrg companyLdap = new CompanyOrg(company.getDn().toString(), company.getStringAttributes("ou")[0]);
-			companiesNameToDn.put(companyLdap.getId(), companyLdap);
-		}
+		final Map<String, CompanyOrg> companiesNameToDn = findAllNoCache(
+				new EqualsFilter("objectClass", ORGANIZATIONAL_UNIT));
 
 		// Also add/replace the quarantine zone
 		final CompanyOrg quarantine = new CompanyOrg(quarantineBaseDn, getQuarantineCompany());
@@ -91,10 +96,51 @@ public class CompanyLdapRepository extends AbstractContainerLdaRepository<Compan
 
 		// The complete the hierarchy of companies
 		companiesNameToDn.values().forEach(this::buildLdapName);
-		companiesNameToDn.values().forEach(c -> this.buildHierarchy(companiesNameToDn, c));
+		final DnTrie<CompanyOrg> trie = new DnTrie<>(companiesNameToDn.values(), CompanyOrg::getDn);
+		companiesNameToDn.values().forEach(c -> this.buildHierarchy(trie, c));
 		return companiesNameToDn;
 	}
 
+	/**
+	 * Fetch and return the companies created or modified since the given date. The hierarchy is not computed.
+	 * 
+	 * @param since
+	 *            The lower bound date, inclusive.
+	 * @return the created or modified companies. Key is the normalized name.
+	 */
+	public Map<String, CompanyOrg> findAllModifiedNoCache(final Date since) {
+		return findAllNoCache(new AndFilter().and(new EqualsFilter("objectClass", ORGANIZATIONAL_UNIT))
+				.and(new ModifiedSinceFilter(since)));
+	}
+
+	/**
+	 * Fetch and return the companies matching the given filter. The hierarchy is not computed.
+	 */
+	private Map<String, CompanyOrg> findAllNoCache(final Filter filter) {
+		final Map<String, CompanyOrg> companiesNameToDn = new HashMap<>();
+		PagedSearch.search(template, pageSize, companyBaseDn, filter.encode(), PagedSearch.newControls(),
+				(Object ctx) -> (DirContextAdapter) ctx, company -> {
+					final CompanyOrg companyLdap = new CompanyOrg(company.getDn().toString(),
+							company.getStringAttributes("ou")[0]);
+					companiesNameToDn.put(companyLdap.getId(), companyLdap);
+				});
+		return companiesNameToDn;
+	}
+
+	/**
+	 * Return the identifiers of all companies, including the quarantine one. Only the OU attribute is fetched.
+	 * 
+	 * @return The normalized identifiers of all companies.
+	 */
+	public Set<String> findAllIdsNoCache() {
+		final Set<String> ids = new HashSet<>();
+		PagedSearch.search(template, pageSize, companyBaseDn, "objectClass=" + ORGANIZATIONAL_UNIT,
+				PagedSearch.newControls("ou"),
+				(Object ctx) -> Normalizer.normalize(((DirContextAdapter) ctx).getStringAttributes("ou")[0]), ids::add);
+		ids.add(Normalizer.normalize(getQuarantineCompany()));
+		return ids;
+	}
+
 	/**
 	 * Build the {@link LdapName} instance from the DN. This also requires a valid DN for the given {@link CompanyOrg}
 	 */
@@ -105,10 +151,9 @@ public class CompanyLdapRepository extends AbstractContainerLdaRepository<Compan
 	/**
 	 * Build the company hierarchy from the given {@link CompanyOrg}
 	 */
-	private void buildHierarchy(final Map<String, CompanyOrg> companies, final CompanyOrg company) {
+	private void buildHierarchy(final DnTrie<CompanyOrg> companies, final CompanyOrg company) {
 		// Collect all parents and sorted from parent to the leaf
-		company.setCompanyTree(companies.values().stream().filter(c -> DnUtils.equalsOrParentOf(c.getDn(), company.getDn()))
-				.sorted(Comparator.comparing(CompanyOrg::getLdapName)).collect(Collectors.toList()));
+		company.setCompanyTree(companies.getAncestors(company.getDn()));
 	}
 
 	/**
@@ -152,7 +197,7 @@ public class CompanyLdapRepository extends AbstractContainerLdaRepository<Compan
 	 */
 	private void removeFromJavaCache(final CompanyOrg company) {
 		// Update the raw cache
-		findAll().remove(company.getId());
+		ldapCacheRepository.evict(company);
 	}
 
 	@Override
@@ -162,7 +207,7 @@ public class CompanyLdapRepository extends AbstractContainerLdaRepository<Compan
 		 * Remove from this company, all companies within (sub LDAP DN) this company. This operation is needed
 		 * since we are not rebuilding the cache from the LDAP. This save a lot of computations.
 		 */
-		findAll().values().stream().filter(g -> DnUtils.equalsOrParentOf(container.getDn(), g.getDn())).collect(Collectors.toList())
+		ldapCacheRepository.getSnapshot().getCompanyTrie().getSubtree(container.getDn())
 				.forEach(this::removeFromJavaCache);
 
 		// Remove from LDAP the recursively the company. Anything that was not nicely cleaned will be deleted there.
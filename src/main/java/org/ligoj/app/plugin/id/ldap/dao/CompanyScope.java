@@ -0,0 +1,82 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+
+import org.ligoj.app.iam.CompanyOrg;
+
+/**
+ * Read-only visibility index of the companies. Each company gets a dense ordinal, and the descendants of each company,
+ * including itself, are stored as a bitmap. A set of visible companies becomes one bitmap, so the company filter of a
+ * user is a single bit test.
+ */
+public class CompanyScope {
+
+	/**
+	 * Company ordinals. Key is the company identifier.
+	 */
+	private final Map<String, Integer> ordinals;
+
+	/**
+	 * Descendants, including itself, by company ordinal.
+	 */
+	private final BitSet[] descendants;
+
+	/**
+	 * Build the index of the given companies from their hierarchy.
+	 *
+	 * @param companies
+	 *            The companies with their computed tree. Key is the normalized identifier.
+	 */
+	public CompanyScope(final Map<String, CompanyOrg> companies) {
+		this.ordinals = new HashMap<>(companies.size() * 4 / 3 + 1);
+		companies.keySet().forEach(c -> ordinals.put(c, ordinals.size()));
+		this.descendants = new BitSet[ordinals.size()];
+		for (int i = 0; i < descendants.length; i++) {
+			descendants[i] = new BitSet();
+		}
+		companies.forEach((id, company) -> {
+			final int ordinal = ordinals.get(id);
+			descendants[ordinal].set(ordinal);
+			final List<CompanyOrg> tree = Optional.ofNullable(company.getCompanyTree()).orElse(Collections.emptyList());
+			tree.stream().map(CompanyOrg::getId).map(ordinals::get).filter(Objects::nonNull)
+					.forEach(a -> descendants[a].set(ordinal));
+		});
+	}
+
+	/**
+	 * Return the scope of the given visible companies: these companies and all their descendants.
+	 *
+	 * @param companies
+	 *            The visible company identifiers.
+	 * @return The new bitmap of the visible company ordinals.
+	 */
+	public BitSet toScope(final Collection<String> companies) {
+		final BitSet result = new BitSet(descendants.length);
+		companies.stream().map(ordinals::get).filter(Objects::nonNull).forEach(c -> result.or(descendants[c]));
+		return result;
+	}
+
+	/**
+	 * Indicates the given company is in the given scope.
+	 *
+	 * @param scope
+	 *            The scope built by {@link #toScope(Collection)}.
+	 * @param company
+	 *            The company identifier.
+	 * @return <code>true</code> when the company is visible.
+	 */
+	public boolean isVisible(final BitSet scope, final String company) {
+		final Integer ordinal = company == null ? null : ordinals.get(company);
+		return ordinal != null && scope.get(ordinal);
+	}
+}
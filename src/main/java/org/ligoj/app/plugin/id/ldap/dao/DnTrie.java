@@ -0,0 +1,136 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.naming.ldap.Rdn;
+
+import org.ligoj.app.api.Normalizer;
+import org.springframework.ldap.support.LdapUtils;
+
+/**
+ * Read-only index of entries by DN. The normalized RDN components are stored from the root to the leaf, so the
+ * ancestors of a DN are found in a time proportional to its depth, and the entries within a DN in a time proportional
+ * to their amount.
+ *
+ * @param <T>
+ *            The entry type.
+ */
+public class DnTrie<T> {
+
+	/**
+	 * A node of the trie: an entry, if any, and the children by normalized RDN.
+	 */
+	private static class Node<T> {
+		private final Map<String, Node<T>> children = new HashMap<>();
+		private T value;
+	}
+
+	private final Node<T> root = new Node<>();
+
+	/**
+	 * Build the index of the given entries.
+	 *
+	 * @param entries
+	 *            The entries to index.
+	 * @param toDn
+	 *            The function returning the DN of an entry.
+	 */
+	public DnTrie(final Collection<T> entries, final Function<T, String> toDn) {
+		entries.forEach(e -> {
+			Node<T> node = root;
+			for (final String rdn : toPath(toDn.apply(e))) {
+				node = node.children.computeIfAbsent(rdn, r -> new Node<>());
+			}
+			node.value = e;
+		});
+	}
+
+	/**
+	 * Return the normalized RDN components of the given DN, from the root to the leaf.
+	 */
+	private static List<String> toPath(final String dn) {
+		final List<Rdn> rdns = LdapUtils.newLdapName(dn).getRdns();
+		final List<String> result = new ArrayList<>(rdns.size());
+		rdns.forEach(r -> result.add(Normalizer.normalize(r.toString())));
+		return result;
+	}
+
+	/**
+	 * Return the entry of the given DN.
+	 *
+	 * @param dn
+	 *            The DN to find.
+	 * @return The entry, or <code>null</code> when not found.
+	 */
+	public T get(final String dn) {
+		Node<T> node = root;
+		for (final String rdn : toPath(dn)) {
+			node = node.children.get(rdn);
+			if (node == null) {
+				return null;
+			}
+		}
+		return node.value;
+	}
+
+	/**
+	 * Return the entries equals or parent of the given DN.
+	 *
+	 * @param dn
+	 *            The DN of the leaf, not necessarily indexed.
+	 * @return The entries sorted from the root to the leaf.
+	 */
+	public List<T> getAncestors(final String dn) {
+		final List<T> result = new ArrayList<>();
+		Node<T> node = root;
+		for (final String rdn : toPath(dn)) {
+			node = node.children.get(rdn);
+			if (node == null) {
+				break;
+			}
+			if (node.value != null) {
+				result.add(node.value);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Return the entries equals or within the given DN.
+	 *
+	 * @param dn
+	 *            The DN of the subtree, not necessarily indexed.
+	 * @return The entries of the subtree. Parents are before their children.
+	 */
+	public List<T> getSubtree(final String dn) {
+		Node<T> node = root;
+		for (final String rdn : toPath(dn)) {
+			node = node.children.get(rdn);
+			if (node == null) {
+				return Collections.emptyList();
+			}
+		}
+		final List<T> result = new ArrayList<>();
+		final Deque<Node<T>> nodes = new ArrayDeque<>();
+		nodes.add(node);
+		while (!nodes.isEmpty()) {
+			final Node<T> current = nodes.poll();
+			if (current.value != null) {
+				result.add(current.value);
+			}
+			nodes.addAll(current.children.values());
+		}
+		return result;
+	}
+}
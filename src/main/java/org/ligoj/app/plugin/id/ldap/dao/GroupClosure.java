@@ -0,0 +1,337 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import org.ligoj.app.iam.GroupOrg;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Read-only transitive closure of the nested groups. The ancestors and the descendants of each group are computed
+ * once, so checking a new link is not a recursive walk. The groups of a cycle are ancestors and descendants of each
+ * other, but never of themselves, so the closure does not depend on the order of the groups.
+ */
+@Slf4j
+public class GroupClosure {
+
+	/**
+	 * The cycles already reported by this closure and the ones derived from it, so a cycle is not reported again by
+	 * each change.
+	 */
+	private final Set<String> reportedCycles;
+
+	/**
+	 * Strict ancestors of each group. Key is the group identifier.
+	 */
+	private final Map<String, Set<String>> ancestors;
+
+	/**
+	 * Strict descendants of each group. Key is the group identifier.
+	 */
+	private final Map<String, Set<String>> descendants;
+
+	private GroupClosure(final Map<String, Set<String>> ancestors, final Map<String, Set<String>> descendants,
+			final Set<String> reportedCycles) {
+		this.ancestors = ancestors;
+		this.descendants = descendants;
+		this.reportedCycles = reportedCycles;
+	}
+
+	/**
+	 * Build the closure of the given groups from their parent links.
+	 *
+	 * @param groups
+	 *            The groups. Key is the normalized identifier.
+	 * @return The closure of the given groups.
+	 */
+	public static GroupClosure of(final Map<String, GroupOrg> groups) {
+		final Set<String> reportedCycles = ConcurrentHashMap.newKeySet();
+		final Map<String, Set<String>> ancestors = new Components(groups, reportedCycles).getAncestors();
+		return new GroupClosure(ancestors, inverse(ancestors), reportedCycles);
+	}
+
+	/**
+	 * Compute the strict ancestors of the given group with a walk of its parents, without any shared state, so the
+	 * result is the same whatever the order of the computations.
+	 */
+	private static Set<String> computeAncestors(final Map<String, GroupOrg> groups, final String group) {
+		final Set<String> result = new HashSet<>();
+		final Deque<String> toVisit = new ArrayDeque<>();
+		toVisit.add(group);
+		while (!toVisit.isEmpty()) {
+			for (final String parent : getParents(groups, toVisit.poll())) {
+				if (groups.containsKey(parent) && result.add(parent)) {
+					toVisit.add(parent);
+				}
+			}
+		}
+		result.remove(group);
+		return Collections.unmodifiableSet(result);
+	}
+
+	/**
+	 * Report the given cycle, only the first time for this closure.
+	 */
+	private static void logCycle(final Set<String> reportedCycles, final Collection<String> groups) {
+		final String cycle = groups.stream().sorted().collect(Collectors.joining(", "));
+		if (reportedCycles.add(cycle)) {
+			log.warn("Cycle found in the nested groups {}", cycle);
+		}
+	}
+
+	private static Collection<String> getParents(final Map<String, GroupOrg> groups, final String group) {
+		return Optional.ofNullable(groups.get(group)).map(GroupOrg::getGroups).orElse(Collections.emptySet());
+	}
+
+	private static Map<String, Set<String>> inverse(final Map<String, Set<String>> links) {
+		final Map<String, Set<String>> result = new HashMap<>();
+		links.keySet().forEach(k -> result.put(k, new HashSet<>()));
+		links.forEach((k, v) -> v.forEach(l -> result.computeIfAbsent(l, x -> new HashSet<>()).add(k)));
+		result.replaceAll((k, v) -> Collections.unmodifiableSet(v));
+		return result;
+	}
+
+	/**
+	 * Return the strict ancestors of the given group: its parents, their parents, and so on.
+	 *
+	 * @param group
+	 *            The group identifier.
+	 * @return The read-only ancestors. Empty for an unknown group.
+	 */
+	public Set<String> getAncestors(final String group) {
+		return ancestors.getOrDefault(group, Collections.emptySet());
+	}
+
+	/**
+	 * Return the strict descendants of the given group: its sub-groups, their sub-groups, and so on.
+	 *
+	 * @param group
+	 *            The group identifier.
+	 * @return The read-only descendants. Empty for an unknown group.
+	 */
+	public Set<String> getDescendants(final String group) {
+		return descendants.getOrDefault(group, Collections.emptySet());
+	}
+
+	/**
+	 * Indicates the link from the given group to the given sub-group would create a cycle.
+	 *
+	 * @param group
+	 *            The parent group identifier.
+	 * @param subGroup
+	 *            The sub-group identifier.
+	 * @return <code>true</code> when the group is the sub-group itself or one of its descendants.
+	 */
+	public boolean isCycle(final String group, final String subGroup) {
+		return group.equals(subGroup) || getDescendants(subGroup).contains(group);
+	}
+
+	/**
+	 * Return the users effectively member of the given group: its members and the members of its descendants.
+	 *
+	 * @param group
+	 *            The group identifier.
+	 * @param membership
+	 *            The membership graph of the same snapshot.
+	 * @return A new bitmap of user ordinals.
+	 */
+	public BitSet getEffectiveMembers(final String group, final MembershipGraph membership) {
+		final List<String> groups = new ArrayList<>(getDescendants(group));
+		groups.add(group);
+		return membership.union(groups);
+	}
+
+	/**
+	 * Return the groups the given user is effectively member of: its groups and their ancestors.
+	 *
+	 * @param user
+	 *            The user identifier.
+	 * @param membership
+	 *            The membership graph of the same snapshot.
+	 * @return The group identifiers.
+	 */
+	public Set<String> getEffectiveGroups(final String user, final MembershipGraph membership) {
+		final Set<String> result = new HashSet<>();
+		membership.toGroups(membership.getGroups(user)).forEach(g -> {
+			result.add(g);
+			result.addAll(getAncestors(g));
+		});
+		return result;
+	}
+
+	/**
+	 * Return the closure with the new link from the given group to the given sub-group. Only the ancestors of the
+	 * descendants of the sub-group, and the descendants of the ancestors of the group are updated.
+	 *
+	 * @param group
+	 *            The parent group identifier.
+	 * @param subGroup
+	 *            The sub-group identifier.
+	 * @return The new closure.
+	 */
+	public GroupClosure withLink(final String group, final String subGroup) {
+		if (isCycle(group, subGroup)) {
+			logCycle(reportedCycles, Arrays.asList(group, subGroup));
+		}
+		final Set<String> up = orSelf(getAncestors(group), group);
+		final Set<String> down = orSelf(getDescendants(subGroup), subGroup);
+		final Map<String, Set<String>> newAncestors = new HashMap<>(ancestors);
+		final Map<String, Set<String>> newDescendants = new HashMap<>(descendants);
+		down.forEach(d -> newAncestors.put(d, union(getAncestors(d), up, d)));
+		up.forEach(a -> newDescendants.put(a, union(getDescendants(a), down, a)));
+		return new GroupClosure(newAncestors, newDescendants, reportedCycles);
+	}
+
+	/**
+	 * Return the closure without the link from the given group to the given sub-group. Only the ancestors of the
+	 * descendants of the sub-group, and the descendants of the ancestors of the group are computed again.
+	 *
+	 * @param groups
+	 *            The groups, where the link is already removed. Key is the normalized identifier.
+	 * @param group
+	 *            The parent group identifier.
+	 * @param subGroup
+	 *            The sub-group identifier.
+	 * @return The new closure.
+	 */
+	public GroupClosure withoutLink(final Map<String, GroupOrg> groups, final String group, final String subGroup) {
+		final Set<String> up = orSelf(getAncestors(group), group);
+		final Set<String> down = orSelf(getDescendants(subGroup), subGroup);
+
+		// Ancestors outside of the sub-group tree are unchanged
+		final Map<String, Set<String>> newAncestors = new HashMap<>(ancestors);
+		down.forEach(d -> newAncestors.put(d, computeAncestors(groups, d)));
+
+		// Descendants outside of the parent group ancestors are unchanged
+		final Map<String, Set<String>> newDescendants = new HashMap<>(descendants);
+		up.forEach(a -> newDescendants.put(a, new HashSet<>()));
+		down.forEach(d -> newAncestors.get(d).stream().filter(up::contains)
+				.forEach(a -> newDescendants.get(a).add(d)));
+		up.forEach(a -> {
+			final Set<String> result = newDescendants.get(a);
+			descendants.getOrDefault(a, Collections.emptySet()).stream().filter(d -> !down.contains(d))
+					.forEach(result::add);
+			newDescendants.put(a, Collections.unmodifiableSet(result));
+		});
+		return new GroupClosure(newAncestors, newDescendants, reportedCycles);
+	}
+
+	private static Set<String> orSelf(final Set<String> ids, final String self) {
+		final Set<String> result = new HashSet<>(ids);
+		result.add(self);
+		return result;
+	}
+
+	private static Set<String> union(final Set<String> ids, final Set<String> added, final String self) {
+		final Set<String> result = new HashSet<>(ids);
+		result.addAll(added);
+		result.remove(self);
+		return Collections.unmodifiableSet(result);
+	}
+
+	/**
+	 * Strongly connected components of the parent links, computed with the Tarjan algorithm. A component is completed
+	 * after the components of its ancestors, so the ancestors of its groups are computed once from them.
+	 */
+	private static class Components {
+
+		private final Map<String, GroupOrg> groups;
+
+		private final Set<String> reportedCycles;
+
+		private final Map<String, Integer> indexes = new HashMap<>();
+
+		private final Map<String, Integer> lowLinks = new HashMap<>();
+
+		private final Deque<String> stack = new ArrayDeque<>();
+
+		private final Set<String> onStack = new HashSet<>();
+
+		private final Map<String, Set<String>> ancestors = new HashMap<>();
+
+		private Components(final Map<String, GroupOrg> groups, final Set<String> reportedCycles) {
+			this.groups = groups;
+			this.reportedCycles = reportedCycles;
+		}
+
+		private Map<String, Set<String>> getAncestors() {
+			groups.keySet().stream().filter(g -> !indexes.containsKey(g)).forEach(this::visit);
+			return ancestors;
+		}
+
+		private void visit(final String group) {
+			final int index = indexes.size();
+			indexes.put(group, index);
+			lowLinks.put(group, index);
+			stack.push(group);
+			onStack.add(group);
+			for (final String parent : getParents(groups, group)) {
+				if (!groups.containsKey(parent)) {
+					// Broken link, ignored
+					continue;
+				}
+				if (!indexes.containsKey(parent)) {
+					visit(parent);
+					lowLinks.put(group, Math.min(lowLinks.get(group), lowLinks.get(parent)));
+				} else if (onStack.contains(parent)) {
+					lowLinks.put(group, Math.min(lowLinks.get(group), indexes.get(parent)));
+				}
+			}
+			if (lowLinks.get(group) == index) {
+				complete(group);
+			}
+		}
+
+		/**
+		 * Pop the component of the given root, and compute the ancestors of its groups.
+		 */
+		private void complete(final String root) {
+			final Set<String> component = new HashSet<>();
+			String group;
+			do {
+				group = stack.pop();
+				onStack.remove(group);
+				component.add(group);
+			} while (!group.equals(root));
+
+			final Set<String> common = new HashSet<>();
+			boolean cycle = component.size() > 1;
+			for (final String member : component) {
+				for (final String parent : getParents(groups, member)) {
+					if (component.contains(parent)) {
+						cycle = true;
+					} else if (groups.containsKey(parent)) {
+						common.add(parent);
+						common.addAll(ancestors.get(parent));
+					}
+				}
+			}
+			if (cycle) {
+				logCycle(reportedCycles, component);
+				common.addAll(component);
+			}
+			component.forEach(m -> {
+				final Set<String> result = new HashSet<>(common);
+				result.remove(m);
+				ancestors.put(m, Collections.unmodifiableSet(result));
+			});
+		}
+	}
+}
@@ -4,14 +4,16 @@
 package org.ligoj.app.plugin.id.ldap.dao;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.DirContext;
@@ -26,7 +28,6 @@ import org.ligoj.app.iam.UserOrg;
 import org.ligoj.app.iam.dao.CacheGroupRepository;
 import org.ligoj.app.iam.model.CacheGroup;
 import org.ligoj.app.model.ContainerType;
-import org.ligoj.app.plugin.id.DnUtils;
 import org.ligoj.app.plugin.id.ldap.dao.LdapCacheRepository.LdapData;
 import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -34,7 +35,9 @@ import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.filter.AndFilter;
 import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.Filter;
 
+import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
@@ -57,10 +60,14 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 	public static final String DEFAULT_MEMBER_DN = "uid=none";
 
 	@Setter
+	@Getter
 	private String groupsBaseDn;
 
 	private static final String DEPARTMENT_ATTRIBUTE = "businessCategory";
-	private static final String GROUP_OF_UNIQUE_NAMES = "groupOfUniqueNames";
+	/**
+	 * LDAP class of groups.
+	 */
+	public static final String GROUP_OF_UNIQUE_NAMES = "groupOfUniqueNames";
 	private static final String UNIQUE_MEMBER = "uniqueMember";
 
 	@Autowired
@@ -99,32 +106,25 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 	 *         LDAP group containing real CN, DN and normalized UID members.
 	 */
 	public Map<String, GroupOrg> findAllNoCache() {
-		final Map<String, GroupOrg> groups = new HashMap<>();
+		return findAllNoCache(new HashMap<>());
+	}
+
+	/**
+	 * Fetch and return all normalized groups, and their departments.
+	 * 
+	 * @param departments
+	 *            The map to fill with the departments of the groups. Key is the normalized name of the group.
+	 * @return the groups. Key is the normalized name, Value is the corresponding
+	 *         LDAP group containing real CN, DN and normalized UID members.
+	 */
+	public Map<String, GroupOrg> findAllNoCache(final Map<String, Set<String>> departments) {
 		final Map<String, Set<String>> subGroupsDn = new HashMap<>();
-		final Map<String, GroupOrg> dnToGroups = new HashMap<>();
 
 		// First pass, collect the groups and dirty relationships
-		for (final DirContextAdapter groupRaw : template.search(groupsBaseDn,
-				new EqualsFilter("objectClass", GROUP_OF_UNIQUE_NAMES).encode(),
-				(Object ctx) -> (DirContextAdapter) ctx)) {
-			final Set<String> members = new HashSet<>();
-			final String dn = Normalizer.normalize(groupRaw.getDn().toString());
-			final String name = groupRaw.getStringAttribute("cn");
-			final HashSet<String> subGroups = new HashSet<>();
-			for (final String memberDN : ArrayUtils.nullToEmpty(groupRaw.getStringAttributes(UNIQUE_MEMBER))) {
-				if (memberDN.startsWith("uid")) {
-					// User membership
-					members.add(memberDN);
-				} else {
-					// Group (or whatever) membership
-					subGroups.add(memberDN);
-				}
-			}
-			final GroupOrg group = new GroupOrg(dn, name, members);
-			subGroupsDn.put(group.getId(), subGroups);
-			groups.put(group.getId(), group);
-			dnToGroups.put(dn, group);
-		}
+		final Map<String, GroupOrg> groups = findAllNoCache(new EqualsFilter("objectClass", GROUP_OF_UNIQUE_NAMES),
+				subGroupsDn, departments);
+		final Map<String, GroupOrg> dnToGroups = new HashMap<>();
+		groups.values().forEach(g -> dnToGroups.put(g.getDn(), g));
 
 		// Second pass to validate the sub-groups and complete the opposite relation
 		updateSubGroups(groups, subGroupsDn, dnToGroups);
@@ -132,10 +132,93 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 		return groups;
 	}
 
+	/**
+	 * Fetch and return the groups created or modified since the given date. The members are not resolved and are
+	 * returned as DN. The sub-groups are not resolved too, and are returned in the given map.
+	 * 
+	 * @param since
+	 *            The lower bound date, inclusive.
+	 * @param subGroupsDn
+	 *            The map to fill with the DN of the sub-groups. Key is the normalized name of the group.
+	 * @param departments
+	 *            The map to fill with the departments of the groups. Key is the normalized name of the group.
+	 * @return the created or modified groups. Key is the normalized name.
+	 */
+	public Map<String, GroupOrg> findAllModifiedNoCache(final Date since, final Map<String, Set<String>> subGroupsDn,
+			final Map<String, Set<String>> departments) {
+		return findAllNoCache(new AndFilter().and(new EqualsFilter("objectClass", GROUP_OF_UNIQUE_NAMES))
+				.and(new ModifiedSinceFilter(since)), subGroupsDn, departments);
+	}
+
+	/**
+	 * Return the identifiers of all groups. Only the CN attribute is fetched.
+	 * 
+	 * @return The normalized identifiers of all groups.
+	 */
+	public Set<String> findAllIdsNoCache() {
+		final Set<String> ids = new HashSet<>();
+		PagedSearch.search(template, pageSize, groupsBaseDn,
+				new EqualsFilter("objectClass", GROUP_OF_UNIQUE_NAMES).encode(), PagedSearch.newControls("cn"),
+				(Object ctx) -> Normalizer.normalize(((DirContextAdapter) ctx).getStringAttribute("cn")), ids::add);
+		return ids;
+	}
+
+	/**
+	 * Fetch and return the groups matching the given filter. Members are returned as DN.
+	 */
+	private Map<String, GroupOrg> findAllNoCache(final Filter filter, final Map<String, Set<String>> subGroupsDn,
+			final Map<String, Set<String>> departments) {
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		PagedSearch.search(template, pageSize, groupsBaseDn, filter.encode(), PagedSearch.newControls(),
+				(Object ctx) -> toGroup((DirContextAdapter) ctx, subGroupsDn, departments),
+				g -> groups.put(g.getId(), g));
+		return groups;
+	}
+
+	/**
+	 * Build a group from a LDAP entry. Members are returned as DN.
+	 * 
+	 * @param groupRaw
+	 *            The LDAP entry of the group.
+	 * @param subGroupsDn
+	 *            The map to fill with the DN of the sub-groups. Key is the normalized name of the group.
+	 * @param departments
+	 *            The map to fill with the departments of the group. Key is the normalized name of the group.
+	 * @return The group with DN members and without sub-groups.
+	 */
+	protected GroupOrg toGroup(final DirContextOperations groupRaw, final Map<String, Set<String>> subGroupsDn,
+			final Map<String, Set<String>> departments) {
+		final Set<String> members = new HashSet<>();
+		final String dn = Normalizer.normalize(groupRaw.getDn().toString());
+		final String name = groupRaw.getStringAttribute("cn");
+		final HashSet<String> subGroups = new HashSet<>();
+		for (final String memberDN : ArrayUtils.nullToEmpty(groupRaw.getStringAttributes(UNIQUE_MEMBER))) {
+			if (memberDN.startsWith("uid")) {
+				// User membership
+				members.add(memberDN);
+			} else {
+				// Group (or whatever) membership
+				subGroups.add(memberDN);
+			}
+		}
+		final GroupOrg group = new GroupOrg(dn, name, members);
+		subGroupsDn.put(group.getId(), subGroups);
+		departments.put(group.getId(), new HashSet<>(
+				Arrays.asList(ArrayUtils.nullToEmpty(groupRaw.getStringAttributes(DEPARTMENT_ATTRIBUTE)))));
+		return group;
+	}
+
 	/**
 	 * Complete the sub-groups hierarchy and update the two-ways relationship
+	 * 
+	 * @param groups
+	 *            The groups to complete.
+	 * @param subGroupsDn
+	 *            The DN of the sub-groups of each given group. Key is the normalized name of the group.
+	 * @param dnToGroups
+	 *            All known groups. Key is the normalized DN.
 	 */
-	private void updateSubGroups(final Map<String, GroupOrg> groups, final Map<String, Set<String>> subGroupsDn,
+	protected void updateSubGroups(final Map<String, GroupOrg> groups, final Map<String, Set<String>> subGroupsDn,
 			final Map<String, GroupOrg> dnToGroups) {
 		for (final GroupOrg group : groups.values()) {
 			for (final String subGroupDn : subGroupsDn.get(group.getId())) {
@@ -163,7 +246,7 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 		new ArrayList<>(group.getGroups()).forEach(parent -> removeGroup(group, parent));
 
 		// Also, update the raw cache
-		findAll().remove(group.getId());
+		ldapCacheRepository.evict(group);
 	}
 
 	/**
@@ -179,10 +262,10 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 		/*
 		 * Remove from this group, all groups within (sub LDAP DN) this group. This
 		 * operation is needed since we are not rebuilding the cache from the LDAP. This
-		 * save a lot of computations.
+		 * save a lot of computations. Each group is read again since the previous removals have replaced it.
 		 */
-		findAll().values().stream().filter(g -> DnUtils.equalsOrParentOf(group.getDn(), g.getDn()))
-				.collect(Collectors.toList()).forEach(this::removeFromJavaCache);
+		ldapCacheRepository.getSnapshot().getGroupTrie().getSubtree(group.getDn()).stream()
+				.map(g -> findById(g.getId())).filter(Objects::nonNull).forEach(this::removeFromJavaCache);
 
 		// Remove from LDAP the recursively the group. Anything that was not nicely
 		// cleaned will be deleted there.
@@ -194,7 +277,8 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 
 	@Override
 	public void empty(final GroupOrg group, final Map<String, UserOrg> users) {
-		ldapCacheRepository.empty(group, users);
+		// The cached members are removed from the group
+		ldapCacheRepository.empty(group);
 	}
 
 	@Override
@@ -268,6 +352,11 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 
 	@Override
 	public void addGroup(final GroupOrg subGroup, final String toGroup) {
+		// A link closing a cycle is rejected, the nested groups stay a hierarchy
+		if (ldapCacheRepository.getSnapshot().getClosure().isCycle(Normalizer.normalize(toGroup), subGroup.getId())) {
+			throw new ValidationJsonException("groups", "group-cycle", "group", subGroup.getId(), "parent", toGroup);
+		}
+
 		// Add to Java cache and to SQL cache
 		ldapCacheRepository.addGroupToGroup(subGroup, addMember(subGroup, toGroup));
 	}
@@ -362,14 +451,15 @@ public class GroupLdapRepository extends AbstractContainerLdaRepository<GroupOrg
 			}
 			log.info("{} is already member of {}", values, dn);
 		}
+		if (DEPARTMENT_ATTRIBUTE.equalsIgnoreCase(attribute)) {
+			// Also update the department index of the cache
+			ldapCacheRepository.addDepartments(dn, values);
+		}
 	}
 
 	@Override
 	public GroupOrg findByDepartment(final String department) {
-		final AndFilter filter = new AndFilter().and(new EqualsFilter("objectclass", GROUP_OF_UNIQUE_NAMES))
-				.and(new EqualsFilter(DEPARTMENT_ATTRIBUTE, department));
-		return template.search(groupsBaseDn, filter.encode(), (Object ctx) -> (DirContextAdapter) ctx).stream()
-				.findFirst().map(c -> c.getStringAttribute("cn")).map(Normalizer::normalize).map(this::findById)
-				.orElse(null);
+		return Optional.ofNullable(ldapCacheRepository.getSnapshot().getGroupByDepartment(department))
+				.map(this::findById).orElse(null);
 	}
 }
@@ -3,13 +3,17 @@
  */
 package org.ligoj.app.plugin.id.ldap.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
@@ -17,6 +21,7 @@ import javax.persistence.PersistenceContextType;
 import javax.transaction.Transactional;
 
 import org.apache.commons.collections4.CollectionUtils;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.ligoj.app.dao.CacheProjectGroupRepository;
 import org.ligoj.app.iam.CompanyOrg;
@@ -51,6 +56,11 @@ public class LdapCacheDao {
 	@PersistenceContext(type = PersistenceContextType.TRANSACTION, unitName = "pu")
 	private EntityManager em;
 
+	/**
+	 * Maximal amount of identifiers in a single delete or insert statement.
+	 */
+	private static final int DELETE_CHUNK = 1000;
+
 	@Autowired
 	private CacheProjectGroupRepository cacheProjectGroupRepository;
 
@@ -58,7 +68,8 @@ public class LdapCacheDao {
 	private DelegateOrgRepository delegateOrgRepository;
 
 	/**
-	 * Reset the database cache with the LDAP data.
+	 * Reset the database cache with the LDAP data. Only the differences between the database and the LDAP data are
+	 * written: the inserted, updated and deleted rows.
 	 * 
 	 * @param users
 	 *            All users.
@@ -69,35 +80,291 @@ public class LdapCacheDao {
 	 */
 	public void reset(final Map<String, CompanyOrg> companies, final Map<String, GroupOrg> groups,
 			final Map<String, UserOrg> users) {
-		final long start = System.currentTimeMillis();
+		reset(companies, groups, users, 0);
+	}
 
-		// Remove all CACHE_* entries
-		log.info("Clearing database ...");
-		clear();
+	/**
+	 * Reset the database cache with the LDAP data. Only the differences between the database and the LDAP data are
+	 * written: the inserted, updated and deleted rows. The rows are written by batches.
+	 * 
+	 * @param users
+	 *            All users.
+	 * @param groups
+	 *            All groups.
+	 * @param companies
+	 *            All companies.
+	 * @param batchSize
+	 *            Amount of rows written in a single batch. When zero or negative, the rows are written at the end of
+	 *            each step.
+	 */
+	public void reset(final Map<String, CompanyOrg> companies, final Map<String, GroupOrg> groups,
+			final Map<String, UserOrg> users, final int batchSize) {
+		purge(upsert(companies, groups, users, batchSize));
+	}
 
-		// Insert data into database
-		log.info("Inserting data ...");
-		final Map<String, CacheCompany> cacheCompanies = persistCompanies(companies);
-		em.flush();
-		final Map<String, CacheGroup> cacheGroups = persistGroups(groups);
+	/**
+	 * Insert and update the database cache with the LDAP data, and replace the memberships. The entries no more in
+	 * LDAP are not removed, but returned to be purged later with {@link #purge(StaleCacheEntries)}. Until then, they
+	 * are still visible but have no membership.
+	 * 
+	 * @param users
+	 *            All users.
+	 * @param groups
+	 *            All groups.
+	 * @param companies
+	 *            All companies.
+	 * @param batchSize
+	 *            Amount of rows written in a single batch. When zero or negative, the rows are written at the end of
+	 *            each step.
+	 * @return The entries no more in LDAP.
+	 */
+	public StaleCacheEntries upsert(final Map<String, CompanyOrg> companies, final Map<String, GroupOrg> groups,
+			final Map<String, UserOrg> users, final int batchSize) {
+		final long start = System.currentTimeMillis();
+		final CacheBatchWriter writer = new CacheBatchWriter(em, batchSize);
+
+		// Insert or update the data into database
+		log.info("Comparing data ...");
+		final Set<String> staleCompanies = upsertContainers(CacheCompany.class, companies, this::toCacheCompany,
+				writer);
+		writer.flush();
+		final Set<String> staleGroups = upsertContainers(CacheGroup.class, groups, this::toCacheGroup, writer);
+		writer.flush();
+		final Set<String> staleUsers = upsertUsers(users, writer);
+		writer.flush();
+		final int memberships = syncMemberships(users, groups, writer);
+		writer.flush();
+		final int subscribedProjects = syncProjectGroups(groups, writer);
+		writer.flush();
+		final long updatedDelegate = updateDelegateDn(groups, companies);
 		em.flush();
-		final int memberships = persistMemberships(users, cacheGroups, cacheCompanies);
+		em.clear();
+		log.info("Done in {} : {} groups, {} companies, {} users, {} memberships, {} project groups, {} updated delegates, "
+				+ "{} inserted, {} updated and {} deleted rows, {} rows/s",
+				DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start), groups.size(),
+				companies.size(), users.size(), memberships, subscribedProjects, updatedDelegate, writer.getInserted(),
+				writer.getUpdated(), writer.getDeleted(), writer.getRate());
+		return new StaleCacheEntries(staleCompanies, staleGroups, staleUsers);
+	}
+
+	/**
+	 * Remove the entries no more in LDAP. Their memberships are expected to be already removed.
+	 * 
+	 * @param stale
+	 *            The entries to remove.
+	 * @return The amount of removed rows.
+	 */
+	public int purge(final StaleCacheEntries stale) {
+		int deleted = deleteAll("CacheUser", stale.getUsers());
+		deleted += deleteAll("CacheGroup", stale.getGroups());
+		deleted += deleteAll("CacheCompany", stale.getCompanies());
 		em.flush();
-		final int subscribedProjects = persistProjectGroups(cacheGroups);
+		em.clear();
+		log.info("Purged {} stale entries", deleted);
+		return deleted;
+	}
+
+	/**
+	 * Insert the new containers and update the modified ones.
+	 * 
+	 * @param type
+	 *            The cache entity type.
+	 * @param containers
+	 *            All LDAP containers of this type.
+	 * @param mapper
+	 *            The LDAP container to cache entity mapper.
+	 * @param writer
+	 *            The batched writer.
+	 * @return The identifiers of the cached containers no more in LDAP.
+	 */
+	private <O extends ContainerOrg, T extends CacheContainer> Set<String> upsertContainers(final Class<T> type,
+			final Map<String, O> containers, final Function<O, T> mapper, final CacheBatchWriter writer) {
+		final Map<String, Object[]> existing = new HashMap<>();
+		em.createQuery("SELECT id, name, description FROM " + type.getSimpleName(), Object[].class).getResultList()
+				.forEach(r -> existing.put((String) r[0], r));
+		for (final O container : containers.values()) {
+			final T entity = mapper.apply(container);
+			final Object[] row = existing.remove(entity.getId());
+			if (row == null) {
+				writer.persist(entity);
+			} else if (!Objects.equals(row[1], entity.getName()) || !Objects.equals(row[2], entity.getDescription())) {
+				writer.merge(entity);
+			}
+		}
+		return existing.keySet();
+	}
+
+	/**
+	 * Insert the new users and update the modified ones.
+	 * 
+	 * @return The identifiers of the cached users no more in LDAP.
+	 */
+	private Set<String> upsertUsers(final Map<String, UserOrg> users, final CacheBatchWriter writer) {
+		final Map<String, Object[]> existing = new HashMap<>();
+		em.createQuery("SELECT u.id, u.firstName, u.lastName, u.mails, c.id FROM CacheUser u LEFT JOIN u.company c",
+				Object[].class).getResultList().forEach(r -> existing.put((String) r[0], r));
+		for (final UserOrg user : users.values()) {
+			final CacheUser entity = toCacheUser(user);
+			final Object[] row = existing.remove(entity.getId());
+			if (row == null) {
+				writer.persist(entity);
+			} else if (!Objects.equals(row[1], entity.getFirstName()) || !Objects.equals(row[2], entity.getLastName())
+					|| !Objects.equals(row[3], entity.getMails()) || !Objects.equals(row[4], user.getCompany())) {
+				writer.merge(entity);
+			}
+		}
+		return existing.keySet();
+	}
+
+	/**
+	 * Replace the memberships by the ones of the LDAP data: the missing ones are inserted, the ones no more in LDAP
+	 * are deleted.
+	 * 
+	 * @return The amount of memberships.
+	 */
+	private int syncMemberships(final Map<String, UserOrg> users, final Map<String, GroupOrg> groups,
+			final CacheBatchWriter writer) {
+		// Expected memberships, the key is built from the member and the group, the value is the member then the group
+		final Map<String, String[]> expected = new HashMap<>();
+		users.values().forEach(u -> u.getGroups().stream().filter(groups::containsKey)
+				.forEach(g -> expected.put("u:" + u.getId() + "|" + g, new String[] { u.getId(), g })));
+		groups.values().forEach(g -> g.getSubGroups().stream().filter(groups::containsKey)
+				.forEach(s -> expected.put("g:" + s + "|" + g.getId(), new String[] { s, g.getId() })));
+		final int memberships = expected.size();
+
+		// Delete the memberships no more expected, duplicates included
+		final List<Object> stale = new ArrayList<>();
+		em.createQuery("SELECT m.id, u.id, s.id, g.id FROM CacheMembership m LEFT JOIN m.user u"
+				+ " LEFT JOIN m.subGroup s LEFT JOIN m.group g", Object[].class).getResultList().forEach(r -> {
+					final String key = r[1] == null ? "g:" + r[2] + "|" + r[3] : "u:" + r[1] + "|" + r[3];
+					if (expected.remove(key) == null) {
+						stale.add(r[0]);
+					}
+				});
+		writer.deleted(deleteAll("CacheMembership", stale));
+
+		// Insert the missing ones, grouped by group and member type
+		final Map<String, List<String>> missingUsers = new HashMap<>();
+		final Map<String, List<String>> missingGroups = new HashMap<>();
+		expected.forEach((k, m) -> (k.startsWith("u:") ? missingUsers : missingGroups)
+				.computeIfAbsent(m[1], g -> new ArrayList<>()).add(m[0]));
+		missingUsers.forEach((g, members) -> writer.inserted(insertMemberships(CacheUser.class, g, members)));
+		missingGroups.forEach((g, members) -> writer.inserted(insertMemberships(CacheGroup.class, g, members)));
+		return memberships;
+	}
+
+	/**
+	 * Insert the memberships of the given members to a group with a statement by chunk of members. The identifier of
+	 * a membership is generated by the database (identity), so Hibernate sends the persisted ones one by one, without
+	 * JDBC batch.
+	 * 
+	 * @param type
+	 *            The member type: {@link CacheUser} or {@link CacheGroup} for the sub-groups.
+	 * @param group
+	 *            The group identifier.
+	 * @param members
+	 *            The member identifiers. The members not in the database cache are ignored.
+	 * @return The amount of inserted memberships.
+	 */
+	private int insertMemberships(final Class<?> type, final String group, final List<String> members) {
+		final String property = type == CacheUser.class ? "user" : "subGroup";
+		int inserted = 0;
+		for (final List<String> chunk : ListUtils.partition(members, DELETE_CHUNK)) {
+			inserted += em
+					.createQuery("INSERT INTO CacheMembership (" + property + ", group) SELECT m, g FROM "
+							+ type.getSimpleName() + " m, CacheGroup g WHERE g.id = :group AND m.id IN :members")
+					.setParameter("group", group).setParameter("members", chunk).executeUpdate();
+		}
+		return inserted;
+	}
+
+	/**
+	 * Replace the association between projects and groups.
+	 * 
+	 * @return The amount of associations.
+	 */
+	private int syncProjectGroups(final Map<String, GroupOrg> groups, final CacheBatchWriter writer) {
+		final Map<String, Object[]> expected = new HashMap<>();
+		cacheProjectGroupRepository.findAllProjectGroup().stream().filter(pg -> groups.containsKey(pg[1]))
+				.forEach(pg -> expected.put(pg[0] + "|" + pg[1], pg));
+		final int projectGroups = expected.size();
+
+		// Delete the associations no more expected
+		final List<Object> stale = new ArrayList<>();
+		em.createQuery("SELECT pg.id, p.id, g.id FROM CacheProjectGroup pg LEFT JOIN pg.project p LEFT JOIN pg.group g",
+				Object[].class).getResultList().forEach(r -> {
+					if (expected.remove(r[1] + "|" + r[2]) == null) {
+						stale.add(r[0]);
+					}
+				});
+		writer.deleted(deleteAll("CacheProjectGroup", stale));
+
+		// Insert the missing ones
+		for (final Object[] projectGroup : expected.values()) {
+			final Project project = new Project();
+			project.setId((int) projectGroup[0]);
+			final CacheProjectGroup entity = new CacheProjectGroup();
+			entity.setProject(project);
+			entity.setGroup(em.getReference(CacheGroup.class, projectGroup[1]));
+			writer.persist(entity);
+		}
+		return projectGroups;
+	}
+
+	/**
+	 * Delete the entities having the given identifiers.
+	 * 
+	 * @param entity
+	 *            The entity name.
+	 * @param ids
+	 *            The identifiers to delete.
+	 * @return The amount of deleted rows.
+	 */
+	private int deleteAll(final String entity, final Collection<?> ids) {
+		int deleted = 0;
+		for (final List<?> chunk : ListUtils.partition(new ArrayList<>(ids), DELETE_CHUNK)) {
+			deleted += em.createQuery("DELETE FROM " + entity + " WHERE id IN :ids").setParameter("ids", chunk)
+					.executeUpdate();
+		}
+		return deleted;
+	}
+
+	/**
+	 * Apply the given created or modified LDAP entries to the database cache. The memberships of the given groups are
+	 * replaced by their current members and sub-groups. Deletions are not handled there.
+	 * 
+	 * @param users
+	 *            The created or modified users.
+	 * @param groups
+	 *            The created or modified groups. Members and sub-groups must be resolved.
+	 */
+	public void update(final Collection<UserOrg> users, final Collection<GroupOrg> groups) {
+		final long start = System.currentTimeMillis();
+
+		// Merge the users and the groups
+		users.stream().map(this::toCacheUser).forEach(em::merge);
+		groups.stream().map(this::toCacheGroup).forEach(em::merge);
 		em.flush();
-		final long updatedDelegate = updateDelegateDn(cacheGroups, cacheCompanies);
+
+		// Replace the memberships of the updated groups
+		int memberships = 0;
+		for (final GroupOrg group : groups) {
+			em.createQuery("DELETE FROM CacheMembership WHERE group.id=:id").setParameter("id", group.getId())
+					.executeUpdate();
+			memberships += insertMemberships(CacheUser.class, group.getId(), new ArrayList<>(group.getMembers()));
+			memberships += insertMemberships(CacheGroup.class, group.getId(), new ArrayList<>(group.getSubGroups()));
+		}
 		em.flush();
 		em.clear();
-		log.info(
-				"Done in {} : {} groups, {} companies, {} users, {} memberships, {} project groups, {} updated delegates",
-				DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start), cacheGroups.size(),
-				cacheCompanies.size(), users.size(), memberships, subscribedProjects, updatedDelegate);
+		log.info("Delta done in {} : {} groups, {} users, {} memberships",
+				DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start), groups.size(), users.size(),
+				memberships);
 	}
 
 	/**
 	 * Update the receiver DN of delegates where the receiver is a container.
 	 */
-	private long updateDelegateDn(final Map<String, CacheGroup> groups, final Map<String, CacheCompany> companies) {
+	private long updateDelegateDn(final Map<String, GroupOrg> groups, final Map<String, CompanyOrg> companies) {
 		return updateDelegateDn(groups, ReceiverType.GROUP, DelegateType.GROUP)
 				+ updateDelegateDn(companies, ReceiverType.COMPANY, DelegateType.COMPANY);
 	}
@@ -113,7 +380,7 @@ public class LdapCacheDao {
 	 *            The delegate resource type to update. And also the same type than the given containers.
 	 * @return The amount of updated DN references.
 	 */
-	private long updateDelegateDn(final Map<String, ? extends CacheContainer> containers,
+	private long updateDelegateDn(final Map<String, ? extends ContainerOrg> containers,
 			final ReceiverType receiverType, final DelegateType resourceType) {
 		long count = updateDelegateDn(containers, receiverType, "receiverType", DelegateOrg::getReceiver,
 				DelegateOrg::getReceiverDn, DelegateOrg::setReceiverDn);
@@ -122,14 +389,14 @@ public class LdapCacheDao {
 		return count;
 	}
 
-	private long updateDelegateDn(final Map<String, ? extends CacheContainer> containers, final Object type,
+	private long updateDelegateDn(final Map<String, ? extends ContainerOrg> containers, final Object type,
 			final String typePath, final Function<DelegateOrg, String> id, Function<DelegateOrg, String> getDn,
 			BiConsumer<DelegateOrg, String> setDn) {
 		final AtomicInteger updated = new AtomicInteger();
 		// Get all delegates of he related receiver type
 		delegateOrgRepository.findAllBy(typePath, type).stream().peek(d -> {
 			// Consider only the existing ones
-			final String dn = Optional.ofNullable(containers.get(id.apply(d))).map(CacheContainer::getDescription)
+			final String dn = Optional.ofNullable(containers.get(id.apply(d))).map(ContainerOrg::getDescription)
 					.orElse(null);
 
 			// Consider only the dirty one
@@ -143,66 +410,6 @@ public class LdapCacheDao {
 		return updated.get();
 	}
 
-	/**
-	 * Persist association between users and groups.
-	 * 
-	 * @param users
-	 *            The LDAP users.
-	 * @param cacheGroups
-	 *            The groups already persisted in database.
-	 * @return the amount of persisted relations.
-	 */
-	private int persistMemberships(final Map<String, UserOrg> users, final Map<String, CacheGroup> cacheGroups,
-			final Map<String, CacheCompany> cacheCompanies) {
-		int memberships = 0;
-		for (final UserOrg user : users.values()) {
-
-			// Persist users
-			final CacheUser entity = createInternal(user, cacheCompanies);
-			for (final String group : user.getGroups()) {
-				addUserToGroupInternal(entity, cacheGroups.get(group));
-				memberships++;
-			}
-		}
-		return memberships;
-	}
-
-	/**
-	 * Persist association between project and groups.
-	 * 
-	 * @param groups
-	 *            The groups already persisted in database.
-	 * @return the amount of persisted relations.
-	 */
-	private int persistProjectGroups(final Map<String, CacheGroup> groups) {
-		final List<Object[]> allProjectGroup = cacheProjectGroupRepository.findAllProjectGroup();
-		for (final Object[] projectGroup : allProjectGroup) {
-			final Project project = new Project();
-			project.setId((int) projectGroup[0]);
-			final CacheProjectGroup entity = new CacheProjectGroup();
-			entity.setProject(project);
-			entity.setGroup(groups.get(projectGroup[1]));
-			em.persist(entity);
-		}
-		return allProjectGroup.size();
-	}
-
-	/**
-	 * Persist groups and return saved entities
-	 */
-	private Map<String, CacheGroup> persistGroups(final Map<String, GroupOrg> groups) {
-		return groups.values().stream().map(this::create)
-				.collect(Collectors.toMap(CacheGroup::getId, Function.identity()));
-	}
-
-	/**
-	 * Persist companies and return saved entities
-	 */
-	private Map<String, CacheCompany> persistCompanies(final Map<String, CompanyOrg> companies) {
-		return companies.values().stream().map(this::create)
-				.collect(Collectors.toMap(CacheCompany::getId, Function.identity()));
-	}
-
 	/**
 	 * Remove all data from database.
 	 */
@@ -278,18 +485,6 @@ public class LdapCacheDao {
 		return createInternal(company);
 	}
 
-	/**
-	 * Persist a new user
-	 */
-	private CacheUser createInternal(final UserOrg user, final Map<String, CacheCompany> companies) {
-		final CacheUser entity = toCacheUserInternal(user);
-
-		// Set the company if defined
-		entity.setCompany(Optional.ofNullable(user.getCompany()).map(companies::get).orElse(null));
-		em.persist(entity);
-		return entity;
-	}
-
 	/**
 	 * Transform user to JPA.
 	 */
@@ -461,22 +656,36 @@ public class LdapCacheDao {
 	 * Associate a user to a group.
 	 */
 	private void addUserToGroupInternal(final CacheUser entity, final CacheGroup groupLdap) {
+		em.persist(toMembership(entity, groupLdap));
+	}
+
+	/**
+	 * Associate a group to another group.
+	 */
+	private void addGroupToGroupInternal(final CacheGroup entity, final GroupOrg groupLdap) {
+		em.persist(toMembership(entity, groupLdap));
+	}
+
+	/**
+	 * Return a new membership of a user to a group.
+	 */
+	private CacheMembership toMembership(final CacheUser entity, final CacheGroup groupLdap) {
 		final CacheMembership membership = new CacheMembership();
 		membership.setUser(entity);
 		membership.setGroup(groupLdap);
-		em.persist(membership);
+		return membership;
 	}
 
 	/**
-	 * Associate a group to another group.
+	 * Return a new membership of a group to another group.
 	 */
-	private void addGroupToGroupInternal(final CacheGroup entity, final GroupOrg groupLdap) {
+	private CacheMembership toMembership(final CacheGroup entity, final GroupOrg groupLdap) {
 		final CacheMembership membership = new CacheMembership();
 		final CacheGroup cacheGroup = new CacheGroup();
 		cacheGroup.setId(groupLdap.getId());
 		membership.setSubGroup(entity);
 		membership.setGroup(cacheGroup);
-		em.persist(membership);
+		return membership;
 	}
 
 }
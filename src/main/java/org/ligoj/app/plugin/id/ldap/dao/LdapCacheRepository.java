@@ -3,12 +3,38 @@
  */
 package org.ligoj.app.plugin.id.ldap.dao;
 
-import java.util.EnumMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
+import javax.annotation.PreDestroy;
 import javax.cache.annotation.CacheResult;
 
+import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.ligoj.app.api.Normalizer;
 import org.ligoj.app.iam.CompanyOrg;
 import org.ligoj.app.iam.GroupOrg;
@@ -47,19 +73,135 @@ public class LdapCacheRepository {
 	protected LdapCacheRepository self;
 
 	/**
-	 * Current LDAP data.
+	 * Overlap in milliseconds applied to the last synchronization date for the incremental synchronization. Covers the
+	 * clock drift between this server and the LDAP one.
 	 */
-	private Map<LdapData, Map<String, ? extends ResourceOrg>> ldapData;
+	private static final long DELTA_SYNC_OVERLAP = 60000;
 
 	/**
-	 * Reset the database cache with the LDAP data. Note there is no synchronization for this method. Initial first
-	 * concurrent calls may note involve the cache.
+	 * Number of concurrent stages of a full reload: companies, groups and users.
+	 */
+	private static final int FETCH_THREADS = 3;
+
+	/**
+	 * Bounded executor of the full reload stages. Threads are released when idle.
+	 */
+	private final ThreadPoolExecutor executor = newExecutor();
+
+	/**
+	 * Scheduler of the background refreshes.
+	 */
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread thread = new Thread(r, "ldap-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The next background refresh. <code>null</code> when there is none.
+	 */
+	private ScheduledFuture<?> nextRefresh;
+
+	/**
+	 * Current LDAP data. Readers pick it with a single volatile read, writers publish a new version under the lock of
+	 * this instance.
+	 */
+	private volatile LdapSnapshot snapshot;
+
+	/**
+	 * The reload in progress, shared by the concurrent callers. <code>null</code> when there is none.
+	 */
+	private final AtomicReference<CompletableFuture<LdapSnapshot>> inFlight = new AtomicReference<>();
+
+	/**
+	 * Set when a notified change requires a full reload. Cleared by the next reload.
+	 */
+	private final AtomicBoolean fullReload = new AtomicBoolean();
+
+	/**
+	 * Amount of performed reloads.
+	 */
+	private final AtomicLong reloads = new AtomicLong();
+
+	/**
+	 * Amount of callers joining a reload in progress instead of starting their own one.
+	 */
+	private final AtomicLong coalesced = new AtomicLong();
+
+	/**
+	 * Amount of coalesced callers served with the previous data instead of waiting for the reload.
+	 */
+	private final AtomicLong staleServed = new AtomicLong();
+
+	/**
+	 * The purge of the stale database cache entries of the last reset, if any.
+	 */
+	private volatile CompletableFuture<Void> pendingPurge = CompletableFuture.completedFuture(null);
+
+	/**
+	 * Start time of the last succeed synchronization, full or incremental.
+	 */
+	private long lastSync;
+
+	/**
+	 * Start time of the last succeed full synchronization.
+	 */
+	private long lastFullSync;
+
+	/**
+	 * The edits applied during the fetch of the full reload in progress, replayed on the fetched data before they are
+	 * published. <code>null</code> when there is no fetch in progress. Guarded by the lock of this instance.
+	 */
+	private List<Runnable> journal;
+
+	/**
+	 * The database cache writes deferred after the reset in progress. <code>null</code> when there is no reset in
+	 * progress. Guarded by the lock of this instance.
+	 */
+	private List<Runnable> deferred;
+
+	/**
+	 * Build the bounded executor of the full reload stages.
+	 */
+	private static ThreadPoolExecutor newExecutor() {
+		final AtomicInteger counter = new AtomicInteger();
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(FETCH_THREADS, FETCH_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+					final Thread thread = new Thread(r, "ldap-cache-" + counter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Return the cached LDAP data, loading it when needed. Concurrent loads are coalesced into a single one.
 	 * 
-	 * @return The cached LDAP data..
+	 * @return The cached LDAP data. The maps are read-only.
 	 */
 	public Map<LdapData, Map<String, ? extends ResourceOrg>> getLdapData() {
+		return getSnapshot().getData();
+	}
+
+	/**
+	 * Return the current snapshot of the LDAP data, loading it when needed. The returned snapshot is never modified,
+	 * so consecutive reads from it are consistent.
+	 * 
+	 * @return The current LDAP data snapshot.
+	 */
+	public LdapSnapshot getSnapshot() {
 		self.ensureCachedData();
-		return Optional.ofNullable(ldapData).orElseGet(this::refreshData);
+		return Optional.ofNullable(snapshot).orElseGet(this::refreshData);
+	}
+
+	/**
+	 * Return the current snapshot without loading it.
+	 *
+	 * @return The current snapshot, or <code>null</code> when the data is not loaded yet.
+	 */
+	public LdapSnapshot getPublishedSnapshot() {
+		return snapshot;
 	}
 
 	/**
@@ -69,41 +211,649 @@ public class LdapCacheRepository {
 	 */
 	@CacheResult(cacheName = "ldap")
 	public boolean ensureCachedData() {
-		refreshData();
+		if (snapshot != null && getUser().getRefreshInterval() > 0) {
+			// Stale while revalidate: the previous data is served during the background refresh
+			scheduler.execute(this::revalidate);
+		} else {
+			refreshData();
+		}
 		return true;
 	}
 
 	/**
-	 * Reset the database cache with the LDAP data. Note there is no synchronization for this method. Initial first
-	 * concurrent calls may note involve the cache.
+	 * Refresh the data in the background, then schedule the next refresh.
+	 */
+	private void revalidate() {
+		try {
+			refreshData();
+		} catch (final RuntimeException e) {
+			log.warn("Background refresh of LDAP data failed", e);
+			scheduleRefresh();
+		}
+	}
+
+	/**
+	 * Schedule the next background refresh, replacing the previous one. Nothing is scheduled when the refresh interval
+	 * is not set.
+	 */
+	private void scheduleRefresh() {
+		final UserLdapRepository user = getUser();
+		synchronized (scheduler) {
+			if (nextRefresh != null) {
+				nextRefresh.cancel(false);
+				nextRefresh = null;
+			}
+			if (user.getRefreshInterval() > 0 && !scheduler.isShutdown()) {
+				final long delay = user.getRefreshInterval() * 1000L
+						+ ThreadLocalRandom.current().nextLong(Math.max(0, user.getRefreshJitter()) * 1000L + 1);
+				log.debug("Next background refresh of LDAP data in {}ms", delay);
+				nextRefresh = scheduler.schedule(this::revalidate, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Reset the database cache with the LDAP data. Only one reload runs at a time: the concurrent callers wait for the
+	 * reload in progress, or get the previous data when the stale mode is enabled.
 	 * 
 	 * @return The fresh LDAP data..
 	 */
-	private Map<LdapData, Map<String, ? extends ResourceOrg>> refreshData() {
-		final Map<LdapData, Map<String, ? extends ResourceOrg>> result = new EnumMap<>(LdapData.class);
+	private LdapSnapshot refreshData() {
+		final CompletableFuture<LdapSnapshot> flight = new CompletableFuture<>();
+		while (!inFlight.compareAndSet(null, flight)) {
+			final CompletableFuture<LdapSnapshot> current = inFlight.get();
+			if (current != null) {
+				return coalesce(current);
+			}
+		}
+		try {
+			final LdapSnapshot result = reload();
+			flight.complete(result);
+			return result;
+		} catch (final RuntimeException e) {
+			flight.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.set(null);
+		}
+	}
+
+	/**
+	 * Join the reload in progress.
+	 */
+	private LdapSnapshot coalesce(final CompletableFuture<LdapSnapshot> current) {
+		coalesced.incrementAndGet();
+		final LdapSnapshot previous = snapshot;
+		if (previous != null && getUser().isReloadStale()) {
+			staleServed.incrementAndGet();
+			log.debug("Reload in progress, previous LDAP data version {} is served", previous.getVersion());
+			return previous;
+		}
+		log.debug("Reload in progress, waiting for it");
+		return join(current);
+	}
+
+	/**
+	 * Reload the LDAP data. When the incremental synchronization is enabled and possible, only the entries created or
+	 * modified since the last synchronization are fetched and applied.
+	 */
+	private LdapSnapshot reload() {
+		reloads.incrementAndGet();
+		final long start = System.currentTimeMillis();
+		final boolean full = fullReload.getAndSet(false);
+		final LdapSnapshot result;
+		try {
+			if (!full && isDeltaSyncPossible(start) && refreshDelta(new Date(lastSync - DELTA_SYNC_OVERLAP))) {
+				// Incremental synchronization succeed
+				lastSync = start;
+				result = snapshot;
+			} else {
+				result = refreshFull(start);
+			}
+		} catch (final RuntimeException e) {
+			// The requested full reload is still required
+			fullReload.compareAndSet(false, full);
+			throw e;
+		}
+		scheduleRefresh();
+		return result;
+	}
+
+	/**
+	 * Request a full reload in the background. The reload runs in the refresh scheduler, outside the lock of this
+	 * instance, and joins the reload in progress if any.
+	 */
+	private void requestFullReload() {
+		if (!fullReload.getAndSet(true) && !scheduler.isShutdown()) {
+			scheduler.execute(this::reloadRequested);
+		}
+	}
+
+	/**
+	 * Perform the requested full reload. A reload started before the request does not clear it, so this reload is
+	 * performed after it.
+	 */
+	private void reloadRequested() {
+		try {
+			while (fullReload.get()) {
+				Optional.ofNullable(inFlight.get()).ifPresent(f -> f.exceptionally(e -> null).join());
+				refreshData();
+			}
+		} catch (final RuntimeException e) {
+			log.warn("Requested full reload of LDAP data failed", e);
+		}
+	}
+
+	/**
+	 * Return the amount of performed reloads, full or incremental.
+	 * 
+	 * @return The amount of performed reloads.
+	 */
+	public long getReloadCount() {
+		return reloads.get();
+	}
+
+	/**
+	 * Return the amount of callers that joined a reload in progress instead of starting their own one.
+	 * 
+	 * @return The amount of coalesced callers.
+	 */
+	public long getCoalescedCount() {
+		return coalesced.get();
+	}
 
-		// Fetch LDAP data
+	/**
+	 * Return the amount of coalesced callers served with the previous data instead of waiting for the reload.
+	 * 
+	 * @return The amount of callers served with stale data.
+	 */
+	public long getStaleServedCount() {
+		return staleServed.get();
+	}
+
+	/**
+	 * Indicates the incremental synchronization can be used instead of a full reload.
+	 */
+	private boolean isDeltaSyncPossible(final long now) {
+		final UserLdapRepository user = getUser();
+		return snapshot != null && user.isDeltaSync()
+				&& (user.getFullSyncInterval() <= 0 || now - lastFullSync < user.getFullSyncInterval() * 1000L);
+	}
+
+	/**
+	 * Fetch all LDAP data and reset the database cache. The companies, groups and users are fetched concurrently, and
+	 * the membership is resolved as soon as both groups and users are available. The edits applied during the fetch
+	 * are replayed on the fetched data, then the result is published before the database reset, so the readers do not
+	 * wait for it.
+	 */
+	private LdapSnapshot refreshFull(final long start) {
+		final CompanyLdapRepository companyRepository = getCompany();
+		final GroupLdapRepository groupRepository = getGroup();
+		final UserLdapRepository userRepository = getUser();
+
+		// Fetch LDAP data, recording the concurrent edits
 		log.info("Fetching LDAP data ...");
-		final Map<String, CompanyOrg> companies = getCompany().findAllNoCache();
-		final Map<String, GroupOrg> groups = getGroup().findAllNoCache();
-		final Map<String, UserOrg> users = getUser().findAllNoCache(groups);
-		result.put(LdapData.COMPANY, companies);
-		result.put(LdapData.GROUP, groups);
-		result.put(LdapData.USER, users);
-		ldapCacheDao.reset(companies, groups, users);
-		this.ldapData = result;
+		synchronized (this) {
+			journal = new ArrayList<>();
+		}
+		final LdapSnapshot result;
+		try {
+			final CompletableFuture<Map<String, CompanyOrg>> companiesF = supplyTimed("companies",
+					companyRepository::findAllNoCache);
+			final Map<String, Set<String>> departments = new HashMap<>();
+			final CompletableFuture<Map<String, GroupOrg>> groupsF = supplyTimed("groups",
+					() -> groupRepository.findAllNoCache(departments));
+			final CompletableFuture<Map<String, UserOrg>> usersF = supplyTimed("users",
+					userRepository::findAllNoCache);
+			final CompletableFuture<Map<String, UserOrg>> membershipF = groupsF.thenCombine(usersF,
+					(groups, users) -> timed("memberships", () -> {
+						userRepository.updateMembership(users, groups.values());
+						return users;
+					}));
+
+			final Map<String, CompanyOrg> companies = join(companiesF);
+			final Map<String, GroupOrg> groups = join(groupsF);
+			final Map<String, UserOrg> users = join(membershipF);
+			synchronized (this) {
+				final List<Runnable> edits = journal;
+				journal = null;
+				snapshot = new LdapSnapshot(nextVersion(), companies, groups, users, departments);
+
+				// The database writes of the replayed edits are covered by the reset of the published data
+				deferred = new ArrayList<>();
+				edits.forEach(Runnable::run);
+				deferred.clear();
+				result = snapshot;
+				lastSync = start;
+				lastFullSync = start;
+			}
+		} finally {
+			synchronized (this) {
+				journal = null;
+			}
+		}
+
+		// The writes during the reset are applied after it
+		try {
+			purgeLater(timed("database", () -> {
+				// The previous purge must not remove the entries of this reset
+				join(pendingPurge.exceptionally(e -> null));
+				if (userRepository.isDeferredPurge()) {
+					return ldapCacheDao.upsert(result.getCompanies(), result.getGroups(), result.getUsers(),
+							userRepository.getBatchSize());
+				}
+				ldapCacheDao.reset(result.getCompanies(), result.getGroups(), result.getUsers(),
+						userRepository.getBatchSize());
+				return null;
+			}));
+		} catch (final RuntimeException e) {
+			// The published data are not in the database cache, the next reload must be a full one
+			fullReload.set(true);
+			throw e;
+		} finally {
+			flushDeferred();
+		}
+		log.info("LDAP data fetched in {}", DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start));
 		return result;
 	}
 
+	/**
+	 * Apply the database cache writes deferred during the reset, then write the next ones directly. A failed write
+	 * requires a full reload, since the database cache is no more consistent with the published data.
+	 */
+	private synchronized void flushDeferred() {
+		final List<Runnable> writes = deferred;
+		deferred = null;
+		writes.forEach(write -> {
+			try {
+				write.run();
+			} catch (final RuntimeException e) {
+				log.warn("Deferred write of the database cache failed", e);
+				requestFullReload();
+			}
+		});
+	}
+
+	/**
+	 * Write to the database cache, or defer the write after the reset in progress. The caller holds the lock of this
+	 * instance.
+	 */
+	private void write(final Runnable write) {
+		if (deferred == null) {
+			write.run();
+		} else {
+			deferred.add(write);
+		}
+	}
+
+	/**
+	 * Remove the stale entries from the database cache in a separate transaction. The entries created since are kept.
+	 */
+	private void purgeLater(final StaleCacheEntries stale) {
+		if (stale != null && !stale.isEmpty()) {
+			pendingPurge = CompletableFuture
+					.runAsync(() -> timed("purge", () -> ldapCacheDao.purge(stale.without(snapshot))), executor)
+					.whenComplete((r, e) -> {
+						if (e != null) {
+							log.warn("Purge of the stale cache entries failed", e);
+						}
+					});
+		}
+	}
+
+	/**
+	 * Return the version of the next published snapshot.
+	 */
+	private long nextVersion() {
+		return Optional.ofNullable(snapshot).map(LdapSnapshot::getVersion).orElse(0L) + 1;
+	}
+
+	/**
+	 * Run a timed stage of the reload in the fetch executor.
+	 */
+	private <T> CompletableFuture<T> supplyTimed(final String stage, final Supplier<T> supplier) {
+		return CompletableFuture.supplyAsync(() -> timed(stage, supplier), executor);
+	}
+
+	/**
+	 * Run a stage of the reload and log its duration.
+	 */
+	private <T> T timed(final String stage, final Supplier<T> supplier) {
+		final long start = System.currentTimeMillis();
+		final T result = supplier.get();
+		log.info("Stage {} done in {}", stage,
+				DurationFormatUtils.formatDurationHMS(System.currentTimeMillis() - start));
+		return result;
+	}
+
+	/**
+	 * Wait for the result of a stage and propagate its original failure.
+	 */
+	private <T> T join(final CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (final CompletionException ce) {
+			if (ce.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) ce.getCause();
+			}
+			if (ce.getCause() instanceof Error) {
+				throw (Error) ce.getCause();
+			}
+			throw ce;
+		}
+	}
+
+	/**
+	 * Release the fetch executor and the refresh scheduler.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		scheduler.shutdownNow();
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Fetch the LDAP entries created or modified since the given date and merge them into the current data and the
+	 * database cache.
+	 * 
+	 * @param since
+	 *            The lower bound date, inclusive.
+	 * @return <code>true</code> when the incremental synchronization succeed. <code>false</code> when a full reload
+	 *         is required: company changes or deletions. The deletions are only looked for when the LDAP change
+	 *         listener is not started, otherwise they are already applied, and when there is no full synchronization
+	 *         interval, otherwise they are applied by the next full reload.
+	 */
+	private boolean refreshDelta(final Date since) {
+		log.info("Fetching LDAP data modified since {} ...", since);
+		final LdapSnapshot current = snapshot;
+		final Map<String, CompanyOrg> companies = current.getCompanies();
+		final Map<String, GroupOrg> groups = current.getGroups();
+		final Map<String, UserOrg> users = current.getUsers();
+
+		// Company changes imply a whole hierarchy update
+		if (!getCompany().findAllModifiedNoCache(since).isEmpty()) {
+			log.info("Company changes found, a full reload is required");
+			return false;
+		}
+
+		// Deletions cannot be detected with the timestamps, compare the identifiers unless they are already notified.
+		// The whole directory is read, so this is left to the periodic full reload when there is one.
+		if (!getUser().isListening() && getUser().getFullSyncInterval() <= 0
+				&& (!getCompany().findAllIdsNoCache().containsAll(companies.keySet())
+				|| !getGroup().findAllIdsNoCache().containsAll(groups.keySet())
+				|| !getUser().findAllIdsNoCache().containsAll(users.keySet()))) {
+			log.info("Deletions found, a full reload is required");
+			return false;
+		}
+
+		final Map<String, Set<String>> subGroupsDn = new HashMap<>();
+		final Map<String, Set<String>> departments = new HashMap<>();
+		merge(new HashMap<>(getUser().findAllModifiedNoCache(since)),
+				new HashMap<>(getGroup().findAllModifiedNoCache(since, subGroupsDn, departments)), subGroupsDn,
+				departments);
+		return true;
+	}
+
+	/**
+	 * Merge the given created or modified entries into the current data and the database cache. Only the actually
+	 * changed entries are copied and persisted, and a new snapshot is published only when there is one.
+	 * 
+	 * @param changedUsers
+	 *            The created or modified users. Their membership is ignored. The unchanged users are removed from
+	 *            this map.
+	 * @param changedGroups
+	 *            The created or modified groups. The members are expected to be DN. The unchanged groups are removed
+	 *            from this map.
+	 * @param subGroupsDn
+	 *            The DN of the sub-groups of each changed group. Key is the normalized name of the group.
+	 * @param departments
+	 *            The departments of each changed group. Key is the normalized name of the group.
+	 */
+	private synchronized void merge(final Map<String, UserOrg> changedUsers, final Map<String, GroupOrg> changedGroups,
+			final Map<String, Set<String>> subGroupsDn, final Map<String, Set<String>> departments) {
+		final LdapSnapshot current = snapshot;
+		final Map<String, GroupOrg> changedByDn = new HashMap<>();
+		changedGroups.values().forEach(g -> changedByDn.put(Normalizer.normalize(g.getDn()), g));
+
+		// The unchanged entries are ignored, so the replay of a whole directory publishes nothing
+		changedUsers.values().removeIf(u -> isSame(current.getUsers().get(u.getId()), u));
+		changedGroups.values().removeIf(g -> isSame(current, g, changedUsers, changedByDn, subGroupsDn, departments));
+		if (changedUsers.isEmpty() && changedGroups.isEmpty()) {
+			return;
+		}
+		final SnapshotEditor editor = new SnapshotEditor(current);
+
+		// Merge the users, keeping the current membership
+		final List<UserOrg> updatedUsers = new ArrayList<>(changedUsers.values());
+		updatedUsers.forEach(u -> {
+			Optional.ofNullable(current.getUsers().get(u.getId()))
+					.ifPresent(o -> u.setGroups(new ArrayList<>(o.getGroups())));
+			editor.put(u);
+		});
+
+		// Merge the groups, replacing the previous memberships
+		changedGroups.values().forEach(g -> {
+			Optional.ofNullable(current.getGroups().get(g.getId())).ifPresent(o -> {
+				o.getMembers().stream().map(editor::getUser).filter(Objects::nonNull)
+						.forEach(u -> u.getGroups().remove(o.getId()));
+				o.getSubGroups().stream().map(editor::getGroup).filter(Objects::nonNull)
+						.forEach(c -> c.getGroups().remove(o.getId()));
+				g.getGroups().addAll(o.getGroups());
+			});
+			editor.put(g);
+		});
+
+		// Only the referenced sub-groups are copied, the resolution updates their links
+		final Map<String, GroupOrg> dnToGroups = new HashMap<>();
+		subGroupsDn.entrySet().stream().filter(e -> changedGroups.containsKey(e.getKey()))
+				.flatMap(e -> e.getValue().stream()).map(Normalizer::normalize)
+				.forEach(dn -> Optional.ofNullable(toGroup(current, changedByDn, dn))
+						.ifPresent(c -> dnToGroups.put(dn, editor.getGroup(c.getId()))));
+		getGroup().updateSubGroups(changedGroups, subGroupsDn, dnToGroups);
+
+		// Only the members of the changed groups are looked up, the other users are not indexed
+		new MembershipResolver(editor::getUser).resolve(changedGroups.values());
+
+		// Apply the changes to the database cache, then publish them
+		final List<GroupOrg> updatedGroups = new ArrayList<>(changedGroups.values());
+		write(() -> ldapCacheDao.update(updatedUsers, updatedGroups));
+		final Map<String, Set<String>> changedDepartments = departments.entrySet().stream()
+				.filter(e -> changedGroups.containsKey(e.getKey()))
+				.collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+		Map<String, Set<String>> newDepartments = null;
+		if (!changedDepartments.isEmpty()) {
+			newDepartments = new HashMap<>(current.getDepartments());
+			newDepartments.putAll(changedDepartments);
+		}
+
+		// The indexes of the users are only updated for the changed users
+		snapshot = current.withUsers(editor.getGroups(), editor.getUsers(),
+				updatedUsers.stream().map(UserOrg::getId).collect(Collectors.toList()), newDepartments);
+	}
+
+	/**
+	 * Return the group of the given normalized DN, from the changed groups first, then from the given snapshot.
+	 */
+	private GroupOrg toGroup(final LdapSnapshot current, final Map<String, GroupOrg> changedByDn, final String dn) {
+		return Optional.ofNullable(changedByDn.get(dn)).orElseGet(() -> current.getGroupTrie().get(dn));
+	}
+
+	/**
+	 * Indicates the notified group is the same as the cached one: same attributes, same departments and same resolved
+	 * members and sub-groups. The group itself is not updated.
+	 */
+	private boolean isSame(final LdapSnapshot current, final GroupOrg group, final Map<String, UserOrg> changedUsers,
+			final Map<String, GroupOrg> changedByDn, final Map<String, Set<String>> subGroupsDn,
+			final Map<String, Set<String>> departments) {
+		final GroupOrg old = current.getGroups().get(group.getId());
+		if (old == null || !Objects.equals(old.getDn(), group.getDn())
+				|| !Objects.equals(old.getName(), group.getName())
+				|| !Objects.equals(departments.getOrDefault(group.getId(), Collections.emptySet()),
+						current.getDepartments().getOrDefault(group.getId(), Collections.emptySet()))) {
+			return false;
+		}
+		final Set<String> subGroups = subGroupsDn.getOrDefault(group.getId(), Collections.emptySet()).stream()
+				.map(Normalizer::normalize).map(dn -> toGroup(current, changedByDn, dn)).filter(Objects::nonNull)
+				.map(GroupOrg::getId).collect(Collectors.toSet());
+		return subGroups.equals(old.getSubGroups()) && new MembershipResolver(
+				id -> Optional.ofNullable(changedUsers.get(id)).orElseGet(() -> current.getUsers().get(id)))
+						.toMembers(group).equals(old.getMembers());
+	}
+
+	/**
+	 * Indicates the cached attributes of both users are the same.
+	 */
+	private boolean isSame(final UserOrg old, final UserOrg user) {
+		return old != null && Objects.equals(old.getDn(), user.getDn())
+				&& Objects.equals(old.getFirstName(), user.getFirstName())
+				&& Objects.equals(old.getLastName(), user.getLastName())
+				&& Objects.equals(old.getMails(), user.getMails())
+				&& Objects.equals(old.getDepartment(), user.getDepartment())
+				&& Objects.equals(old.getLocalId(), user.getLocalId())
+				&& Objects.equals(old.getCompany(), user.getCompany())
+				&& Objects.equals(old.getLocked(), user.getLocked())
+				&& Objects.equals(old.getLockedBy(), user.getLockedBy())
+				&& Objects.equals(old.getIsolated(), user.getIsolated()) && old.isSecured() == user.isSecured();
+	}
+
+	/**
+	 * Apply the created or modified entries notified by the LDAP change listener of the given repository. Ignored when
+	 * the repository is not the current one, or when the data are not yet loaded.
+	 * 
+	 * @param source
+	 *            The user repository of the listener.
+	 * @param changedUsers
+	 *            The created or modified users. Their membership is ignored.
+	 * @param changedGroups
+	 *            The created or modified groups. The members are expected to be DN.
+	 * @param subGroupsDn
+	 *            The DN of the sub-groups of each changed group. Key is the normalized name of the group.
+	 * @param departments
+	 *            The departments of each changed group. Key is the normalized name of the group.
+	 */
+	public synchronized void onChange(final UserLdapRepository source, final Map<String, UserOrg> changedUsers,
+			final Map<String, GroupOrg> changedGroups, final Map<String, Set<String>> subGroupsDn,
+			final Map<String, Set<String>> departments) {
+		if (journal != null) {
+			// The fetched data may not include these changes, they are merged again with their original state
+			final Map<String, UserOrg> users = copy(changedUsers, SnapshotEditor::copy);
+			final Map<String, GroupOrg> groups = copy(changedGroups, SnapshotEditor::copy);
+			journal.add(() -> onChange(source, users, groups, subGroupsDn, departments));
+		}
+		if (isListened(source)) {
+			final Map<String, CompanyOrg> companies = snapshot.getCompanies();
+			if (changedUsers.values().stream().allMatch(u -> companies.containsKey(u.getCompany()))) {
+				merge(new HashMap<>(changedUsers), new HashMap<>(changedGroups), subGroupsDn, departments);
+			} else {
+				// Unknown company, the hierarchy is not yet up to date
+				requestFullReload();
+			}
+		}
+	}
+
+	/**
+	 * Return a copy of the given entries.
+	 */
+	private static <T> Map<String, T> copy(final Map<String, T> entries, final UnaryOperator<T> copy) {
+		return entries.entrySet().stream().collect(Collectors.toMap(Map.Entry::getKey, e -> copy.apply(e.getValue())));
+	}
+
+	/**
+	 * Apply a company change notified by the LDAP change listener of the given repository. Unknown company implies a
+	 * whole reload, performed in the background.
+	 * 
+	 * @param source
+	 *            The user repository of the listener.
+	 * @param dn
+	 *            The normalized DN of the created or modified company.
+	 */
+	public synchronized void onCompanyChange(final UserLdapRepository source, final String dn) {
+		if (isListened(source) && snapshot.getCompanyTrie().get(dn) == null) {
+			log.info("Company change found for {}, a full reload is required", dn);
+			requestFullReload();
+		}
+	}
+
+	/**
+	 * Apply a deletion notified by the LDAP change listener of the given repository. The entry is found with the DN
+	 * indexes of the current snapshot. A deleted company implies a whole reload, performed in the background.
+	 * 
+	 * @param source
+	 *            The user repository of the listener.
+	 * @param dn
+	 *            The normalized DN of the deleted entry.
+	 */
+	public synchronized void onDelete(final UserLdapRepository source, final String dn) {
+		if (!isListened(source)) {
+			return;
+		}
+		final LdapSnapshot current = snapshot;
+		final UserOrg user = current.getUserByDn(dn);
+		if (user != null) {
+			// Remove the user from its groups, then from the cache
+			write(() -> ldapCacheDao.delete(user));
+			deleteMemoryUser(user);
+			return;
+		}
+		final GroupOrg group = current.getGroupTrie().get(dn);
+		if (group != null) {
+			// Remove the group from its parents, its sub-groups and its members, then from the cache
+			publish(c -> Optional.ofNullable(c.getGroups().get(group.getId())).map(g -> {
+				final SnapshotEditor editor = new SnapshotEditor(c);
+				g.getGroups().forEach(p -> editor.unlinkGroup(g.getId(), p));
+				g.getSubGroups().forEach(s -> editor.unlinkGroup(s, g.getId()));
+				g.getMembers().forEach(u -> editor.unlink(u, g.getId()));
+				return editor.publish();
+			}).orElse(c));
+			write(() -> ldapCacheDao.delete(group));
+			deleteMemoryGroup(group);
+			return;
+		}
+		if (current.getCompanyTrie().get(dn) != null) {
+			log.info("Company deletion found for {}, a full reload is required", dn);
+			requestFullReload();
+		}
+	}
+
+	/**
+	 * Indicates the changes notified by the listener of the given repository can be applied.
+	 */
+	private boolean isListened(final UserLdapRepository source) {
+		return snapshot != null && source == getUser();
+	}
+
 	/**
 	 * Add given group to the cache.
 	 * 
 	 * @param group
 	 *            the new group.
 	 */
-	protected void create(final GroupOrg group) {
-		ldapCacheDao.create(group);
-		getGroup().findAll().put(group.getId(), group);
+	protected synchronized void create(final GroupOrg group) {
+		write(() -> ldapCacheDao.create(group));
+		publish(current -> {
+			final Map<String, GroupOrg> groups = new HashMap<>(current.getGroups());
+			groups.put(group.getId(), group);
+			return current.with(groups, current.getUsers());
+		});
+	}
+
+	/**
+	 * Add the given departments to the group of the given DN. The departments are only indexed in memory.
+	 * 
+	 * @param dn
+	 *            The DN of the group.
+	 * @param added
+	 *            The new departments of the group.
+	 */
+	protected synchronized void addDepartments(final String dn, final Collection<String> added) {
+		publish(current -> Optional.ofNullable(current.getGroupTrie().get(dn)).map(group -> {
+			final Map<String, Set<String>> departments = new HashMap<>(current.getDepartments());
+			final Set<String> groupDepartments = new HashSet<>(
+					departments.getOrDefault(group.getId(), Collections.emptySet()));
+			groupDepartments.addAll(added);
+			departments.put(group.getId(), groupDepartments);
+			return current.with(current.getGroups(), current.getUsers(), departments);
+		}).orElse(current));
 	}
 
 	/**
@@ -112,9 +862,13 @@ public class LdapCacheRepository {
 	 * @param company
 	 *            the new group.
 	 */
-	protected void create(final CompanyOrg company) {
-		ldapCacheDao.create(company);
-		getCompany().findAll().put(company.getId(), company);
+	protected synchronized void create(final CompanyOrg company) {
+		write(() -> ldapCacheDao.create(company));
+		publish(current -> {
+			final Map<String, CompanyOrg> companies = new HashMap<>(current.getCompanies());
+			companies.put(company.getId(), company);
+			return current.withCompanies(companies);
+		});
 	}
 
 	/**
@@ -123,9 +877,9 @@ public class LdapCacheRepository {
 	 * @param user
 	 *            the new user.
 	 */
-	protected void create(final UserOrg user) {
-		ldapCacheDao.create(user);
-		getUser().findAll().put(user.getId(), user);
+	protected synchronized void create(final UserOrg user) {
+		write(() -> ldapCacheDao.create(user));
+		publish(current -> current.withUser(user));
 	}
 
 	/**
@@ -134,17 +888,67 @@ public class LdapCacheRepository {
 	 * @param group
 	 *            the group to remove.
 	 */
-	protected void delete(final GroupOrg group) {
-		final Map<String, GroupOrg> groupsNameToDn = getGroup().findAll();
-
+	protected synchronized void delete(final GroupOrg group) {
 		// Remove the group from the users
-		deleteMemoryAssociations(group, getUser().findAll());
+		deleteMemoryAssociations(group);
 
 		// Remove from JPA cache
-		ldapCacheDao.delete(group);
+		write(() -> ldapCacheDao.delete(group));
 
 		// Remove the group
-		groupsNameToDn.remove(group.getId());
+		deleteMemoryGroup(group);
+	}
+
+	/**
+	 * Remove the group from the in-memory cache only. The links are not updated.
+	 * 
+	 * @param group
+	 *            the group to remove.
+	 */
+	protected synchronized void evict(final GroupOrg group) {
+		deleteMemoryGroup(group);
+	}
+
+	/**
+	 * Remove the company from the in-memory cache only.
+	 * 
+	 * @param company
+	 *            the company to remove.
+	 */
+	protected synchronized void evict(final CompanyOrg company) {
+		publish(current -> {
+			final Map<String, CompanyOrg> companies = new HashMap<>(current.getCompanies());
+			companies.remove(company.getId());
+			return current.withCompanies(companies);
+		});
+	}
+
+	/**
+	 * Publish a new snapshot without the given group and its departments.
+	 */
+	private void deleteMemoryGroup(final GroupOrg group) {
+		publish(current -> {
+			final Map<String, GroupOrg> groups = new HashMap<>(current.getGroups());
+			groups.remove(group.getId());
+			if (current.getDepartments().containsKey(group.getId())) {
+				final Map<String, Set<String>> departments = new HashMap<>(current.getDepartments());
+				departments.remove(group.getId());
+				return current.with(groups, current.getUsers(), departments);
+			}
+			return current.with(groups, current.getUsers());
+		});
+	}
+
+	/**
+	 * Publish a new snapshot without the given user, also removed from its groups.
+	 */
+	private void deleteMemoryUser(final UserOrg user) {
+		final String id = Normalizer.normalize(user.getId());
+		publish(current -> Optional.ofNullable(current.getUsers().get(id)).map(cached -> {
+			final SnapshotEditor editor = new SnapshotEditor(current);
+			cached.getGroups().forEach(g -> editor.unlink(id, g));
+			return editor.publish().withoutUser(id);
+		}).orElse(current));
 	}
 
 	/**
@@ -152,33 +956,28 @@ public class LdapCacheRepository {
 	 * 
 	 * @param group
 	 *            The group to empty.
-	 * @param users
-	 *            All known users could be removed from this group.
 	 */
-	protected void empty(final GroupOrg group, final Map<String, UserOrg> users) {
+	protected synchronized void empty(final GroupOrg group) {
 		// Remove the group from the users
-		deleteMemoryAssociations(group, users);
+		deleteMemoryAssociations(group);
 
 		// Remove memberships from JPA cache
-		ldapCacheDao.empty(group);
+		write(() -> ldapCacheDao.empty(group));
 	}
 
 	/**
-	 * Remove all users from the given group and empty the group.
+	 * Publish a new snapshot where the given group has no member.
 	 * 
 	 * @param group
 	 *            The group to empty.
-	 * @param users
-	 *            All known users.
 	 */
-	private void deleteMemoryAssociations(final GroupOrg group, final Map<String, UserOrg> users) {
-		// Remove from in-memory cache all users
-		for (final String member : group.getMembers()) {
-			users.get(member).getGroups().remove(group.getId());
-		}
-
-		// Clear the members list
-		group.getMembers().clear();
+	private void deleteMemoryAssociations(final GroupOrg group) {
+		publish(current -> {
+			final SnapshotEditor editor = new SnapshotEditor(current);
+			Optional.ofNullable(current.getGroups().get(group.getId()))
+					.ifPresent(g -> g.getMembers().forEach(u -> editor.unlink(u, g.getId())));
+			return editor.publish();
+		});
 	}
 
 	/**
@@ -188,14 +987,12 @@ public class LdapCacheRepository {
 	 * @param company
 	 *            The company to remove.
 	 */
-	public void delete(final CompanyOrg company) {
-		final Map<String, GroupOrg> companiesNameToDn = getGroup().findAll();
-
+	public synchronized void delete(final CompanyOrg company) {
 		// Remove from JPA cache
-		ldapCacheDao.delete(company);
+		write(() -> ldapCacheDao.delete(company));
 
 		// Remove from in-memory cache
-		companiesNameToDn.remove(company.getId());
+		evict(company);
 	}
 
 	/**
@@ -205,14 +1002,12 @@ public class LdapCacheRepository {
 	 * @param user
 	 *            the user to remove.
 	 */
-	protected void delete(final UserOrg user) {
-		final Map<String, UserOrg> users = getUser().findAll();
-
+	protected synchronized void delete(final UserOrg user) {
 		// Remove from JPA cache
-		ldapCacheDao.delete(user);
+		write(() -> ldapCacheDao.delete(user));
 
 		// Remove it-self from in-memory cache
-		users.remove(Normalizer.normalize(user.getId()));
+		publish(current -> current.withoutUser(Normalizer.normalize(user.getId())));
 	}
 
 	/**
@@ -223,13 +1018,16 @@ public class LdapCacheRepository {
 	 * @param group
 	 *            The group to update.
 	 */
-	protected void removeUserFromGroup(final UserOrg user, final GroupOrg group) {
+	protected synchronized void removeUserFromGroup(final UserOrg user, final GroupOrg group) {
 		// Remove from JPA cache
-		ldapCacheDao.removeUserFromGroup(user, group);
+		write(() -> ldapCacheDao.removeUserFromGroup(user, group));
 
 		// Also update the membership cache
-		user.getGroups().remove(group.getId());
-		group.getMembers().remove(user.getId());
+		publish(current -> {
+			final SnapshotEditor editor = new SnapshotEditor(current);
+			editor.unlink(user.getId(), group.getId());
+			return editor.publish();
+		});
 	}
 
 	/**
@@ -240,13 +1038,18 @@ public class LdapCacheRepository {
 	 * @param group
 	 *            The group to update.
 	 */
-	protected void removeGroupFromGroup(final GroupOrg subGroup, final GroupOrg group) {
+	protected synchronized void removeGroupFromGroup(final GroupOrg subGroup, final GroupOrg group) {
 		// Remove from JPA cache
-		ldapCacheDao.removeGroupFromGroup(subGroup, group);
+		write(() -> ldapCacheDao.removeGroupFromGroup(subGroup, group));
 
-		// Also update the membership cache
-		group.getSubGroups().remove(subGroup.getId());
-		subGroup.getGroups().remove(group.getId());
+		// Also update the membership cache and the nested groups, only when already used
+		publish(current -> {
+			final GroupClosure closure = current.getBuiltClosure();
+			final SnapshotEditor editor = new SnapshotEditor(current);
+			editor.unlinkGroup(subGroup.getId(), group.getId());
+			return editor.publish(
+					closure == null ? null : closure.withoutLink(editor.getGroups(), group.getId(), subGroup.getId()));
+		});
 	}
 
 	/**
@@ -257,14 +1060,18 @@ public class LdapCacheRepository {
 	 * @param group
 	 *            The group to update.
 	 */
-	protected void addGroupToGroup(final GroupOrg subGroup, final GroupOrg group) {
+	protected synchronized void addGroupToGroup(final GroupOrg subGroup, final GroupOrg group) {
 
 		// Add to JPA cache
-		ldapCacheDao.addGroupToGroup(subGroup, group);
+		write(() -> ldapCacheDao.addGroupToGroup(subGroup, group));
 
-		// Also update the membership cache
-		group.getSubGroups().add(subGroup.getId());
-		subGroup.getGroups().add(group.getId());
+		// Also update the membership cache and the nested groups, only when already used
+		publish(current -> {
+			final GroupClosure closure = current.getBuiltClosure();
+			final SnapshotEditor editor = new SnapshotEditor(current);
+			editor.linkGroup(subGroup.getId(), group.getId());
+			return editor.publish(closure == null ? null : closure.withLink(group.getId(), subGroup.getId()));
+		});
 	}
 
 	/**
@@ -275,24 +1082,53 @@ public class LdapCacheRepository {
 	 * @param group
 	 *            The group to update.
 	 */
-	protected void addUserToGroup(final UserOrg user, final GroupOrg group) {
+	protected synchronized void addUserToGroup(final UserOrg user, final GroupOrg group) {
 
 		// Add to JPA cache
-		ldapCacheDao.addUserToGroup(user, group);
+		write(() -> ldapCacheDao.addUserToGroup(user, group));
 
 		// Also update the membership cache
-		group.getMembers().add(user.getId());
-		user.getGroups().add(group.getId());
+		publish(current -> {
+			final SnapshotEditor editor = new SnapshotEditor(current);
+			editor.link(user.getId(), group.getId());
+			return editor.publish();
+		});
 	}
 
 	/**
-	 * Update the attributes.
+	 * Update the attributes. The cached user is replaced by a copy of the given one, keeping the cached membership.
 	 * 
 	 * @param user
 	 *            The user to update.
 	 */
-	protected void update(final UserOrg user) {
-		ldapCacheDao.update(user);
+	protected synchronized void update(final UserOrg user) {
+		write(() -> ldapCacheDao.update(user));
+		publish(current -> {
+			final UserOrg cached = current.getUsers().get(user.getId());
+			if (cached == null) {
+				return current;
+			}
+			final UserOrg copy = SnapshotEditor.copy(user);
+			copy.setGroups(new ArrayList<>(cached.getGroups()));
+			return current.withUser(copy);
+		});
+	}
+
+	/**
+	 * Publish the next version of the current snapshot, without checking its freshness. Nothing is published when the
+	 * data are not loaded yet: the first load reads the change from LDAP. So a writer holding the monitor never waits
+	 * for a reload, that would wait for this monitor to publish its data. During the fetch of a full reload, the change
+	 * is also replayed on the fetched data.
+	 * 
+	 * @param change
+	 *            Function building the next version from the current one.
+	 */
+	private void publish(final UnaryOperator<LdapSnapshot> change) {
+		if (journal != null) {
+			// The fetched data may not include this change
+			journal.add(() -> publish(change));
+		}
+		Optional.ofNullable(snapshot).map(change).ifPresent(s -> snapshot = s);
 	}
 
 	/**
@@ -0,0 +1,484 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.CommunicationException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.ligoj.app.api.Normalizer;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+import org.ligoj.app.plugin.id.DnUtils;
+import org.ligoj.app.plugin.id.ldap.dao.LdapSyncControls.Change;
+import org.ligoj.app.plugin.id.ldap.dao.LdapSyncControls.ChangeType;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.OrFilter;
+import org.springframework.ldap.support.LdapUtils;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Long running LDAP search notified of the changes of the users, groups and companies. The Content Synchronization
+ * (RFC 4533, "syncrepl") is tried first, then the Persistent Search as fallback. Each received change is applied to
+ * the cache without waiting for its expiration.<br>
+ * The entries of the refresh phase of a synchronization are buffered and applied as a single change. JNDI drops the
+ * intermediate response closing this phase, so the phase ends when no entry has been received for
+ * {@link #getRefreshQuietDelay()}.
+ */
+@Slf4j
+public class LdapChangeListener implements Runnable {
+
+	/**
+	 * Returned attributes. The operational attribute of the password policy is not included in "*".
+	 */
+	private static final String[] RETURNED_ATTRIBUTES = { "*", "pwdAccountLockedTime" };
+
+	private final UserLdapRepository userRepository;
+
+	private final GroupLdapRepository groupRepository;
+
+	private final CompanyLdapRepository companyRepository;
+
+	private final LdapCacheRepository cacheRepository;
+
+	/**
+	 * Delay in milliseconds before reconnecting after a failure.
+	 */
+	@Setter
+	@Getter
+	private long retryDelay = 10000;
+
+	/**
+	 * Time in milliseconds without received entry closing the refresh phase of a synchronization.
+	 */
+	@Setter
+	@Getter
+	private long refreshQuietDelay = 1000;
+
+	/**
+	 * Last received synchronization cookie. Sent back to the server on reconnection, and carried over to the listener
+	 * replacing this one.
+	 */
+	@Setter
+	@Getter
+	private volatile byte[] cookie;
+
+	/**
+	 * Lock of the buffered changes and of their application to the cache, so the changes are applied in order.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * Buffered changes of the refresh phase. <code>null</code> outside the refresh phase.
+	 */
+	private Batch batch;
+
+	/**
+	 * Time of the last buffered entry.
+	 */
+	private long lastBuffered;
+
+	/**
+	 * Scheduler closing the refresh phase. <code>null</code> when this listener is stopped.
+	 */
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * When <code>true</code> the server does not support the Content Synchronization.
+	 */
+	private boolean persistentSearch;
+
+	private volatile boolean running;
+
+	private volatile LdapContext context;
+
+	private Thread thread;
+
+	/**
+	 * Build a listener for the given repositories.
+	 *
+	 * @param userRepository
+	 *            The user repository, also providing the LDAP template.
+	 * @param groupRepository
+	 *            The group repository.
+	 * @param companyRepository
+	 *            The company repository.
+	 * @param cacheRepository
+	 *            The cache to update.
+	 */
+	public LdapChangeListener(final UserLdapRepository userRepository, final GroupLdapRepository groupRepository,
+			final CompanyLdapRepository companyRepository, final LdapCacheRepository cacheRepository) {
+		this.userRepository = userRepository;
+		this.groupRepository = groupRepository;
+		this.companyRepository = companyRepository;
+		this.cacheRepository = cacheRepository;
+	}
+
+	/**
+	 * Start listening the changes in a daemon thread.
+	 */
+	public synchronized void start() {
+		if (!running) {
+			running = true;
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				final Thread flush = new Thread(r, "ldap-change-flush");
+				flush.setDaemon(true);
+				return flush;
+			});
+			thread = new Thread(this, "ldap-change-listener");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Resume the synchronization of the given replaced listener: its last cookie is used when both listen the same
+	 * base DN, so only the changes since are replayed.
+	 *
+	 * @param previous
+	 *            The replaced listener.
+	 */
+	public void resume(final LdapChangeListener previous) {
+		if (getBaseDn().equals(previous.getBaseDn())) {
+			cookie = previous.getCookie();
+		}
+	}
+
+	/**
+	 * Stop listening the changes and release the LDAP connection.
+	 */
+	public synchronized void stop() {
+		running = false;
+		closeContext();
+		if (flusher != null) {
+			flusher.shutdownNow();
+			flusher = null;
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Indicates this listener is started.
+	 *
+	 * @return <code>true</code> when this listener is started.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				listen();
+			} catch (final NamingException | RuntimeException e) {
+				if (running) {
+					log.warn("LDAP change listener failure, retry in {}ms", retryDelay, e);
+				}
+			} finally {
+				closeContext();
+				endRefresh();
+			}
+			pause();
+		}
+	}
+
+	/**
+	 * Wait before reconnecting.
+	 */
+	private void pause() {
+		if (running) {
+			try {
+				Thread.sleep(retryDelay);
+			} catch (final InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+		}
+	}
+
+	/**
+	 * Open the long running search and consume the changes until the connection is closed.
+	 */
+	private void listen() throws NamingException {
+		context = (LdapContext) userRepository.getDirectTemplate().getContextSource().getReadOnlyContext();
+		final String base = getBaseDn();
+		final String filter = new OrFilter()
+				.or(new EqualsFilter(UserLdapRepository.OBJECT_CLASS, userRepository.getPeopleClass()))
+				.or(new EqualsFilter(UserLdapRepository.OBJECT_CLASS, GroupLdapRepository.GROUP_OF_UNIQUE_NAMES))
+				.or(new EqualsFilter(UserLdapRepository.OBJECT_CLASS, CompanyLdapRepository.ORGANIZATIONAL_UNIT))
+				.encode();
+		final SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		controls.setReturningAttributes(RETURNED_ATTRIBUTES);
+		controls.setReturningObjFlag(false);
+
+		NamingEnumeration<SearchResult> results;
+		if (persistentSearch) {
+			results = search(base, filter, controls, LdapSyncControls.newPersistentSearch());
+		} else {
+			try {
+				results = search(base, filter, controls, LdapSyncControls.newSyncRequest(cookie));
+			} catch (final OperationNotSupportedException onse) {
+				log.info("Content synchronization is not supported, persistent search is used");
+				persistentSearch = true;
+				results = search(base, filter, controls, LdapSyncControls.newPersistentSearch());
+			} catch (final CommunicationException ce) {
+				throw ce;
+			} catch (final NamingException ne) {
+				// The cookie may be rejected by this server, the next attempt replays the whole content
+				cookie = null;
+				throw ne;
+			}
+		}
+		log.info("Listening LDAP changes from {} using {}", base, persistentSearch ? "persistent search" : "syncrepl");
+		if (!persistentSearch) {
+			startRefresh();
+		}
+		try {
+			while (running && results.hasMore()) {
+				onEntry(base, results.next());
+			}
+		} finally {
+			results.close();
+		}
+	}
+
+	private NamingEnumeration<SearchResult> search(final String base, final String filter,
+			final SearchControls controls, final Control control) throws NamingException {
+		context.setRequestControls(new Control[] { control });
+		return context.search(base, filter, controls);
+	}
+
+	/**
+	 * Release the current connection, if any.
+	 */
+	private void closeContext() {
+		final LdapContext current = context;
+		context = null;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (final NamingException ne) {
+				log.debug("Unable to close the LDAP change listener context", ne);
+			}
+		}
+	}
+
+	/**
+	 * Return the smallest DN containing the people, groups and companies.
+	 *
+	 * @return The search base DN. May be empty.
+	 */
+	protected String getBaseDn() {
+		LdapName base = null;
+		for (final String dn : new String[] { userRepository.getPeopleBaseDn(), groupRepository.getGroupsBaseDn(),
+				companyRepository.getCompanyBaseDn() }) {
+			final LdapName name = LdapUtils.newLdapName(Normalizer.normalize(StringUtils.trimToEmpty(dn)));
+			if (base == null) {
+				base = name;
+			} else {
+				int common = 0;
+				while (common < base.size() && common < name.size()
+						&& base.getRdn(common).equals(name.getRdn(common))) {
+					common++;
+				}
+				base = (LdapName) base.getPrefix(common);
+			}
+		}
+		return base.toString();
+	}
+
+	/**
+	 * Apply a received entry to the cache.
+	 *
+	 * @param base
+	 *            The search base DN.
+	 * @param entry
+	 *            The received entry.
+	 */
+	protected void onEntry(final String base, final SearchResult entry) throws NamingException {
+		final Change change = LdapSyncControls
+				.toChange(entry instanceof HasControls ? ((HasControls) entry).getControls() : null);
+		if (change == null) {
+			// Not a change notification
+			return;
+		}
+
+		final LdapName dn = LdapUtils.newLdapName(base);
+		dn.addAll(LdapUtils.newLdapName(entry.getName()));
+		final String normalizedDn = Normalizer.normalize(dn.toString());
+		synchronized (lock) {
+			if (change.getType() == ChangeType.DELETE) {
+				// The buffered changes are applied first, so the deletion is not undone
+				flush();
+				cacheRepository.onDelete(userRepository, normalizedDn);
+			} else {
+				if (change.getPreviousDn() != null) {
+					// Renamed entry, the previous one is removed
+					flush();
+					cacheRepository.onDelete(userRepository, Normalizer.normalize(change.getPreviousDn()));
+				}
+				onChange(new DirContextAdapter(entry.getAttributes(), dn), normalizedDn);
+			}
+		}
+
+		// The cookie is kept once the change is applied or buffered
+		if (change.getCookie() != null) {
+			cookie = change.getCookie();
+		}
+	}
+
+	/**
+	 * Start buffering the entries of the refresh phase.
+	 */
+	protected void startRefresh() {
+		synchronized (lock) {
+			batch = new Batch();
+			lastBuffered = System.currentTimeMillis();
+		}
+		scheduleEndRefresh(refreshQuietDelay);
+	}
+
+	/**
+	 * Close the refresh phase when no entry has been received for the quiet delay, otherwise check again later.
+	 */
+	private void checkRefreshDone() {
+		final long remaining;
+		synchronized (lock) {
+			if (batch == null) {
+				return;
+			}
+			remaining = lastBuffered + refreshQuietDelay - System.currentTimeMillis();
+			if (remaining <= 0) {
+				endRefresh();
+				return;
+			}
+		}
+		scheduleEndRefresh(remaining);
+	}
+
+	private synchronized void scheduleEndRefresh(final long delay) {
+		if (flusher != null) {
+			flusher.schedule(this::checkRefreshDone, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Apply the buffered changes of the refresh phase, then apply the next changes as soon as they are received.
+	 */
+	protected void endRefresh() {
+		synchronized (lock) {
+			flush();
+			if (batch != null) {
+				log.info("Refresh phase of the LDAP changes done");
+				batch = null;
+			}
+		}
+	}
+
+	/**
+	 * Apply the buffered changes as a single change, if any.
+	 */
+	private void flush() {
+		if (batch != null && !batch.isEmpty()) {
+			log.info("Apply {} users and {} groups of the refresh phase", batch.users.size(), batch.groups.size());
+			cacheRepository.onChange(userRepository, batch.users, batch.groups, batch.subGroupsDn, batch.departments);
+			batch = new Batch();
+		}
+	}
+
+	/**
+	 * Apply or buffer a changed entry.
+	 */
+	private void onChange(final Map<String, UserOrg> users, final Map<String, GroupOrg> groups,
+			final Map<String, Set<String>> subGroupsDn, final Map<String, Set<String>> departments) {
+		if (batch == null) {
+			cacheRepository.onChange(userRepository, users, groups, subGroupsDn, departments);
+		} else {
+			// The last version of an entry replaces the buffered one
+			batch.users.putAll(users);
+			batch.groups.putAll(groups);
+			groups.keySet().forEach(batch.departments::remove);
+			batch.subGroupsDn.putAll(subGroupsDn);
+			batch.departments.putAll(departments);
+			lastBuffered = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Dispatch the changed entry to the right cache update depending on its location and its class.
+	 */
+	private void onChange(final DirContextAdapter entry, final String dn) {
+		final Set<String> classes = new HashSet<>();
+		for (final String objectClass : ArrayUtils.nullToEmpty(entry.getStringAttributes(UserLdapRepository.OBJECT_CLASS))) {
+			classes.add(Normalizer.normalize(objectClass));
+		}
+		if (isIn(dn, groupRepository.getGroupsBaseDn())
+				&& classes.contains(Normalizer.normalize(GroupLdapRepository.GROUP_OF_UNIQUE_NAMES))) {
+			final Map<String, Set<String>> subGroupsDn = new HashMap<>();
+			final Map<String, Set<String>> departments = new HashMap<>();
+			final GroupOrg group = groupRepository.toGroup(entry, subGroupsDn, departments);
+			onChange(Collections.emptyMap(), Collections.singletonMap(group.getId(), group), subGroupsDn,
+					departments);
+		} else if (isIn(dn, userRepository.getPeopleBaseDn())
+				&& classes.contains(Normalizer.normalize(userRepository.getPeopleClass()))) {
+			final UserOrg user = userRepository.mapUser(entry);
+			onChange(Collections.singletonMap(user.getId(), user), Collections.emptyMap(), Collections.emptyMap(),
+					Collections.emptyMap());
+		} else if (isIn(dn, companyRepository.getCompanyBaseDn())
+				&& classes.contains(Normalizer.normalize(CompanyLdapRepository.ORGANIZATIONAL_UNIT))) {
+			// Company changes imply a whole hierarchy update
+			flush();
+			cacheRepository.onCompanyChange(userRepository, dn);
+		}
+	}
+
+	/**
+	 * Indicates the DN is inside the given base DN.
+	 */
+	private boolean isIn(final String dn, final String baseDn) {
+		final String normalized = Normalizer.normalize(StringUtils.trimToEmpty(baseDn));
+		return normalized.isEmpty() || DnUtils.equalsOrParentOf(normalized, dn);
+	}
+
+	/**
+	 * Changes buffered during the refresh phase.
+	 */
+	private static class Batch {
+		private final Map<String, UserOrg> users = new HashMap<>();
+		private final Map<String, GroupOrg> groups = new HashMap<>();
+		private final Map<String, Set<String>> subGroupsDn = new HashMap<>();
+		private final Map<String, Set<String>> departments = new HashMap<>();
+
+		private boolean isEmpty() {
+			return users.isEmpty() && groups.isEmpty();
+		}
+	}
+}
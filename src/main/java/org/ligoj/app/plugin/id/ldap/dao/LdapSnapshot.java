@@ -0,0 +1,668 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.ligoj.app.iam.CompanyOrg;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.ResourceOrg;
+import org.ligoj.app.iam.UserOrg;
+import org.ligoj.app.plugin.id.ldap.dao.LdapCacheRepository.LdapData;
+
+import lombok.Getter;
+
+/**
+ * Immutable and versioned view of the LDAP data. A new instance is published for each change, so a reader holding a
+ * snapshot always sees a complete directory, even during a reload.
+ */
+@Getter
+public class LdapSnapshot {
+
+	/**
+	 * Version of this snapshot, incremented by each published change.
+	 */
+	private final long version;
+
+	/**
+	 * Read-only companies. Key is the normalized identifier.
+	 */
+	private final Map<String, CompanyOrg> companies;
+
+	/**
+	 * Read-only groups. Key is the normalized identifier.
+	 */
+	private final Map<String, GroupOrg> groups;
+
+	/**
+	 * Read-only users. Key is the normalized identifier.
+	 */
+	private final Map<String, UserOrg> users;
+
+	/**
+	 * Read-only departments of the groups. Key is the normalized group identifier.
+	 */
+	private Map<String, Set<String>> departments = Collections.emptyMap();
+
+	/**
+	 * Read-only data by type.
+	 */
+	private final Map<LdapData, Map<String, ? extends ResourceOrg>> data;
+
+	/**
+	 * Membership graph of this snapshot, built on first use.
+	 */
+	private volatile MembershipGraph membership;
+
+	/**
+	 * Membership graph of a previous version, the membership graph of this snapshot is derived from it instead of
+	 * being built again.
+	 */
+	private volatile MembershipGraph previousMembership;
+
+	/**
+	 * Transitive closure of the nested groups of this snapshot, built on first use.
+	 */
+	private volatile GroupClosure closure;
+
+	/**
+	 * Companies by DN, built on first use and shared by the next versions with the same companies.
+	 */
+	private volatile DnTrie<CompanyOrg> companyTrie;
+
+	/**
+	 * Visibility index of the companies, built on first use and shared by the next versions with the same companies.
+	 */
+	private volatile CompanyScope companyScope;
+
+	/**
+	 * Groups by DN, built on first use and shared by the next versions with the same groups.
+	 */
+	private volatile DnTrie<GroupOrg> groupTrie;
+
+	/**
+	 * Users by DN, built on first use and shared by the next versions with the same users or less users.
+	 */
+	private volatile DnTrie<UserOrg> userTrie;
+
+	/**
+	 * Group identifiers by lower case department, built on first use and shared by the next versions with the same
+	 * departments.
+	 */
+	private volatile Map<String, String> departmentIndex;
+
+	/**
+	 * Search index of the users, built on first use and shared by the next versions with the same users.
+	 */
+	private volatile UserSearchIndex searchIndex;
+
+	/**
+	 * Identifiers of the users sorted by comparator, built on first use and shared by the next versions with the same
+	 * users.
+	 */
+	private Map<Comparator<UserOrg>, List<String>> sortedUsers = new ConcurrentHashMap<>();
+
+	/**
+	 * Users by attribute value, built on first use and shared by the next versions with the same users. Key is the
+	 * lower case attribute name.
+	 */
+	private Map<String, UserAttributeIndex> attributeIndexes = new ConcurrentHashMap<>();
+
+	/**
+	 * Build a snapshot from the given data. The maps must not be modified after this call.
+	 *
+	 * @param version
+	 *            The version of this snapshot.
+	 * @param companies
+	 *            The companies. Key is the normalized identifier.
+	 * @param groups
+	 *            The groups. Key is the normalized identifier.
+	 * @param users
+	 *            The users. Key is the normalized identifier.
+	 */
+	public LdapSnapshot(final long version, final Map<String, CompanyOrg> companies, final Map<String, GroupOrg> groups,
+			final Map<String, UserOrg> users) {
+		this.version = version;
+		this.companies = Collections.unmodifiableMap(companies);
+		this.groups = Collections.unmodifiableMap(groups);
+		this.users = Collections.unmodifiableMap(users);
+		this.data = toData(this.companies, this.groups, this.users);
+	}
+
+	/**
+	 * Build a snapshot from the given data and the departments of the groups. The maps must not be modified after
+	 * this call.
+	 *
+	 * @param version
+	 *            The version of this snapshot.
+	 * @param companies
+	 *            The companies. Key is the normalized identifier.
+	 * @param groups
+	 *            The groups. Key is the normalized identifier.
+	 * @param users
+	 *            The users. Key is the normalized identifier.
+	 * @param departments
+	 *            The departments of the groups. Key is the normalized group identifier.
+	 */
+	public LdapSnapshot(final long version, final Map<String, CompanyOrg> companies, final Map<String, GroupOrg> groups,
+			final Map<String, UserOrg> users, final Map<String, Set<String>> departments) {
+		this(version, companies, groups, users);
+		this.departments = Collections.unmodifiableMap(departments);
+	}
+
+	/**
+	 * Build the next version of the given snapshot from read-only maps, without wrapping them again.
+	 */
+	private LdapSnapshot(final LdapSnapshot previous, final Map<String, CompanyOrg> companies,
+			final Map<String, GroupOrg> groups, final Map<String, UserOrg> users) {
+		this.version = previous.version + 1;
+		this.previousMembership = Optional.ofNullable(previous.membership).orElse(previous.previousMembership);
+		this.companies = companies;
+		this.groups = groups;
+		this.users = users;
+		this.data = toData(companies, groups, users);
+	}
+
+	private static Map<LdapData, Map<String, ? extends ResourceOrg>> toData(final Map<String, CompanyOrg> companies,
+			final Map<String, GroupOrg> groups, final Map<String, UserOrg> users) {
+		final Map<LdapData, Map<String, ? extends ResourceOrg>> result = new EnumMap<>(LdapData.class);
+		result.put(LdapData.COMPANY, companies);
+		result.put(LdapData.GROUP, groups);
+		result.put(LdapData.USER, users);
+		return Collections.unmodifiableMap(result);
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given companies. The map must not be modified after this
+	 * call.
+	 *
+	 * @param companies
+	 *            The new companies.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot withCompanies(final Map<String, CompanyOrg> companies) {
+		final LdapSnapshot result = new LdapSnapshot(this, Collections.unmodifiableMap(companies), groups, users);
+		result.departments = departments;
+		result.departmentIndex = departmentIndex;
+		result.groupTrie = groupTrie;
+		result.userTrie = userTrie;
+		result.searchIndex = searchIndex;
+		result.sortedUsers = sortedUsers;
+		result.attributeIndexes = attributeIndexes;
+		return result;
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given groups and users. The maps must not be modified after
+	 * this call.
+	 *
+	 * @param groups
+	 *            The new groups.
+	 * @param users
+	 *            The new users.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot with(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users) {
+		final LdapSnapshot result = new LdapSnapshot(this, companies, wrap(this.groups, groups),
+				wrap(this.users, users));
+		result.companyTrie = companyTrie;
+		result.companyScope = companyScope;
+		result.departments = departments;
+		result.departmentIndex = departmentIndex;
+		if (result.groups == this.groups) {
+			result.groupTrie = groupTrie;
+		}
+		if (result.users == this.users) {
+			result.userTrie = userTrie;
+			result.searchIndex = searchIndex;
+			result.sortedUsers = sortedUsers;
+			result.attributeIndexes = attributeIndexes;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given groups and users, where only the membership has changed:
+	 * the users are the same ones, or copies with the same attributes. So the indexes of the users are kept. The maps
+	 * must not be modified after this call.
+	 *
+	 * @param groups
+	 *            The new groups.
+	 * @param users
+	 *            The new users, only differing by their groups.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot withMembership(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users) {
+		final LdapSnapshot result = with(groups, users);
+		result.userTrie = userTrie;
+		result.searchIndex = searchIndex;
+		result.sortedUsers = sortedUsers;
+		result.attributeIndexes = attributeIndexes;
+		return result;
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given added or updated user. The search index, the sorted
+	 * users and the attribute indexes are updated instead of being built again.
+	 *
+	 * @param user
+	 *            The added or updated user.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot withUser(final UserOrg user) {
+		final String id = user.getId();
+		final UserOrg old = users.get(id);
+		if (old == user) {
+			// Same instance, the previous values are unknown and the indexes are built again
+			final LdapSnapshot result = with(groups, users);
+			result.searchIndex = Optional.ofNullable(searchIndex).map(i -> i.with(id, user)).orElse(null);
+			result.sortedUsers = new ConcurrentHashMap<>();
+			result.attributeIndexes = new ConcurrentHashMap<>();
+			return result;
+		}
+		final Map<String, UserOrg> newUsers = new HashMap<>(users);
+		newUsers.put(id, user);
+		final LdapSnapshot result = with(groups, newUsers);
+		updateUserIndexes(result, Collections.singleton(id));
+		return result;
+	}
+
+	/**
+	 * Return the next version of this snapshot without the given user. The search index, the sorted users and the
+	 * attribute indexes are updated instead of being built again.
+	 *
+	 * @param id
+	 *            The normalized identifier of the user to remove.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot withoutUser(final String id) {
+		final Map<String, UserOrg> newUsers = new HashMap<>(users);
+		newUsers.remove(id);
+		final LdapSnapshot result = with(groups, newUsers);
+		result.userTrie = userTrie;
+		updateUserIndexes(result, Collections.singleton(id));
+		return result;
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given groups and users, where only the given users have
+	 * changed attributes: the other ones are the same ones, or copies only differing by their groups. The search
+	 * index, the sorted users and the attribute indexes are updated for the changed users instead of being built
+	 * again. The maps must not be modified after this call.
+	 *
+	 * @param groups
+	 *            The new groups.
+	 * @param users
+	 *            The new users.
+	 * @param changedUsers
+	 *            The identifiers of the added, removed or updated users.
+	 * @param departments
+	 *            The departments of the new groups. Key is the normalized group identifier. When <code>null</code>,
+	 *            the departments are unchanged.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot withUsers(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users,
+			final Collection<String> changedUsers, final Map<String, Set<String>> departments) {
+		final LdapSnapshot result = departments == null ? with(groups, users) : with(groups, users, departments);
+		if (changedUsers.isEmpty()) {
+			// Only the membership has changed
+			result.userTrie = userTrie;
+			result.searchIndex = searchIndex;
+			result.sortedUsers = sortedUsers;
+			result.attributeIndexes = attributeIndexes;
+		} else {
+			updateUserIndexes(result, changedUsers);
+		}
+		return result;
+	}
+
+	/**
+	 * Update the search index, the sorted users and the attribute indexes of the given next version, where only the
+	 * given users are added, removed or updated. Only the entries of these users are updated.
+	 */
+	private void updateUserIndexes(final LdapSnapshot result, final Collection<String> ids) {
+		final UserSearchIndex index = searchIndex;
+		if (index != null) {
+			UserSearchIndex newIndex = index;
+			for (final String id : ids) {
+				final UserOrg user = result.users.get(id);
+				newIndex = user == null ? newIndex.without(id) : newIndex.with(id, user);
+			}
+			result.searchIndex = newIndex;
+		}
+		if (ids.size() <= Math.sqrt(users.size()) + 1) {
+			// Each insertion shifts the sorted list, beyond this bound the sort of the next use is cheaper
+			sortedUsers.forEach((c, sorted) -> result.sortedUsers.put(c, sort(sorted, c, ids, result.users)));
+		}
+		attributeIndexes.forEach((a, attributeIndex) -> {
+			UserAttributeIndex newIndex = attributeIndex;
+			for (final String id : ids) {
+				newIndex = newIndex.with(id, users.get(id), result.users.get(id));
+			}
+			result.attributeIndexes.put(a, newIndex);
+		});
+	}
+
+	/**
+	 * Return a copy of the sorted identifiers where the given users are moved to their new position. A single
+	 * previous user is found by a binary search in the previous users, the new ones are inserted by a binary search
+	 * in the new users.
+	 */
+	private List<String> sort(final List<String> ids, final Comparator<UserOrg> comparator,
+			final Collection<String> changed, final Map<String, UserOrg> newUsers) {
+		final List<String> result = new ArrayList<>(ids);
+		if (changed.size() == 1) {
+			remove(result, comparator, changed.iterator().next());
+		} else {
+			final Set<String> removed = new HashSet<>(changed);
+			result.removeIf(removed::contains);
+		}
+		for (final String id : changed) {
+			final UserOrg user = newUsers.get(id);
+			if (user != null) {
+				result.add(lowerBound(result, newUsers, user, comparator), id);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Remove the given user from the sorted identifiers, found by a binary search in the previous users.
+	 */
+	private void remove(final List<String> ids, final Comparator<UserOrg> comparator, final String id) {
+		final UserOrg old = users.get(id);
+		if (old == null) {
+			// Added user
+			return;
+		}
+		int index = lowerBound(ids, users, old, comparator);
+		while (index < ids.size() && !ids.get(index).equals(id)
+				&& comparator.compare(users.get(ids.get(index)), old) == 0) {
+			// Same order, the identifier is one of the next ones
+			index++;
+		}
+		if (index < ids.size() && ids.get(index).equals(id)) {
+			ids.remove(index);
+		} else {
+			ids.remove(id);
+		}
+	}
+
+	/**
+	 * Return the position of the first identifier of a user not lower than the given one.
+	 */
+	private static int lowerBound(final List<String> ids, final Map<String, UserOrg> users, final UserOrg user,
+			final Comparator<UserOrg> comparator) {
+		int low = 0;
+		int high = ids.size();
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (comparator.compare(users.get(ids.get(middle)), user) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given groups and users, where only the membership has changed,
+	 * and the already computed closure of the nested groups. The maps must not be modified after this call.
+	 *
+	 * @param groups
+	 *            The new groups.
+	 * @param users
+	 *            The new users, only differing by their groups.
+	 * @param closure
+	 *            The closure of the new groups. When <code>null</code>, it is built on first use.
+	 * @return The new snapshot.
+	 * @see #withMembership(Map, Map)
+	 */
+	public LdapSnapshot withMembership(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users,
+			final GroupClosure closure) {
+		final LdapSnapshot result = withMembership(groups, users);
+		result.closure = closure;
+		return result;
+	}
+
+	/**
+	 * Return the next version of this snapshot with the given groups, users and departments of the groups. The maps
+	 * must not be modified after this call.
+	 *
+	 * @param groups
+	 *            The new groups.
+	 * @param users
+	 *            The new users.
+	 * @param departments
+	 *            The departments of the new groups. Key is the normalized group identifier.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot with(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users,
+			final Map<String, Set<String>> departments) {
+		final LdapSnapshot result = with(groups, users);
+		result.departments = Collections.unmodifiableMap(departments);
+		result.departmentIndex = null;
+		return result;
+	}
+
+	/**
+	 * Return the membership graph of this snapshot. It is built on first use, then shared by the readers of this
+	 * version. When a previous version has built its graph, only the changed groups are computed again.
+	 *
+	 * @return The membership graph.
+	 */
+	public MembershipGraph getMembership() {
+		MembershipGraph result = membership;
+		if (result == null) {
+			// Concurrent readers may build it twice, the result is the same
+			final MembershipGraph previous = previousMembership;
+			result = previous == null ? new MembershipGraph(groups, users) : previous.with(groups, users);
+			membership = result;
+			previousMembership = null;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the transitive closure of the nested groups of this snapshot. It is built on first use, then shared by
+	 * the readers of this version.
+	 *
+	 * @return The closure of the nested groups.
+	 */
+	public GroupClosure getClosure() {
+		GroupClosure result = closure;
+		if (result == null) {
+			result = GroupClosure.of(groups);
+			closure = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the transitive closure of the nested groups only when it is already built, so a writer can maintain it
+	 * without building it.
+	 *
+	 * @return The closure of the nested groups, or <code>null</code> when not yet used.
+	 */
+	public GroupClosure getBuiltClosure() {
+		return closure;
+	}
+
+	/**
+	 * Return the companies indexed by DN.
+	 *
+	 * @return The companies by DN.
+	 */
+	public DnTrie<CompanyOrg> getCompanyTrie() {
+		DnTrie<CompanyOrg> result = companyTrie;
+		if (result == null) {
+			result = new DnTrie<>(companies.values(), CompanyOrg::getDn);
+			companyTrie = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the visibility index of the companies.
+	 *
+	 * @return The visibility index of the companies.
+	 */
+	public CompanyScope getCompanyScope() {
+		CompanyScope result = companyScope;
+		if (result == null) {
+			result = new CompanyScope(companies);
+			companyScope = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the groups indexed by DN.
+	 *
+	 * @return The groups by DN.
+	 */
+	public DnTrie<GroupOrg> getGroupTrie() {
+		DnTrie<GroupOrg> result = groupTrie;
+		if (result == null) {
+			result = new DnTrie<>(groups.values(), GroupOrg::getDn);
+			groupTrie = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the user of the given DN.
+	 *
+	 * @param dn
+	 *            The DN to find.
+	 * @return The user, or <code>null</code> when not found.
+	 */
+	public UserOrg getUserByDn(final String dn) {
+		DnTrie<UserOrg> trie = userTrie;
+		if (trie == null) {
+			trie = new DnTrie<>(users.values().stream().filter(u -> u.getDn() != null).collect(Collectors.toList()),
+					UserOrg::getDn);
+			userTrie = trie;
+		}
+
+		// The index may be shared with the next versions without some users, or with copies of the users
+		final UserOrg indexed = trie.get(dn);
+		final UserOrg user = indexed == null ? null : users.get(indexed.getId());
+		return user == null || !Objects.equals(user.getDn(), indexed.getDn()) ? null : user;
+	}
+
+	/**
+	 * Return the group identifiers by lower case department. When several groups have the same department, the lowest
+	 * identifier is used.
+	 *
+	 * @return The read-only group identifiers by department.
+	 */
+	public Map<String, String> getDepartmentIndex() {
+		Map<String, String> result = departmentIndex;
+		if (result == null) {
+			final Map<String, String> index = new HashMap<>();
+			departments.forEach((group, values) -> values.forEach(d -> index
+					.merge(toDepartmentKey(d), group, (a, b) -> a.compareTo(b) <= 0 ? a : b)));
+			result = Collections.unmodifiableMap(index);
+			departmentIndex = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the identifier of the group of the given department, ignoring the case.
+	 *
+	 * @param department
+	 *            The department to find.
+	 * @return The group identifier, or <code>null</code> when not found.
+	 */
+	public String getGroupByDepartment(final String department) {
+		return department == null ? null : getDepartmentIndex().get(toDepartmentKey(department));
+	}
+
+	private static String toDepartmentKey(final String department) {
+		return department.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Return the search index of the users.
+	 *
+	 * @return The search index of the users.
+	 */
+	public UserSearchIndex getSearchIndex() {
+		UserSearchIndex result = searchIndex;
+		if (result == null) {
+			result = new UserSearchIndex(users);
+			searchIndex = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Return the users sorted with the given comparator. The order is computed once for each comparator.
+	 *
+	 * @param comparator
+	 *            The comparator of the users.
+	 * @return The read-only sorted users.
+	 */
+	public List<UserOrg> getSortedUsers(final Comparator<UserOrg> comparator) {
+		final List<String> ids = sortedUsers.computeIfAbsent(comparator, c -> {
+			final List<UserOrg> result = new ArrayList<>(users.values());
+			result.sort(c);
+			return result.stream().map(UserOrg::getId).collect(Collectors.toList());
+		});
+
+		// The order may be shared with the next versions, the users of this version are returned
+		return new AbstractList<UserOrg>() {
+
+			@Override
+			public UserOrg get(final int index) {
+				return users.get(ids.get(index));
+			}
+
+			@Override
+			public int size() {
+				return ids.size();
+			}
+		};
+	}
+
+	/**
+	 * Return the users indexed by the values of the given attribute. The index is built once for each attribute.
+	 *
+	 * @param attribute
+	 *            The lower case attribute name.
+	 * @param values
+	 *            The function returning the values of this attribute of a user.
+	 * @return The index of the users.
+	 */
+	public UserAttributeIndex getAttributeIndex(final String attribute,
+			final Function<UserOrg, Collection<String>> values) {
+		return attributeIndexes.computeIfAbsent(attribute, a -> new UserAttributeIndex(users, values));
+	}
+
+	/**
+	 * Return the read-only view of the given map, reusing the current one when unchanged.
+	 */
+	private static <T> Map<String, T> wrap(final Map<String, T> current, final Map<String, T> map) {
+		return current == map ? current : Collections.unmodifiableMap(map);
+	}
+}
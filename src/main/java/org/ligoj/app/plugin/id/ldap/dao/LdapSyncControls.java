@@ -0,0 +1,278 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Content Synchronization (RFC 4533) and Persistent Search controls used to be notified of the LDAP changes. JNDI
+ * does not provide these controls, so the BER encoding and decoding of their values are done there.
+ */
+public final class LdapSyncControls {
+
+	/**
+	 * Sync Request Control, RFC 4533.
+	 */
+	public static final String SYNC_REQUEST_OID = "1.3.6.1.4.1.4203.1.9.1.1";
+
+	/**
+	 * Sync State Control, RFC 4533. Attached to each returned entry.
+	 */
+	public static final String SYNC_STATE_OID = "1.3.6.1.4.1.4203.1.9.1.2";
+
+	/**
+	 * Persistent Search Control, draft-ietf-ldapext-psearch.
+	 */
+	public static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+
+	/**
+	 * Entry Change Notification Control, draft-ietf-ldapext-psearch. Attached to each returned entry.
+	 */
+	public static final String ENTRY_CHANGE_OID = "2.16.840.1.113730.3.4.7";
+
+	private static final int TAG_BOOLEAN = 0x01;
+	private static final int TAG_INTEGER = 0x02;
+	private static final int TAG_OCTET_STRING = 0x04;
+	private static final int TAG_ENUMERATED = 0x0A;
+	private static final int TAG_SEQUENCE = 0x30;
+
+	/**
+	 * "refreshAndPersist" mode of the Sync Request Control.
+	 */
+	private static final int MODE_REFRESH_AND_PERSIST = 3;
+
+	/**
+	 * All change types of the Persistent Search Control : add, delete, modify and modDN.
+	 */
+	private static final int ALL_CHANGE_TYPES = 1 | 2 | 4 | 8;
+
+	/**
+	 * Change type of an entry.
+	 */
+	public enum ChangeType {
+		/**
+		 * Entry is unchanged, only sent during the refresh phase of a synchronization.
+		 */
+		PRESENT,
+
+		/**
+		 * New entry.
+		 */
+		ADD,
+
+		/**
+		 * Modified entry.
+		 */
+		MODIFY,
+
+		/**
+		 * Deleted entry.
+		 */
+		DELETE,
+
+		/**
+		 * Renamed or moved entry.
+		 */
+		MODDN
+	}
+
+	/**
+	 * A decoded change attached to an entry.
+	 */
+	@Getter
+	@AllArgsConstructor
+	public static class Change {
+
+		/**
+		 * The change type.
+		 */
+		private final ChangeType type;
+
+		/**
+		 * The previous DN of a renamed entry. May be <code>null</code>.
+		 */
+		private final String previousDn;
+
+		/**
+		 * The synchronization cookie. May be <code>null</code>.
+		 */
+		private final byte[] cookie;
+	}
+
+	private LdapSyncControls() {
+		// Utility class
+	}
+
+	/**
+	 * Build a critical Sync Request Control in "refreshAndPersist" mode.
+	 *
+	 * @param cookie
+	 *            The last received synchronization cookie. May be <code>null</code>.
+	 * @return The new control.
+	 */
+	public static Control newSyncRequest(final byte[] cookie) {
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		write(content, TAG_ENUMERATED, new byte[] { MODE_REFRESH_AND_PERSIST });
+		if (cookie != null) {
+			write(content, TAG_OCTET_STRING, cookie);
+		}
+		final ByteArrayOutputStream value = new ByteArrayOutputStream();
+		write(value, TAG_SEQUENCE, content.toByteArray());
+		return new BasicControl(SYNC_REQUEST_OID, true, value.toByteArray());
+	}
+
+	/**
+	 * Build a critical Persistent Search Control returning only the changes of any type with their notification.
+	 *
+	 * @return The new control.
+	 */
+	public static Control newPersistentSearch() {
+		final ByteArrayOutputStream content = new ByteArrayOutputStream();
+		write(content, TAG_INTEGER, new byte[] { ALL_CHANGE_TYPES });
+		write(content, TAG_BOOLEAN, new byte[] { (byte) 0xFF });
+		write(content, TAG_BOOLEAN, new byte[] { (byte) 0xFF });
+		final ByteArrayOutputStream value = new ByteArrayOutputStream();
+		write(value, TAG_SEQUENCE, content.toByteArray());
+		return new BasicControl(PERSISTENT_SEARCH_OID, true, value.toByteArray());
+	}
+
+	/**
+	 * Decode the change from the controls attached to an entry.
+	 *
+	 * @param controls
+	 *            The response controls of the entry. May be <code>null</code>.
+	 * @return The decoded change, or <code>null</code> when there is no change control.
+	 */
+	public static Change toChange(final Control[] controls) {
+		if (controls != null) {
+			for (final Control control : controls) {
+				if (SYNC_STATE_OID.equals(control.getID())) {
+					return toSyncStateChange(control.getEncodedValue());
+				}
+				if (ENTRY_CHANGE_OID.equals(control.getID())) {
+					return toEntryChange(control.getEncodedValue());
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Decode a Sync State Control value : state, entryUUID and optional cookie.
+	 */
+	private static Change toSyncStateChange(final byte[] value) {
+		final BerReader reader = new BerReader(new BerReader(value).read(TAG_SEQUENCE));
+		final int state = toInt(reader.read(TAG_ENUMERATED));
+
+		// Skip the entryUUID
+		reader.read(TAG_OCTET_STRING);
+		final byte[] cookie = reader.hasNext(TAG_OCTET_STRING) ? reader.read(TAG_OCTET_STRING) : null;
+		return new Change(ChangeType.values()[state], null, cookie);
+	}
+
+	/**
+	 * Decode an Entry Change Notification Control value : change type and optional previous DN.
+	 */
+	private static Change toEntryChange(final byte[] value) {
+		final BerReader reader = new BerReader(new BerReader(value).read(TAG_SEQUENCE));
+		final int type = toInt(reader.read(TAG_ENUMERATED));
+		final String previousDn = reader.hasNext(TAG_OCTET_STRING)
+				? new String(reader.read(TAG_OCTET_STRING), StandardCharsets.UTF_8)
+				: null;
+		final ChangeType changeType;
+		if (type == 1) {
+			changeType = ChangeType.ADD;
+		} else if (type == 2) {
+			changeType = ChangeType.DELETE;
+		} else if (type == 4) {
+			changeType = ChangeType.MODIFY;
+		} else {
+			changeType = ChangeType.MODDN;
+		}
+		return new Change(changeType, previousDn, null);
+	}
+
+	/**
+	 * Decode a BER integer value.
+	 */
+	private static int toInt(final byte[] value) {
+		int result = 0;
+		for (final byte b : value) {
+			result = (result << 8) | (b & 0xFF);
+		}
+		return result;
+	}
+
+	/**
+	 * Write a TLV to the given stream.
+	 */
+	private static void write(final ByteArrayOutputStream out, final int tag, final byte[] value) {
+		out.write(tag);
+		if (value.length < 0x80) {
+			// Short form
+			out.write(value.length);
+		} else {
+			// Long form, big-endian
+			int bytes = 0;
+			for (int length = value.length; length > 0; length >>= 8) {
+				bytes++;
+			}
+			out.write(0x80 | bytes);
+			for (int i = bytes - 1; i >= 0; i--) {
+				out.write(value.length >> (8 * i));
+			}
+		}
+		out.write(value, 0, value.length);
+	}
+
+	/**
+	 * Minimal BER TLV reader.
+	 */
+	private static class BerReader {
+
+		private final byte[] data;
+		private int position;
+
+		private BerReader(final byte[] data) {
+			this.data = data;
+		}
+
+		/**
+		 * Indicates the next TLV has the given tag.
+		 */
+		private boolean hasNext(final int tag) {
+			return position < data.length && (data[position] & 0xFF) == tag;
+		}
+
+		/**
+		 * Read the next TLV having the given tag and return its value.
+		 */
+		private byte[] read(final int tag) {
+			if (!hasNext(tag)) {
+				throw new IllegalArgumentException("Unexpected BER tag at " + position + ", expected " + tag);
+			}
+			position++;
+			int length = data[position++] & 0xFF;
+			if (length >= 0x80) {
+				// Long form
+				final int bytes = length & 0x7F;
+				length = 0;
+				for (int i = 0; i < bytes; i++) {
+					length = (length << 8) | (data[position++] & 0xFF);
+				}
+			}
+			final byte[] value = Arrays.copyOfRange(data, position, position + length);
+			position += length;
+			return value;
+		}
+	}
+}
@@ -0,0 +1,413 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Read-only membership graph of a {@link LdapSnapshot}. Users and groups get dense ordinals, and both directions of the
+ * memberships are stored as sorted ordinal arrays, so a membership costs 4 bytes in each direction. Membership tests,
+ * group sizes, unions and intersections are array and bitmap operations.<br>
+ * The ordinals are shared by the next versions derived from this graph, and are never reused: an entry removed by a
+ * next version keeps its ordinal until the next full build.
+ */
+public class MembershipGraph {
+
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * User ordinals, shared by the derived graphs.
+	 */
+	private final Ordinals userOrdinals;
+
+	/**
+	 * Group ordinals, shared by the derived graphs.
+	 */
+	private final Ordinals groupOrdinals;
+
+	/**
+	 * Presence of the users by ordinal.
+	 */
+	private final boolean[] users;
+
+	/**
+	 * Source groups by ordinal. <code>null</code> when the group is not in this version.
+	 */
+	private final GroupOrg[] groups;
+
+	/**
+	 * Sorted user member ordinals by group ordinal.
+	 */
+	private final int[][] members;
+
+	/**
+	 * Sorted direct sub-group ordinals by group ordinal.
+	 */
+	private final int[][] subGroups;
+
+	/**
+	 * Sorted group ordinals by user ordinal.
+	 */
+	private final int[][] userGroups;
+
+	/**
+	 * Build the graph from the given data. Unknown members are ignored.
+	 *
+	 * @param groups
+	 *            The groups. Key is the normalized identifier.
+	 * @param users
+	 *            The users. Key is the normalized identifier.
+	 */
+	public MembershipGraph(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users) {
+		this(new MembershipGraph(), groups, users);
+	}
+
+	/**
+	 * Empty graph.
+	 */
+	private MembershipGraph() {
+		this.userOrdinals = new Ordinals();
+		this.groupOrdinals = new Ordinals();
+		this.users = new boolean[0];
+		this.groups = new GroupOrg[0];
+		this.members = new int[0][];
+		this.subGroups = new int[0][];
+		this.userGroups = new int[0][];
+	}
+
+	/**
+	 * Build the next graph from the given one. Only the rows of the added, removed or replaced groups are computed.
+	 */
+	private MembershipGraph(final MembershipGraph previous, final Map<String, GroupOrg> groups,
+			final Map<String, UserOrg> users) {
+		this.userOrdinals = previous.userOrdinals;
+		this.groupOrdinals = previous.groupOrdinals;
+		users.keySet().forEach(userOrdinals::intern);
+		groups.keySet().forEach(groupOrdinals::intern);
+		final int nbUsers = userOrdinals.size();
+		final int nbGroups = groupOrdinals.size();
+		this.users = new boolean[nbUsers];
+		this.groups = Arrays.copyOf(previous.groups, nbGroups);
+		this.members = Arrays.copyOf(previous.members, nbGroups);
+		this.subGroups = Arrays.copyOf(previous.subGroups, nbGroups);
+		this.userGroups = Arrays.copyOf(previous.userGroups, nbUsers);
+		users.keySet().forEach(u -> this.users[userOrdinals.toOrdinal(u)] = true);
+
+		// Removed groups
+		for (int g = 0; g < previous.groups.length; g++) {
+			final GroupOrg group = previous.groups[g];
+			if (group != null && !groups.containsKey(group.getId())) {
+				setMembers(g, EMPTY);
+				this.groups[g] = null;
+				this.subGroups[g] = null;
+			}
+		}
+
+		// Added or replaced groups, a copied group is a new instance
+		groups.forEach((id, group) -> {
+			final int g = groupOrdinals.toOrdinal(id);
+			if (this.groups[g] != group) {
+				this.groups[g] = group;
+				setMembers(g, toOrdinals(group.getMembers(), users, userOrdinals));
+				subGroups[g] = toOrdinals(group.getSubGroups(), groups, groupOrdinals);
+			}
+		});
+
+		// Removed users, still members of their unchanged groups
+		for (int u = 0; u < nbUsers; u++) {
+			if (!this.users[u]) {
+				for (final int g : orEmpty(userGroups[u])) {
+					members[g] = remove(members[g], u);
+				}
+				userGroups[u] = null;
+			}
+		}
+	}
+
+	/**
+	 * Replace the members of a group, and update the groups of the added and removed members.
+	 */
+	private void setMembers(final int group, final int[] newMembers) {
+		final int[] oldMembers = orEmpty(members[group]);
+		members[group] = newMembers;
+		int i = 0;
+		int j = 0;
+		while (i < oldMembers.length || j < newMembers.length) {
+			if (j == newMembers.length || i < oldMembers.length && oldMembers[i] < newMembers[j]) {
+				userGroups[oldMembers[i]] = remove(userGroups[oldMembers[i]], group);
+				i++;
+			} else if (i == oldMembers.length || oldMembers[i] > newMembers[j]) {
+				userGroups[newMembers[j]] = add(userGroups[newMembers[j]], group);
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Return the sorted ordinals of the given identifiers. The identifiers not in this version are ignored.
+	 */
+	private static int[] toOrdinals(final Collection<String> ids, final Map<String, ?> entries,
+			final Ordinals ordinals) {
+		if (ids == null || ids.isEmpty()) {
+			return EMPTY;
+		}
+		return ids.stream().filter(entries::containsKey).mapToInt(ordinals::toOrdinal).sorted().distinct().toArray();
+	}
+
+	/**
+	 * Return a copy of the sorted array with the given ordinal.
+	 */
+	private static int[] add(final int[] row, final int ordinal) {
+		final int[] current = orEmpty(row);
+		final int index = Arrays.binarySearch(current, ordinal);
+		if (index >= 0) {
+			return current;
+		}
+		final int insert = -index - 1;
+		final int[] result = new int[current.length + 1];
+		System.arraycopy(current, 0, result, 0, insert);
+		result[insert] = ordinal;
+		System.arraycopy(current, insert, result, insert + 1, current.length - insert);
+		return result;
+	}
+
+	/**
+	 * Return a copy of the sorted array without the given ordinal.
+	 */
+	private static int[] remove(final int[] row, final int ordinal) {
+		final int[] current = orEmpty(row);
+		final int index = Arrays.binarySearch(current, ordinal);
+		if (index < 0) {
+			return current;
+		}
+		final int[] result = new int[current.length - 1];
+		System.arraycopy(current, 0, result, 0, index);
+		System.arraycopy(current, index + 1, result, index, current.length - index - 1);
+		return result;
+	}
+
+	/**
+	 * Return the graph of the next version of the same directory. The rows of the unchanged groups are shared with
+	 * this graph, only the added, removed or replaced groups are computed again, so this costs a scan of the
+	 * identifiers instead of a scan of all the memberships.
+	 *
+	 * @param groups
+	 *            The groups of the next version. Key is the normalized identifier.
+	 * @param users
+	 *            The users of the next version. Key is the normalized identifier.
+	 * @return The new graph.
+	 */
+	public MembershipGraph with(final Map<String, GroupOrg> groups, final Map<String, UserOrg> users) {
+		return new MembershipGraph(this, groups, users);
+	}
+
+	/**
+	 * Return the row of the given identifier, or an empty row when unknown.
+	 */
+	private static int[] getRow(final int[][] rows, final Ordinals ordinals, final String id) {
+		final Integer ordinal = ordinals.toOrdinal(id);
+		return ordinal == null || ordinal >= rows.length ? EMPTY : orEmpty(rows[ordinal]);
+	}
+
+	private static int[] orEmpty(final int[] row) {
+		return row == null ? EMPTY : row;
+	}
+
+	private static BitSet toBitSet(final int[] row) {
+		final BitSet result = new BitSet();
+		for (final int ordinal : row) {
+			result.set(ordinal);
+		}
+		return result;
+	}
+
+	/**
+	 * Indicates the given user is a direct member of the given group.
+	 *
+	 * @param user
+	 *            The user identifier.
+	 * @param group
+	 *            The group identifier.
+	 * @return <code>true</code> when the user is a direct member of the group.
+	 */
+	public boolean isMember(final String user, final String group) {
+		final Integer u = userOrdinals.toOrdinal(user);
+		return u != null && Arrays.binarySearch(getRow(members, groupOrdinals, group), u) >= 0;
+	}
+
+	/**
+	 * Indicates the given user is in the given bitmap of user ordinals.
+	 *
+	 * @param ordinals
+	 *            The user ordinals.
+	 * @param user
+	 *            The user identifier.
+	 * @return <code>true</code> when the user is in the bitmap.
+	 */
+	public boolean contains(final BitSet ordinals, final String user) {
+		final Integer u = userOrdinals.toOrdinal(user);
+		return u != null && ordinals.get(u);
+	}
+
+	/**
+	 * Return the amount of user members of the given group.
+	 *
+	 * @param group
+	 *            The group identifier.
+	 * @return The amount of user members. <code>0</code> for an unknown group.
+	 */
+	public int countMembers(final String group) {
+		return getRow(members, groupOrdinals, group).length;
+	}
+
+	/**
+	 * Return the user ordinals of the given group.
+	 *
+	 * @param group
+	 *            The group identifier.
+	 * @return A new bitmap of user ordinals. Empty for an unknown group.
+	 */
+	public BitSet getMembers(final String group) {
+		return toBitSet(getRow(members, groupOrdinals, group));
+	}
+
+	/**
+	 * Return the direct sub-group ordinals of the given group.
+	 *
+	 * @param group
+	 *            The group identifier.
+	 * @return A new bitmap of group ordinals. Empty for an unknown group.
+	 */
+	public BitSet getSubGroups(final String group) {
+		return toBitSet(getRow(subGroups, groupOrdinals, group));
+	}
+
+	/**
+	 * Return the group ordinals of the given user.
+	 *
+	 * @param user
+	 *            The user identifier.
+	 * @return A new bitmap of group ordinals. Empty for an unknown user.
+	 */
+	public BitSet getGroups(final String user) {
+		return toBitSet(getRow(userGroups, userOrdinals, user));
+	}
+
+	/**
+	 * Return the user members of at least one of the given groups.
+	 *
+	 * @param groups
+	 *            The group identifiers.
+	 * @return A new bitmap of user ordinals.
+	 */
+	public BitSet union(final Collection<String> groups) {
+		final BitSet result = new BitSet();
+		groups.forEach(g -> {
+			for (final int ordinal : getRow(members, groupOrdinals, g)) {
+				result.set(ordinal);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Return the user members of all the given groups.
+	 *
+	 * @param groups
+	 *            The group identifiers.
+	 * @return A new bitmap of user ordinals. Empty when there is no group.
+	 */
+	public BitSet intersection(final Collection<String> groups) {
+		BitSet result = null;
+		for (final String group : groups) {
+			final BitSet members = getMembers(group);
+			if (result == null) {
+				result = members;
+			} else {
+				result.and(members);
+			}
+		}
+		return result == null ? new BitSet() : result;
+	}
+
+	/**
+	 * Return the user identifiers of the given ordinals.
+	 *
+	 * @param ordinals
+	 *            The user ordinals.
+	 * @return The user identifiers.
+	 */
+	public List<String> toUsers(final BitSet ordinals) {
+		return toIds(ordinals, userOrdinals);
+	}
+
+	/**
+	 * Return the group identifiers of the given ordinals.
+	 *
+	 * @param ordinals
+	 *            The group ordinals.
+	 * @return The group identifiers.
+	 */
+	public List<String> toGroups(final BitSet ordinals) {
+		return toIds(ordinals, groupOrdinals);
+	}
+
+	private static List<String> toIds(final BitSet ordinals, final Ordinals ids) {
+		final List<String> result = new ArrayList<>(ordinals.cardinality());
+		for (int i = ordinals.nextSetBit(0); i >= 0; i = ordinals.nextSetBit(i + 1)) {
+			result.add(ids.toId(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Append-only ordinals of the identifiers, shared by the graphs derived from the same full build. An ordinal is
+	 * never reused, so each graph reads the identifiers of its own ordinals.
+	 */
+	private static class Ordinals {
+
+		private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+
+		private volatile String[] ids = new String[16];
+
+		private int size;
+
+		private Integer toOrdinal(final String id) {
+			return ordinals.get(id);
+		}
+
+		private String toId(final int ordinal) {
+			return ids[ordinal];
+		}
+
+		private synchronized int size() {
+			return size;
+		}
+
+		private synchronized int intern(final String id) {
+			final Integer ordinal = ordinals.get(id);
+			if (ordinal != null) {
+				return ordinal;
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size] = id;
+			ordinals.put(id, size);
+			return size++;
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.ligoj.app.api.Normalizer;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+import org.ligoj.app.plugin.id.DnUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Resolver of the user members of the groups. For a full load, the users are indexed once by their normalized DN, so
+ * each member DN is parsed once and the member set of a group is built in a single pass. For a few changed groups,
+ * the members are looked up from their RDN without indexing all users.
+ */
+@Slf4j
+public class MembershipResolver {
+
+	/**
+	 * User provider by identifier.
+	 */
+	private final Function<String, UserOrg> users;
+
+	/**
+	 * Users by normalized DN. Only the users whose RDN is their identifier are indexed, the other ones are resolved
+	 * from the RDN of the member.
+	 */
+	private final Map<String, UserOrg> usersByDn;
+
+	/**
+	 * Build a resolver for the given users.
+	 *
+	 * @param users
+	 *            All known users. Key is the identifier.
+	 */
+	public MembershipResolver(final Map<String, UserOrg> users) {
+		this.users = users::get;
+		this.usersByDn = new HashMap<>(users.size() * 4 / 3 + 1);
+		users.values().stream().filter(u -> u.getDn() != null && users.get(DnUtils.toRdn(u.getDn())) == u)
+				.forEach(u -> usersByDn.put(Normalizer.normalize(u.getDn()), u));
+	}
+
+	/**
+	 * Build a resolver looking up the members from their RDN, without index. The same users are resolved than with
+	 * the indexed ones.
+	 *
+	 * @param users
+	 *            User provider by identifier. Only the members of the resolved groups are requested.
+	 */
+	public MembershipResolver(final Function<String, UserOrg> users) {
+		this.users = users;
+		this.usersByDn = Collections.emptyMap();
+	}
+
+	/**
+	 * Update the membership of the given groups.
+	 *
+	 * @param groups
+	 *            The groups to update. The members are expected to be DN.
+	 * @see #resolve(GroupOrg)
+	 */
+	public void resolve(final Collection<GroupOrg> groups) {
+		groups.forEach(this::resolve);
+	}
+
+	/**
+	 * Update the membership of given group. The DN members of the group are replaced by the UID of the corresponding
+	 * users, and the group is added to the groups of these users.
+	 *
+	 * @param groupLdap
+	 *            The group to update. The members are expected to be DN.
+	 */
+	public void resolve(final GroupOrg groupLdap) {
+		final String group = groupLdap.getId();
+		final Set<String> members = new HashSet<>(groupLdap.getMembers().size() * 4 / 3 + 1);
+		for (final String dn : groupLdap.getMembers()) {
+			final UserOrg user = toUser(groupLdap, dn);
+			if (user != null) {
+				user.getGroups().add(group);
+				members.add(user.getId());
+			}
+		}
+		groupLdap.setMembers(members);
+	}
+
+	/**
+	 * Return the identifiers of the user members of the given group, without updating the group or the users.
+	 *
+	 * @param groupLdap
+	 *            The group to resolve. The members are expected to be DN.
+	 * @return The identifiers of the resolved members.
+	 */
+	public Set<String> toMembers(final GroupOrg groupLdap) {
+		final Set<String> members = new HashSet<>(groupLdap.getMembers().size() * 4 / 3 + 1);
+		for (final String dn : groupLdap.getMembers()) {
+			final UserOrg user = toUser(groupLdap, dn);
+			if (user != null) {
+				members.add(user.getId());
+			}
+		}
+		return members;
+	}
+
+	/**
+	 * Return the user of the given member DN, or <code>null</code> for a broken reference.
+	 */
+	private UserOrg toUser(final GroupOrg groupLdap, final String dn) {
+		final String normalized = Normalizer.normalize(dn);
+		final UserOrg indexed = usersByDn.get(normalized);
+		if (indexed != null) {
+			// Most common case, the DN is the right one
+			return indexed;
+		}
+
+		// Check the broken UID reference
+		final String uid = DnUtils.toRdn(dn);
+		final UserOrg user = users.apply(uid);
+		if (user == null) {
+			if (!dn.startsWith(GroupLdapRepository.DEFAULT_MEMBER_DN)) {
+				// It is a real broken reference
+				log.warn("Broken user UID reference found '{}' --> {}", groupLdap.getDn(), uid);
+			}
+		} else if (!normalized.equals(Normalizer.normalize(user.getDn()))) {
+			log.warn("Broken user DN reference found '{}' --> {}, instead of {}", groupLdap.getDn(), dn, user.getDn());
+		}
+		return user;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.springframework.ldap.filter.GreaterThanOrEqualsFilter;
+import org.springframework.ldap.filter.OrFilter;
+
+/**
+ * LDAP filter matching the entries created or modified since a given date. Relies on the operational attributes
+ * "modifyTimestamp" and "createTimestamp" available in the most of LDAP implementations.
+ */
+public class ModifiedSinceFilter extends OrFilter {
+
+	/**
+	 * X.208 generalized time format, UTC.
+	 */
+	private static final String GENERALIZED_TIME_FORMAT = "yyyyMMddHHmmss'Z'";
+
+	/**
+	 * Build a filter for entries created or modified since the given date.
+	 *
+	 * @param since
+	 *            The lower bound date, inclusive.
+	 */
+	public ModifiedSinceFilter(final Date since) {
+		final String time = toGeneralizedTime(since);
+		or(new GreaterThanOrEqualsFilter("modifyTimestamp", time));
+		or(new GreaterThanOrEqualsFilter("createTimestamp", time));
+	}
+
+	/**
+	 * Return the generalized time of the given date.
+	 *
+	 * @param date
+	 *            The date to format.
+	 * @return The UTC generalized time.
+	 */
+	public static String toGeneralizedTime(final Date date) {
+		final DateFormat formatter = new SimpleDateFormat(GENERALIZED_TIME_FORMAT);
+		formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return formatter.format(date);
+	}
+}
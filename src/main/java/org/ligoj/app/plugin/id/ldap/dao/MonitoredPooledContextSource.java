@@ -0,0 +1,150 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.directory.DirContext;
+
+import org.springframework.ldap.pool2.factory.PoolConfig;
+import org.springframework.ldap.pool2.factory.PooledContextSource;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pooled context source measuring the time spent to borrow a connection, so the utilization of the pool and the
+ * contention can be monitored.
+ */
+@Slf4j
+public class MonitoredPooledContextSource extends PooledContextSource {
+
+	/**
+	 * Time in milliseconds between two checks of the borrowed connections while this pool is drained.
+	 */
+	private static final long DRAIN_INTERVAL = 50;
+
+	/**
+	 * Maximal amount of connections of the pool.
+	 */
+	@Getter
+	private final int maxTotal;
+
+	/**
+	 * Amount of borrowed connections since the creation of this pool.
+	 */
+	private final AtomicLong borrows = new AtomicLong();
+
+	/**
+	 * Total time spent to borrow the connections, in nanoseconds.
+	 */
+	private final AtomicLong waitTime = new AtomicLong();
+
+	/**
+	 * Longest time spent to borrow a connection, in nanoseconds.
+	 */
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	/**
+	 * Build a pool with the given configuration. The target context source must be set before use.
+	 *
+	 * @param poolConfig
+	 *            The pool configuration.
+	 */
+	public MonitoredPooledContextSource(final PoolConfig poolConfig) {
+		super(poolConfig);
+		this.maxTotal = poolConfig.getMaxTotal();
+	}
+
+	@Override
+	public DirContext getReadOnlyContext() {
+		final long start = System.nanoTime();
+		try {
+			return super.getReadOnlyContext();
+		} finally {
+			onBorrow(start);
+		}
+	}
+
+	@Override
+	public DirContext getReadWriteContext() {
+		final long start = System.nanoTime();
+		try {
+			return super.getReadWriteContext();
+		} finally {
+			onBorrow(start);
+		}
+	}
+
+	private void onBorrow(final long start) {
+		final long wait = System.nanoTime() - start;
+		borrows.incrementAndGet();
+		waitTime.addAndGet(wait);
+		maxWaitTime.accumulateAndGet(wait, Math::max);
+	}
+
+	/**
+	 * Return the amount of borrowed connections since the creation of this pool.
+	 *
+	 * @return The amount of borrowed connections.
+	 */
+	public long getBorrowCount() {
+		return borrows.get();
+	}
+
+	/**
+	 * Return the mean time spent to borrow a connection.
+	 *
+	 * @return The mean wait time in milliseconds.
+	 */
+	public double getMeanWaitMillis() {
+		final long count = borrows.get();
+		return count == 0 ? 0 : waitTime.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	/**
+	 * Return the longest time spent to borrow a connection.
+	 *
+	 * @return The longest wait time in milliseconds.
+	 */
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+	}
+
+	/**
+	 * Return the ratio of the connections currently borrowed.
+	 *
+	 * @return The utilization of this pool, from <code>0</code> to <code>1</code>.
+	 */
+	public double getUtilization() {
+		return maxTotal <= 0 ? 0 : getNumActive() / (double) maxTotal;
+	}
+
+	/**
+	 * Wait for the borrowed connections to be returned, then close this pool. The connections still borrowed after
+	 * the timeout are closed too.
+	 *
+	 * @param timeout
+	 *            The maximal time in milliseconds to wait for the borrowed connections.
+	 */
+	public void close(final long timeout) {
+		final long deadline = System.currentTimeMillis() + timeout;
+		try {
+			while (getNumActive() > 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(DRAIN_INTERVAL);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (getNumActive() > 0) {
+			log.warn("Close the connection pool with {} borrowed connections", getNumActive());
+		}
+		try {
+			destroy();
+		} catch (final Exception e) {
+			log.warn("Unable to close the connection pool", e);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.function.Consumer;
+
+import javax.naming.directory.SearchControls;
+
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.ContextMapper;
+import org.springframework.ldap.core.ContextMapperCallbackHandler;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+import org.springframework.ldap.core.support.SingleContextSource;
+
+/**
+ * LDAP search streaming the entries to a consumer. When a page size is set, the Paged Results control (RFC 2696) is
+ * used on a single connection, so the server size limit is not reached and only one page is held at a time.
+ */
+public final class PagedSearch {
+
+	private PagedSearch() {
+		// Utility class
+	}
+
+	/**
+	 * Search the entries and give each mapped entry to the consumer as it arrives.
+	 *
+	 * @param template
+	 *            The LDAP template.
+	 * @param pageSize
+	 *            The page size. When zero or negative, a single unpaged search is performed.
+	 * @param base
+	 *            The base DN.
+	 * @param filter
+	 *            The encoded filter.
+	 * @param controls
+	 *            The search controls: scope and returned attributes.
+	 * @param mapper
+	 *            The entry mapper.
+	 * @param consumer
+	 *            The consumer of the mapped entries.
+	 * @param <T>
+	 *            The mapped type.
+	 */
+	public static <T> void search(final LdapTemplate template, final int pageSize, final String base,
+			final String filter, final SearchControls controls, final ContextMapper<T> mapper,
+			final Consumer<T> consumer) {
+		// The entries are mapped from the bound objects
+		controls.setReturningObjFlag(true);
+		final ContextMapperCallbackHandler<T> mapperHandler = new ContextMapperCallbackHandler<>(mapper);
+		final NameClassPairCallbackHandler handler = ncp -> consumer
+				.accept(mapperHandler.getObjectFromNameClassPair(ncp));
+		if (pageSize <= 0) {
+			template.search(base, filter, controls, handler);
+			return;
+		}
+
+		// The pages must be fetched from the same connection
+		SingleContextSource.doWithSingleContext(template.getContextSource(), operations -> {
+			final PagedResultsDirContextProcessor processor = new PagedResultsDirContextProcessor(pageSize);
+			do {
+				operations.search(base, filter, controls, handler, processor);
+			} while (processor.hasMore());
+			return null;
+		}, true, true, false);
+	}
+
+	/**
+	 * Return new search controls for a subtree search.
+	 *
+	 * @param attributes
+	 *            The returned attributes. When empty, all attributes are returned.
+	 * @return The new search controls.
+	 */
+	public static SearchControls newControls(final String... attributes) {
+		final SearchControls controls = new SearchControls();
+		controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+		controls.setReturningAttributes(attributes.length == 0 ? null : attributes);
+		return controls;
+	}
+}
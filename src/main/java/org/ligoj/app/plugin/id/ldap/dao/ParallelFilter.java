@@ -0,0 +1,167 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory filter of the large collections. Above a size threshold, the items are split into chunks processed on the
+ * pool of the repository, then the partial results are merged. The pool is dedicated to a node, so its queries do not
+ * compete with the other parallel tasks of the JVM.
+ */
+public final class ParallelFilter {
+
+	private ParallelFilter() {
+		// Utility class
+	}
+
+	/**
+	 * Return a new pool of the in-memory queries. The threads are daemon ones, and are released when idle.
+	 *
+	 * @param parallelism
+	 *            The amount of threads. When zero or negative, the amount of processors is used.
+	 * @param name
+	 *            The prefix of the thread names.
+	 * @return The new pool, to shut down by its owner.
+	 */
+	public static ForkJoinPool newPool(final int parallelism, final String name) {
+		return new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(), pool -> {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName(name + "-" + thread.getPoolIndex());
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * Return the amount of chunks for the given size: each chunk has at least the threshold amount of items, and
+	 * there are at most the parallelism of the pool chunks.
+	 *
+	 * @param size
+	 *            The amount of items.
+	 * @param threshold
+	 *            The minimal size of a chunk. When zero or negative, the items are processed in the calling thread.
+	 * @param pool
+	 *            The pool processing the chunks. When <code>null</code> or shut down, the items are processed in the
+	 *            calling thread.
+	 * @return The amount of chunks. <code>1</code> when the items are processed in the calling thread.
+	 */
+	public static int getChunks(final int size, final int threshold, final ForkJoinPool pool) {
+		if (threshold <= 0 || pool == null || pool.isShutdown() || size / threshold < 2) {
+			return 1;
+		}
+		return Math.max(1, Math.min(pool.getParallelism(), size / threshold));
+	}
+
+	/**
+	 * Return the matching items, in the same order.
+	 *
+	 * @param items
+	 *            The items to filter.
+	 * @param filter
+	 *            The filter of the items. Must be thread safe.
+	 * @param threshold
+	 *            The minimal size of a chunk. When zero or negative, the items are processed in the calling thread.
+	 * @param pool
+	 *            The pool processing the chunks. When <code>null</code>, the items are processed in the calling thread.
+	 * @param <T>
+	 *            The item type.
+	 * @return The matching items.
+	 */
+	public static <T> List<T> filter(final List<T> items, final Predicate<? super T> filter, final int threshold,
+			final ForkJoinPool pool) {
+		final List<List<T>> results = process(items, pool, getChunks(items.size(), threshold, pool),
+				chunk -> chunk.stream().filter(filter).collect(Collectors.toList()));
+		if (results.size() == 1) {
+			return results.get(0);
+		}
+
+		// The chunks are ordered, the concatenation is ordered
+		final List<T> result = new ArrayList<>();
+		results.forEach(result::addAll);
+		return result;
+	}
+
+	/**
+	 * Return the matching items, sorted.
+	 *
+	 * @param items
+	 *            The items to filter.
+	 * @param filter
+	 *            The filter of the items. Must be thread safe.
+	 * @param comparator
+	 *            The order of the result.
+	 * @param threshold
+	 *            The minimal size of a chunk. When zero or negative, the items are processed in the calling thread.
+	 * @param pool
+	 *            The pool processing the chunks. When <code>null</code>, the items are processed in the calling thread.
+	 * @param <T>
+	 *            The item type.
+	 * @return The matching items, sorted.
+	 */
+	public static <T> List<T> sort(final Collection<T> items, final Predicate<? super T> filter,
+			final Comparator<? super T> comparator, final int threshold, final ForkJoinPool pool) {
+		final List<List<T>> results = process(new ArrayList<>(items), pool, getChunks(items.size(), threshold, pool),
+				chunk -> {
+					final List<T> result = chunk.stream().filter(filter).collect(Collectors.toList());
+					result.sort(comparator);
+					return result;
+				});
+		return results.size() == 1 ? results.get(0) : merge(results, comparator);
+	}
+
+	/**
+	 * Merge the sorted lists.
+	 */
+	private static <T> List<T> merge(final List<List<T>> sorted, final Comparator<? super T> comparator) {
+		final List<T> result = new ArrayList<>(sorted.stream().mapToInt(List::size).sum());
+		final int[] positions = new int[sorted.size()];
+		final PriorityQueue<Integer> heads = new PriorityQueue<>(
+				(a, b) -> comparator.compare(sorted.get(a).get(positions[a]), sorted.get(b).get(positions[b])));
+		for (int i = 0; i < sorted.size(); i++) {
+			if (!sorted.get(i).isEmpty()) {
+				heads.add(i);
+			}
+		}
+		while (!heads.isEmpty()) {
+			final int list = heads.poll();
+			result.add(sorted.get(list).get(positions[list]++));
+			if (positions[list] < sorted.get(list).size()) {
+				heads.add(list);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Process the chunks of the given items, and return the results in the order of the chunks.
+	 */
+	private static <T, R> List<R> process(final List<T> items, final ForkJoinPool pool, final int chunks,
+			final Function<List<T>, R> processor) {
+		final List<R> results = new ArrayList<>(chunks);
+		if (chunks == 1) {
+			// Not worth a parallel processing
+			results.add(processor.apply(items));
+			return results;
+		}
+		final List<ForkJoinTask<R>> tasks = new ArrayList<>(chunks);
+		final int size = items.size();
+		for (int i = 0; i < chunks; i++) {
+			final List<T> chunk = items.subList((int) ((long) size * i / chunks),
+					(int) ((long) size * (i + 1) / chunks));
+			tasks.add(pool.submit(() -> processor.apply(chunk)));
+		}
+		tasks.forEach(t -> results.add(t.join()));
+		return results;
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.SimpleUser;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Membership changes of a snapshot. The published groups and users are never modified: an entry is copied on its
+ * first change, and the copy replaces it in the next version. So a reader holding a previous snapshot keeps seeing
+ * consistent entries.
+ */
+public class SnapshotEditor {
+
+	/**
+	 * The edited snapshot.
+	 */
+	private final LdapSnapshot current;
+
+	/**
+	 * The groups of the next version. <code>null</code> until the first changed group.
+	 */
+	private Map<String, GroupOrg> groups;
+
+	/**
+	 * The users of the next version. <code>null</code> until the first changed user.
+	 */
+	private Map<String, UserOrg> users;
+
+	/**
+	 * The identifiers of the copied groups.
+	 */
+	private final Set<String> copiedGroups = new HashSet<>();
+
+	/**
+	 * The identifiers of the copied users.
+	 */
+	private final Set<String> copiedUsers = new HashSet<>();
+
+	/**
+	 * Start the edition of the given snapshot.
+	 *
+	 * @param current
+	 *            The edited snapshot.
+	 */
+	public SnapshotEditor(final LdapSnapshot current) {
+		this.current = current;
+	}
+
+	/**
+	 * Return the writable group of the next version.
+	 *
+	 * @param id
+	 *            The normalized identifier of the group.
+	 * @return The copy of the group, or <code>null</code> when not found.
+	 */
+	public GroupOrg getGroup(final String id) {
+		if (copiedGroups.contains(id)) {
+			return groups.get(id);
+		}
+		final GroupOrg group = current.getGroups().get(id);
+		if (group == null) {
+			return null;
+		}
+		final GroupOrg copy = copy(group);
+		getGroups().put(id, copy);
+		copiedGroups.add(id);
+		return copy;
+	}
+
+	/**
+	 * Return the writable user of the next version.
+	 *
+	 * @param id
+	 *            The normalized identifier of the user.
+	 * @return The copy of the user, or <code>null</code> when not found.
+	 */
+	public UserOrg getUser(final String id) {
+		if (copiedUsers.contains(id)) {
+			return users.get(id);
+		}
+		final UserOrg user = current.getUsers().get(id);
+		if (user == null) {
+			return null;
+		}
+		final UserOrg copy = copy(user);
+		getUsers().put(id, copy);
+		copiedUsers.add(id);
+		return copy;
+	}
+
+	/**
+	 * Add the user to the group.
+	 *
+	 * @param user
+	 *            The normalized identifier of the user.
+	 * @param group
+	 *            The normalized identifier of the group.
+	 */
+	public void link(final String user, final String group) {
+		final UserOrg userOrg = getUser(user);
+		final GroupOrg groupOrg = getGroup(group);
+		if (userOrg != null && groupOrg != null) {
+			if (!userOrg.getGroups().contains(group)) {
+				userOrg.getGroups().add(group);
+			}
+			groupOrg.getMembers().add(user);
+		}
+	}
+
+	/**
+	 * Remove the user from the group. The user or the group may not exist.
+	 *
+	 * @param user
+	 *            The normalized identifier of the user.
+	 * @param group
+	 *            The normalized identifier of the group.
+	 */
+	public void unlink(final String user, final String group) {
+		if (current.getUsers().containsKey(user)) {
+			getUser(user).getGroups().remove(group);
+		}
+		if (current.getGroups().containsKey(group)) {
+			getGroup(group).getMembers().remove(user);
+		}
+	}
+
+	/**
+	 * Add the sub-group to the group.
+	 *
+	 * @param subGroup
+	 *            The normalized identifier of the sub-group.
+	 * @param group
+	 *            The normalized identifier of the group.
+	 */
+	public void linkGroup(final String subGroup, final String group) {
+		final GroupOrg subGroupOrg = getGroup(subGroup);
+		final GroupOrg groupOrg = getGroup(group);
+		if (subGroupOrg != null && groupOrg != null) {
+			subGroupOrg.getGroups().add(group);
+			groupOrg.getSubGroups().add(subGroup);
+		}
+	}
+
+	/**
+	 * Remove the sub-group from the group. The sub-group or the group may not exist.
+	 *
+	 * @param subGroup
+	 *            The normalized identifier of the sub-group.
+	 * @param group
+	 *            The normalized identifier of the group.
+	 */
+	public void unlinkGroup(final String subGroup, final String group) {
+		if (current.getGroups().containsKey(subGroup)) {
+			getGroup(subGroup).getGroups().remove(group);
+		}
+		if (current.getGroups().containsKey(group)) {
+			getGroup(group).getSubGroups().remove(subGroup);
+		}
+	}
+
+	/**
+	 * Return the groups of the next version. The map is writable until the publication.
+	 *
+	 * @return The groups of the next version.
+	 */
+	public Map<String, GroupOrg> getGroups() {
+		if (groups == null) {
+			groups = new HashMap<>(current.getGroups());
+		}
+		return groups;
+	}
+
+	/**
+	 * Return the users of the next version. The map is writable until the publication.
+	 *
+	 * @return The users of the next version.
+	 */
+	public Map<String, UserOrg> getUsers() {
+		if (users == null) {
+			users = new HashMap<>(current.getUsers());
+		}
+		return users;
+	}
+
+	/**
+	 * Add or replace a group by a new instance, not published yet.
+	 *
+	 * @param group
+	 *            The new group.
+	 */
+	public void put(final GroupOrg group) {
+		getGroups().put(group.getId(), group);
+		copiedGroups.add(group.getId());
+	}
+
+	/**
+	 * Add or replace a user by a new instance, not published yet. The attributes of the users are then changed, so the
+	 * next version is built from {@link #getGroups()} and {@link #getUsers()} instead of {@link #publish()}.
+	 *
+	 * @param user
+	 *            The new user.
+	 */
+	public void put(final UserOrg user) {
+		getUsers().put(user.getId(), user);
+		copiedUsers.add(user.getId());
+	}
+
+	/**
+	 * Return the next version of the snapshot with the changed membership. The attributes of the users must be the
+	 * same, so their indexes are kept.
+	 *
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot publish() {
+		return publish(null);
+	}
+
+	/**
+	 * Return the next version of the snapshot with the changed membership and the already computed closure of the
+	 * nested groups.
+	 *
+	 * @param closure
+	 *            The closure of the new groups. When <code>null</code>, it is built on first use.
+	 * @return The new snapshot.
+	 */
+	public LdapSnapshot publish(final GroupClosure closure) {
+		return current.withMembership(groups == null ? current.getGroups() : groups,
+				users == null ? current.getUsers() : users, closure);
+	}
+
+	/**
+	 * Return a copy of the given user, with its own groups.
+	 *
+	 * @param user
+	 *            The user to copy.
+	 * @return The new user.
+	 */
+	public static UserOrg copy(final UserOrg user) {
+		final UserOrg result = new UserOrg();
+		user.copy((SimpleUser) result);
+		result.setDn(user.getDn());
+		result.setMails(user.getMails());
+		result.setLocked(user.getLocked());
+		result.setLockedBy(user.getLockedBy());
+		result.setIsolated(user.getIsolated());
+		result.setSecured(user.isSecured());
+		result.setGroups(new ArrayList<>(user.getGroups()));
+		return result;
+	}
+
+	/**
+	 * Return a copy of the given group, with its own members, sub-groups and parent groups.
+	 *
+	 * @param group
+	 *            The group to copy.
+	 * @return The new group.
+	 */
+	public static GroupOrg copy(final GroupOrg group) {
+		final GroupOrg result = new GroupOrg(group.getDn(), group.getName(), new HashSet<>(group.getMembers()));
+		result.setId(group.getId());
+		result.setGroups(new HashSet<>(group.getGroups()));
+		result.setSubGroups(new HashSet<>(group.getSubGroups()));
+		return result;
+	}
+}
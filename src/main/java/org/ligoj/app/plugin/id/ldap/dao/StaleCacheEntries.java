@@ -0,0 +1,77 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import lombok.Getter;
+
+/**
+ * Entries of the database cache no more in LDAP, and to be purged. Their memberships are already removed.
+ */
+@Getter
+public class StaleCacheEntries {
+
+	/**
+	 * Identifiers of the stale companies.
+	 */
+	private final Set<String> companies;
+
+	/**
+	 * Identifiers of the stale groups.
+	 */
+	private final Set<String> groups;
+
+	/**
+	 * Identifiers of the stale users.
+	 */
+	private final Set<String> users;
+
+	/**
+	 * Build the stale entries from the given identifiers.
+	 *
+	 * @param companies
+	 *            Identifiers of the stale companies.
+	 * @param groups
+	 *            Identifiers of the stale groups.
+	 * @param users
+	 *            Identifiers of the stale users.
+	 */
+	public StaleCacheEntries(final Collection<String> companies, final Collection<String> groups,
+			final Collection<String> users) {
+		this.companies = new HashSet<>(companies);
+		this.groups = new HashSet<>(groups);
+		this.users = new HashSet<>(users);
+	}
+
+	/**
+	 * Indicates there is nothing to purge.
+	 *
+	 * @return <code>true</code> when there is no stale entry.
+	 */
+	public boolean isEmpty() {
+		return companies.isEmpty() && groups.isEmpty() && users.isEmpty();
+	}
+
+	/**
+	 * Return the stale entries without the ones created since, and present in the given data.
+	 *
+	 * @param snapshot
+	 *            The current LDAP data.
+	 * @return The remaining stale entries.
+	 */
+	public StaleCacheEntries without(final LdapSnapshot snapshot) {
+		return new StaleCacheEntries(without(companies, snapshot.getCompanies()),
+				without(groups, snapshot.getGroups()), without(users, snapshot.getUsers()));
+	}
+
+	private static Set<String> without(final Set<String> ids, final Map<String, ?> existing) {
+		final Set<String> result = new HashSet<>(ids);
+		result.removeAll(existing.keySet());
+		return result;
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Read-only hash index of the users by the values of an attribute. The values are compared ignoring the case, like
+ * the equality matching rules of the indexed attributes. The next versions share the map of this index, only the
+ * changed values are kept apart until they are merged in a new map.
+ */
+public class UserAttributeIndex {
+
+	/**
+	 * Ratio between the square root of the size of the index and the amount of changes kept apart, like
+	 * {@link UserSearchIndex}.
+	 */
+	private static final int MERGE_RATIO = 8;
+
+	/**
+	 * The function returning the values of the indexed attribute of a user.
+	 */
+	private final Function<UserOrg, Collection<String>> values;
+
+	/**
+	 * User identifiers by case-folded value, shared with the next versions.
+	 */
+	private final Map<String, List<String>> ids;
+
+	/**
+	 * User identifiers of the values changed since the last merge, replacing the shared ones. An empty list is a
+	 * removed value.
+	 */
+	private final Map<String, List<String>> changedIds;
+
+	/**
+	 * Build the index of the given users.
+	 *
+	 * @param users
+	 *            The users. Key is the normalized identifier.
+	 * @param values
+	 *            The function returning the values of the indexed attribute of a user. May return <code>null</code>
+	 *            or contain <code>null</code> values.
+	 */
+	public UserAttributeIndex(final Map<String, UserOrg> users,
+			final Function<UserOrg, Collection<String>> values) {
+		this(values, new HashMap<>(), Collections.emptyMap());
+		users.forEach((id, user) -> toValues(user)
+				.forEach(v -> ids.computeIfAbsent(v, k -> new ArrayList<>(1)).add(id)));
+	}
+
+	private UserAttributeIndex(final Function<UserOrg, Collection<String>> values,
+			final Map<String, List<String>> ids, final Map<String, List<String>> changedIds) {
+		this.values = values;
+		this.ids = ids;
+		this.changedIds = changedIds;
+	}
+
+	/**
+	 * Return the distinct case-folded values of the given user. Empty for a <code>null</code> user.
+	 */
+	private Set<String> toValues(final UserOrg user) {
+		if (user == null) {
+			return Collections.emptySet();
+		}
+		return Optional.ofNullable(values.apply(user)).orElse(Collections.emptyList()).stream()
+				.filter(Objects::nonNull).map(UserAttributeIndex::fold).collect(Collectors.toSet());
+	}
+
+	private static String fold(final String value) {
+		return value.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Return the identifiers of the users having the given value.
+	 *
+	 * @param value
+	 *            The value to find, ignoring the case.
+	 * @return The read-only user identifiers. Empty when not found.
+	 */
+	public List<String> find(final String value) {
+		return Collections.unmodifiableList(get(fold(value)));
+	}
+
+	private List<String> get(final String value) {
+		final List<String> result = changedIds.get(value);
+		return result == null ? ids.getOrDefault(value, Collections.emptyList()) : result;
+	}
+
+	/**
+	 * Return the index where the given user is replaced. Only the entries of the values of this user are copied, this
+	 * index is not modified.
+	 *
+	 * @param id
+	 *            The normalized identifier of the user.
+	 * @param old
+	 *            The previous user. <code>null</code> for an added user.
+	 * @param user
+	 *            The new user. <code>null</code> for a removed user.
+	 * @return The new index.
+	 */
+	public UserAttributeIndex with(final String id, final UserOrg old, final UserOrg user) {
+		final Set<String> oldValues = toValues(old);
+		final Set<String> newValues = toValues(user);
+		final Map<String, List<String>> newChangedIds = new HashMap<>(changedIds);
+		oldValues.stream().filter(v -> !newValues.contains(v)).forEach(v -> {
+			final List<String> result = new ArrayList<>(get(v));
+			result.remove(id);
+			newChangedIds.put(v, result);
+		});
+		newValues.stream().filter(v -> !oldValues.contains(v)).forEach(v -> {
+			final List<String> result = new ArrayList<>(get(v));
+			result.add(id);
+			newChangedIds.put(v, result);
+		});
+		if (newChangedIds.size() > Math.sqrt(ids.size()) * MERGE_RATIO) {
+			// Too many changes, merge them in a new map
+			final Map<String, List<String>> merged = new HashMap<>(ids);
+			newChangedIds.forEach((k, v) -> {
+				if (v.isEmpty()) {
+					merged.remove(k);
+				} else {
+					merged.put(k, v);
+				}
+			});
+			return new UserAttributeIndex(values, merged, Collections.emptyMap());
+		}
+		return new UserAttributeIndex(values, ids, newChangedIds);
+	}
+}
@@ -7,17 +7,26 @@ import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -48,7 +57,6 @@ import org.ligoj.app.iam.IUserRepository;
 import org.ligoj.app.iam.SimpleUser;
 import org.ligoj.app.iam.SimpleUserOrg;
 import org.ligoj.app.iam.UserOrg;
-import org.ligoj.app.plugin.id.DnUtils;
 import org.ligoj.app.plugin.id.ldap.dao.LdapCacheRepository.LdapData;
 import org.ligoj.app.plugin.id.model.CompanyComparator;
 import org.ligoj.app.plugin.id.model.FirstNameComparator;
@@ -56,22 +64,28 @@ import org.ligoj.app.plugin.id.model.LastNameComparator;
 import org.ligoj.app.plugin.id.model.LoginComparator;
 import org.ligoj.app.plugin.id.model.MailComparator;
 import org.ligoj.bootstrap.core.DateUtils;
-import org.ligoj.bootstrap.core.json.InMemoryPagination;
 import org.ligoj.bootstrap.core.resource.BusinessException;
 import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.Sort.Direction;
+import org.springframework.ldap.NameNotFoundException;
 import org.springframework.ldap.core.ContextExecutor;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.AbstractContextMapper;
+import org.springframework.ldap.core.support.BaseLdapPathSource;
 import org.springframework.ldap.filter.AndFilter;
 import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.Filter;
+import org.springframework.ldap.filter.LikeFilter;
+import org.springframework.ldap.support.LdapUtils;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -87,6 +101,11 @@ public class UserLdapRepository implements IUserRepository {
 
 	private static final String LDAP_CONNECT_POOL = "com.sun.jndi.ldap.connect.pool";
 
+	/**
+	 * Maximal time in milliseconds to wait for the in-flight operations when this repository is closed.
+	 */
+	private static final long CLOSE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
 	/**
 	 * User password LDAP attribute.
 	 */
@@ -150,6 +169,45 @@ public class UserLdapRepository implements IUserRepository {
 	@Getter
 	private LdapTemplate template;
 
+	/**
+	 * Template opening a connection for each operation, bypassing the pool of {@link #template}. Used by the operations
+	 * binding with the credentials of a user, and by the long running searches. When <code>null</code>,
+	 * {@link #template} is used.
+	 */
+	@Setter
+	private LdapTemplate directTemplate;
+
+	/**
+	 * Template checking the credentials of the users when there is no {@link #authenticationPool}. Its connections
+	 * time out with the authentications. When <code>null</code>, {@link #getDirectTemplate()} is used.
+	 */
+	@Setter
+	private LdapTemplate authenticationTemplate;
+
+	/**
+	 * Connections dedicated to the authentication of the users. When <code>null</code>, each authentication opens a
+	 * new connection.
+	 */
+	@Setter
+	@Getter
+	private AuthenticationPool authenticationPool;
+
+	/**
+	 * Executor of the authentications of this node. When <code>null</code>, the authentications are run by the calling
+	 * thread.
+	 */
+	@Setter
+	@Getter
+	private AuthenticationExecutor authenticationExecutor;
+
+	/**
+	 * When <code>true</code>, the DN of the user to authenticate is resolved from the cached users, so a single bind is
+	 * needed. The entry is only searched when the user is not cached, or when the cached DN no longer exists.
+	 */
+	@Setter
+	@Getter
+	private boolean authenticateFromCache;
+
 	/**
 	 * UID attribute name.
 	 */
@@ -179,12 +237,14 @@ public class UserLdapRepository implements IUserRepository {
 	 * Object class of people
 	 */
 	@Setter
+	@Getter
 	private String peopleClass = "inetOrgPerson";
 
 	/**
 	 * Base DN for people.
 	 */
 	@Setter
+	@Getter
 	private String peopleBaseDn;
 
 	/**
@@ -217,8 +277,111 @@ public class UserLdapRepository implements IUserRepository {
 	@Setter
 	private String lockedValue;
 
-	@Autowired
-	private InMemoryPagination inMemoryPagination;
+	/**
+	 * When <code>true</code>, the cache is refreshed with the entries created or modified since the last
+	 * synchronization instead of a full reload.
+	 */
+	@Setter
+	@Getter
+	private boolean deltaSync;
+
+	/**
+	 * Interval in seconds between two full reloads when the incremental synchronization is enabled. The deletions are
+	 * applied by these reloads when the LDAP change listener is not started. When zero or negative, a full reload is
+	 * only performed when an incremental synchronization is not possible, and each incremental synchronization reads
+	 * the identifiers of all companies, groups and users to find the deletions.
+	 */
+	@Setter
+	@Getter
+	private int fullSyncInterval;
+
+	/**
+	 * When <code>true</code>, the LDAP changes are listened to keep the cache up to date.
+	 */
+	@Setter
+	@Getter
+	private boolean changeListener;
+
+	/**
+	 * When <code>true</code>, the previous cached data is served while a reload is in progress instead of waiting for
+	 * it.
+	 */
+	@Setter
+	@Getter
+	private boolean reloadStale;
+
+	/**
+	 * Interval in seconds between two background refreshes of the cache. When zero or negative, the cache is reloaded
+	 * by the first request following its expiration.
+	 */
+	@Setter
+	@Getter
+	private int refreshInterval;
+
+	/**
+	 * Maximal random delay in seconds added to the background refresh interval. Avoids the simultaneous reloads of
+	 * several servers.
+	 */
+	@Setter
+	@Getter
+	private int refreshJitter;
+
+	/**
+	 * Amount of rows written in a single batch while resetting the database cache. When zero or negative, the rows are
+	 * written at the end of each step.
+	 */
+	@Setter
+	@Getter
+	private int batchSize;
+
+	/**
+	 * When <code>true</code>, the database cache reset only inserts and updates the entries in its transaction. The
+	 * entries no more in LDAP are removed later, in a separate transaction.
+	 */
+	@Setter
+	@Getter
+	private boolean deferredPurge;
+
+	/**
+	 * Additional attributes answered from the cached users by {@link #findAllBy(String, String)}. Only the attributes
+	 * mapped to the cached users can be indexed: the UID, the first and the last names. The mail, department and local
+	 * identifier attributes are always indexed.
+	 */
+	@Getter
+	private Set<String> indexedAttributes = Collections.emptySet();
+
+	/**
+	 * Amount of {@link #findAllBy(String, String)} calls answered from the cached users.
+	 */
+	private final AtomicLong indexHits = new AtomicLong();
+
+	/**
+	 * Amount of {@link #findAllBy(String, String)} calls answered by a LDAP search.
+	 */
+	private final AtomicLong indexMisses = new AtomicLong();
+
+	/**
+	 * Minimal amount of entries of a chunk filtered in parallel by the in-memory queries. When zero or negative, the
+	 * queries are single-threaded.
+	 */
+	@Setter
+	@Getter
+	private int parallelThreshold;
+
+	/**
+	 * Pool of the parallel in-memory queries of this node, also used by its company and group repositories. When
+	 * <code>null</code>, the queries are single-threaded. Shut down by {@link #close()}.
+	 */
+	@Setter
+	@Getter
+	private ForkJoinPool parallelPool;
+
+	/**
+	 * Page size of the searches returning all entries. When zero or negative, the paged results are not used.
+	 */
+	@Setter
+	@Getter
+	private int pageSize;
 
 	@Setter
 	private GroupLdapRepository groupLdapRepository;
@@ -228,6 +391,7 @@ public class UserLdapRepository implements IUserRepository {
 	private CompanyLdapRepository companyRepository;
 
 	@Autowired
+	@Setter
 	private LdapCacheRepository ldapCacheRepository;
 
 	@Autowired
@@ -238,6 +402,11 @@ public class UserLdapRepository implements IUserRepository {
 	 */
 	private final Mapper mapper = new Mapper();
 
+	/**
+	 * Listener of the LDAP changes. May be <code>null</code>.
+	 */
+	private LdapChangeListener listener;
+
 	static {
 		COMPARATORS.put("company", new CompanyComparator());
 		COMPARATORS.put("id", new LoginComparator());
@@ -300,8 +469,81 @@ public class UserLdapRepository implements IUserRepository {
 		return findOneBy(uidAttribute, login);
 	}
 
+	/**
+	 * Set the additional attributes answered from the cached users by {@link #findAllBy(String, String)}.
+	 *
+	 * @param attributes
+	 *            The attribute names, comma separated. May be <code>null</code>.
+	 */
+	public void setIndexedAttributes(final String attributes) {
+		final Set<String> result = new HashSet<>();
+		for (final String attribute : StringUtils.split(StringUtils.defaultString(attributes), ',')) {
+			result.add(attribute.trim().toLowerCase(Locale.ENGLISH));
+		}
+		result.remove("");
+		indexedAttributes = Collections.unmodifiableSet(result);
+	}
+
+	/**
+	 * Return the amount of {@link #findAllBy(String, String)} calls answered from the cached users.
+	 *
+	 * @return The amount of index hits.
+	 */
+	public long getIndexHits() {
+		return indexHits.get();
+	}
+
+	/**
+	 * Return the amount of {@link #findAllBy(String, String)} calls answered by a LDAP search.
+	 *
+	 * @return The amount of index misses.
+	 */
+	public long getIndexMisses() {
+		return indexMisses.get();
+	}
+
+	/**
+	 * Return the function returning the values of the given attribute of a cached user.
+	 *
+	 * @param attribute
+	 *            The lower case attribute name.
+	 * @return The function, or <code>null</code> when this attribute is not indexed.
+	 */
+	private Function<UserOrg, Collection<String>> getIndexedValues(final String attribute) {
+		Function<UserOrg, Collection<String>> result = null;
+		if (MAIL_ATTRIBUTE.equalsIgnoreCase(attribute)) {
+			result = UserOrg::getMails;
+		} else if (attribute.equalsIgnoreCase(departmentAttribute)) {
+			result = u -> Collections.singletonList(u.getDepartment());
+		} else if (attribute.equalsIgnoreCase(localIdAttribute)) {
+			result = u -> Collections.singletonList(u.getLocalId());
+		} else if (indexedAttributes.contains(attribute)) {
+			if (attribute.equalsIgnoreCase(uidAttribute)) {
+				result = u -> Collections.singletonList(u.getId());
+			} else if (SN_ATTRIBUTE.equalsIgnoreCase(attribute)) {
+				result = u -> Collections.singletonList(u.getLastName());
+			} else if (GIVEN_NAME_ATTRIBUTE.equalsIgnoreCase(attribute)) {
+				result = u -> Collections.singletonList(u.getFirstName());
+			}
+		}
+		return result;
+	}
+
 	@Override
 	public List<UserOrg> findAllBy(final String attribute, final String value) {
+		final String name = attribute.toLowerCase(Locale.ENGLISH);
+		final Function<UserOrg, Collection<String>> values = getIndexedValues(name);
+		if (values != null && value != null) {
+			// Answer from the cached users
+			indexHits.incrementAndGet();
+			final LdapSnapshot snapshot = ldapCacheRepository.getSnapshot();
+			return snapshot.getAttributeIndex(name, values).find(value).stream().map(snapshot.getUsers()::get)
+					.collect(Collectors.toList());
+		}
+
+		// Not indexed attribute, use a live search
+		log.debug("Attribute {} is not indexed, a LDAP search is used", attribute);
+		indexMisses.incrementAndGet();
 		final AndFilter filter = new AndFilter().and(new EqualsFilter(OBJECT_CLASS, peopleClass))
 				.and(new EqualsFilter(attribute, value));
 		return template.search(peopleBaseDn, filter.encode(), mapper).stream()
@@ -323,61 +565,227 @@ public class UserLdapRepository implements IUserRepository {
 	 */
 	public Map<String, UserOrg> findAllNoCache(final Map<String, GroupOrg> groups) {
 
+		// Fetch users and their direct attributes
+		final Map<String, UserOrg> result = findAllNoCache();
+
+		// Update the memberships of this user
+		updateMembership(result, groups.values());
+		return result;
+	}
+
+	/**
+	 * Return all user entries. Membership is not resolved, and the groups of each returned user are empty.
+	 * 
+	 * @return all user entries. Key is the user login.
+	 */
+	public Map<String, UserOrg> findAllNoCache() {
+		return findAllNoCache(new EqualsFilter(OBJECT_CLASS, peopleClass));
+	}
+
+	/**
+	 * Return the user entries created or modified since the given date. Membership is not resolved, and the groups of
+	 * each returned user are empty.
+	 * 
+	 * @param since
+	 *            The lower bound date, inclusive.
+	 * @return the created or modified user entries. Key is the user login.
+	 */
+	public Map<String, UserOrg> findAllModifiedNoCache(final Date since) {
+		return findAllNoCache(
+				new AndFilter().and(new EqualsFilter(OBJECT_CLASS, peopleClass)).and(new ModifiedSinceFilter(since)));
+	}
+
+	/**
+	 * Return the identifiers of all user entries. Only the UID attribute is fetched.
+	 * 
+	 * @return The normalized identifiers of all user entries.
+	 */
+	public Set<String> findAllIdsNoCache() {
+		return findAllIdsNoCache(new EqualsFilter(OBJECT_CLASS, peopleClass));
+	}
+
+	/**
+	 * Return the identifiers of the user entries starting with the given prefix, with a single search. Only the UID
+	 * attribute is fetched.
+	 * 
+	 * @param prefix
+	 *            The identifier prefix.
+	 * @return The normalized identifiers of the matching user entries.
+	 */
+	public Set<String> findAllIdsStartingWithNoCache(final String prefix) {
+		return findAllIdsNoCache(new AndFilter().and(new EqualsFilter(OBJECT_CLASS, peopleClass))
+				.and(new LikeFilter(uidAttribute, prefix + "*")));
+	}
+
+	/**
+	 * Return the identifiers of the user entries matching the given filter.
+	 */
+	private Set<String> findAllIdsNoCache(final Filter filter) {
+		final Set<String> ids = new HashSet<>();
+		PagedSearch.search(template, pageSize, peopleBaseDn, filter.encode(),
+				PagedSearch.newControls(uidAttribute), new AbstractContextMapper<String>() {
+					@Override
+					public String doMapFromContext(final DirContextOperations context) {
+						return Normalizer.normalize(context.getStringAttribute(uidAttribute));
+					}
+				}, ids::add);
+		return ids;
+	}
+
+	/**
+	 * Return the user entries matching the given filter. Membership is not resolved.
+	 */
+	private Map<String, UserOrg> findAllNoCache(final Filter filter) {
+
 		// List of attributes to retrieve from LDAP.
 		final String[] returnAttrs = new String[] { SN_ATTRIBUTE, GIVEN_NAME_ATTRIBUTE, PASSWORD_ATTRIBUTE,
 				MAIL_ATTRIBUTE, uidAttribute, departmentAttribute, localIdAttribute, lockedAttribute,
 				PWD_ACCOUNT_LOCKED_ATTRIBUTE };
 
-		// Fetch users and their direct attributes
-		final List<UserOrg> users = template.search(peopleBaseDn, new EqualsFilter(OBJECT_CLASS, peopleClass).encode(),
-				SearchControls.SUBTREE_SCOPE, returnAttrs, mapper);
-
-		// INdex the users by the identifier
+		// Fetch users and their direct attributes, indexed by the identifier
 		final Map<String, UserOrg> result = new HashMap<>();
-		for (final UserOrg user : users) {
-			user.setGroups(new ArrayList<>());
-			result.put(user.getId(), user);
-		}
+		PagedSearch.search(template, pageSize, peopleBaseDn, filter.encode(), PagedSearch.newControls(returnAttrs),
+				mapper, user -> {
+					user.setGroups(new ArrayList<>());
+					result.put(user.getId(), user);
+				});
+		return result;
+	}
 
-		// Update the memberships of this user
-		for (final Entry<String, GroupOrg> groupEntry : groups.entrySet()) {
-			updateMembership(result, groupEntry);
+	/**
+	 * Build a user from a LDAP entry. Membership is not resolved.
+	 * 
+	 * @param context
+	 *            The LDAP entry of the user.
+	 * @return The user with empty groups.
+	 */
+	protected UserOrg mapUser(final DirContextOperations context) {
+		final UserOrg user = mapper.mapFromContext(context);
+		user.setGroups(new ArrayList<>());
+		return user;
+	}
+
+	/**
+	 * Start listening the LDAP changes to keep the cache up to date. Does nothing when already started.
+	 */
+	public void listen() {
+		listen(null);
+	}
+
+	/**
+	 * Start listening the LDAP changes to keep the cache up to date, resuming the synchronization of the given
+	 * replaced repository. Does nothing when already started.
+	 *
+	 * @param previous
+	 *            The replaced repository. May be <code>null</code>.
+	 */
+	public synchronized void listen(final UserLdapRepository previous) {
+		if (listener == null) {
+			listener = new LdapChangeListener(this, groupLdapRepository, companyRepository, ldapCacheRepository);
+			Optional.ofNullable(previous).map(UserLdapRepository::getListener).ifPresent(listener::resume);
+			listener.start();
 		}
-		return result;
 	}
 
 	/**
-	 * Update the membership of given group. All users are checked.
+	 * Return the started LDAP change listener.
 	 */
-	private void updateMembership(final Map<String, UserOrg> result, final Entry<String, GroupOrg> groupEntry) {
-		final GroupOrg groupLdap = groupEntry.getValue();
-		final String group = groupLdap.getId();
-		new ArrayList<>(groupLdap.getMembers()).forEach(dn -> {
-			// Extract the UID
-			final String uid = DnUtils.toRdn(dn);
+	private synchronized LdapChangeListener getListener() {
+		return listener;
+	}
 
-			// Remove this DN from the members, it would be replaced by the RDN form
-			groupLdap.getMembers().remove(dn);
+	/**
+	 * Indicates the LDAP change listener is started, so the deletions are notified to the cache.
+	 * 
+	 * @return <code>true</code> when the LDAP changes are listened.
+	 */
+	public synchronized boolean isListening() {
+		return listener != null;
+	}
 
-			// Check the broken UID reference
-			final UserOrg user = result.get(uid);
-			if (user == null) {
-				if (!dn.startsWith(GroupLdapRepository.DEFAULT_MEMBER_DN)) {
-					// It is a real broken reference
-					log.warn("Broken user UID reference found '{}' --> {}", groupLdap.getDn(), uid);
-				}
-			} else {
-				if (!Normalizer.normalize(dn).equals(Normalizer.normalize(user.getDn()))) {
-					log.warn("Broken user DN reference found '{}' --> {}, instead of {}", groupLdap.getDn(), dn,
-							user.getDn());
-					//groupLdapRepository.fixMemberDn(groupLdap.getDn(), user.getDn());
-				}
-				user.getGroups().add(group);
+	/**
+	 * Return the template opening a connection for each operation.
+	 * 
+	 * @return The template bypassing the connection pool, if any.
+	 */
+	public LdapTemplate getDirectTemplate() {
+		return ObjectUtils.defaultIfNull(directTemplate, template);
+	}
 
-				// Finally, add the RDN (UID) of this user to replace the
-				groupLdap.getMembers().add(uid);
+	/**
+	 * Return the template checking the credentials of the users without the authentication pool.
+	 * 
+	 * @return The template dedicated to the authentication, if any.
+	 */
+	public LdapTemplate getAuthenticationTemplate() {
+		return ObjectUtils.defaultIfNull(authenticationTemplate, getDirectTemplate());
+	}
+
+	/**
+	 * Release the resources of this repository : the LDAP change listener, the connection pools, the authentication
+	 * threads and the pool of the in-memory queries. The in-flight operations are completed before the connections are
+	 * closed, so this repository must be replaced before.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (listener != null) {
+				listener.stop();
+				listener = null;
 			}
-		});
+		}
+		if (authenticationExecutor != null) {
+			authenticationExecutor.close(CLOSE_TIMEOUT);
+		}
+		if (authenticationPool != null) {
+			authenticationPool.close();
+		}
+		if (template != null && template.getContextSource() instanceof MonitoredPooledContextSource) {
+			((MonitoredPooledContextSource) template.getContextSource()).close(CLOSE_TIMEOUT);
+		}
+		if (parallelPool != null) {
+			// The running queries complete
+			parallelPool.shutdown();
+		}
+	}
+
+	/**
+	 * Return the usage of the connection pools and of the authentication threads of this repository.
+	 *
+	 * @return The metrics by name. Only the metrics of the enabled pools are returned.
+	 */
+	public Map<String, Number> getPoolStatus() {
+		final Map<String, Number> result = new LinkedHashMap<>();
+		if (template != null && template.getContextSource() instanceof MonitoredPooledContextSource) {
+			final MonitoredPooledContextSource pool = (MonitoredPooledContextSource) template.getContextSource();
+			result.put("pool-utilization", pool.getUtilization());
+			result.put("pool-borrows", pool.getBorrowCount());
+			result.put("pool-wait-mean", pool.getMeanWaitMillis());
+			result.put("pool-wait-max", pool.getMaxWaitMillis());
+		}
+		if (authenticationPool != null) {
+			result.put("auth-pool-active", authenticationPool.getNumActive());
+			result.put("auth-pool-idle", authenticationPool.getNumIdle());
+		}
+		if (authenticationExecutor != null) {
+			result.put("auth-in-flight", authenticationExecutor.getInFlight());
+			result.put("auth-queued", authenticationExecutor.getQueued());
+			result.put("auth-timed-out", authenticationExecutor.getTimedOut());
+			result.put("auth-rejected", authenticationExecutor.getRejected());
+		}
+		return result;
+	}
+
+	/**
+	 * Update the membership of given groups. All users are indexed once. The DN members of each group are replaced by
+	 * the UID of the corresponding users, and the group is added to the groups of these users.
+	 * 
+	 * @param users
+	 *            All known users.
+	 * @param groups
+	 *            The groups to update. The members are expected to be DN.
+	 */
+	protected void updateMembership(final Map<String, UserOrg> users, final Collection<GroupOrg> groups) {
+		new MembershipResolver(users).resolve(groups);
 	}
 
 	@Override
@@ -501,63 +909,109 @@ public class UserLdapRepository implements IUserRepository {
 	@Override
 	public Page<UserOrg> findAll(final Collection<GroupOrg> requiredGroups, final Set<String> companies,
 			final String criteria, final Pageable pageable) {
-		// Create the set with the right comparator
+		// Get the comparator of the requested order
 		final List<Sort.Order> orders = IteratorUtils
 				.toList(ObjectUtils.defaultIfNull(pageable.getSort(), new ArrayList<Sort.Order>()).iterator());
 		orders.add(DEFAULT_ORDER);
 		final Sort.Order order = orders.get(0);
-		Comparator<UserOrg> comparator = ObjectUtils.defaultIfNull(COMPARATORS.get(order.getProperty()),
+		final Comparator<UserOrg> comparator = ObjectUtils.defaultIfNull(COMPARATORS.get(order.getProperty()),
 				DEFAULT_COMPARATOR);
-		if (order.getDirection() == Direction.DESC) {
-			comparator = Collections.reverseOrder(comparator);
-		}
-		final Set<UserOrg> result = new TreeSet<>(comparator);
+		final boolean descending = order.getDirection() == Direction.DESC;
 
 		// Filter the users traversing firstly the required groups and their members,
 		// the companies, then the criteria
-		final Map<String, UserOrg> users = findAll();
-		if (requiredGroups == null) {
-			// No constraint on group
-			addFilteredByCompaniesAndPattern(users.keySet(), companies, criteria, result, users);
-		} else {
-			// User must be within one the given groups
-			for (final GroupOrg requiredGroup : requiredGroups) {
-				addFilteredByCompaniesAndPattern(requiredGroup.getMembers(), companies, criteria, result, users);
-			}
+		final LdapSnapshot snapshot = ldapCacheRepository.getSnapshot();
+		final CompanyScope companyScope = snapshot.getCompanyScope();
+		final BitSet scope = companyScope.toScope(companies);
+		final Predicate<UserOrg> filter = u -> companyScope.isVisible(scope, u.getCompany())
+				&& (criteria == null || matchPattern(u, criteria));
+
+		// Only the users having all the fragments of the criteria may match
+		Collection<String> candidates = criteria == null ? null : snapshot.getSearchIndex().find(criteria);
+		if (requiredGroups != null) {
+			// User must be within one the given groups or their sub-groups, each member is filtered once
+			final MembershipGraph membership = snapshot.getMembership();
+			final GroupClosure closure = snapshot.getClosure();
+			final BitSet members = new BitSet();
+			requiredGroups.forEach(g -> members.or(closure.getEffectiveMembers(g.getId(), membership)));
+			candidates = candidates == null ? membership.toUsers(members)
+					: candidates.stream().filter(u -> membership.contains(members, u)).collect(Collectors.toList());
+		}
+
+		if (candidates == null) {
+			// No restriction, walk the sorted users
+			return newPage(snapshot.getSortedUsers(comparator), descending, filter, pageable);
 		}
 
-		// Apply in-memory pagination
-		return inMemoryPagination.newPage(result, pageable);
+		// Keep only the first matching candidates, up to the requested page
+		return newPage(candidates, snapshot.getUsers(), descending ? Collections.reverseOrder(comparator) : comparator,
+				filter, pageable);
 	}
 
 	/**
-	 * Add the members to the result if they match to the required company and the pattern.
+	 * Return the requested page of the matching users, walking the sorted users. Nothing is sorted, and only the
+	 * users of the page are collected.
 	 */
-	private void addFilteredByCompaniesAndPattern(final Set<String> members, final Set<String> companies,
-			final String criteria, final Set<UserOrg> result, final Map<String, UserOrg> users) {
-		// Filter by company for each members
-		for (final String member : members) {
-			final UserOrg userLdap = users.get(member);
-
-			// User is always found since #findAll() ensure the members of the groups exist
-			addFilteredByCompaniesAndPattern(companies, criteria, result, userLdap);
+	private Page<UserOrg> newPage(final List<UserOrg> sorted, final boolean descending,
+			final Predicate<UserOrg> filter, final Pageable pageable) {
+		final long start = getStart(pageable);
+		final long end = getEnd(pageable);
+		if (ParallelFilter.getChunks(sorted.size(), parallelThreshold, parallelPool) > 1) {
+			// Large directory, the chunks of the sorted users are filtered in parallel
+			final List<UserOrg> matches = ParallelFilter.filter(sorted, filter, parallelThreshold, parallelPool);
+			if (descending) {
+				Collections.reverse(matches);
+			}
+			return new PageImpl<>(matches.subList((int) Math.min(start, matches.size()),
+					(int) Math.min(end, matches.size())), pageable, matches.size());
 		}
-
+		final List<UserOrg> content = new ArrayList<>();
+		long total = 0;
+		final ListIterator<UserOrg> iterator = sorted.listIterator(descending ? sorted.size() : 0);
+		while (descending ? iterator.hasPrevious() : iterator.hasNext()) {
+			final UserOrg user = descending ? iterator.previous() : iterator.next();
+			if (filter.test(user)) {
+				if (total >= start && total < end) {
+					content.add(user);
+				}
+				total++;
+			}
+		}
+		return new PageImpl<>(content, pageable, total);
 	}
 
-	private void addFilteredByCompaniesAndPattern(final Set<String> companies, final String criteria,
-			final Set<UserOrg> result, final UserOrg userLdap) {
-		final List<CompanyOrg> userCompanies = companyRepository.findAll().get(userLdap.getCompany()).getCompanyTree();
-		if (userCompanies.stream().map(CompanyOrg::getId).anyMatch(companies::contains)) {
-			addFilteredByPattern(criteria, result, userLdap);
+	/**
+	 * Return the requested page of the matching candidates. A bounded heap keeps only the first users, up to the end
+	 * of the page, so the candidates are not fully sorted.
+	 */
+	private Page<UserOrg> newPage(final Collection<String> candidates, final Map<String, UserOrg> users,
+			final Comparator<UserOrg> comparator, final Predicate<UserOrg> filter, final Pageable pageable) {
+		final long start = getStart(pageable);
+		final long end = Math.min(Integer.MAX_VALUE, getEnd(pageable));
+		// User is always found since the members of the groups exist in the same snapshot
+		final List<UserOrg> matches = ParallelFilter.filter(
+				candidates.stream().map(users::get).collect(Collectors.toList()), filter, parallelThreshold,
+				parallelPool);
+		final PriorityQueue<UserOrg> heap = new PriorityQueue<>(Collections.reverseOrder(comparator));
+		for (final UserOrg user : matches) {
+			heap.add(user);
+			if (heap.size() > end) {
+				// Drop the last one
+				heap.poll();
+			}
 		}
+		final List<UserOrg> sorted = new ArrayList<>(heap);
+		sorted.sort(comparator);
+		return new PageImpl<>(sorted.subList((int) Math.min(start, sorted.size()), sorted.size()), pageable,
+				matches.size());
 	}
 
-	private void addFilteredByPattern(final String criteria, final Set<UserOrg> result, final UserOrg userLdap) {
-		if (criteria == null || matchPattern(userLdap, criteria)) {
-			// Company and pattern match
-			result.add(userLdap);
-		}
+	private long getStart(final Pageable pageable) {
+		return pageable.isPaged() ? pageable.getOffset() : 0;
+	}
+
+	private long getEnd(final Pageable pageable) {
+		return pageable.isPaged() ? pageable.getOffset() + pageable.getPageSize() : Long.MAX_VALUE;
 	}
 
 	/**
@@ -610,12 +1064,12 @@ public class UserLdapRepository implements IUserRepository {
 		mapToContext(user, context);
 		template.modifyAttributes(context);
 
-		// Also, update the cache
-		final UserOrg userLdap = findById(user.getId());
+		// Also, update the cache with a copy, the published user is not modified
+		final UserOrg userLdap = SnapshotEditor.copy(findById(user.getId()));
 		user.copy((SimpleUser) userLdap);
 		userLdap.setMails(user.getMails());
 
-		ldapCacheRepository.update(user);
+		ldapCacheRepository.update(userLdap);
 	}
 
 	@Override
@@ -723,11 +1177,125 @@ public class UserLdapRepository implements IUserRepository {
 		final String property = getAuthenticateProperty(name);
 		final AndFilter filter = new AndFilter().and(new EqualsFilter("objectclass", peopleClass))
 				.and(new EqualsFilter(property, name));
-		final boolean result = template.authenticate(peopleBaseDn, filter.encode(), password);
+		final String dn = authenticateFromCache ? toCachedDn(property, name) : null;
+		Boolean result = dn == null ? null : authenticateDn(dn, password);
+		if (Boolean.FALSE.equals(result)) {
+			// Some servers answer invalid credentials for a moved DN, the entry is searched to check it is still there
+			result = authenticateMoved(filter, dn, password);
+		}
+		if (result == null) {
+			result = authenticationPool == null
+					? getAuthenticationTemplate().authenticate(peopleBaseDn, filter.encode(), password)
+					: authenticate(filter, password);
+		}
 		log.info("Authenticate {} : {}", name, result);
 		return result;
 	}
 
+	/**
+	 * Return the DN of the single cached user matching the given principal.
+	 *
+	 * @param property
+	 *            The property name used to match the user name.
+	 * @param name
+	 *            The current principal.
+	 * @return The absolute DN of the user, or <code>null</code> when there is no single cached user matching the
+	 *         principal. The cache is not loaded by an authentication.
+	 */
+	private String toCachedDn(final String property, final String name) {
+		final LdapSnapshot snapshot = ldapCacheRepository.getPublishedSnapshot();
+		if (snapshot == null) {
+			log.info("No cached users yet, the entry {} is searched", name);
+			return null;
+		}
+		final UserOrg user;
+		if (MAIL_ATTRIBUTE.equals(property)) {
+			final List<String> ids = snapshot.getAttributeIndex(MAIL_ATTRIBUTE, getIndexedValues(MAIL_ATTRIBUTE))
+					.find(name);
+			user = ids.size() == 1 ? snapshot.getUsers().get(ids.get(0)) : null;
+		} else {
+			user = snapshot.getUsers().get(Normalizer.normalize(name));
+		}
+		if (user == null || user.getDn() == null) {
+			log.info("No single cached user {}, the entry is searched", name);
+			return null;
+		}
+
+		// The cached DN is relative to the base DN of the context source
+		final ContextSource contextSource = getDirectTemplate().getContextSource();
+		if (contextSource instanceof BaseLdapPathSource) {
+			return LdapUtils.prepend(LdapUtils.newLdapName(user.getDn()),
+					((BaseLdapPathSource) contextSource).getBaseLdapName()).toString();
+		}
+		return user.getDn();
+	}
+
+	/**
+	 * Authenticate the user having the given DN with a single bind.
+	 *
+	 * @return The authentication result, or <code>null</code> when the DN no longer exists.
+	 */
+	private Boolean authenticateDn(final String dn, final String password) {
+		try {
+			return authenticationPool == null ? bind(dn, password) : authenticationPool.authenticate(dn, password);
+		} catch (final NameNotFoundException e) {
+			log.info("Cached DN {} no longer exists, the entry is searched: {}", dn, e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Bind a new connection as the given user. An empty password is rejected since it would be an anonymous bind.
+	 */
+	private boolean bind(final String dn, final String password) {
+		if (StringUtils.isEmpty(password)) {
+			return false;
+		}
+		try {
+			LdapUtils.closeContext(getAuthenticationTemplate().getContextSource().getContext(dn, password));
+			return true;
+		} catch (@SuppressWarnings("unused") final org.springframework.ldap.AuthenticationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Authenticate the single user matching the given filter with a connection of the authentication pool.
+	 */
+	private boolean authenticate(final Filter filter, final String password) {
+		final List<String> dns = searchDn(filter);
+		if (dns.size() != 1) {
+			log.info("Authentication failed, {} entries found", dns.size());
+			return false;
+		}
+		return authenticationPool.authenticate(dns.get(0), password);
+	}
+
+	/**
+	 * Authenticate the single user matching the given filter after a failed bind with its cached DN. The bind is only
+	 * retried when the entry has moved, so a wrong password costs a single search.
+	 */
+	private boolean authenticateMoved(final Filter filter, final String cachedDn, final String password) {
+		final List<String> dns = searchDn(filter);
+		if (dns.size() != 1 || LdapUtils.newLdapName(dns.get(0)).equals(LdapUtils.newLdapName(cachedDn))) {
+			return false;
+		}
+		log.info("Cached DN {} has moved to {}", cachedDn, dns.get(0));
+		return Boolean.TRUE.equals(authenticateDn(dns.get(0), password));
+	}
+
+	/**
+	 * Return the absolute DN of the users matching the given filter.
+	 */
+	private List<String> searchDn(final Filter filter) {
+		return template.search(peopleBaseDn, filter.encode(), new AbstractContextMapper<String>() {
+			@Override
+			protected String doMapFromContext(final DirContextOperations context) {
+				return context.getNameInNamespace();
+			}
+		});
+	}
+
 	/**
 	 * Return the property name used to match the user name.
 	 * 
@@ -791,8 +1359,8 @@ public class UserLdapRepository implements IUserRepository {
 		// Unlock account when the user is locked by ppolicy
 		set(userLdap, PWD_ACCOUNT_LOCKED_ATTRIBUTE, null);
 
-		// Authenticate the user is needed before changing the password.
-		template.executeReadWrite(new ContextExecutor<Object>() {
+		// Authenticate the user is needed before changing the password, the connection must not be pooled
+		getDirectTemplate().executeReadWrite(new ContextExecutor<Object>() {
 			@Override
 			public Object executeWithContext(final DirContext dirCtx) throws NamingException {
 				LdapContext ctx = (LdapContext) dirCtx;
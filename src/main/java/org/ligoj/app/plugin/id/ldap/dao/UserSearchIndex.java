@@ -0,0 +1,231 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Read-only trigram index of the searchable fields of the users: first name, last name, identifier and first mail. The
+ * users matching a criteria are a subset of the intersection of the postings of the criteria trigrams, so only these
+ * candidates have to be verified. The next versions share the maps of this index, only the changed postings are kept
+ * apart until they are merged in new maps.
+ */
+public class UserSearchIndex {
+
+	/**
+	 * Length of an indexed fragment.
+	 */
+	public static final int GRAM = 3;
+
+	/**
+	 * Ratio between the square root of the size of the index and the amount of changes kept apart. The changes are
+	 * copied by each update and the merge copies the whole index, so this bound balances both costs.
+	 */
+	private static final int MERGE_RATIO = 8;
+
+	/**
+	 * User identifiers by trigram, shared with the next versions.
+	 */
+	private final Map<String, Set<String>> postings;
+
+	/**
+	 * Trigrams by user identifier, used to update the index, shared with the next versions.
+	 */
+	private final Map<String, Set<String>> grams;
+
+	/**
+	 * Postings changed since the last merge, replacing the shared ones. An empty posting is a removed trigram.
+	 */
+	private final Map<String, Set<String>> changedPostings;
+
+	/**
+	 * Trigrams of the users changed since the last merge, replacing the shared ones. An empty set is a removed user.
+	 */
+	private final Map<String, Set<String>> changedGrams;
+
+	/**
+	 * Build the index of the given users.
+	 *
+	 * @param users
+	 *            The users. Key is the normalized identifier.
+	 */
+	public UserSearchIndex(final Map<String, UserOrg> users) {
+		this(new HashMap<>(), new HashMap<>(users.size() * 4 / 3 + 1), Collections.emptyMap(),
+				Collections.emptyMap());
+		users.forEach((id, user) -> {
+			final Set<String> userGrams = toGrams(user);
+			grams.put(id, userGrams);
+			userGrams.forEach(g -> postings.computeIfAbsent(g, k -> new HashSet<>()).add(id));
+		});
+	}
+
+	private UserSearchIndex(final Map<String, Set<String>> postings, final Map<String, Set<String>> grams,
+			final Map<String, Set<String>> changedPostings, final Map<String, Set<String>> changedGrams) {
+		this.postings = postings;
+		this.grams = grams;
+		this.changedPostings = changedPostings;
+		this.changedGrams = changedGrams;
+	}
+
+	/**
+	 * Return the trigrams of the searchable fields of the given user.
+	 */
+	private static Set<String> toGrams(final UserOrg user) {
+		final Set<String> result = new HashSet<>();
+		addGrams(user.getFirstName(), result);
+		addGrams(user.getLastName(), result);
+		addGrams(user.getId(), result);
+		if (user.getMails() != null && !user.getMails().isEmpty()) {
+			addGrams(user.getMails().get(0), result);
+		}
+		return result;
+	}
+
+	private static void addGrams(final String value, final Set<String> grams) {
+		if (value != null) {
+			final String folded = fold(value);
+			for (int i = 0; i + GRAM <= folded.length(); i++) {
+				grams.add(folded.substring(i, i + GRAM));
+			}
+		}
+	}
+
+	/**
+	 * Fold the case of each character, the same way the case insensitive comparisons do.
+	 */
+	private static String fold(final String value) {
+		final char[] chars = value.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Return the identifiers of the users possibly matching the given criteria. Each returned user still has to be
+	 * verified, but the other users cannot match.
+	 *
+	 * @param criteria
+	 *            The criteria, searched ignoring the case.
+	 * @return The candidate user identifiers. <code>null</code> when the criteria is too short to use the index, and
+	 *         all users are candidates.
+	 */
+	public Set<String> find(final String criteria) {
+		final Set<String> criteriaGrams = new HashSet<>();
+		addGrams(criteria, criteriaGrams);
+		if (criteriaGrams.isEmpty()) {
+			return null;
+		}
+
+		// Intersect the postings, starting from the most selective one
+		final List<Set<String>> lists = new ArrayList<>(criteriaGrams.size());
+		for (final String gram : criteriaGrams) {
+			final Set<String> posting = getPosting(gram);
+			if (posting.isEmpty()) {
+				return Collections.emptySet();
+			}
+			lists.add(posting);
+		}
+		lists.sort(Comparator.comparingInt(Set::size));
+		final Set<String> result = new HashSet<>(lists.get(0));
+		for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+			result.retainAll(lists.get(i));
+		}
+		return result;
+	}
+
+	/**
+	 * Return the user identifiers of the given trigram.
+	 */
+	private Set<String> getPosting(final String gram) {
+		return get(changedPostings, postings, gram);
+	}
+
+	/**
+	 * Return the trigrams of the given user.
+	 */
+	private Set<String> getGrams(final String id) {
+		return get(changedGrams, grams, id);
+	}
+
+	private static Set<String> get(final Map<String, Set<String>> changed, final Map<String, Set<String>> shared,
+			final String key) {
+		final Set<String> result = changed.get(key);
+		return result == null ? shared.getOrDefault(key, Collections.emptySet()) : result;
+	}
+
+	/**
+	 * Return the index with the given added or updated user. Only the postings of the changed trigrams are copied,
+	 * this index is not modified.
+	 *
+	 * @param id
+	 *            The normalized identifier of the user.
+	 * @param user
+	 *            The added or updated user.
+	 * @return The new index.
+	 */
+	public UserSearchIndex with(final String id, final UserOrg user) {
+		return with(id, toGrams(user));
+	}
+
+	/**
+	 * Return the index without the given user. Only the postings of the changed trigrams are copied, this index is
+	 * not modified.
+	 *
+	 * @param id
+	 *            The normalized identifier of the user.
+	 * @return The new index.
+	 */
+	public UserSearchIndex without(final String id) {
+		return with(id, Collections.emptySet());
+	}
+
+	/**
+	 * Return the index where the given user has the given trigrams.
+	 */
+	private UserSearchIndex with(final String id, final Set<String> userGrams) {
+		final Set<String> oldGrams = getGrams(id);
+		final Map<String, Set<String>> newPostings = new HashMap<>(changedPostings);
+		final Map<String, Set<String>> newGrams = new HashMap<>(changedGrams);
+		oldGrams.stream().filter(g -> !userGrams.contains(g)).forEach(g -> {
+			final Set<String> posting = new HashSet<>(getPosting(g));
+			posting.remove(id);
+			newPostings.put(g, posting);
+		});
+		userGrams.stream().filter(g -> !oldGrams.contains(g)).forEach(g -> {
+			final Set<String> posting = new HashSet<>(getPosting(g));
+			posting.add(id);
+			newPostings.put(g, posting);
+		});
+		newGrams.put(id, userGrams);
+		if (newPostings.size() + newGrams.size() > Math.sqrt(postings.size() + grams.size()) * MERGE_RATIO) {
+			// Too many changes, merge them in new maps
+			return new UserSearchIndex(merge(postings, newPostings), merge(grams, newGrams), Collections.emptyMap(),
+					Collections.emptyMap());
+		}
+		return new UserSearchIndex(postings, grams, newPostings, newGrams);
+	}
+
+	private static Map<String, Set<String>> merge(final Map<String, Set<String>> shared,
+			final Map<String, Set<String>> changed) {
+		final Map<String, Set<String>> result = new HashMap<>(shared);
+		changed.forEach((k, v) -> {
+			if (v.isEmpty()) {
+				result.remove(k);
+			} else {
+				result.put(k, v);
+			}
+		});
+		return result;
+	}
+}
@@ -12,10 +12,17 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import javax.annotation.PreDestroy;
 import javax.cache.annotation.CacheKey;
 import javax.cache.annotation.CacheResult;
 import javax.transaction.Transactional;
@@ -30,12 +37,15 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.ligoj.app.api.Normalizer;
 import org.ligoj.app.api.ServicePlugin;
 import org.ligoj.app.api.SubscriptionStatusWithData;
 import org.ligoj.app.dao.CacheProjectGroupRepository;
 import org.ligoj.app.iam.Activity;
 import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.IUserRepository;
 import org.ligoj.app.iam.IamConfiguration;
 import org.ligoj.app.iam.IamConfigurationProvider;
 import org.ligoj.app.iam.IamProvider;
@@ -45,8 +55,12 @@ import org.ligoj.app.model.ContainerType;
 import org.ligoj.app.model.Node;
 import org.ligoj.app.model.Project;
 import org.ligoj.app.model.Subscription;
+import org.ligoj.app.plugin.id.ldap.dao.AuthenticationExecutor;
+import org.ligoj.app.plugin.id.ldap.dao.AuthenticationPool;
 import org.ligoj.app.plugin.id.ldap.dao.CompanyLdapRepository;
 import org.ligoj.app.plugin.id.ldap.dao.GroupLdapRepository;
+import org.ligoj.app.plugin.id.ldap.dao.MonitoredPooledContextSource;
+import org.ligoj.app.plugin.id.ldap.dao.ParallelFilter;
 import org.ligoj.app.plugin.id.ldap.dao.ProjectCustomerLdapRepository;
 import org.ligoj.app.plugin.id.ldap.dao.UserLdapRepository;
 import org.ligoj.app.plugin.id.model.ContainerScope;
@@ -67,8 +81,12 @@ import org.ligoj.bootstrap.core.SpringUtils;
 import org.ligoj.bootstrap.core.resource.BusinessException;
 import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.ldap.pool2.factory.PoolConfig;
+import org.springframework.ldap.pool2.validation.DefaultDirContextValidator;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -137,6 +155,12 @@ public class LdapPluginResource extends AbstractToolPluginResource
 	 */
 	public static final String PARAMETER_PEOPLE_DN = KEY + ":people-dn";
 
+	/**
+	 * Page size of the searches returning all entries, using the paged results control. When not set, the paged
+	 * results are not used.
+	 */
+	public static final String PARAMETER_PAGE_SIZE = KEY + ":page-size";
+
 	/**
 	 * LDAP schema attribute name of department.
 	 */
@@ -192,10 +216,166 @@ public class LdapPluginResource extends AbstractToolPluginResource
 	public static final String PARAMETER_CLEAR_PASSWORD = KEY + ":clear-password";
 
 	/**
-	 * Lock object used to synchronize the creation.
+	 * Flag enabling the incremental synchronization of the cache.
+	 */
+	public static final String PARAMETER_DELTA_SYNC = KEY + ":delta-sync";
+
+	/**
+	 * Interval in seconds between two full reloads of the cache when the incremental synchronization is enabled.
+	 */
+	public static final String PARAMETER_FULL_SYNC_INTERVAL = KEY + ":full-sync-interval";
+
+	/**
+	 * Flag enabling the LDAP change listener keeping the cache up to date.
+	 */
+	public static final String PARAMETER_CHANGE_LISTENER = KEY + ":change-listener";
+
+	/**
+	 * Flag serving the previous cached data while a reload is in progress.
+	 */
+	public static final String PARAMETER_RELOAD_STALE = KEY + ":reload-stale";
+
+	/**
+	 * Interval in seconds between two background refreshes of the cache.
+	 */
+	public static final String PARAMETER_REFRESH_INTERVAL = KEY + ":refresh-interval";
+
+	/**
+	 * Maximal random delay in seconds added to the background refresh interval.
+	 */
+	public static final String PARAMETER_REFRESH_JITTER = KEY + ":refresh-jitter";
+
+	/**
+	 * Amount of rows written in a single batch while resetting the database cache.
+	 */
+	public static final String PARAMETER_BATCH_SIZE = KEY + ":batch-size";
+
+	/**
+	 * Flag deferring the removal of the stale entries of the database cache after a reset.
+	 */
+	public static final String PARAMETER_DEFERRED_PURGE = KEY + ":deferred-purge";
+
+	/**
+	 * Minimal amount of entries of a chunk filtered in parallel. When zero or negative, the in-memory queries are
+	 * single-threaded.
+	 */
+	public static final String PARAMETER_PARALLEL_THRESHOLD = KEY + ":parallel-threshold";
+
+	/**
+	 * Amount of threads of the pool of the in-memory queries of a node. When zero or negative, the amount of
+	 * processors is used.
+	 */
+	public static final String PARAMETER_PARALLELISM = KEY + ":parallelism";
+
+	/**
+	 * Additional user attributes, comma separated, answered from the cache when searching the users by attribute.
+	 */
+	public static final String PARAMETER_INDEXED_ATTRIBUTES = KEY + ":indexed-attributes";
+
+	/**
+	 * Maximal amount of pooled connections. When zero or negative, the connections are not pooled.
+	 */
+	public static final String PARAMETER_POOL_MAX_TOTAL = KEY + ":pool-max-total";
+
+	/**
+	 * Maximal amount of idle pooled connections of each type. When zero or negative, the pool default is used.
+	 */
+	public static final String PARAMETER_POOL_MAX_IDLE = KEY + ":pool-max-idle";
+
+	/**
+	 * Minimal amount of idle pooled connections of each type.
+	 */
+	public static final String PARAMETER_POOL_MIN_IDLE = KEY + ":pool-min-idle";
+
+	/**
+	 * Maximal time in milliseconds to wait for a pooled connection. When zero or negative, there is no limit.
+	 */
+	public static final String PARAMETER_POOL_MAX_WAIT = KEY + ":pool-max-wait";
+
+	/**
+	 * When <code>true</code>, the pooled connections are validated before being borrowed.
+	 */
+	public static final String PARAMETER_POOL_TEST_ON_BORROW = KEY + ":pool-test-on-borrow";
+
+	/**
+	 * When <code>true</code>, the idle pooled connections are validated by the evictor.
+	 */
+	public static final String PARAMETER_POOL_TEST_WHILE_IDLE = KEY + ":pool-test-while-idle";
+
+	/**
+	 * Time in milliseconds between two runs of the evictor of idle pooled connections. When zero or negative, there is
+	 * no evictor.
+	 */
+	public static final String PARAMETER_POOL_EVICTION_INTERVAL = KEY + ":pool-eviction-interval";
+
+	/**
+	 * Minimal time in milliseconds a pooled connection is idle before being evicted. When zero or negative, the pool
+	 * default is used.
+	 */
+	public static final String PARAMETER_POOL_MIN_EVICTABLE_IDLE = KEY + ":pool-min-evictable-idle";
+
+	/**
+	 * Maximal amount of connections dedicated to the authentication. When zero or negative, each authentication opens a
+	 * new connection.
+	 */
+	public static final String PARAMETER_AUTH_POOL_MAX_TOTAL = KEY + ":auth-pool-max-total";
+
+	/**
+	 * Minimal amount of idle connections dedicated to the authentication.
+	 */
+	public static final String PARAMETER_AUTH_POOL_MIN_IDLE = KEY + ":auth-pool-min-idle";
+
+	/**
+	 * Maximal time in milliseconds to wait for a connection dedicated to the authentication. When zero or negative,
+	 * there is no limit.
+	 */
+	public static final String PARAMETER_AUTH_POOL_MAX_WAIT = KEY + ":auth-pool-max-wait";
+
+	/**
+	 * When <code>true</code>, the DN of the user to authenticate is resolved from the cached users.
+	 */
+	public static final String PARAMETER_AUTHENTICATE_FROM_CACHE = KEY + ":authenticate-from-cache";
+
+	/**
+	 * Maximal amount of concurrent authentications of this node, each one in a dedicated thread. When zero or negative,
+	 * the authentications are run by the calling thread.
+	 */
+	public static final String PARAMETER_AUTH_THREADS = KEY + ":auth-threads";
+
+	/**
+	 * Maximal amount of authentications waiting for a thread. Beyond, the authentication fails immediately.
+	 */
+	public static final String PARAMETER_AUTH_QUEUE = KEY + ":auth-queue";
+
+	/**
+	 * Maximal time in milliseconds of an authentication, including the time waiting for a thread. Also used as the
+	 * connect and read timeouts of the authentication connections, since a blocked socket read cannot be interrupted.
+	 * When zero or negative, there is no limit.
+	 */
+	public static final String PARAMETER_AUTH_TIMEOUT = KEY + ":auth-timeout";
+
+	/**
+	 * JNDI property of the maximal time in milliseconds to open a connection.
+	 */
+	private static final String JNDI_CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+
+	/**
+	 * JNDI property of the maximal time in milliseconds to wait for a response.
+	 */
+	private static final String JNDI_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+
+	/**
+	 * Lock object used to synchronize the allocation of the logins.
 	 */
 	private static final Object USER_LOCK = new Object();
 
+	/**
+	 * Allocated logins of the application users being created, by user repository of the node where they are
+	 * created. A login is reserved until its user is saved or fails to be saved, so the concurrent creations in the
+	 * same node do not allocate it again. Guarded by {@link #USER_LOCK}.
+	 */
+	private final Map<IUserRepository, Set<String>> reservedLogins = new HashMap<>();
+
 	@Autowired
 	protected ProjectCustomerLdapRepository projectCustomerLdapRepository;
 
@@ -215,7 +395,7 @@ public class LdapPluginResource extends AbstractToolPluginResource
 	private CacheProjectGroupRepository cacheProjectGroupRepository;
 
 	@Autowired
-	private IamProvider[] iamProvider;
+	protected IamProvider[] iamProvider;
 
 	@Autowired
 	protected ServicePluginLocator servicePluginLocator;
@@ -229,30 +409,158 @@ public class LdapPluginResource extends AbstractToolPluginResource
 	private Map<String, IamConfiguration> nodeConfigurations = new HashMap<>();
 
 	/**
-	 * Build a user LDAP repository from the given node.
-	 * 
-	 * @param node
-	 *            The node, also used as cache key.
-	 * @return The {@link UserLdapRepository} instance. Cache is involved.
+	 * Parameters of the available node configurations. Key is the node identifier.
 	 */
-	private UserLdapRepository getUserLdapRepository(@CacheKey final String node) {
-		log.info("Build ldap template for node {}", node);
-		final Map<String, String> parameters = pvResource.getNodeParameters(node);
+	private final Map<String, Map<String, String>> nodeParameters = new HashMap<>();
+
+	/**
+	 * Executor releasing the replaced node configurations, after their in-flight operations.
+	 */
+	private final ExecutorService closeExecutor = Executors.newSingleThreadExecutor(r -> {
+		final Thread thread = new Thread(r, "ldap-close");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Return a new context source connecting to the directory of the given node parameters.
+	 */
+	private LdapContextSource newContextSource(final Map<String, String> parameters) {
 		final LdapContextSource contextSource = new LdapContextSource();
 		contextSource.setReferral(parameters.get(PARAMETER_REFERRAL));
 		contextSource.setPassword(parameters.get(PARAMETER_PASSWORD));
 		contextSource.setUrl(parameters.get(PARAMETER_URL));
 		contextSource.setUserDn(parameters.get(PARAMETER_USER));
 		contextSource.setBase(parameters.get(PARAMETER_BASE_BN));
-		contextSource.afterPropertiesSet();
+		return contextSource;
+	}
+
+	/**
+	 * Return a new template using the given context source.
+	 */
+	private LdapTemplate newLdapTemplate(final ContextSource contextSource) {
 		final LdapTemplate template = new LdapTemplate();
 		template.setContextSource(contextSource);
 		template.setIgnorePartialResultException(true);
+		return template;
+	}
+
+	/**
+	 * Return a new pool of connections of the given context source, configured from the given node parameters.
+	 * 
+	 * @param contextSource
+	 *            The context source creating the connections.
+	 * @param parameters
+	 *            The node parameters.
+	 * @return The pooled context source.
+	 */
+	public MonitoredPooledContextSource newPooledContextSource(final ContextSource contextSource,
+			final Map<String, String> parameters) {
+		final PoolConfig config = new PoolConfig();
+		final int maxTotal = NumberUtils.toInt(parameters.get(PARAMETER_POOL_MAX_TOTAL));
+		config.setMaxTotal(maxTotal);
+		config.setMaxTotalPerKey(maxTotal);
+		final int maxIdle = NumberUtils.toInt(parameters.get(PARAMETER_POOL_MAX_IDLE));
+		if (maxIdle > 0) {
+			config.setMaxIdlePerKey(maxIdle);
+		}
+		config.setMinIdlePerKey(Math.max(0, NumberUtils.toInt(parameters.get(PARAMETER_POOL_MIN_IDLE))));
+		final int maxWait = NumberUtils.toInt(parameters.get(PARAMETER_POOL_MAX_WAIT));
+		config.setMaxWaitMillis(maxWait > 0 ? maxWait : -1);
+		config.setTestOnBorrow(Boolean.parseBoolean(parameters.get(PARAMETER_POOL_TEST_ON_BORROW)));
+		config.setTestWhileIdle(Boolean.parseBoolean(parameters.get(PARAMETER_POOL_TEST_WHILE_IDLE)));
+		config.setTimeBetweenEvictionRunsMillis(NumberUtils.toInt(parameters.get(PARAMETER_POOL_EVICTION_INTERVAL)));
+		final int minEvictableIdle = NumberUtils.toInt(parameters.get(PARAMETER_POOL_MIN_EVICTABLE_IDLE));
+		if (minEvictableIdle > 0) {
+			config.setMinEvictableIdleTimeMillis(minEvictableIdle);
+		}
+		final MonitoredPooledContextSource pool = new MonitoredPooledContextSource(config);
+		pool.setContextSource(contextSource);
+		pool.setDirContextValidator(new DefaultDirContextValidator());
+		return pool;
+	}
+
+	/**
+	 * Return a new pool of connections dedicated to the authentication, configured from the given node parameters.
+	 * These connections are sized independently of the connections used by the searches and the updates.
+	 * 
+	 * @param parameters
+	 *            The node parameters.
+	 * @return The authentication pool.
+	 */
+	public AuthenticationPool newAuthenticationPool(final Map<String, String> parameters) {
+		final GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+		final int maxTotal = NumberUtils.toInt(parameters.get(PARAMETER_AUTH_POOL_MAX_TOTAL));
+		config.setMaxTotal(maxTotal);
+		config.setMaxIdle(maxTotal);
+		config.setMinIdle(Math.max(0, NumberUtils.toInt(parameters.get(PARAMETER_AUTH_POOL_MIN_IDLE))));
+		final int maxWait = NumberUtils.toInt(parameters.get(PARAMETER_AUTH_POOL_MAX_WAIT));
+		config.setMaxWaitMillis(maxWait > 0 ? maxWait : -1);
+
+		// The connections are rebound, they are not shared with the JNDI pool
+		return new AuthenticationPool(newAuthenticationContextSource(parameters), config);
+	}
+
+	/**
+	 * Return a new context source dedicated to the authentication, configured from the given node parameters. Its
+	 * connections are not shared with the JNDI pool, and they time out with the authentications.
+	 * 
+	 * @param parameters
+	 *            The node parameters.
+	 * @return The authentication context source.
+	 */
+	public LdapContextSource newAuthenticationContextSource(final Map<String, String> parameters) {
+		final LdapContextSource contextSource = newContextSource(parameters);
+		contextSource.setPooled(false);
+		final int timeout = NumberUtils.toInt(parameters.get(PARAMETER_AUTH_TIMEOUT));
+		if (timeout > 0) {
+			// The executor cannot interrupt a blocked socket read, so the connections give up at the same time
+			final Map<String, Object> environment = new HashMap<>();
+			environment.put(JNDI_CONNECT_TIMEOUT, String.valueOf(timeout));
+			environment.put(JNDI_READ_TIMEOUT, String.valueOf(timeout));
+			contextSource.setBaseEnvironmentProperties(environment);
+		}
+		contextSource.afterPropertiesSet();
+		return contextSource;
+	}
+
+	/**
+	 * Build a user LDAP repository from the given node.
+	 * 
+	 * @param node
+	 *            The node, also used as cache key.
+	 * @return The {@link UserLdapRepository} instance. Cache is involved.
+	 */
+	private UserLdapRepository getUserLdapRepository(@CacheKey final String node) {
+		log.info("Build ldap template for node {}", node);
+		final Map<String, String> parameters = pvResource.getNodeParameters(node);
+		final LdapContextSource contextSource = newContextSource(parameters);
+		final int poolMaxTotal = NumberUtils.toInt(parameters.get(PARAMETER_POOL_MAX_TOTAL));
+		if (poolMaxTotal > 0) {
+			// The connections are pooled by the dedicated pool, not by JNDI
+			contextSource.setPooled(false);
+		}
+		contextSource.afterPropertiesSet();
 
 		// A new repository instance
 		final UserLdapRepository repository = new UserLdapRepository();
-		repository.setTemplate(template);
+		repository.setTemplate(newLdapTemplate(poolMaxTotal > 0 ? newPooledContextSource(contextSource, parameters)
+				: contextSource));
+		repository.setDirectTemplate(newLdapTemplate(contextSource));
+		if (NumberUtils.toInt(parameters.get(PARAMETER_AUTH_TIMEOUT)) > 0) {
+			repository.setAuthenticationTemplate(newLdapTemplate(newAuthenticationContextSource(parameters)));
+		}
+		if (NumberUtils.toInt(parameters.get(PARAMETER_AUTH_POOL_MAX_TOTAL)) > 0) {
+			repository.setAuthenticationPool(newAuthenticationPool(parameters));
+		}
+		final int authThreads = NumberUtils.toInt(parameters.get(PARAMETER_AUTH_THREADS));
+		if (authThreads > 0) {
+			repository.setAuthenticationExecutor(new AuthenticationExecutor("ldap-auth-" + node, authThreads,
+					NumberUtils.toInt(parameters.get(PARAMETER_AUTH_QUEUE)),
+					NumberUtils.toInt(parameters.get(PARAMETER_AUTH_TIMEOUT))));
+		}
 		repository.setPeopleBaseDn(StringUtils.trimToEmpty(parameters.get(PARAMETER_PEOPLE_DN)));
+		repository.setPageSize(NumberUtils.toInt(parameters.get(PARAMETER_PAGE_SIZE)));
 		repository.setPeopleInternalBaseDn(parameters.get(PARAMETER_PEOPLE_INTERNAL_DN));
 		repository.setQuarantineBaseDn(StringUtils.trimToEmpty(parameters.get(PARAMETER_QUARANTINE_DN)));
 		repository.setDepartmentAttribute(parameters.get(PARAMETER_DEPARTMENT_ATTRIBUTE));
@@ -263,6 +571,22 @@ public class LdapPluginResource extends AbstractToolPluginResource
 		repository.setPeopleClass(parameters.get(PARAMETER_PEOPLE_CLASS));
 		repository.setCompanyPattern(StringUtils.trimToEmpty(parameters.get(PARAMETER_COMPANY_PATTERN)));
 		repository.setClearPassword(Boolean.parseBoolean(parameters.get(PARAMETER_CLEAR_PASSWORD)));
+		repository.setDeltaSync(Boolean.parseBoolean(parameters.get(PARAMETER_DELTA_SYNC)));
+		repository.setFullSyncInterval(NumberUtils.toInt(parameters.get(PARAMETER_FULL_SYNC_INTERVAL)));
+		repository.setChangeListener(Boolean.parseBoolean(parameters.get(PARAMETER_CHANGE_LISTENER)));
+		repository.setReloadStale(Boolean.parseBoolean(parameters.get(PARAMETER_RELOAD_STALE)));
+		repository.setRefreshInterval(NumberUtils.toInt(parameters.get(PARAMETER_REFRESH_INTERVAL)));
+		repository.setRefreshJitter(NumberUtils.toInt(parameters.get(PARAMETER_REFRESH_JITTER)));
+		repository.setBatchSize(NumberUtils.toInt(parameters.get(PARAMETER_BATCH_SIZE)));
+		repository.setDeferredPurge(Boolean.parseBoolean(parameters.get(PARAMETER_DEFERRED_PURGE)));
+		final int parallelThreshold = NumberUtils.toInt(parameters.get(PARAMETER_PARALLEL_THRESHOLD));
+		repository.setParallelThreshold(parallelThreshold);
+		if (parallelThreshold > 0) {
+			final int parallelism = NumberUtils.toInt(parameters.get(PARAMETER_PARALLELISM));
+			repository.setParallelPool(ParallelFilter.newPool(parallelism, "ldap-query-" + node));
+		}
+		repository.setIndexedAttributes(parameters.get(PARAMETER_INDEXED_ATTRIBUTES));
+		repository.setAuthenticateFromCache(Boolean.parseBoolean(parameters.get(PARAMETER_AUTHENTICATE_FROM_CACHE)));
 
 		// Complete the bean
 		SpringUtils.getApplicationContext().getAutowireCapableBeanFactory().autowireBean(repository);
@@ -286,6 +610,8 @@ public class LdapPluginResource extends AbstractToolPluginResource
 		final GroupLdapRepository repository = new GroupLdapRepository();
 		repository.setTemplate(template);
 		repository.setGroupsBaseDn(StringUtils.trimToEmpty(parameters.get(PARAMETER_GROUPS_DN)));
+		repository.setPageSize(NumberUtils.toInt(parameters.get(PARAMETER_PAGE_SIZE)));
+		repository.setParallelThreshold(NumberUtils.toInt(parameters.get(PARAMETER_PARALLEL_THRESHOLD)));
 
 		// Complete the bean
 		SpringUtils.getApplicationContext().getAutowireCapableBeanFactory().autowireBean(repository);
@@ -309,6 +635,8 @@ public class LdapPluginResource extends AbstractToolPluginResource
 		repository.setTemplate(template);
 		repository.setCompanyBaseDn(parameters.get(PARAMETER_COMPANIES_DN));
 		repository.setQuarantineBaseDn(parameters.get(PARAMETER_QUARANTINE_DN));
+		repository.setPageSize(NumberUtils.toInt(parameters.get(PARAMETER_PAGE_SIZE)));
+		repository.setParallelThreshold(NumberUtils.toInt(parameters.get(PARAMETER_PARALLEL_THRESHOLD)));
 
 		// Complete the bean
 		SpringUtils.getApplicationContext().getAutowireCapableBeanFactory().autowireBean(repository);
@@ -741,9 +1069,23 @@ public class LdapPluginResource extends AbstractToolPluginResource
 		// Non empty group, return amount of members
 		final SubscriptionStatusWithData result = new SubscriptionStatusWithData(true);
 		result.put("members", groupLdap.getMembers().size());
+
 		return result;
 	}
 
+	/**
+	 * Return the usage of the connection pools and of the authentication threads of the given node.
+	 * 
+	 * @param node
+	 *            The node identifier.
+	 * @return The metrics by name. Only the metrics of the enabled pools are returned.
+	 */
+	@GET
+	@Path("pool/{node}")
+	public Map<String, Number> getPoolStatus(@PathParam("node") final String node) {
+		return ((UserLdapRepository) self.getConfiguration(node).getUserRepository()).getPoolStatus();
+	}
+
 	@Override
 	public IamConfiguration getConfiguration(final String node) {
 		self.ensureCachedConfiguration(node);
@@ -757,7 +1099,14 @@ public class LdapPluginResource extends AbstractToolPluginResource
 	}
 
 	private IamConfiguration refreshConfiguration(final String node) {
-		return nodeConfigurations.compute(node, (n, m) -> {
+		final Map<String, String> parameters = pvResource.getNodeParameters(node);
+		final IamConfiguration[] previous = new IamConfiguration[1];
+		final IamConfiguration result = nodeConfigurations.compute(node, (n, m) -> {
+			if (m != null && parameters.equals(nodeParameters.get(node))) {
+				// Unchanged configuration, the connections and the listener are kept
+				return m;
+			}
+			nodeParameters.put(node, parameters);
 			final IamConfiguration configuration = new IamConfiguration();
 			final UserLdapRepository repository = getUserLdapRepository(node);
 			configuration.setUserRepository(repository);
@@ -765,8 +1114,51 @@ public class LdapPluginResource extends AbstractToolPluginResource
 			configuration.setGroupRepository(newGroupLdapRepository(node, repository.getTemplate()));
 			repository.setCompanyRepository((CompanyLdapRepository) configuration.getCompanyRepository());
 			repository.setGroupLdapRepository((GroupLdapRepository) configuration.getGroupRepository());
+
+			// The pool of the in-memory queries is owned by the user repository
+			((CompanyLdapRepository) configuration.getCompanyRepository()).setParallelPool(repository.getParallelPool());
+			((GroupLdapRepository) configuration.getGroupRepository()).setParallelPool(repository.getParallelPool());
+			previous[0] = m;
 			return configuration;
 		});
+
+		if (previous[0] == result) {
+			return result;
+		}
+
+		// Listen the changes once the new configuration is used, from the last synchronization of the previous one
+		final UserLdapRepository repository = (UserLdapRepository) result.getUserRepository();
+		final UserLdapRepository previousRepository = Optional.ofNullable(previous[0])
+				.map(c -> (UserLdapRepository) c.getUserRepository()).orElse(null);
+		if (repository.isChangeListener()) {
+			repository.listen(previousRepository);
+		}
+
+		// Release the previous configuration in background, after its in-flight operations
+		Optional.ofNullable(previousRepository).ifPresent(this::close);
+		return result;
+	}
+
+	/**
+	 * Release the given repository in background, or immediately when this resource is being destroyed.
+	 */
+	private void close(final UserLdapRepository repository) {
+		try {
+			closeExecutor.execute(repository::close);
+		} catch (final RejectedExecutionException e) {
+			log.info("Close of the replaced LDAP repository during the shutdown: {}", e.getMessage());
+			repository.close();
+		}
+	}
+
+	/**
+	 * Release the node configurations, then stop the executor releasing them. The pending releases are still
+	 * performed.
+	 */
+	@PreDestroy
+	public void shutdown() {
+		nodeConfigurations.values().forEach(c -> close((UserLdapRepository) c.getUserRepository()));
+		closeExecutor.shutdown();
 	}
 
 	/**
@@ -778,12 +1170,21 @@ public class LdapPluginResource extends AbstractToolPluginResource
 		return (GroupLdapRepository) iamProvider[0].getConfiguration().getGroupRepository();
 	}
 
+	/**
+	 * User repository provider.
+	 * 
+	 * @return User repository provider.
+	 */
+	private IUserRepository getUser() {
+		return iamProvider[0].getConfiguration().getUserRepository();
+	}
+
 	@Override
 	public Authentication authenticate(final Authentication authentication, final String node, final boolean primary) {
 		final UserLdapRepository repository = (UserLdapRepository) self.getConfiguration(node).getUserRepository();
 
 		// Authenticate the user
-		if (repository.authenticate(authentication.getName(), (String) authentication.getCredentials())) {
+		if (authenticate(repository, authentication.getName(), (String) authentication.getCredentials())) {
 			// Return a new authentication based on resolved application user
 			return primary ? authentication
 					: new UsernamePasswordAuthenticationToken(toApplicationUser(repository, authentication), null);
@@ -791,6 +1192,35 @@ public class LdapPluginResource extends AbstractToolPluginResource
 		throw new BadCredentialsException("");
 	}
 
+	/**
+	 * Check the credentials with the executor of the node, if any.
+	 * 
+	 * @param repository
+	 *            Repository used to authenticate the user.
+	 * @param name
+	 *            The user name.
+	 * @param password
+	 *            The user password.
+	 * @return <code>true</code> when the credentials are valid.
+	 */
+	private boolean authenticate(final UserLdapRepository repository, final String name, final String password) {
+		final AuthenticationExecutor executor = repository.getAuthenticationExecutor();
+		if (executor == null) {
+			return repository.authenticate(name, password);
+		}
+		try {
+			return executor.execute(() -> repository.authenticate(name, password));
+		} catch (final RejectedExecutionException e) {
+			// Fail fast, the directory is too slow to accept more attempts
+			log.warn("Authentication of {} rejected, {} running and {} queued attempts", name, executor.getInFlight(),
+					executor.getQueued());
+			throw new AuthenticationServiceException("ldap-busy", e);
+		} catch (final TimeoutException e) {
+			log.warn("Authentication of {} timed out after {}ms", name, executor.getTimeout());
+			throw new AuthenticationServiceException("ldap-timeout", e);
+		}
+	}
+
 	/**
 	 * Check the authentication, then create or get the application user matching to the given account.
 	 * 
@@ -853,41 +1283,69 @@ public class LdapPluginResource extends AbstractToolPluginResource
 	 * @return The new application user.
 	 */
 	protected String newApplicationUser(final UserOrg account) {
+		// Copy the data from the authenticated account to the application
+		// account
+		final UserOrgEditionVo userLdapEdition = new UserOrgEditionVo();
+		account.copy(userLdapEdition);
+		userLdapEdition.setGroups(Collections.emptyList());
+		userLdapEdition.setMail(account.getMails().get(0));
+
+		// Assign and reserve a free login in the primary repository
+		final IUserRepository repository = getUser();
+		final String login;
 		synchronized (USER_LOCK) {
-
-			// Copy the data from the authenticated account to the application
-			// account
-			final UserOrgEditionVo userLdapEdition = new UserOrgEditionVo();
-			account.copy(userLdapEdition);
-			userLdapEdition.setGroups(Collections.emptyList());
-			userLdapEdition.setMail(account.getMails().get(0));
-
-			// Assign a free login
-			userLdapEdition.setName(nextFreeLogin(toLogin(account)));
+			login = nextFreeLogin(repository, toLogin(account));
+			reservedLogins.computeIfAbsent(repository, r -> new HashSet<>()).add(login);
+		}
+		try {
+			userLdapEdition.setName(login);
 
 			// This user can be created in the primary repository
 			userResource.saveOrUpdate(userLdapEdition);
-
 			return userLdapEdition.getId();
+		} finally {
+			// The saved login is now found by the next allocations, the failed one is free again
+			synchronized (USER_LOCK) {
+				final Set<String> reserved = reservedLogins.get(repository);
+				reserved.remove(login);
+				if (reserved.isEmpty()) {
+					reservedLogins.remove(repository);
+				}
+			}
 		}
 	}
 
 	/**
-	 * Find a free application login from a base login. Primary repository is checked to reclaim a free login.
+	 * Find a free application login from a base login. Primary repository is checked to reclaim a free login. When
+	 * the primary repository is a LDAP one, the used logins are fetched with a single search. Must be called while
+	 * holding {@link #USER_LOCK}.
 	 * 
 	 * @param login
 	 *            The base login name.
 	 * @return a free login inside the primary repository.
 	 */
 	protected String nextFreeLogin(final String login) {
+		return nextFreeLogin(getUser(), login);
+	}
+
+	/**
+	 * Find a free application login from a base login in the given repository, excluding the logins reserved in it.
+	 * Must be called while holding {@link #USER_LOCK}.
+	 */
+	private String nextFreeLogin(final IUserRepository repository, final String login) {
+		final Set<String> reserved = reservedLogins.getOrDefault(repository, Collections.emptySet());
+		final Predicate<String> used;
+		if (repository instanceof UserLdapRepository) {
+			final Set<String> logins = ((UserLdapRepository) repository).findAllIdsStartingWithNoCache(login);
+			used = l -> reserved.contains(l) || logins.contains(l);
+		} else {
+			used = l -> reserved.contains(l) || userResource.findByIdNoCache(l) != null;
+		}
 		int suffix = 0;
-		UserOrg userLdap;
-		String nextLogin;
-		do {
-			nextLogin = login + (suffix == 0 ? "" : suffix);
-			userLdap = userResource.findByIdNoCache(nextLogin);
-			suffix++;
-		} while (userLdap != null);
+		String nextLogin = login;
+		while (used.test(nextLogin)) {
+			nextLogin = login + ++suffix;
+		}
 
 		// No user found for this login
 		return nextLogin;
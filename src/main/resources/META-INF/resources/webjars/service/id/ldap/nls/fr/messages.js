@@ -2,6 +2,7 @@
  * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
  */
 define({
+	'group-cycle': 'Le groupe {{group}} ne peut pas être un sous-groupe de {{parent}}, cela créerait un cycle dans les groupes imbriqués',
 	'service:id:ldap:base-dn': 'Base DN',
 	'service:id:ldap:companies-dn': 'DN des sociétés',
 	'service:id:ldap:company-pattern': 'Pattern de capture de l\'identifiant de société dans un DN',
@@ -13,6 +14,7 @@ define({
 	'service:id:ldap:password': 'Mot de passe de connexion',
 	'service:id:ldap:people-class': 'Class des personnes',
 	'service:id:ldap:people-dn': 'DN des personnes',
+	'service:id:ldap:page-size': 'Taille des pages de recherche',
 	'service:id:ldap:people-internal-dn': 'People internal DN',
 	'service:id:ldap:quarantine-dn': 'DN de quarantaine',
 	'service:id:ldap:referral': 'Mode referral',
@@ -20,5 +22,31 @@ define({
 	'service:id:ldap:url': 'URL de connexion',
 	'service:id:ldap:user-dn': 'Utilisateur de connexion',
 	'service:id:uid-pattern': 'Pattern de capture de l\'identifiant d\'utilisateur dans un DN',
-	'service:id:ldap:clear-password': 'Mot de passe non-crypté'
+	'service:id:ldap:clear-password': 'Mot de passe non-crypté',
+	'service:id:ldap:delta-sync': 'Synchronisation incrémentale',
+	'service:id:ldap:full-sync-interval': 'Intervalle de synchronisation complète (secondes)',
+	'service:id:ldap:change-listener': 'Écoute des modifications LDAP',
+	'service:id:ldap:reload-stale': 'Servir les données précédentes pendant un rechargement',
+	'service:id:ldap:refresh-interval': 'Intervalle de rafraîchissement en tâche de fond (secondes)',
+	'service:id:ldap:refresh-jitter': 'Variation aléatoire du rafraîchissement (secondes)',
+	'service:id:ldap:batch-size': 'Taille des lots d\'écriture du cache',
+	'service:id:ldap:deferred-purge': 'Purge différée du cache en base',
+	'service:id:ldap:parallel-threshold': 'Taille minimale d\'un lot des recherches en mémoire parallèles, 0 pour désactiver',
+	'service:id:ldap:parallelism': 'Nombre de threads des recherches en mémoire du noeud, 0 pour le nombre de processeurs',
+	'service:id:ldap:indexed-attributes': 'Attributs utilisateur indexés supplémentaires, séparés par des virgules',
+	'service:id:ldap:pool-max-total': 'Nombre maximal de connexions du pool, 0 pour désactiver le pool',
+	'service:id:ldap:pool-max-idle': 'Nombre maximal de connexions inactives du pool',
+	'service:id:ldap:pool-min-idle': 'Nombre minimal de connexions inactives du pool',
+	'service:id:ldap:pool-max-wait': 'Attente maximale d\'une connexion du pool (ms), 0 pour aucune limite',
+	'service:id:ldap:pool-test-on-borrow': 'Valider les connexions du pool avant utilisation',
+	'service:id:ldap:pool-test-while-idle': 'Valider les connexions inactives du pool',
+	'service:id:ldap:pool-eviction-interval': 'Intervalle entre les évictions des connexions inactives du pool (ms), 0 pour désactiver',
+	'service:id:ldap:pool-min-evictable-idle': 'Durée d\'inactivité minimale avant l\'éviction d\'une connexion du pool (ms)',
+	'service:id:ldap:auth-pool-max-total': 'Nombre maximal de connexions dédiées à l\'authentification, 0 pour ouvrir une connexion à chaque authentification',
+	'service:id:ldap:auth-pool-min-idle': 'Nombre minimal de connexions inactives dédiées à l\'authentification',
+	'service:id:ldap:auth-pool-max-wait': 'Durée maximale d\'attente d\'une connexion dédiée à l\'authentification (ms), 0 pour aucune limite',
+	'service:id:ldap:authenticate-from-cache': 'Résoudre le DN de l\'utilisateur à authentifier depuis le cache',
+	'service:id:ldap:auth-threads': 'Nombre maximal d\'authentifications simultanées, chacune dans un thread dédié, 0 pour utiliser le thread appelant',
+	'service:id:ldap:auth-queue': 'Nombre maximal d\'authentifications en attente d\'un thread, au-delà l\'authentification échoue immédiatement',
+	'service:id:ldap:auth-timeout': 'Durée maximale d\'une authentification (ms), incluant l\'attente d\'un thread, 0 pour aucune limite'
 });
@@ -3,6 +3,7 @@
  */
 define({
 	root: {
+		'group-cycle': 'The group {{group}} cannot be a sub-group of {{parent}}, it would create a cycle in the nested groups',
 		'service:id:ldap:base-dn': 'Base DN',
 		'service:id:ldap:companies-dn': 'Companies DN',
 		'service:id:ldap:company-pattern': 'Company pattern capture id from DN',
@@ -14,6 +15,7 @@ define({
 		'service:id:ldap:password': 'Connection password',
 		'service:id:ldap:people-class': 'People class',
 		'service:id:ldap:people-dn': 'People DN',
+		'service:id:ldap:page-size': 'Page size of the searches',
 		'service:id:ldap:people-internal-dn': 'People internal DN',
 		'service:id:ldap:quarantine-dn': 'Quarantine DN',
 		'service:id:ldap:referral': 'Referral mode',
@@ -21,7 +23,33 @@ define({
 		'service:id:ldap:url': 'Connection URL',
 		'service:id:ldap:user-dn': 'Connection user',
 		'service:id:uid-pattern': 'User pattern capture id from DN',
-		'service:id:ldap:clear-password': 'Clear password'
+		'service:id:ldap:clear-password': 'Clear password',
+		'service:id:ldap:delta-sync': 'Incremental synchronization',
+		'service:id:ldap:full-sync-interval': 'Full synchronization interval (seconds)',
+		'service:id:ldap:change-listener': 'Listen LDAP changes',
+		'service:id:ldap:reload-stale': 'Serve the previous data during a reload',
+		'service:id:ldap:refresh-interval': 'Background refresh interval (seconds)',
+		'service:id:ldap:refresh-jitter': 'Background refresh jitter (seconds)',
+		'service:id:ldap:batch-size': 'Database cache batch size',
+		'service:id:ldap:deferred-purge': 'Deferred purge of the database cache',
+		'service:id:ldap:parallel-threshold': 'Minimal chunk size of the parallel in-memory queries, 0 to disable',
+		'service:id:ldap:parallelism': 'Threads of the in-memory queries of the node, 0 for the amount of processors',
+		'service:id:ldap:indexed-attributes': 'Additional indexed user attributes, comma separated',
+		'service:id:ldap:pool-max-total': 'Maximal pooled connections, 0 to disable the pool',
+		'service:id:ldap:pool-max-idle': 'Maximal idle pooled connections',
+		'service:id:ldap:pool-min-idle': 'Minimal idle pooled connections',
+		'service:id:ldap:pool-max-wait': 'Maximal wait for a pooled connection (ms), 0 for no limit',
+		'service:id:ldap:pool-test-on-borrow': 'Validate the pooled connections before use',
+		'service:id:ldap:pool-test-while-idle': 'Validate the idle pooled connections',
+		'service:id:ldap:pool-eviction-interval': 'Interval between the evictions of idle pooled connections (ms), 0 to disable',
+		'service:id:ldap:pool-min-evictable-idle': 'Minimal idle time before the eviction of a pooled connection (ms)',
+		'service:id:ldap:auth-pool-max-total': 'Maximal amount of connections dedicated to the authentication, 0 to open a connection for each authentication',
+		'service:id:ldap:auth-pool-min-idle': 'Minimal amount of idle connections dedicated to the authentication',
+		'service:id:ldap:auth-pool-max-wait': 'Maximal time to wait for a connection dedicated to the authentication (ms), 0 for no limit',
+		'service:id:ldap:authenticate-from-cache': 'Resolve the DN of the user to authenticate from the cache',
+		'service:id:ldap:auth-threads': 'Maximal amount of concurrent authentications, each one in a dedicated thread, 0 to use the calling thread',
+		'service:id:ldap:auth-queue': 'Maximal amount of authentications waiting for a thread, beyond the authentication fails immediately',
+		'service:id:ldap:auth-timeout': 'Maximal time of an authentication (ms), including the time waiting for a thread, 0 for no limit'
 	},
 	fr: true
 });
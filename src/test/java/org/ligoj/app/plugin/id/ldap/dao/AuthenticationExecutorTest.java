@@ -0,0 +1,118 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class of {@link AuthenticationExecutor}
+ */
+public class AuthenticationExecutorTest {
+
+	private AuthenticationExecutor executor;
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@AfterEach
+	public void close() {
+		release.countDown();
+		executor.close();
+	}
+
+	@Test
+	public void execute() throws TimeoutException {
+		executor = new AuthenticationExecutor("test", 1, 0, 0);
+		Assertions.assertTrue(executor.execute(() -> true));
+		Assertions.assertEquals(0, executor.getInFlight());
+		Assertions.assertEquals(0, executor.getQueued());
+		Assertions.assertEquals(0, executor.getTimedOut());
+		Assertions.assertEquals(0, executor.getRejected());
+	}
+
+	@Test
+	public void executeError() {
+		executor = new AuthenticationExecutor("test", 1, 0, 1000);
+		Assertions.assertEquals("error", Assertions.assertThrows(IllegalArgumentException.class, () -> {
+			executor.execute(() -> {
+				throw new IllegalArgumentException("error");
+			});
+		}).getMessage());
+		Assertions.assertThrows(IllegalStateException.class, () -> {
+			executor.execute(() -> {
+				throw new IOException();
+			});
+		});
+	}
+
+	@Test
+	public void executeTimeout() {
+		executor = new AuthenticationExecutor("test", 1, 0, 50);
+		Assertions.assertThrows(TimeoutException.class, () -> executor.execute(this::block));
+		Assertions.assertEquals(1, executor.getTimedOut());
+	}
+
+	@Test
+	public void executeRejected() throws InterruptedException {
+		executor = new AuthenticationExecutor("test", 1, 1, 0);
+		final CountDownLatch started = new CountDownLatch(1);
+		newAttempt(() -> {
+			started.countDown();
+			return block();
+		});
+		started.await();
+		newAttempt(this::block);
+		while (executor.getQueued() == 0) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(1, executor.getInFlight());
+
+		// The thread is busy and the queue is full
+		Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(this::block));
+		Assertions.assertEquals(1, executor.getRejected());
+	}
+
+	@Test
+	public void closeRunning() throws InterruptedException {
+		executor = new AuthenticationExecutor("test", 1, 0, 0);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		newAttempt(() -> {
+			started.countDown();
+			Thread.sleep(100);
+			done.countDown();
+			return true;
+		});
+		started.await();
+
+		// The running attempt is completed before the threads are released
+		executor.close(10000);
+		Assertions.assertEquals(0, done.getCount());
+		Assertions.assertThrows(RejectedExecutionException.class, () -> executor.execute(() -> true));
+	}
+
+	private void newAttempt(final Callable<Boolean> task) {
+		final Thread thread = new Thread(() -> {
+			try {
+				executor.execute(task);
+			} catch (final Exception e) {
+				// Ignore the released attempts
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private boolean block() throws InterruptedException {
+		release.await();
+		return true;
+	}
+}
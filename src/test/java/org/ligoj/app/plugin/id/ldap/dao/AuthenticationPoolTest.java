@@ -0,0 +1,94 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import javax.naming.AuthenticationException;
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.ldap.core.ContextSource;
+
+/**
+ * Test class of {@link AuthenticationPool}
+ */
+public class AuthenticationPoolTest {
+
+	private ContextSource contextSource;
+
+	private LdapContext context;
+
+	private AuthenticationPool pool;
+
+	@BeforeEach
+	public void init() {
+		contextSource = Mockito.mock(ContextSource.class);
+		context = Mockito.mock(LdapContext.class);
+		Mockito.when(contextSource.getReadOnlyContext()).thenReturn(context);
+		final GenericObjectPoolConfig config = new GenericObjectPoolConfig();
+		config.setMaxTotal(2);
+		pool = new AuthenticationPool(contextSource, config);
+	}
+
+	@Test
+	public void authenticate() throws Exception {
+		Assertions.assertTrue(pool.authenticate("uid=jdoe", "secret"));
+		Assertions.assertTrue(pool.authenticate("uid=jdoe", "secret"));
+
+		// The same connection is rebound, and the password is not kept
+		Mockito.verify(contextSource).getReadOnlyContext();
+		Mockito.verify(context, Mockito.times(2)).reconnect(null);
+		Mockito.verify(context, Mockito.times(2)).addToEnvironment(Context.SECURITY_PRINCIPAL, "uid=jdoe");
+		Mockito.verify(context, Mockito.times(2)).removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+		Assertions.assertEquals(0, pool.getNumActive());
+		Assertions.assertEquals(1, pool.getNumIdle());
+		pool.close();
+		Mockito.verify(context).close();
+	}
+
+	@Test
+	public void authenticateInvalid() throws Exception {
+		Mockito.doThrow(new AuthenticationException()).when(context).reconnect(null);
+		Assertions.assertFalse(pool.authenticate("uid=jdoe", "secret"));
+
+		// The connection is kept
+		Assertions.assertEquals(1, pool.getNumIdle());
+		Mockito.verify(context).removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+	}
+
+	@Test
+	public void authenticateEmptyPassword() {
+		Assertions.assertFalse(pool.authenticate("uid=jdoe", ""));
+		Assertions.assertFalse(pool.authenticate("uid=jdoe", null));
+		Mockito.verifyNoMoreInteractions(contextSource);
+	}
+
+	@Test
+	public void authenticateConnectionLost() throws Exception {
+		final LdapContext context2 = Mockito.mock(LdapContext.class);
+		Mockito.when(contextSource.getReadOnlyContext()).thenReturn(context, context2);
+		Mockito.doThrow(new CommunicationException()).when(context).reconnect(ArgumentMatchers.any());
+		Assertions.assertTrue(pool.authenticate("uid=jdoe", "secret"));
+
+		// The lost connection is replaced
+		Mockito.verify(context).close();
+		Mockito.verify(context2).reconnect(null);
+		Assertions.assertEquals(1, pool.getNumIdle());
+	}
+
+	@Test
+	public void authenticateError() throws Exception {
+		Mockito.doThrow(new ServiceUnavailableException()).when(context).reconnect(ArgumentMatchers.any());
+		Assertions.assertThrows(org.springframework.ldap.ServiceUnavailableException.class,
+				() -> pool.authenticate("uid=jdoe", "secret"));
+		Assertions.assertEquals(0, pool.getNumIdle());
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+/**
+ * Test class of {@link CacheBatchWriter}
+ */
+public class CacheBatchWriterTest {
+
+	@Test
+	public void batch() {
+		final EntityManager em = Mockito.mock(EntityManager.class);
+		final Session session = Mockito.mock(Session.class);
+		Mockito.when(em.unwrap(Session.class)).thenReturn(session);
+		final CacheBatchWriter writer = new CacheBatchWriter(em, 2);
+		Mockito.verify(session).setJdbcBatchSize(2);
+
+		writer.persist("a");
+		Mockito.verify(em, Mockito.never()).flush();
+		writer.merge("b");
+		Mockito.verify(em).flush();
+		Mockito.verify(em).clear();
+		writer.persist("c");
+		writer.deleted(3);
+		writer.inserted(4);
+
+		Assertions.assertEquals(6, writer.getInserted());
+		Assertions.assertEquals(1, writer.getUpdated());
+		Assertions.assertEquals(3, writer.getDeleted());
+		Assertions.assertEquals(10, writer.getRows());
+		Assertions.assertTrue(writer.getRate() > 0);
+	}
+
+	@Test
+	public void noBatch() {
+		final EntityManager em = Mockito.mock(EntityManager.class);
+		final CacheBatchWriter writer = new CacheBatchWriter(em, 0);
+		for (int i = 0; i < 10; i++) {
+			writer.persist(i);
+		}
+
+		// Only explicit flush
+		Mockito.verify(em, Mockito.never()).unwrap(Session.class);
+		Mockito.verify(em, Mockito.never()).flush();
+		writer.flush();
+		Mockito.verify(em).flush();
+		Assertions.assertEquals(10, writer.getRows());
+	}
+}
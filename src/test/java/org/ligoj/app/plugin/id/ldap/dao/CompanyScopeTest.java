@@ -0,0 +1,46 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.CompanyOrg;
+
+/**
+ * Test class of {@link CompanyScope}
+ */
+public class CompanyScopeTest {
+
+	@Test
+	public void isVisible() {
+		final CompanyOrg root = new CompanyOrg("ou=root", "root");
+		final CompanyOrg child = new CompanyOrg("ou=child,ou=root", "child");
+		final CompanyOrg leaf = new CompanyOrg("ou=leaf,ou=child,ou=root", "leaf");
+		final CompanyOrg other = new CompanyOrg("ou=other", "other");
+		root.setCompanyTree(Collections.singletonList(root));
+		child.setCompanyTree(Arrays.asList(root, child));
+		leaf.setCompanyTree(Arrays.asList(root, child, leaf));
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		Arrays.asList(root, child, leaf, other).forEach(c -> companies.put(c.getId(), c));
+		final CompanyScope index = new CompanyScope(companies);
+
+		final BitSet scope = index.toScope(Arrays.asList("child", "unknown"));
+		Assertions.assertTrue(index.isVisible(scope, "child"));
+		Assertions.assertTrue(index.isVisible(scope, "leaf"));
+		Assertions.assertFalse(index.isVisible(scope, "root"));
+		Assertions.assertFalse(index.isVisible(scope, "other"));
+		Assertions.assertFalse(index.isVisible(scope, "unknown"));
+		Assertions.assertFalse(index.isVisible(scope, null));
+
+		// Without computed tree, only the company itself
+		Assertions.assertTrue(index.isVisible(index.toScope(Collections.singleton("other")), "other"));
+		Assertions.assertTrue(index.toScope(Collections.emptySet()).isEmpty());
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.CompanyOrg;
+
+/**
+ * Test class of {@link DnTrie}
+ */
+public class DnTrieTest {
+
+	private DnTrie<CompanyOrg> trie;
+
+	@BeforeEach
+	public void init() {
+		trie = new DnTrie<>(Arrays.asList(new CompanyOrg("ou=france,ou=people,dc=sample,dc=com", "france"),
+				new CompanyOrg("ou=people,dc=sample,dc=com", "people"),
+				new CompanyOrg("ou=ing,ou=France,ou=people,dc=sample,dc=com", "ing"),
+				new CompanyOrg("ou=ligoj,ou=france,ou=people,dc=sample,dc=com", "ligoj"),
+				new CompanyOrg("ou=external,dc=sample,dc=com", "external")), CompanyOrg::getDn);
+	}
+
+	@Test
+	public void get() {
+		Assertions.assertEquals("ing", trie.get("OU=Ing, ou=france,ou=people,dc=sample,dc=com").getId());
+		Assertions.assertNull(trie.get("dc=sample,dc=com"));
+		Assertions.assertNull(trie.get("ou=any,dc=sample,dc=com"));
+	}
+
+	@Test
+	public void getAncestors() {
+		Assertions.assertEquals(Arrays.asList("people", "france", "ing"),
+				toIds(trie.getAncestors("ou=ing,ou=france,ou=people,dc=sample,dc=com")));
+		Assertions.assertEquals(Arrays.asList("people", "france"),
+				toIds(trie.getAncestors("ou=any,ou=france,ou=people,dc=sample,dc=com")));
+		Assertions.assertTrue(trie.getAncestors("dc=other").isEmpty());
+	}
+
+	@Test
+	public void getSubtree() {
+		final List<String> subtree = toIds(trie.getSubtree("ou=france,ou=people,dc=sample,dc=com"));
+		Assertions.assertEquals("france", subtree.get(0));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("france", "ing", "ligoj")), new HashSet<>(subtree));
+		Assertions.assertEquals(5, trie.getSubtree("dc=sample,dc=com").size());
+		Assertions.assertTrue(trie.getSubtree("ou=any,dc=sample,dc=com").isEmpty());
+	}
+
+	private List<String> toIds(final List<CompanyOrg> companies) {
+		return companies.stream().map(CompanyOrg::getId).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link GroupClosure}
+ */
+public class GroupClosureTest {
+
+	private Map<String, GroupOrg> groups;
+
+	/**
+	 * Nested groups: a &gt; b &gt; c &gt; d, and a &gt; e
+	 */
+	@BeforeEach
+	public void init() {
+		groups = new HashMap<>();
+		Arrays.asList("a", "b", "c", "d", "e", "f").forEach(g -> groups.put(g, newGroup(g)));
+		link("a", "b");
+		link("b", "c");
+		link("c", "d");
+		link("a", "e");
+	}
+
+	@Test
+	public void of() {
+		final GroupClosure closure = GroupClosure.of(groups);
+		Assertions.assertEquals(set("a", "b", "c"), closure.getAncestors("d"));
+		Assertions.assertEquals(set("b", "c", "d", "e"), closure.getDescendants("a"));
+		Assertions.assertTrue(closure.getAncestors("a").isEmpty());
+		Assertions.assertTrue(closure.getDescendants("d").isEmpty());
+		Assertions.assertTrue(closure.getAncestors("unknown").isEmpty());
+		Assertions.assertTrue(closure.getDescendants("unknown").isEmpty());
+	}
+
+	@Test
+	public void ofCycle() {
+		link("d", "a");
+		final GroupClosure closure = GroupClosure.of(groups);
+
+		// The groups of the cycle are ancestors of each other, never of themselves
+		Assertions.assertEquals(set("b", "c", "d"), closure.getAncestors("a"));
+		Assertions.assertEquals(set("a", "b", "c"), closure.getAncestors("d"));
+		Assertions.assertEquals(set("a", "b", "c", "d"), closure.getAncestors("e"));
+		Assertions.assertEquals(set("b", "c", "d", "e"), closure.getDescendants("a"));
+		groups.keySet().forEach(g -> {
+			Assertions.assertFalse(closure.getAncestors(g).contains(g));
+			Assertions.assertFalse(closure.getDescendants(g).contains(g));
+		});
+	}
+
+	@Test
+	public void ofCycleOrder() {
+		link("d", "a");
+		link("f", "f");
+		final Map<String, GroupOrg> ordered = new LinkedHashMap<>();
+		Arrays.asList("a", "b", "c", "d", "e", "f").forEach(g -> ordered.put(g, groups.get(g)));
+		final Map<String, GroupOrg> reversed = new LinkedHashMap<>();
+		Arrays.asList("f", "e", "d", "c", "b", "a").forEach(g -> reversed.put(g, groups.get(g)));
+
+		// The closure does not depend on the order of the groups
+		assertSame(GroupClosure.of(ordered), GroupClosure.of(reversed));
+		Assertions.assertTrue(GroupClosure.of(ordered).getAncestors("f").isEmpty());
+	}
+
+	@Test
+	public void isCycle() {
+		final GroupClosure closure = GroupClosure.of(groups);
+		Assertions.assertTrue(closure.isCycle("d", "a"));
+		Assertions.assertTrue(closure.isCycle("a", "a"));
+		Assertions.assertFalse(closure.isCycle("a", "d"));
+		Assertions.assertFalse(closure.isCycle("e", "c"));
+	}
+
+	@Test
+	public void withLink() {
+		final GroupClosure closure = GroupClosure.of(groups);
+		link("e", "c");
+		final GroupClosure updated = closure.withLink("e", "c");
+		assertSame(GroupClosure.of(groups), updated);
+		Assertions.assertEquals(set("a", "b", "c", "e"), updated.getAncestors("d"));
+
+		// The previous closure is unchanged
+		Assertions.assertEquals(set("a", "b", "c"), closure.getAncestors("d"));
+	}
+
+	@Test
+	public void withLinkCycle() {
+		final GroupClosure closure = GroupClosure.of(groups);
+		link("d", "a");
+		assertSame(GroupClosure.of(groups), closure.withLink("d", "a"));
+	}
+
+	@Test
+	public void withoutLink() {
+		link("e", "c");
+		final GroupClosure closure = GroupClosure.of(groups);
+		unlink("b", "c");
+		final GroupClosure updated = closure.withoutLink(groups, "b", "c");
+		assertSame(GroupClosure.of(groups), updated);
+		Assertions.assertEquals(set("a", "c", "e"), updated.getAncestors("d"));
+		Assertions.assertEquals(Collections.emptySet(), updated.getDescendants("b"));
+
+		// The previous closure is unchanged
+		Assertions.assertEquals(set("a", "b", "c", "e"), closure.getAncestors("d"));
+	}
+
+	@Test
+	public void withoutLinkCycle() {
+		link("d", "a");
+		final GroupClosure closure = GroupClosure.of(groups);
+		unlink("b", "c");
+		assertSame(GroupClosure.of(groups), closure.withoutLink(groups, "b", "c"));
+	}
+
+	@Test
+	public void getEffectiveMembers() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u1", newUser("u1"));
+		users.put("u2", newUser("u2"));
+		groups.get("d").getMembers().add("u1");
+		groups.get("e").getMembers().add("u2");
+		final MembershipGraph membership = new MembershipGraph(groups, users);
+		final GroupClosure closure = GroupClosure.of(groups);
+
+		Assertions.assertEquals(set("u1", "u2"),
+				new HashSet<>(membership.toUsers(closure.getEffectiveMembers("a", membership))));
+		Assertions.assertEquals(set("u1"),
+				new HashSet<>(membership.toUsers(closure.getEffectiveMembers("c", membership))));
+		Assertions.assertTrue(closure.getEffectiveMembers("unknown", membership).isEmpty());
+		Assertions.assertEquals(set("a", "b", "c", "d"), closure.getEffectiveGroups("u1", membership));
+		Assertions.assertTrue(closure.getEffectiveGroups("unknown", membership).isEmpty());
+	}
+
+	private void assertSame(final GroupClosure expected, final GroupClosure actual) {
+		groups.keySet().forEach(g -> {
+			Assertions.assertEquals(expected.getAncestors(g), actual.getAncestors(g));
+			Assertions.assertEquals(expected.getDescendants(g), actual.getDescendants(g));
+		});
+	}
+
+	private void link(final String group, final String subGroup) {
+		groups.get(group).getSubGroups().add(subGroup);
+		groups.get(subGroup).getGroups().add(group);
+	}
+
+	private void unlink(final String group, final String subGroup) {
+		groups.get(group).getSubGroups().remove(subGroup);
+		groups.get(subGroup).getGroups().remove(group);
+	}
+
+	private GroupOrg newGroup(final String id) {
+		final GroupOrg group = new GroupOrg("cn=" + id, id, new HashSet<>());
+		group.setGroups(new HashSet<>());
+		group.setSubGroups(new HashSet<>());
+		return group;
+	}
+
+	private UserOrg newUser(final String id) {
+		final UserOrg user = new UserOrg();
+		user.setId(id);
+		return user;
+	}
+
+	private static Set<String> set(final String... ids) {
+		return new HashSet<>(Arrays.asList(ids));
+	}
+}
@@ -4,7 +4,9 @@
 package org.ligoj.app.plugin.id.ldap.dao;
 
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 import javax.naming.directory.AttributeInUseException;
@@ -183,6 +185,41 @@ public class GroupLdapRepositoryTest extends AbstractDataGeneratorTest {
 		groupRepository.addGroup(new GroupOrg("dc=any", "any", null), "DIG RHA");
 	}
 
+	@Test
+	public void addAttributesDepartment() {
+		final GroupLdapRepository groupRepository = newGroupLdapRepository();
+		groupRepository.setTemplate(Mockito.mock(LdapTemplate.class));
+		groupRepository.addAttributes("cn=any", "businessCategory", Collections.singleton("D1"));
+		groupRepository.addAttributes("cn=any", "owner", Collections.singleton("uid=any"));
+
+		// Only the departments are indexed by the cache
+		Mockito.verify(groupRepository.ldapCacheRepository).addDepartments("cn=any", Collections.singleton("D1"));
+		Mockito.verify(groupRepository.ldapCacheRepository).addDepartments(ArgumentMatchers.any(),
+				ArgumentMatchers.any());
+	}
+
+	@Test
+	public void addGroupCycle() {
+		final GroupLdapRepository groupRepository = newGroupLdapRepository();
+		final LdapTemplate ldapTemplate = Mockito.mock(LdapTemplate.class);
+		groupRepository.setTemplate(ldapTemplate);
+		final GroupOrg parent = new GroupOrg("cn=parent", "parent", new HashSet<>());
+		parent.setGroups(new HashSet<>());
+		parent.setSubGroups(Collections.singleton("child"));
+		final GroupOrg child = new GroupOrg("cn=child", "child", new HashSet<>());
+		child.setGroups(Collections.singleton("parent"));
+		child.setSubGroups(new HashSet<>());
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("parent", parent);
+		groups.put("child", child);
+		Mockito.when(groupRepository.ldapCacheRepository.getSnapshot())
+				.thenReturn(new LdapSnapshot(1, new HashMap<>(), groups, new HashMap<>()));
+
+		// The parent cannot become a sub-group of its child
+		Assertions.assertThrows(ValidationJsonException.class, () -> groupRepository.addGroup(parent, "child"));
+		Mockito.verifyZeroInteractions(ldapTemplate);
+	}
+
 	/**
 	 * Mock a managed LDAP desynchronization
 	 */
@@ -212,7 +249,10 @@ public class GroupLdapRepositoryTest extends AbstractDataGeneratorTest {
 			}
 
 		};
-		groupRepository.setLdapCacheRepository(Mockito.mock(LdapCacheRepository.class));
+		final LdapCacheRepository ldapCacheRepository = Mockito.mock(LdapCacheRepository.class);
+		Mockito.when(ldapCacheRepository.getSnapshot())
+				.thenReturn(new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), new HashMap<>()));
+		groupRepository.setLdapCacheRepository(ldapCacheRepository);
 		return groupRepository;
 	}
 
@@ -182,6 +182,88 @@ public class LdapCacheDaoTest extends AbstractJpaTest {
 		Assertions.assertEquals("dn=group1", delegateOrgRepository.findOneExpected(up2dateDelegate.getId()).getReceiverDn());
 	}
 
+	@Test
+	public void resetUnchanged() {
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		companies.put("another-company", new CompanyOrg("dna", "Another-Company"));
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		final GroupOrg groupLdap = new GroupOrg("dng", "Group", Collections.singleton("u0"));
+		groupLdap.getSubGroups().add("another-group");
+		groups.put("group", groupLdap);
+		groups.put("another-group", new GroupOrg("dng2", "Another-Group", new HashSet<>()));
+		final UserOrg user = new UserOrg();
+		user.setId("u0");
+		user.setFirstName("F");
+		user.setCompany("another-company");
+		user.setGroups(Collections.singleton("group"));
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u0", user);
+		final List<Integer> memberships = em.createQuery("SELECT id FROM CacheMembership ORDER BY id", Integer.class)
+				.getResultList();
+
+		dao.reset(companies, groups, users);
+
+		// Unchanged rows are kept, only the modified user is updated
+		Assertions.assertEquals(memberships,
+				em.createQuery("SELECT id FROM CacheMembership ORDER BY id", Integer.class).getResultList());
+		Assertions.assertEquals("F", em.find(CacheUser.class, "u0").getFirstName());
+		Assertions.assertEquals("another-company", em.find(CacheUser.class, "u0").getCompany().getId());
+		Assertions.assertEquals("dng2", em.find(CacheGroup.class, "another-group").getDescription());
+	}
+
+	@Test
+	public void resetMembership() {
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		companies.put("another-company", new CompanyOrg("dna", "Another-Company"));
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("group", new GroupOrg("dng", "Group", new HashSet<>()));
+		groups.put("another-group", new GroupOrg("dng2", "Another-Group-Renamed", Collections.singleton("u0")));
+		final UserOrg user = new UserOrg();
+		user.setId("u0");
+		user.setCompany("another-company");
+		user.setGroups(Collections.singleton("another-group"));
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u0", user);
+
+		dao.reset(companies, groups, users, 1);
+
+		// The previous memberships are replaced
+		final List<CacheMembership> memberships = em.createQuery("FROM CacheMembership", CacheMembership.class)
+				.getResultList();
+		Assertions.assertEquals(1, memberships.size());
+		Assertions.assertEquals("another-group", memberships.get(0).getGroup().getId());
+		Assertions.assertEquals("u0", memberships.get(0).getUser().getId());
+		Assertions.assertEquals("Another-Group-Renamed", em.find(CacheGroup.class, "another-group").getName());
+	}
+
+	@Test
+	public void upsertAndPurge() {
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		companies.put("company", new CompanyOrg("dn=company1", "Company"));
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u", newUser());
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("group", new GroupOrg("dng", "Group", Collections.singleton("u")));
+
+		final StaleCacheEntries stale = dao.upsert(companies, groups, users, 0);
+
+		// The stale entries are still there, without membership
+		Assertions.assertEquals(Collections.singleton("another-company"), stale.getCompanies());
+		Assertions.assertEquals(Collections.singleton("another-group"), stale.getGroups());
+		Assertions.assertEquals(Collections.singleton("u0"), stale.getUsers());
+		Assertions.assertNotNull(em.find(CacheUser.class, "u0"));
+		Assertions.assertNotNull(em.find(CacheGroup.class, "another-group"));
+		Assertions.assertEquals(0, em.createQuery("FROM CacheMembership WHERE user.id = :id").setParameter("id", "u0")
+				.getResultList().size());
+		checkUser();
+
+		Assertions.assertEquals(3, dao.purge(stale));
+		Assertions.assertNull(em.find(CacheUser.class, "u0"));
+		Assertions.assertNull(em.find(CacheGroup.class, "another-group"));
+		Assertions.assertNull(em.find(CacheCompany.class, "another-company"));
+		Assertions.assertNotNull(em.find(CacheGroup.class, "group"));
+	}
+
 	private UserOrg newUser() {
 		final UserOrg user = new UserOrg();
 		user.setId("u");
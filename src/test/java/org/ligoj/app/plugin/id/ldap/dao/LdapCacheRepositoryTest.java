@@ -4,12 +4,18 @@
 package org.ligoj.app.plugin.id.ldap.dao;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
@@ -23,6 +29,8 @@ import org.ligoj.app.iam.UserOrg;
 import org.ligoj.app.plugin.id.ldap.dao.LdapCacheRepository.LdapData;
 import org.ligoj.bootstrap.AbstractDataGeneratorTest;
 import org.ligoj.bootstrap.core.SpringUtils;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.springframework.context.ApplicationContext;
 
@@ -58,16 +66,17 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		Mockito.when(iamProvider.getConfiguration()).thenReturn(iamConfiguration);
 
 		companies = new HashMap<>();
-		companies.put("company", new CompanyOrg("dnc", "Company"));
+		companies.put("company", new CompanyOrg("ou=company", "Company"));
 		groups = new HashMap<>();
 		final Set<String> members = new HashSet<>();
 		members.add("u");
-		groupLdap = new GroupOrg("dn", "Group", members);
+		groupLdap = new GroupOrg("cn=group", "Group", members);
 		groups.put("group", groupLdap);
-		groupLdap2 = new GroupOrg("dn2", "Group2", new HashSet<>());
+		groupLdap2 = new GroupOrg("cn=group2", "Group2", new HashSet<>());
 		groups.put("group2", groupLdap2);
 		user = new UserOrg();
 		user.setId("u");
+		user.setDn("uid=u,ou=company");
 		user.setFirstName("f");
 		user.setLastName("l");
 		user.setCompany("company");
@@ -77,6 +86,7 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		user.setMails(Collections.singletonList("mail"));
 		user2 = new UserOrg();
 		user2.setId("u2");
+		user2.setDn("uid=u2,ou=company");
 		user2.setFirstName("f");
 		user2.setLastName("l");
 		user2.setCompany("company");
@@ -85,8 +95,8 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		users.put("u", user);
 		users.put("u2", user2);
 		Mockito.when(companyRepository.findAllNoCache()).thenReturn(companies);
-		Mockito.when(groupRepository.findAllNoCache()).thenReturn(groups);
-		Mockito.when(userRepository.findAllNoCache(groups)).thenReturn(users);
+		Mockito.when(groupRepository.findAllNoCache(ArgumentMatchers.anyMap())).thenReturn(groups);
+		Mockito.when(userRepository.findAllNoCache()).thenReturn(users);
 		Mockito.when(companyRepository.findAll()).thenReturn(companies);
 		Mockito.when(groupRepository.findAll()).thenReturn(groups);
 		Mockito.when(userRepository.findAll()).thenReturn(users);
@@ -107,9 +117,9 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		final Map<LdapData, Map<String, ? extends ResourceOrg>> ldapData = repository.getLdapData();
 
 		Assertions.assertEquals("Company", ((CompanyOrg) ldapData.get(LdapData.COMPANY).get("company")).getName());
-		Assertions.assertEquals("dnc", ((CompanyOrg) ldapData.get(LdapData.COMPANY).get("company")).getDn());
+		Assertions.assertEquals("ou=company", ((CompanyOrg) ldapData.get(LdapData.COMPANY).get("company")).getDn());
 		final GroupOrg groupLdap = (GroupOrg) ldapData.get(LdapData.GROUP).get("group");
-		Assertions.assertEquals("dn", groupLdap.getDn());
+		Assertions.assertEquals("cn=group", groupLdap.getDn());
 		Assertions.assertEquals("group", groupLdap.getId());
 		Assertions.assertEquals("Group", groupLdap.getName());
 		final UserOrg user = (UserOrg) ldapData.get(LdapData.USER).get("u");
@@ -124,25 +134,542 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		Assertions.assertEquals("company", user2.getCompany());
 	}
 
+	@Test
+	public void getLdapDataMembership() {
+		repository.getLdapData();
+
+		// Membership is resolved once both groups and users are fetched
+		Mockito.verify(userRepository).updateMembership(ArgumentMatchers.same(users),
+				ArgumentMatchers.argThat(g -> g.containsAll(groups.values()) && g.size() == 2));
+		Mockito.verify(repository.ldapCacheDao).reset(companies, groups, users, 0);
+	}
+
+	@Test
+	public void getLdapDataDeferredPurge() throws Exception {
+		Mockito.when(userRepository.isDeferredPurge()).thenReturn(true);
+		final StaleCacheEntries stale = new StaleCacheEntries(Collections.singleton("old-company"),
+				Collections.singleton("group"), Collections.singleton("u0"));
+		Mockito.when(repository.ldapCacheDao.upsert(companies, groups, users, 0)).thenReturn(stale);
+		final CountDownLatch purged = new CountDownLatch(1);
+		Mockito.when(repository.ldapCacheDao.purge(ArgumentMatchers.any())).then(i -> {
+			purged.countDown();
+			return 2;
+		});
+
+		repository.getLdapData();
+
+		// The stale entries are purged later, except the ones still in LDAP
+		Assertions.assertTrue(purged.await(5, TimeUnit.SECONDS));
+		final ArgumentCaptor<StaleCacheEntries> captor = ArgumentCaptor.forClass(StaleCacheEntries.class);
+		Mockito.verify(repository.ldapCacheDao).purge(captor.capture());
+		Assertions.assertEquals(Collections.singleton("old-company"), captor.getValue().getCompanies());
+		Assertions.assertTrue(captor.getValue().getGroups().isEmpty());
+		Assertions.assertEquals(Collections.singleton("u0"), captor.getValue().getUsers());
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).reset(ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(), ArgumentMatchers.anyInt());
+	}
+
+	@Test
+	public void getLdapDataFailure() {
+		Mockito.when(groupRepository.findAllNoCache(ArgumentMatchers.anyMap()))
+				.thenThrow(new IllegalStateException("ldap"));
+
+		// The original failure of the stage is propagated
+		Assertions.assertEquals("ldap",
+				Assertions.assertThrows(IllegalStateException.class, repository::getLdapData).getMessage());
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).reset(ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(), ArgumentMatchers.anyInt());
+	}
+
+	@Test
+	public void getLdapDataCoalesced() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Mockito.when(groupRepository.findAllNoCache(ArgumentMatchers.anyMap())).then(i -> {
+			started.countDown();
+			release.await();
+			return groups;
+		});
+		final ExecutorService callers = Executors.newFixedThreadPool(2);
+		try {
+			final Future<LdapSnapshot> first = callers.submit(repository::getSnapshot);
+			started.await();
+			final Future<LdapSnapshot> second = callers.submit(repository::getSnapshot);
+			waitCoalesced(1);
+			release.countDown();
+
+			// The second caller waited for the reload of the first one
+			Assertions.assertSame(first.get(), second.get());
+			Assertions.assertEquals(1, repository.getReloadCount());
+			Assertions.assertEquals(0, repository.getStaleServedCount());
+			Mockito.verify(repository.ldapCacheDao).reset(companies, groups, users, 0);
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void getLdapDataConcurrentEdit() throws Exception {
+		final UserOrg newUser = new UserOrg();
+		newUser.setId("u3");
+		newUser.setCompany("company");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Mockito.when(groupRepository.findAllNoCache(ArgumentMatchers.anyMap())).then(i -> {
+			started.countDown();
+			release.await();
+			return groups;
+		});
+		final ExecutorService callers = Executors.newSingleThreadExecutor();
+		try {
+			final Future<LdapSnapshot> first = callers.submit(repository::getSnapshot);
+			started.await();
+
+			// The user created during the fetch is not in the fetched data, but is replayed on them
+			repository.create(newUser);
+			Mockito.verify(repository.ldapCacheDao).create(newUser);
+			release.countDown();
+			Assertions.assertSame(newUser, first.get().getUsers().get("u3"));
+			Assertions.assertFalse(users.containsKey("u3"));
+			Mockito.verify(repository.ldapCacheDao).reset(ArgumentMatchers.eq(companies), ArgumentMatchers.eq(groups),
+					ArgumentMatchers.argThat(u -> u.size() == 3 && u.get("u3") == newUser), ArgumentMatchers.eq(0));
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void getLdapDataDeferredWrite() throws Exception {
+		final UserOrg newUser = new UserOrg();
+		newUser.setId("u3");
+		newUser.setCompany("company");
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Mockito.doAnswer(i -> {
+			started.countDown();
+			release.await();
+			return null;
+		}).when(repository.ldapCacheDao).reset(companies, groups, users, 0);
+		final ExecutorService callers = Executors.newSingleThreadExecutor();
+		try {
+			final Future<LdapSnapshot> first = callers.submit(repository::getSnapshot);
+			started.await();
+
+			// The data are published before the database reset, the writes are applied after it
+			Assertions.assertNotNull(repository.getPublishedSnapshot());
+			repository.create(newUser);
+			Assertions.assertSame(newUser, repository.getPublishedSnapshot().getUsers().get("u3"));
+			Mockito.verify(repository.ldapCacheDao, Mockito.never()).create(newUser);
+			release.countDown();
+			first.get();
+			Mockito.verify(repository.ldapCacheDao).create(newUser);
+
+			// The next writes are direct
+			repository.update(newUser);
+			Mockito.verify(repository.ldapCacheDao).update(newUser);
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void getLdapDataCoalescedStale() throws Exception {
+		final LdapSnapshot previous = repository.getSnapshot();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Mockito.when(userRepository.isReloadStale()).thenReturn(true);
+		Mockito.when(groupRepository.findAllNoCache(ArgumentMatchers.anyMap())).then(i -> {
+			started.countDown();
+			release.await();
+			return groups;
+		});
+		final ExecutorService callers = Executors.newSingleThreadExecutor();
+		try {
+			final Future<LdapSnapshot> first = callers.submit(repository::getSnapshot);
+			started.await();
+
+			// The previous data is served without waiting
+			Assertions.assertSame(previous, repository.getSnapshot());
+			Assertions.assertSame(previous, repository.getSnapshot());
+			Assertions.assertEquals(2, repository.getStaleServedCount());
+			release.countDown();
+			Assertions.assertEquals(previous.getVersion() + 1, first.get().getVersion());
+			Assertions.assertEquals(2, repository.getReloadCount());
+		} finally {
+			callers.shutdownNow();
+		}
+	}
+
+	@Test
+	public void ensureCachedDataBackground() throws InterruptedException {
+		final LdapSnapshot previous = repository.getSnapshot();
+		Mockito.when(userRepository.getRefreshInterval()).thenReturn(3600);
+		try {
+			// The previous data is kept while the reload runs in the background
+			Assertions.assertTrue(repository.ensureCachedData());
+			for (int i = 0; i < 500 && published().getVersion() == previous.getVersion(); i++) {
+				Thread.sleep(10);
+			}
+			Assertions.assertEquals(previous.getVersion() + 1, published().getVersion());
+			Assertions.assertEquals(2, repository.getReloadCount());
+		} finally {
+			repository.shutdown();
+		}
+	}
+
+	@Test
+	public void scheduleRefresh() throws InterruptedException {
+		Mockito.when(userRepository.getRefreshInterval()).thenReturn(1);
+		try {
+			repository.getSnapshot();
+
+			// The next refresh is scheduled after the first load
+			waitReloads(3);
+			Mockito.verify(companyRepository, Mockito.atLeast(2)).findAllNoCache();
+		} finally {
+			repository.shutdown();
+		}
+	}
+
+	private void waitReloads(final long expected) throws InterruptedException {
+		for (int i = 0; i < 500 && repository.getReloadCount() < expected; i++) {
+			Thread.sleep(10);
+		}
+		Assertions.assertTrue(repository.getReloadCount() >= expected);
+	}
+
+	private void waitCoalesced(final long expected) throws InterruptedException {
+		for (int i = 0; i < 500 && repository.getCoalescedCount() < expected; i++) {
+			Thread.sleep(10);
+		}
+		Assertions.assertEquals(expected, repository.getCoalescedCount());
+	}
+
+	@Test
+	public void getLdapDataDelta() {
+		repository.getLdapData();
+		Mockito.when(userRepository.isDeltaSync()).thenReturn(true);
+		Mockito.when(companyRepository.findAllModifiedNoCache(ArgumentMatchers.any())).thenReturn(new HashMap<>());
+		Mockito.when(companyRepository.findAllIdsNoCache()).thenReturn(companies.keySet());
+		Mockito.when(groupRepository.findAllIdsNoCache()).thenReturn(groups.keySet());
+		Mockito.when(userRepository.findAllIdsNoCache()).thenReturn(users.keySet());
+
+		// A new user added to an existing group
+		final UserOrg user3 = new UserOrg();
+		user3.setId("u3");
+		user3.setDn("uid=u3,ou=company");
+		user3.setGroups(new ArrayList<>());
+		Mockito.when(userRepository.findAllModifiedNoCache(ArgumentMatchers.any()))
+				.thenReturn(Collections.singletonMap("u3", user3));
+		final Set<String> members = new HashSet<>();
+		members.add("uid=u3,ou=company");
+		final GroupOrg group2 = new GroupOrg("cn=group2", "Group2", members);
+		Mockito.when(groupRepository.findAllModifiedNoCache(ArgumentMatchers.any(), ArgumentMatchers.anyMap(),
+				ArgumentMatchers.anyMap()))
+				.then(i -> {
+					final Map<String, Set<String>> subGroupsDn = i.getArgument(1);
+					subGroupsDn.put("group2", Collections.emptySet());
+					final Map<String, Set<String>> departments = i.getArgument(2);
+					departments.put("group2", Collections.singleton("D2"));
+					return Collections.singletonMap("group2", group2);
+				});
+		Mockito.doCallRealMethod().when(groupRepository).updateSubGroups(ArgumentMatchers.anyMap(),
+				ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap());
+
+		final Map<LdapData, Map<String, ? extends ResourceOrg>> ldapData = repository.getLdapData();
+
+		// Only one full reload
+		Mockito.verify(companyRepository, Mockito.times(1)).findAllNoCache();
+		Mockito.verify(repository.ldapCacheDao).update(ArgumentMatchers.any(), ArgumentMatchers.any());
+		Assertions.assertSame(user3, ldapData.get(LdapData.USER).get("u3"));
+		Assertions.assertSame(group2, ldapData.get(LdapData.GROUP).get("group2"));
+		Assertions.assertEquals(Collections.singleton("u3"), group2.getMembers());
+		Assertions.assertEquals(Collections.singletonList("group2"), user3.getGroups());
+		Assertions.assertTrue(user.getGroups().contains("group"));
+		Assertions.assertEquals("group2", repository.getSnapshot().getGroupByDepartment("d2"));
+
+		// The users out of the changed groups are not copied
+		Assertions.assertSame(user2, ldapData.get(LdapData.USER).get("u2"));
+	}
+
+	@Test
+	public void getLdapDataDeltaDeletion() {
+		repository.getLdapData();
+		Mockito.when(userRepository.isDeltaSync()).thenReturn(true);
+		Mockito.when(companyRepository.findAllModifiedNoCache(ArgumentMatchers.any())).thenReturn(new HashMap<>());
+		Mockito.when(companyRepository.findAllIdsNoCache()).thenReturn(companies.keySet());
+		Mockito.when(groupRepository.findAllIdsNoCache()).thenReturn(Collections.singleton("group"));
+
+		repository.getLdapData();
+
+		// Deleted group implies a full reload
+		Mockito.verify(companyRepository, Mockito.times(2)).findAllNoCache();
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).update(ArgumentMatchers.any(),
+				ArgumentMatchers.any());
+	}
+
+	@Test
+	public void getLdapDataDeltaListening() {
+		repository.getLdapData();
+		Mockito.when(userRepository.isDeltaSync()).thenReturn(true);
+		Mockito.when(userRepository.isListening()).thenReturn(true);
+		Mockito.when(companyRepository.findAllModifiedNoCache(ArgumentMatchers.any())).thenReturn(new HashMap<>());
+
+		repository.getLdapData();
+
+		// The deletions are notified by the listener, the identifiers are not compared
+		Mockito.verify(companyRepository, Mockito.times(1)).findAllNoCache();
+		Mockito.verify(companyRepository, Mockito.never()).findAllIdsNoCache();
+		Mockito.verify(groupRepository, Mockito.never()).findAllIdsNoCache();
+		Mockito.verify(userRepository, Mockito.never()).findAllIdsNoCache();
+	}
+
+	@Test
+	public void getLdapDataDeltaFullSyncInterval() {
+		repository.getLdapData();
+		Mockito.when(userRepository.isDeltaSync()).thenReturn(true);
+		Mockito.when(userRepository.getFullSyncInterval()).thenReturn(3600);
+		Mockito.when(companyRepository.findAllModifiedNoCache(ArgumentMatchers.any())).thenReturn(new HashMap<>());
+
+		repository.getLdapData();
+
+		// The deletions are left to the next full reload, the identifiers are not compared
+		Mockito.verify(companyRepository, Mockito.times(1)).findAllNoCache();
+		Mockito.verify(companyRepository, Mockito.never()).findAllIdsNoCache();
+		Mockito.verify(groupRepository, Mockito.never()).findAllIdsNoCache();
+		Mockito.verify(userRepository, Mockito.never()).findAllIdsNoCache();
+	}
+
+	@Test
+	public void getLdapDataDeltaCompany() {
+		repository.getLdapData();
+		Mockito.when(userRepository.isDeltaSync()).thenReturn(true);
+		Mockito.when(companyRepository.findAllModifiedNoCache(ArgumentMatchers.any())).thenReturn(companies);
+
+		repository.getLdapData();
+
+		// Modified company implies a full reload
+		Mockito.verify(companyRepository, Mockito.times(2)).findAllNoCache();
+	}
+
+	@Test
+	public void onChangeUser() {
+		repository.getLdapData();
+		final UserOrg same = new UserOrg();
+		same.setId("u2");
+		same.setDn("uid=u2,ou=company");
+		same.setFirstName("f");
+		same.setLastName("l");
+		same.setCompany("company");
+		final UserOrg changed = new UserOrg();
+		changed.setId("u");
+		changed.setDn("uid=u,ou=company");
+		changed.setFirstName("f2");
+		changed.setLastName("l");
+		changed.setCompany("company");
+		changed.setMails(Collections.singletonList("mail"));
+		final Map<String, UserOrg> changes = new HashMap<>();
+		changes.put("u", changed);
+		changes.put("u2", same);
+
+		repository.onChange(userRepository, changes, Collections.emptyMap(), Collections.emptyMap(),
+				Collections.emptyMap());
+
+		// Only the modified user is persisted, and its membership is kept
+		Mockito.verify(repository.ldapCacheDao).update(Collections.singletonList(changed), Collections.emptyList());
+		Assertions.assertSame(changed, published().getUsers().get("u"));
+		Assertions.assertSame(user2, published().getUsers().get("u2"));
+		Assertions.assertEquals(Collections.singletonList("group"), changed.getGroups());
+	}
+
+	@Test
+	public void onChangeUnchanged() {
+		repository.getLdapData();
+		final UserOrg same = new UserOrg();
+		same.setId("u2");
+		same.setDn("uid=u2,ou=company");
+		same.setFirstName("f");
+		same.setLastName("l");
+		same.setCompany("company");
+
+		repository.onChange(userRepository, Collections.singletonMap("u2", same), Collections.emptyMap(),
+				Collections.emptyMap(), Collections.emptyMap());
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).update(ArgumentMatchers.anyCollection(),
+				ArgumentMatchers.anyCollection());
+	}
+
+	@Test
+	public void onChangeGroupUnchanged() {
+		repository.getLdapData();
+		final LdapSnapshot snapshot = repository.getPublishedSnapshot();
+		final GroupOrg same = new GroupOrg("cn=group", "Group", Collections.singleton("uid=u,ou=company"));
+
+		// A replayed group with the same members is ignored
+		repository.onChange(userRepository, Collections.emptyMap(), Collections.singletonMap("group", same),
+				Collections.singletonMap("group", Collections.emptySet()), Collections.emptyMap());
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).update(ArgumentMatchers.anyCollection(),
+				ArgumentMatchers.anyCollection());
+		Assertions.assertSame(snapshot, repository.getPublishedSnapshot());
+	}
+
+	@Test
+	public void onChangeGroupMember() {
+		repository.getLdapData();
+		final Set<String> members = new HashSet<>();
+		members.add("uid=u,ou=company");
+		members.add("uid=u2,ou=company");
+		final GroupOrg changed = new GroupOrg("cn=group", "Group", members);
+
+		repository.onChange(userRepository, Collections.emptyMap(), Collections.singletonMap("group", changed),
+				Collections.singletonMap("group", Collections.emptySet()), Collections.emptyMap());
+		Mockito.verify(repository.ldapCacheDao).update(Collections.emptyList(), Collections.singletonList(changed));
+		Assertions.assertEquals(2, published().getGroups().get("group").getMembers().size());
+		Assertions.assertEquals(Collections.singletonList("group"), published().getUsers().get("u2").getGroups());
+	}
+
+	@Test
+	public void onChangeUnknownCompany() {
+		repository.getLdapData();
+		final UserOrg changed = new UserOrg();
+		changed.setId("u3");
+		changed.setCompany("any");
+
+		repository.onChange(userRepository, Collections.singletonMap("u3", changed), Collections.emptyMap(),
+				Collections.emptyMap(), Collections.emptyMap());
+
+		// Unknown company implies a full reload, performed in the background
+		Mockito.verify(companyRepository, Mockito.timeout(5000).times(2)).findAllNoCache();
+	}
+
+	@Test
+	public void onChangeOtherRepository() {
+		repository.getLdapData();
+		repository.onChange(Mockito.mock(UserLdapRepository.class), Collections.singletonMap("u3", new UserOrg()),
+				Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+		repository.onDelete(Mockito.mock(UserLdapRepository.class), "cn=group");
+		repository.onCompanyChange(Mockito.mock(UserLdapRepository.class), "any");
+
+		// Changes of a previous configuration are ignored
+		Mockito.verify(companyRepository, Mockito.times(1)).findAllNoCache();
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).delete(ArgumentMatchers.any(UserOrg.class));
+		Mockito.verify(repository.ldapCacheDao, Mockito.never()).update(ArgumentMatchers.anyCollection(),
+				ArgumentMatchers.anyCollection());
+	}
+
+	@Test
+	public void onCompanyChange() {
+		repository.getLdapData();
+		repository.onCompanyChange(userRepository, "ou=company");
+		Mockito.verify(companyRepository, Mockito.times(1)).findAllNoCache();
+		repository.onCompanyChange(userRepository, "ou=new,ou=company");
+		Mockito.verify(companyRepository, Mockito.timeout(5000).times(2)).findAllNoCache();
+	}
+
+	@Test
+	public void onDeleteUser() {
+		repository.getLdapData();
+
+		repository.onDelete(userRepository, "uid=u,ou=company");
+		Mockito.verify(repository.ldapCacheDao).delete(user);
+		Assertions.assertFalse(published().getUsers().containsKey("u"));
+		Assertions.assertTrue(published().getGroups().get("group").getMembers().isEmpty());
+
+		// The published group is not modified
+		Assertions.assertEquals(Collections.singleton("u"), groupLdap.getMembers());
+	}
+
+	@Test
+	public void onDeleteUserRdn() {
+		user.setDn("cn=User Name,ou=company");
+		repository.getLdapData();
+
+		// The RDN of the user is not its identifier
+		repository.onDelete(userRepository, "cn=user name,ou=company");
+		Mockito.verify(repository.ldapCacheDao).delete(user);
+		Assertions.assertFalse(published().getUsers().containsKey("u"));
+
+		// The index is shared by the next version, without the deleted user
+		repository.onDelete(userRepository, "cn=user name,ou=company");
+		Mockito.verify(repository.ldapCacheDao).delete(user);
+		repository.onDelete(userRepository, "uid=u2,ou=company");
+		Mockito.verify(repository.ldapCacheDao).delete(user2);
+	}
+
+	@Test
+	public void onDeleteGroup() {
+		repository.getLdapData();
+		groupLdap2.getSubGroups().add("group");
+		groupLdap.getGroups().add("group2");
+
+		repository.onDelete(userRepository, "cn=group");
+		Mockito.verify(repository.ldapCacheDao).delete(groupLdap);
+		Assertions.assertFalse(published().getGroups().containsKey("group"));
+		Assertions.assertTrue(published().getUsers().get("u").getGroups().isEmpty());
+		Assertions.assertTrue(published().getGroups().get("group2").getSubGroups().isEmpty());
+		Assertions.assertEquals(Collections.singletonList("group"), user.getGroups());
+	}
+
+	@Test
+	public void onDeleteCompany() {
+		repository.getLdapData();
+		repository.onDelete(userRepository, "ou=any");
+		Mockito.verify(companyRepository, Mockito.times(1)).findAllNoCache();
+		repository.onDelete(userRepository, "ou=company");
+		Mockito.verify(companyRepository, Mockito.timeout(5000).times(2)).findAllNoCache();
+	}
+
+	@Test
+	public void getSnapshot() {
+		final LdapSnapshot snapshot = repository.getSnapshot();
+		final long version = snapshot.getVersion();
+		Assertions.assertTrue(version > 0);
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getUsers().remove("u"));
+
+		// A change publishes a new version, the previous one is left unchanged
+		final UserOrg newUser = new UserOrg();
+		newUser.setId("u3");
+		repository.create(newUser);
+		final LdapSnapshot snapshot2 = published();
+		Assertions.assertEquals(version + 1, snapshot2.getVersion());
+		Assertions.assertTrue(snapshot2.getUsers().containsKey("u3"));
+		Assertions.assertFalse(snapshot.getUsers().containsKey("u3"));
+
+		// Membership change does not alter the entries seen by the previous readers
+		final Collection<String> userGroups = user.getGroups();
+		repository.addUserToGroup(user, groupLdap2);
+		Assertions.assertEquals(version + 2, published().getVersion());
+		Assertions.assertEquals(1, userGroups.size());
+		Assertions.assertSame(user, snapshot2.getUsers().get("u"));
+		Assertions.assertEquals(1, user.getGroups().size());
+		Assertions.assertTrue(groupLdap2.getMembers().isEmpty());
+		Assertions.assertEquals(2, published().getUsers().get("u").getGroups().size());
+
+		// The indexes of the users are kept
+		Assertions.assertSame(snapshot2.getSearchIndex(), published().getSearchIndex());
+	}
+
 	@Test
 	public void addUserToGroup() {
 		Assertions.assertEquals(1, user.getGroups().size());
 		
+		repository.getLdapData();
 		repository.addUserToGroup(user, groupLdap2);
 		
-		Assertions.assertEquals(2, user.getGroups().size());
-		Assertions.assertTrue(user.getGroups().contains("group2"));
-		Assertions.assertTrue(groups.get("group2").getMembers().contains("u"));
+		final UserOrg cached = published().getUsers().get("u");
+		Assertions.assertEquals(2, cached.getGroups().size());
+		Assertions.assertTrue(cached.getGroups().contains("group2"));
+		Assertions.assertTrue(published().getGroups().get("group2").getMembers().contains("u"));
 	}
 
 	@Test
 	public void removeUserFromGroup() {
 		Assertions.assertEquals(1, user.getGroups().size());
 		
+		repository.getLdapData();
 		repository.removeUserFromGroup(user, groupLdap);
 		
-		Assertions.assertEquals(0, user.getGroups().size());
-		Assertions.assertTrue(groups.get("group").getMembers().isEmpty());
+		Assertions.assertEquals(0, published().getUsers().get("u").getGroups().size());
+		Assertions.assertTrue(published().getGroups().get("group").getMembers().isEmpty());
 	}
 
 	@Test
@@ -156,15 +683,24 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		Assertions.assertEquals(0, parent.getGroups().size());
 		Assertions.assertEquals(0, parent.getSubGroups().size());
 
+		repository.getLdapData();
+		published().getClosure();
 		repository.addGroupToGroup(child, parent);
 
-		// Check the new status
-		Assertions.assertEquals(1, child.getGroups().size());
-		Assertions.assertEquals(0, child.getSubGroups().size());
-		Assertions.assertEquals(0, parent.getGroups().size());
-		Assertions.assertEquals(1, parent.getSubGroups().size());
-		Assertions.assertTrue(parent.getSubGroups().contains("group"));
-		Assertions.assertTrue(child.getGroups().contains("group2"));
+		// Check the new status, the published groups are replaced
+		final GroupOrg newParent = published().getGroups().get("group2");
+		final GroupOrg newChild = published().getGroups().get("group");
+		Assertions.assertEquals(1, newChild.getGroups().size());
+		Assertions.assertEquals(0, newChild.getSubGroups().size());
+		Assertions.assertEquals(0, newParent.getGroups().size());
+		Assertions.assertEquals(1, newParent.getSubGroups().size());
+		Assertions.assertTrue(newParent.getSubGroups().contains("group"));
+		Assertions.assertTrue(newChild.getGroups().contains("group2"));
+		Assertions.assertEquals(0, child.getGroups().size());
+		Assertions.assertEquals(0, parent.getSubGroups().size());
+
+		// The already built closure is maintained
+		Assertions.assertEquals(Collections.singleton("group2"), published().getBuiltClosure().getAncestors("group"));
 	}
 
 	@Test
@@ -180,33 +716,59 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		Assertions.assertEquals(0, parent.getGroups().size());
 		Assertions.assertEquals(1, parent.getSubGroups().size());
 
+		repository.getLdapData();
 		repository.removeGroupFromGroup(child, parent);
 
-		// Check the new status
-		Assertions.assertEquals(0, child.getGroups().size());
-		Assertions.assertEquals(0, child.getSubGroups().size());
-		Assertions.assertEquals(0, parent.getGroups().size());
-		Assertions.assertEquals(0, parent.getSubGroups().size());
+		// Check the new status, the published groups are replaced
+		final GroupOrg newParent = published().getGroups().get("group2");
+		final GroupOrg newChild = published().getGroups().get("group");
+		Assertions.assertEquals(0, newChild.getGroups().size());
+		Assertions.assertEquals(0, newChild.getSubGroups().size());
+		Assertions.assertEquals(0, newParent.getGroups().size());
+		Assertions.assertEquals(0, newParent.getSubGroups().size());
+		Assertions.assertEquals(1, child.getGroups().size());
+		Assertions.assertEquals(1, parent.getSubGroups().size());
+
+		// The closure is not built by the writer
+		Assertions.assertNull(published().getBuiltClosure());
+		Assertions.assertTrue(published().getClosure().getDescendants("group2").isEmpty());
 	}
 
 	@Test
 	public void createGroup() {
 		final GroupOrg newGroupLdap = new GroupOrg("dn3", "G3", new HashSet<>());
 
+		repository.getLdapData();
 		repository.create(newGroupLdap);
 
 		Mockito.verify(repository.ldapCacheDao).create(newGroupLdap);
-		Assertions.assertEquals(newGroupLdap, groups.get("g3"));
+		Assertions.assertEquals(newGroupLdap, published().getGroups().get("g3"));
+	}
+
+	@Test
+	public void createGroupDepartment() {
+		final GroupOrg newGroupLdap = new GroupOrg("cn=g3", "G3", new HashSet<>());
+		repository.getLdapData();
+		repository.create(newGroupLdap);
+
+		repository.addDepartments("CN=G3", Collections.singleton("D3"));
+		repository.addDepartments("cn=any", Collections.singleton("D4"));
+
+		// The department of the new group is indexed
+		Assertions.assertEquals("g3", published().getGroupByDepartment("d3"));
+		Assertions.assertEquals(Collections.singleton("D3"), published().getDepartments().get("g3"));
+		Assertions.assertNull(published().getGroupByDepartment("d4"));
 	}
 
 	@Test
 	public void createCompany() {
 		final CompanyOrg newCompanyLdap = new CompanyOrg("dn3", "C3");
 
+		repository.getLdapData();
 		repository.create(newCompanyLdap);
 
 		Mockito.verify(repository.ldapCacheDao).create(newCompanyLdap);
-		Assertions.assertEquals(newCompanyLdap, companies.get("c3"));
+		Assertions.assertEquals(newCompanyLdap, published().getCompanies().get("c3"));
 	}
 
 	@Test
@@ -217,32 +779,106 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		newUser.setLastName("l");
 		newUser.setCompany("company");
 
+		repository.getLdapData();
 		repository.create(newUser);
 
 		Mockito.verify(repository.ldapCacheDao).create(newUser);
 		Assertions.assertTrue(user.getGroups().contains("group"));
-		Assertions.assertSame(newUser, users.get("u3"));
+		Assertions.assertSame(newUser, published().getUsers().get("u3"));
+	}
+
+	@Test
+	public void createUserNotLoaded() {
+		final UserOrg newUser = new UserOrg();
+		newUser.setId("u3");
+
+		repository.create(newUser);
+
+		// No load under the monitor, the first load reads the new user from LDAP
+		Mockito.verify(repository.ldapCacheDao).create(newUser);
+		Mockito.verify(userRepository, Mockito.never()).findAllNoCache();
 	}
 
 	@Test
 	public void updateUser() {
 		user.setFirstName("L");
 
+		repository.getLdapData();
 		repository.update(user);
 
 		Mockito.verify(repository.ldapCacheDao).update(user);
 		Assertions.assertSame("L", users.get("u").getFirstName());
 	}
 
+	@Test
+	public void updateUserSearchIndex() {
+		Assertions.assertTrue(published().getSearchIndex().find("margaret").isEmpty());
+		user.setFirstName("Margaret");
+
+		repository.update(user);
+
+		Assertions.assertEquals(Collections.singleton("u"), published().getSearchIndex().find("garet"));
+	}
+
+	@Test
+	public void updateUserCopy() {
+		final UserOrg dto = new UserOrg();
+		dto.setId("u");
+		dto.setFirstName("F2");
+		dto.setGroups(new ArrayList<>());
+		final LdapSnapshot snapshot = repository.getPublishedSnapshot();
+
+		repository.update(dto);
+
+		// The cached instance is replaced by a copy, keeping the membership
+		final UserOrg cached = published().getUsers().get("u");
+		Assertions.assertNotSame(dto, cached);
+		Assertions.assertEquals("F2", cached.getFirstName());
+		Assertions.assertEquals(Collections.singletonList("group"), cached.getGroups());
+		Assertions.assertSame(user, snapshot.getUsers().get("u"));
+		Assertions.assertEquals("f", user.getFirstName());
+	}
+
+	@Test
+	public void updateUserNotCached() {
+		final UserOrg dto = new UserOrg();
+		dto.setId("u3");
+		final LdapSnapshot snapshot = repository.getPublishedSnapshot();
+
+		repository.update(dto);
+
+		// Nothing to publish
+		Mockito.verify(repository.ldapCacheDao).update(dto);
+		Assertions.assertSame(snapshot, repository.getPublishedSnapshot());
+	}
+
 	@Test
 	public void deleteGroup() {
 		Assertions.assertTrue(groups.containsKey("group"));
 		Assertions.assertTrue(user.getGroups().contains("group"));
 
+		repository.getLdapData();
+		repository.delete(groups.get("group"));
+
+		Assertions.assertFalse(published().getGroups().containsKey("group"));
+		Assertions.assertFalse(published().getUsers().get("u").getGroups().contains("group"));
+		Assertions.assertTrue(user.getGroups().contains("group"));
+	}
+
+	@Test
+	public void deleteGroupDepartment() {
+		Mockito.when(groupRepository.findAllNoCache(ArgumentMatchers.anyMap())).then(i -> {
+			final Map<String, Set<String>> departments = i.getArgument(0);
+			departments.put("group", Collections.singleton("D1"));
+			return groups;
+		});
+		Assertions.assertEquals("group", repository.getSnapshot().getGroupByDepartment("d1"));
+
 		repository.delete(groups.get("group"));
 
-		Assertions.assertFalse(groups.containsKey("group"));
-		Assertions.assertFalse(user.getGroups().contains("group"));
+		// The department is removed with its group
+		Assertions.assertNull(published().getGroupByDepartment("d1"));
+		Assertions.assertTrue(published().getDepartments().isEmpty());
 	}
 
 	@Test
@@ -250,9 +886,18 @@ public class LdapCacheRepositoryTest extends AbstractDataGeneratorTest {
 		Assertions.assertEquals(1, user.getGroups().size());
 		Assertions.assertTrue(users.containsKey("u"));
 
+		repository.getLdapData();
 		repository.delete(user);
 
 		Mockito.verify(repository.ldapCacheDao).delete(user);
-		Assertions.assertFalse(users.containsKey("u"));
+		Assertions.assertFalse(published().getUsers().containsKey("u"));
+	}
+
+	/**
+	 * Return the published snapshot without reloading it.
+	 */
+	private LdapSnapshot published() {
+		repository.self = Mockito.mock(LdapCacheRepository.class);
+		return repository.getSnapshot();
 	}
 }
@@ -0,0 +1,169 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.HasControls;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.UserOrg;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.ldap.core.DirContextOperations;
+
+/**
+ * Test class of {@link LdapChangeListener}
+ */
+public class LdapChangeListenerTest {
+
+	private static final byte[] ADD = { 0x30, 0x07, 0x0A, 0x01, 0x01, 0x04, 0x02, 'i', 'd' };
+
+	private static final byte[] DELETE = { 0x30, 0x0A, 0x0A, 0x01, 0x03, 0x04, 0x02, 'i', 'd', 0x04, 0x01, 'c' };
+
+	private UserLdapRepository userRepository;
+
+	private LdapCacheRepository cacheRepository;
+
+	private LdapChangeListener listener;
+
+	@BeforeEach
+	public void init() {
+		userRepository = Mockito.mock(UserLdapRepository.class);
+		final GroupLdapRepository groupRepository = Mockito.mock(GroupLdapRepository.class);
+		final CompanyLdapRepository companyRepository = Mockito.mock(CompanyLdapRepository.class);
+		cacheRepository = Mockito.mock(LdapCacheRepository.class);
+		Mockito.when(userRepository.getPeopleBaseDn()).thenReturn("ou=people,dc=sample");
+		Mockito.when(userRepository.getPeopleClass()).thenReturn("inetOrgPerson");
+		Mockito.when(groupRepository.getGroupsBaseDn()).thenReturn("ou=groups,dc=sample");
+		Mockito.when(companyRepository.getCompanyBaseDn()).thenReturn("ou=people,dc=sample");
+		Mockito.when(userRepository.mapUser(ArgumentMatchers.any())).then(i -> {
+			final UserOrg user = new UserOrg();
+			user.setId(((DirContextOperations) i.getArgument(0)).getStringAttribute("uid"));
+			user.setGroups(new ArrayList<>());
+			return user;
+		});
+		listener = new LdapChangeListener(userRepository, groupRepository, companyRepository, cacheRepository);
+	}
+
+	@Test
+	public void onEntry() throws NamingException {
+		listener.onEntry("", newUser("u1", ADD));
+		Mockito.verify(cacheRepository).onChange(ArgumentMatchers.same(userRepository),
+				ArgumentMatchers.argThat(u -> u.containsKey("u1")), ArgumentMatchers.anyMap(),
+				ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap());
+	}
+
+	@Test
+	public void onEntryRefresh() throws NamingException {
+		listener.startRefresh();
+		listener.onEntry("", newUser("u1", ADD));
+		listener.onEntry("", newUser("u2", ADD));
+		listener.onEntry("", newUser("u1", ADD));
+
+		// The entries of the refresh phase are buffered
+		Mockito.verify(cacheRepository, Mockito.never()).onChange(ArgumentMatchers.any(), ArgumentMatchers.anyMap(),
+				ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap());
+
+		// Then applied as a single change
+		listener.endRefresh();
+		Mockito.verify(cacheRepository).onChange(ArgumentMatchers.same(userRepository),
+				ArgumentMatchers.<Map<String, UserOrg>>argThat(u -> u.keySet().size() == 2),
+				ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap());
+
+		// The next entries are applied immediately
+		listener.onEntry("", newUser("u3", ADD));
+		Mockito.verify(cacheRepository, Mockito.times(2)).onChange(ArgumentMatchers.any(), ArgumentMatchers.anyMap(),
+				ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap());
+	}
+
+	@Test
+	public void onEntryRefreshDelete() throws NamingException {
+		listener.startRefresh();
+		listener.onEntry("", newUser("u1", ADD));
+		listener.onEntry("", newUser("u1", DELETE));
+
+		// The buffered changes are applied before the deletion
+		final org.mockito.InOrder order = Mockito.inOrder(cacheRepository);
+		order.verify(cacheRepository).onChange(ArgumentMatchers.any(), ArgumentMatchers.anyMap(),
+				ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap());
+		order.verify(cacheRepository).onDelete(userRepository, "uid=u1,ou=people,dc=sample");
+		Assertions.assertArrayEquals(new byte[] { 'c' }, listener.getCookie());
+	}
+
+	@Test
+	public void onEntryRefreshQuiet() throws NamingException {
+		listener.setRefreshQuietDelay(50);
+		listener.start();
+		try {
+			listener.startRefresh();
+			listener.onEntry("", newUser("u1", ADD));
+
+			// The refresh phase ends when no entry is received
+			Mockito.verify(cacheRepository, Mockito.timeout(5000)).onChange(ArgumentMatchers.any(),
+					ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap(), ArgumentMatchers.anyMap(),
+					ArgumentMatchers.anyMap());
+		} finally {
+			listener.stop();
+		}
+	}
+
+	@Test
+	public void resume() {
+		final LdapChangeListener previous = new LdapChangeListener(userRepository,
+				Mockito.mock(GroupLdapRepository.class), Mockito.mock(CompanyLdapRepository.class), cacheRepository);
+		previous.setCookie(new byte[] { 'c' });
+
+		// Not the same base DN
+		listener.resume(previous);
+		Assertions.assertNull(listener.getCookie());
+
+		final GroupLdapRepository groupRepository = Mockito.mock(GroupLdapRepository.class);
+		final CompanyLdapRepository companyRepository = Mockito.mock(CompanyLdapRepository.class);
+		Mockito.when(groupRepository.getGroupsBaseDn()).thenReturn("ou=groups,dc=sample");
+		Mockito.when(companyRepository.getCompanyBaseDn()).thenReturn("ou=people,dc=sample");
+		final LdapChangeListener same = new LdapChangeListener(userRepository, groupRepository, companyRepository,
+				cacheRepository);
+		same.setCookie(new byte[] { 'c' });
+		listener.resume(same);
+		Assertions.assertArrayEquals(new byte[] { 'c' }, listener.getCookie());
+	}
+
+	private SearchResult newUser(final String uid, final byte[] state) {
+		final BasicAttributes attributes = new BasicAttributes(true);
+		attributes.put("objectClass", "inetOrgPerson");
+		attributes.put("uid", uid);
+		return new Entry("uid=" + uid + ",ou=people,dc=sample", attributes,
+				new Control[] { new BasicControl(LdapSyncControls.SYNC_STATE_OID, false, state) });
+	}
+
+	/**
+	 * Search result with the response controls.
+	 */
+	private static class Entry extends SearchResult implements HasControls {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Control[] controls;
+
+		private Entry(final String name, final BasicAttributes attributes, final Control[] controls) {
+			super(name, null, attributes);
+			this.controls = controls;
+		}
+
+		@Override
+		public Control[] getControls() {
+			return controls;
+		}
+	}
+}
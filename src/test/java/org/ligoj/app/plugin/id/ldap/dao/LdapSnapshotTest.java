@@ -0,0 +1,223 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.CompanyOrg;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+import org.ligoj.app.plugin.id.ldap.dao.LdapCacheRepository.LdapData;
+
+/**
+ * Test class of {@link LdapSnapshot}
+ */
+public class LdapSnapshotTest {
+
+	@Test
+	public void readOnly() {
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		companies.put("company", new CompanyOrg("dnc", "Company"));
+		final LdapSnapshot snapshot = new LdapSnapshot(1, companies, new HashMap<>(), new HashMap<>());
+		Assertions.assertEquals(1, snapshot.getVersion());
+		Assertions.assertSame(snapshot.getCompanies(), snapshot.getData().get(LdapData.COMPANY));
+		Assertions.assertSame(snapshot.getGroups(), snapshot.getData().get(LdapData.GROUP));
+		Assertions.assertSame(snapshot.getUsers(), snapshot.getData().get(LdapData.USER));
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getCompanies().remove("company"));
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getUsers().put("u", new UserOrg()));
+		Assertions.assertThrows(UnsupportedOperationException.class, () -> snapshot.getData().remove(LdapData.USER));
+	}
+
+	@Test
+	public void withCompanies() {
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), new HashMap<>());
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		companies.put("company", new CompanyOrg("dnc", "Company"));
+
+		final LdapSnapshot snapshot2 = snapshot.withCompanies(companies);
+		Assertions.assertEquals(2, snapshot2.getVersion());
+		Assertions.assertTrue(snapshot2.getCompanies().containsKey("company"));
+		Assertions.assertTrue(snapshot.getCompanies().isEmpty());
+		Assertions.assertSame(snapshot.getGroups(), snapshot2.getGroups());
+		Assertions.assertSame(snapshot.getUsers(), snapshot2.getUsers());
+	}
+
+	@Test
+	public void with() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), users);
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("group", new GroupOrg("dn", "Group", new HashSet<>()));
+
+		// Unchanged users map is not wrapped again
+		final LdapSnapshot snapshot2 = snapshot.with(groups, snapshot.getUsers());
+		Assertions.assertEquals(2, snapshot2.getVersion());
+		Assertions.assertTrue(snapshot2.getGroups().containsKey("group"));
+		Assertions.assertTrue(snapshot.getGroups().isEmpty());
+		Assertions.assertSame(snapshot.getUsers(), snapshot2.getUsers());
+		Assertions.assertSame(snapshot.getCompanies(), snapshot2.getCompanies());
+	}
+
+	@Test
+	public void getMembership() {
+		final UserOrg user = new UserOrg();
+		user.setId("u");
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(),
+				Collections.singletonMap("u", user));
+
+		// Built once for this version
+		Assertions.assertSame(snapshot.getMembership(), snapshot.getMembership());
+
+		// Derived by the next versions
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("group", new GroupOrg("cn=group", "Group", Collections.singleton("u")));
+		final LdapSnapshot snapshot2 = snapshot.withCompanies(new HashMap<>()).with(groups, snapshot.getUsers());
+		Assertions.assertNotSame(snapshot.getMembership(), snapshot2.getMembership());
+		Assertions.assertTrue(snapshot2.getMembership().isMember("u", "group"));
+		Assertions.assertFalse(snapshot.getMembership().isMember("u", "group"));
+	}
+
+	@Test
+	public void getTrie() {
+		final Map<String, CompanyOrg> companies = new HashMap<>();
+		companies.put("company", new CompanyOrg("ou=company,dc=sample", "Company"));
+		final LdapSnapshot snapshot = new LdapSnapshot(1, companies, new HashMap<>(), new HashMap<>());
+		Assertions.assertSame(companies.get("company"), snapshot.getCompanyTrie().get("ou=company,dc=sample"));
+		Assertions.assertNull(snapshot.getGroupTrie().get("ou=company,dc=sample"));
+
+		// Shared by the next versions when the data is unchanged
+		final LdapSnapshot snapshot2 = snapshot.with(snapshot.getGroups(), new HashMap<>());
+		Assertions.assertSame(snapshot.getCompanyTrie(), snapshot2.getCompanyTrie());
+		Assertions.assertSame(snapshot.getGroupTrie(), snapshot2.getGroupTrie());
+		Assertions.assertNotSame(snapshot.getGroupTrie(), snapshot2.with(new HashMap<>(), new HashMap<>()).getGroupTrie());
+		Assertions.assertNotSame(snapshot.getCompanyTrie(), snapshot2.withCompanies(new HashMap<>()).getCompanyTrie());
+	}
+
+	@Test
+	public void getAttributeIndex() {
+		final UserOrg user = new UserOrg();
+		user.setId("user");
+		user.setDepartment("D1");
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("user", user);
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), users);
+		final UserAttributeIndex index = snapshot.getAttributeIndex("department",
+				u -> Collections.singleton(u.getDepartment()));
+		Assertions.assertEquals(Collections.singletonList("user"), index.find("d1"));
+
+		// Shared by the next versions when the users are unchanged
+		Assertions.assertSame(index, snapshot.getAttributeIndex("department", null));
+		Assertions.assertSame(index, snapshot.withCompanies(new HashMap<>()).getAttributeIndex("department", null));
+		Assertions.assertSame(index,
+				snapshot.with(new HashMap<>(), snapshot.getUsers()).getAttributeIndex("department", null));
+
+		// Built again for the updated users
+		final UserAttributeIndex index2 = snapshot.withUser(user).getAttributeIndex("department",
+				u -> Collections.singleton(u.getDepartment()));
+		Assertions.assertNotSame(index, index2);
+		Assertions.assertEquals(Collections.singletonList("user"), index2.find("D1"));
+	}
+
+	@Test
+	public void withUserIndexes() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		Arrays.asList("u1", "u2", "u3", "u4").forEach(id -> users.put(id, newUser(id, "D" + id)));
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), users);
+		final Comparator<UserOrg> comparator = Comparator.comparing(UserOrg::getDepartment);
+		snapshot.getSortedUsers(comparator);
+		final UserAttributeIndex index = snapshot.getAttributeIndex("department",
+				u -> Collections.singleton(u.getDepartment()));
+
+		// Moved, added and removed users
+		final LdapSnapshot snapshot2 = snapshot.withUser(newUser("u1", "Du9")).withUser(newUser("u0", "Du25"))
+				.withoutUser("u3");
+		Assertions.assertEquals(Arrays.asList("u2", "u0", "u4", "u1"), toIds(snapshot2.getSortedUsers(comparator)));
+		final UserAttributeIndex index2 = snapshot2.getAttributeIndex("department", null);
+		Assertions.assertNotNull(index2);
+		Assertions.assertEquals(Collections.singletonList("u1"), index2.find("du9"));
+		Assertions.assertEquals(Collections.singletonList("u0"), index2.find("du25"));
+		Assertions.assertTrue(index2.find("du1").isEmpty());
+		Assertions.assertTrue(index2.find("du3").isEmpty());
+		Assertions.assertEquals(Collections.singletonList("u2"), index2.find("du2"));
+
+		// The previous version is unchanged
+		Assertions.assertEquals(Arrays.asList("u1", "u2", "u3", "u4"), toIds(snapshot.getSortedUsers(comparator)));
+		Assertions.assertEquals(Collections.singletonList("u1"), index.find("du1"));
+		Assertions.assertTrue(index.find("du9").isEmpty());
+	}
+
+	@Test
+	public void withUsers() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u1", newUser("u1", "D1"));
+		users.put("u2", newUser("u2", "D2"));
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), users);
+		final Comparator<UserOrg> comparator = Comparator.comparing(UserOrg::getDepartment);
+		snapshot.getSortedUsers(comparator);
+		final UserSearchIndex index = snapshot.getSearchIndex();
+
+		// Only the membership has changed, the indexes are shared
+		final Map<String, UserOrg> users2 = new HashMap<>(users);
+		users2.put("u2", newUser("u2", "D2"));
+		final LdapSnapshot snapshot2 = snapshot.withUsers(new HashMap<>(), users2, Collections.emptyList(), null);
+		Assertions.assertSame(index, snapshot2.getSearchIndex());
+
+		// The changed user is indexed again
+		final Map<String, UserOrg> users3 = new HashMap<>(users2);
+		final UserOrg changed = newUser("u1", "D3");
+		changed.setFirstName("Zoe");
+		users3.put("u1", changed);
+		final LdapSnapshot snapshot3 = snapshot2.withUsers(new HashMap<>(), users3, Collections.singleton("u1"),
+				Collections.singletonMap("group", Collections.singleton("D3")));
+		Assertions.assertEquals(Collections.singleton("u1"), snapshot3.getSearchIndex().find("zoe"));
+		Assertions.assertEquals(Arrays.asList("u2", "u1"), toIds(snapshot3.getSortedUsers(comparator)));
+		Assertions.assertEquals("group", snapshot3.getGroupByDepartment("d3"));
+		Assertions.assertTrue(index.find("zoe").isEmpty());
+	}
+
+	@Test
+	public void getGroupByDepartment() {
+		final Map<String, Set<String>> departments = new HashMap<>();
+		departments.put("group2", new HashSet<>(Arrays.asList("D1", "D2")));
+		departments.put("group1", Collections.singleton("d1"));
+		departments.put("group3", Collections.emptySet());
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), new HashMap<>(), new HashMap<>(),
+				departments);
+
+		// The lowest group identifier is used for a shared department
+		Assertions.assertEquals("group1", snapshot.getGroupByDepartment("D1"));
+		Assertions.assertEquals("group2", snapshot.getGroupByDepartment("d2"));
+		Assertions.assertNull(snapshot.getGroupByDepartment("d3"));
+		Assertions.assertNull(snapshot.getGroupByDepartment(null));
+
+		// Shared by the next versions when the departments are unchanged
+		final LdapSnapshot snapshot2 = snapshot.with(new HashMap<>(), new HashMap<>());
+		Assertions.assertSame(snapshot.getDepartmentIndex(), snapshot2.getDepartmentIndex());
+		Assertions.assertSame(snapshot.getDepartmentIndex(),
+				snapshot2.withCompanies(new HashMap<>()).getDepartmentIndex());
+		Assertions.assertEquals("group2", snapshot2.with(new HashMap<>(), new HashMap<>(),
+				Collections.singletonMap("group2", Collections.singleton("D1"))).getGroupByDepartment("d1"));
+	}
+
+	private UserOrg newUser(final String id, final String department) {
+		final UserOrg user = new UserOrg();
+		user.setId(id);
+		user.setDepartment(department);
+		return user;
+	}
+
+	private List<String> toIds(final List<UserOrg> users) {
+		return users.stream().map(UserOrg::getId).collect(Collectors.toList());
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.plugin.id.ldap.dao.LdapSyncControls.Change;
+import org.ligoj.app.plugin.id.ldap.dao.LdapSyncControls.ChangeType;
+
+/**
+ * Test class of {@link LdapSyncControls}
+ */
+public class LdapSyncControlsTest {
+
+	@Test
+	public void newSyncRequest() {
+		final Control control = LdapSyncControls.newSyncRequest(null);
+		Assertions.assertEquals(LdapSyncControls.SYNC_REQUEST_OID, control.getID());
+		Assertions.assertTrue(control.isCritical());
+		Assertions.assertArrayEquals(new byte[] { 0x30, 0x03, 0x0A, 0x01, 0x03 }, control.getEncodedValue());
+	}
+
+	@Test
+	public void newSyncRequestCookie() {
+		final Control control = LdapSyncControls.newSyncRequest(new byte[] { 'c' });
+		Assertions.assertArrayEquals(new byte[] { 0x30, 0x06, 0x0A, 0x01, 0x03, 0x04, 0x01, 'c' },
+				control.getEncodedValue());
+	}
+
+	@Test
+	public void newSyncRequestLongCookie() {
+		final byte[] cookie = new byte[300];
+		final byte[] value = LdapSyncControls.newSyncRequest(cookie).getEncodedValue();
+
+		// Long form of the lengths : 3 + 4 + 300 bytes
+		Assertions.assertArrayEquals(new byte[] { 0x30, (byte) 0x82, 0x01, 0x33, 0x0A, 0x01, 0x03, 0x04, (byte) 0x82,
+				0x01, 0x2C }, Arrays.copyOf(value, 11));
+		Assertions.assertEquals(311, value.length);
+	}
+
+	@Test
+	public void newPersistentSearch() {
+		final Control control = LdapSyncControls.newPersistentSearch();
+		Assertions.assertEquals(LdapSyncControls.PERSISTENT_SEARCH_OID, control.getID());
+		Assertions.assertTrue(control.isCritical());
+		Assertions.assertArrayEquals(
+				new byte[] { 0x30, 0x09, 0x02, 0x01, 0x0F, 0x01, 0x01, (byte) 0xFF, 0x01, 0x01, (byte) 0xFF },
+				control.getEncodedValue());
+	}
+
+	@Test
+	public void toChangeNull() {
+		Assertions.assertNull(LdapSyncControls.toChange(null));
+		Assertions.assertNull(
+				LdapSyncControls.toChange(new Control[] { new BasicControl("1.2.3", false, new byte[0]) }));
+	}
+
+	@Test
+	public void toChangeSyncState() {
+		final Change change = LdapSyncControls.toChange(new Control[] { new BasicControl(
+				LdapSyncControls.SYNC_STATE_OID, false,
+				new byte[] { 0x30, 0x0A, 0x0A, 0x01, 0x03, 0x04, 0x02, 'i', 'd', 0x04, 0x01, 'c' }) });
+		Assertions.assertEquals(ChangeType.DELETE, change.getType());
+		Assertions.assertNull(change.getPreviousDn());
+		Assertions.assertArrayEquals(new byte[] { 'c' }, change.getCookie());
+	}
+
+	@Test
+	public void toChangeSyncStateNoCookie() {
+		final Change change = LdapSyncControls.toChange(new Control[] { new BasicControl(
+				LdapSyncControls.SYNC_STATE_OID, false,
+				new byte[] { 0x30, 0x07, 0x0A, 0x01, 0x01, 0x04, 0x02, 'i', 'd' }) });
+		Assertions.assertEquals(ChangeType.ADD, change.getType());
+		Assertions.assertNull(change.getCookie());
+	}
+
+	@Test
+	public void toChangeEntryChange() {
+		Assertions.assertEquals(ChangeType.ADD, toEntryChange(1).getType());
+		Assertions.assertEquals(ChangeType.DELETE, toEntryChange(2).getType());
+		Assertions.assertEquals(ChangeType.MODIFY, toEntryChange(4).getType());
+		final Change change = LdapSyncControls.toChange(new Control[] { new BasicControl(
+				LdapSyncControls.ENTRY_CHANGE_OID, false,
+				new byte[] { 0x30, 0x08, 0x0A, 0x01, 0x08, 0x04, 0x03, 'o', 'u', '=' }) });
+		Assertions.assertEquals(ChangeType.MODDN, change.getType());
+		Assertions.assertEquals("ou=", change.getPreviousDn());
+		Assertions.assertNull(change.getCookie());
+	}
+
+	@Test
+	public void toChangeInvalid() {
+		final Control[] controls = new Control[] {
+				new BasicControl(LdapSyncControls.ENTRY_CHANGE_OID, false, new byte[] { 0x04, 0x00 }) };
+		Assertions.assertThrows(IllegalArgumentException.class, () -> LdapSyncControls.toChange(controls));
+	}
+
+	private Change toEntryChange(final int type) {
+		return LdapSyncControls.toChange(new Control[] { new BasicControl(LdapSyncControls.ENTRY_CHANGE_OID, false,
+				new byte[] { 0x30, 0x03, 0x0A, 0x01, (byte) type }) });
+	}
+}
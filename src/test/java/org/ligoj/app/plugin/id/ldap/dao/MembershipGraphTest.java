@@ -0,0 +1,150 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link MembershipGraph}
+ */
+public class MembershipGraphTest {
+
+	private MembershipGraph graph;
+
+	private Map<String, UserOrg> users;
+
+	private Map<String, GroupOrg> groups;
+
+	@BeforeEach
+	public void init() {
+		users = new HashMap<>();
+		Arrays.asList("u1", "u2", "u3").forEach(id -> {
+			final UserOrg user = new UserOrg();
+			user.setId(id);
+			users.put(id, user);
+		});
+		groups = new HashMap<>();
+		final GroupOrg group1 = new GroupOrg("cn=g1", "g1", new HashSet<>(Arrays.asList("u1", "u2", "unknown")));
+		group1.setSubGroups(new HashSet<>(Arrays.asList("g2", "unknown")));
+		groups.put("g1", group1);
+		groups.put("g2", new GroupOrg("cn=g2", "g2", new HashSet<>(Arrays.asList("u2", "u3"))));
+		groups.put("g3", new GroupOrg("cn=g3", "g3", new HashSet<>()));
+		graph = new MembershipGraph(groups, users);
+	}
+
+	@Test
+	public void isMember() {
+		Assertions.assertTrue(graph.isMember("u1", "g1"));
+		Assertions.assertFalse(graph.isMember("u3", "g1"));
+		Assertions.assertFalse(graph.isMember("unknown", "g1"));
+		Assertions.assertFalse(graph.isMember("u1", "unknown"));
+	}
+
+	@Test
+	public void countMembers() {
+		Assertions.assertEquals(2, graph.countMembers("g1"));
+		Assertions.assertEquals(0, graph.countMembers("g3"));
+		Assertions.assertEquals(0, graph.countMembers("unknown"));
+	}
+
+	@Test
+	public void getMembers() {
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("u1", "u2")),
+				new HashSet<>(graph.toUsers(graph.getMembers("g1"))));
+		Assertions.assertTrue(graph.getMembers("unknown").isEmpty());
+
+		// The returned bitmap is a copy
+		graph.getMembers("g1").clear();
+		Assertions.assertEquals(2, graph.countMembers("g1"));
+	}
+
+	@Test
+	public void getSubGroups() {
+		Assertions.assertEquals(Collections.singletonList("g2"), graph.toGroups(graph.getSubGroups("g1")));
+		Assertions.assertTrue(graph.getSubGroups("unknown").isEmpty());
+	}
+
+	@Test
+	public void getGroups() {
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("g1", "g2")),
+				new HashSet<>(graph.toGroups(graph.getGroups("u2"))));
+		Assertions.assertTrue(graph.getGroups("unknown").isEmpty());
+	}
+
+	@Test
+	public void union() {
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("u1", "u2", "u3")),
+				new HashSet<>(graph.toUsers(graph.union(Arrays.asList("g1", "g2", "unknown")))));
+		Assertions.assertTrue(graph.union(Collections.emptyList()).isEmpty());
+	}
+
+	@Test
+	public void intersection() {
+		Assertions.assertEquals(Collections.singletonList("u2"),
+				graph.toUsers(graph.intersection(Arrays.asList("g1", "g2"))));
+		Assertions.assertTrue(graph.intersection(Arrays.asList("g1", "unknown")).isEmpty());
+		Assertions.assertTrue(graph.intersection(Collections.emptyList()).isEmpty());
+	}
+
+	@Test
+	public void withGroup() {
+		final Map<String, GroupOrg> newGroups = new HashMap<>(groups);
+		newGroups.put("g2", new GroupOrg("cn=g2", "g2", new HashSet<>(Arrays.asList("u1", "u3"))));
+		newGroups.remove("g3");
+		newGroups.put("g4", new GroupOrg("cn=g4", "g4", new HashSet<>(Arrays.asList("u3", "u4"))));
+		final MembershipGraph graph2 = graph.with(newGroups, users);
+
+		// Replaced group, in both directions
+		Assertions.assertTrue(graph2.isMember("u1", "g2"));
+		Assertions.assertFalse(graph2.isMember("u2", "g2"));
+		Assertions.assertEquals(Collections.singletonList("g1"), graph2.toGroups(graph2.getGroups("u2")));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("g1", "g2")),
+				new HashSet<>(graph2.toGroups(graph2.getGroups("u1"))));
+
+		// Added and removed groups
+		Assertions.assertEquals(1, graph2.countMembers("g4"));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("g2", "g4")),
+				new HashSet<>(graph2.toGroups(graph2.getGroups("u3"))));
+		Assertions.assertTrue(graph2.getSubGroups("g3").isEmpty());
+
+		// The previous graph is unchanged
+		Assertions.assertTrue(graph.isMember("u2", "g2"));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("g1", "g2")),
+				new HashSet<>(graph.toGroups(graph.getGroups("u2"))));
+		Assertions.assertEquals(0, graph.countMembers("g4"));
+		Assertions.assertEquals(2, graph.getMembers("g2").cardinality());
+	}
+
+	@Test
+	public void withUser() {
+		final Map<String, UserOrg> newUsers = new HashMap<>(users);
+		newUsers.remove("u2");
+		final UserOrg user = new UserOrg();
+		user.setId("u4");
+		newUsers.put("u4", user);
+		final MembershipGraph graph2 = graph.with(groups, newUsers);
+
+		// Removed user, even from the unchanged groups
+		Assertions.assertFalse(graph2.isMember("u2", "g1"));
+		Assertions.assertEquals(Collections.singletonList("u1"), graph2.toUsers(graph2.getMembers("g1")));
+		Assertions.assertTrue(graph2.getGroups("u2").isEmpty());
+		Assertions.assertFalse(graph2.contains(graph2.union(Arrays.asList("g1", "g2")), "u2"));
+		Assertions.assertTrue(graph2.contains(graph2.union(Arrays.asList("g1", "g2")), "u3"));
+		Assertions.assertTrue(graph2.getGroups("u4").isEmpty());
+
+		// The previous graph is unchanged
+		Assertions.assertTrue(graph.isMember("u2", "g1"));
+		Assertions.assertFalse(graph.contains(graph.union(Collections.singleton("g1")), "u4"));
+	}
+}
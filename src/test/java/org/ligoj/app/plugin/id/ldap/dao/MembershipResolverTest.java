@@ -0,0 +1,170 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.api.Normalizer;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+import org.ligoj.app.plugin.id.DnUtils;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Test class of {@link MembershipResolver}
+ */
+@Slf4j
+public class MembershipResolverTest {
+
+	@Test
+	public void resolve() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		final UserOrg user = newUser(users, "u1", "uid=u1,ou=people,dc=sample");
+		final GroupOrg group = newGroup("UID=U1,OU=People,DC=Sample");
+
+		new MembershipResolver(users).resolve(group);
+		Assertions.assertEquals(Collections.singleton("u1"), group.getMembers());
+		Assertions.assertEquals(Collections.singletonList("group"), user.getGroups());
+	}
+
+	@Test
+	public void resolveBrokenDn() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		final UserOrg user = newUser(users, "u1", "uid=u1,ou=people,dc=sample");
+		final GroupOrg group = newGroup("uid=u1,ou=other,dc=sample");
+
+		// The member is still resolved from its RDN
+		new MembershipResolver(users).resolve(Collections.singleton(group));
+		Assertions.assertEquals(Collections.singleton("u1"), group.getMembers());
+		Assertions.assertEquals(Collections.singletonList("group"), user.getGroups());
+	}
+
+	@Test
+	public void resolveRdnNotIdentifier() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		final UserOrg user = newUser(users, "u1", "cn=john,ou=people,dc=sample");
+		final GroupOrg group = newGroup("cn=john,ou=people,dc=sample");
+
+		// This user is not indexed, the RDN does not match any identifier
+		new MembershipResolver(users).resolve(group);
+		Assertions.assertTrue(group.getMembers().isEmpty());
+		Assertions.assertTrue(user.getGroups().isEmpty());
+	}
+
+	@Test
+	public void resolveBrokenUid() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		newUser(users, "u1", "uid=u1,ou=people,dc=sample");
+		final GroupOrg group = newGroup(GroupLdapRepository.DEFAULT_MEMBER_DN, "uid=any,ou=people,dc=sample",
+				"uid=u1,ou=people,dc=sample");
+
+		new MembershipResolver(users).resolve(group);
+		Assertions.assertEquals(Collections.singleton("u1"), group.getMembers());
+	}
+
+	@Test
+	public void resolveLookup() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		final UserOrg user = newUser(users, "u1", "uid=u1,ou=people,dc=sample");
+		newUser(users, "u2", "uid=u2,ou=people,dc=sample");
+		final GroupOrg group = newGroup("uid=u1,ou=people,dc=sample", "uid=any,ou=people,dc=sample");
+
+		// Only the members are requested
+		final Set<String> requested = new HashSet<>();
+		new MembershipResolver(id -> {
+			requested.add(id);
+			return users.get(id);
+		}).resolve(group);
+		Assertions.assertEquals(Collections.singleton("u1"), group.getMembers());
+		Assertions.assertEquals(Collections.singletonList("group"), user.getGroups());
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("u1", "any")), requested);
+	}
+
+	/**
+	 * Compare the resolver with the previous implementation: a copy of the members, then a remove/add in the same set
+	 * and two DN normalizations for each member.
+	 */
+	@Test
+	@Tag("benchmark")
+	public void benchmark() {
+		final int userCount = 20000;
+		final int groupCount = 100;
+		final int memberCount = 2000;
+		final long legacy = benchmark(userCount, groupCount, memberCount, this::resolveLegacy);
+		final long resolver = benchmark(userCount, groupCount, memberCount,
+				(users, groups) -> new MembershipResolver(users).resolve(groups));
+		log.info("Membership of {} groups x {} members among {} users: legacy={}ms, resolver={}ms", groupCount,
+				memberCount, userCount, legacy, resolver);
+	}
+
+	private long benchmark(final int userCount, final int groupCount, final int memberCount,
+			final BiConsumer<Map<String, UserOrg>, List<GroupOrg>> resolver) {
+		final Map<String, UserOrg> users = new HashMap<>();
+		for (int i = 0; i < userCount; i++) {
+			newUser(users, "user" + i, "uid=user" + i + ",ou=people,dc=sample");
+		}
+		final List<GroupOrg> groups = new ArrayList<>();
+		for (int g = 0; g < groupCount; g++) {
+			final Set<String> members = new HashSet<>();
+			for (int m = 0; m < memberCount; m++) {
+				members.add("uid=user" + ((g * 7919 + m * 31) % userCount) + ",ou=people,dc=sample");
+			}
+			groups.add(new GroupOrg("cn=group" + g + ",ou=groups,dc=sample", "group" + g, members));
+		}
+
+		final long start = System.nanoTime();
+		resolver.accept(users, groups);
+		final long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+		// Both implementations produce the same membership
+		groups.forEach(g -> Assertions.assertEquals(memberCount, g.getMembers().size()));
+		Assertions.assertEquals(groupCount * memberCount,
+				users.values().stream().mapToInt(u -> u.getGroups().size()).sum());
+		return duration;
+	}
+
+	/**
+	 * The previous membership resolution of each group.
+	 */
+	private void resolveLegacy(final Map<String, UserOrg> users, final List<GroupOrg> groups) {
+		groups.forEach(groupLdap -> new ArrayList<>(groupLdap.getMembers()).forEach(dn -> {
+			final String uid = DnUtils.toRdn(dn);
+			groupLdap.getMembers().remove(dn);
+			final UserOrg user = users.get(uid);
+			if (user != null) {
+				if (!Normalizer.normalize(dn).equals(Normalizer.normalize(user.getDn()))) {
+					Assertions.fail("Unexpected DN " + dn);
+				}
+				user.getGroups().add(groupLdap.getId());
+				groupLdap.getMembers().add(uid);
+			}
+		}));
+	}
+
+	private UserOrg newUser(final Map<String, UserOrg> users, final String id, final String dn) {
+		final UserOrg user = new UserOrg();
+		user.setId(id);
+		user.setDn(dn);
+		user.setGroups(new ArrayList<>());
+		users.put(id, user);
+		return user;
+	}
+
+	private GroupOrg newGroup(final String... members) {
+		return new GroupOrg("cn=group,ou=groups,dc=sample", "Group", new HashSet<>(Arrays.asList(members)));
+	}
+}
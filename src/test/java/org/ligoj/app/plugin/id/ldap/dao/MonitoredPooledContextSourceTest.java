@@ -0,0 +1,93 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool2.factory.PoolConfig;
+
+/**
+ * Test class of {@link MonitoredPooledContextSource}
+ */
+public class MonitoredPooledContextSourceTest {
+
+	@Test
+	public void borrow() throws Exception {
+		final PoolConfig config = new PoolConfig();
+		config.setMaxTotal(2);
+		config.setMaxTotalPerKey(2);
+		final MonitoredPooledContextSource pool = new MonitoredPooledContextSource(config);
+		final ContextSource target = Mockito.mock(ContextSource.class);
+		Mockito.when(target.getReadOnlyContext()).then(i -> Mockito.mock(LdapContext.class));
+		Mockito.when(target.getReadWriteContext()).then(i -> Mockito.mock(LdapContext.class));
+		pool.setContextSource(target);
+		Assertions.assertEquals(2, pool.getMaxTotal());
+		Assertions.assertEquals(0, pool.getMeanWaitMillis());
+
+		final DirContext context = pool.getReadOnlyContext();
+		Assertions.assertEquals(1, pool.getBorrowCount());
+		Assertions.assertEquals(0.5, pool.getUtilization());
+
+		// Released connections are back to the pool
+		pool.getReadWriteContext().close();
+		context.close();
+		Assertions.assertEquals(2, pool.getBorrowCount());
+		Assertions.assertEquals(0, pool.getUtilization());
+		Assertions.assertTrue(pool.getMeanWaitMillis() >= 0);
+		Assertions.assertTrue(pool.getMaxWaitMillis() >= 0);
+		pool.destroy();
+	}
+
+	@Test
+	public void close() throws Exception {
+		final MonitoredPooledContextSource pool = newPool();
+		final DirContext context = pool.getReadOnlyContext();
+		final Thread thread = new Thread(() -> {
+			try {
+				Thread.sleep(100);
+				context.close();
+			} catch (final Exception e) {
+				// Ignore
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+
+		// The borrowed connection is returned before the pool is closed
+		pool.close(10000);
+		Assertions.assertEquals(0, pool.getNumActive());
+	}
+
+	@Test
+	public void closeTimeout() throws Exception {
+		final MonitoredPooledContextSource pool = newPool();
+		pool.getReadOnlyContext();
+
+		// The borrowed connection is not waited after the timeout
+		pool.close(0);
+		Assertions.assertEquals(1, pool.getNumActive());
+	}
+
+	private MonitoredPooledContextSource newPool() {
+		final PoolConfig config = new PoolConfig();
+		config.setMaxTotal(2);
+		final MonitoredPooledContextSource pool = new MonitoredPooledContextSource(config);
+		final ContextSource target = Mockito.mock(ContextSource.class);
+		Mockito.when(target.getReadOnlyContext()).then(i -> Mockito.mock(LdapContext.class));
+		pool.setContextSource(target);
+		return pool;
+	}
+
+	@Test
+	public void getUtilizationNoLimit() {
+		final PoolConfig config = new PoolConfig();
+		config.setMaxTotal(-1);
+		Assertions.assertEquals(0, new MonitoredPooledContextSource(config).getUtilization());
+	}
+}
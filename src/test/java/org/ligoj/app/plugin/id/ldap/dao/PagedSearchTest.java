@@ -0,0 +1,82 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
+
+/**
+ * Test class of {@link PagedSearch}
+ */
+public class PagedSearchTest {
+
+	@Test
+	public void newControls() {
+		Assertions.assertNull(PagedSearch.newControls().getReturningAttributes());
+		Assertions.assertArrayEquals(new String[] { "cn" }, PagedSearch.newControls("cn").getReturningAttributes());
+		Assertions.assertEquals(SearchControls.SUBTREE_SCOPE, PagedSearch.newControls().getSearchScope());
+	}
+
+	@Test
+	public void searchNotPaged() {
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		Mockito.doAnswer(i -> {
+			final NameClassPairCallbackHandler handler = i.getArgument(3);
+			handler.handleNameClassPair(new SearchResult("cn=a", new DirContextAdapter("cn=a"), new BasicAttributes()));
+			handler.handleNameClassPair(new SearchResult("cn=b", new DirContextAdapter("cn=b"), new BasicAttributes()));
+			return null;
+		}).when(template).search(ArgumentMatchers.eq("dc=sample"), ArgumentMatchers.eq("(cn=*)"),
+				ArgumentMatchers.any(SearchControls.class), ArgumentMatchers.any(NameClassPairCallbackHandler.class));
+		final List<String> result = new ArrayList<>();
+		final SearchControls controls = PagedSearch.newControls();
+
+		PagedSearch.search(template, 0, "dc=sample", "(cn=*)", controls,
+				(Object ctx) -> ((DirContextAdapter) ctx).getDn().toString(), result::add);
+		Assertions.assertEquals(2, result.size());
+		Assertions.assertEquals("cn=a", result.get(0));
+		Assertions.assertEquals("cn=b", result.get(1));
+		Assertions.assertTrue(controls.getReturningObjFlag());
+	}
+
+	@SuppressWarnings("unchecked")
+	@Test
+	public void searchPaged() throws Exception {
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		final ContextSource contextSource = Mockito.mock(ContextSource.class);
+		final LdapContext context = Mockito.mock(LdapContext.class);
+		final NamingEnumeration<SearchResult> results = Mockito.mock(NamingEnumeration.class);
+		Mockito.when(template.getContextSource()).thenReturn(contextSource);
+		Mockito.when(contextSource.getReadOnlyContext()).thenReturn(context);
+		Mockito.when(context.search(ArgumentMatchers.eq("dc=sample"), ArgumentMatchers.eq("(cn=*)"),
+				ArgumentMatchers.any(SearchControls.class))).thenReturn(results);
+		final List<Object> result = new ArrayList<>();
+
+		PagedSearch.search(template, 100, "dc=sample", "(cn=*)", PagedSearch.newControls(), (Object ctx) -> ctx,
+				result::add);
+
+		// Only one page since there is no response cookie
+		Assertions.assertTrue(result.isEmpty());
+		Mockito.verify(context).setRequestControls(ArgumentMatchers.any(Control[].class));
+		Mockito.verify(context).search(ArgumentMatchers.eq("dc=sample"), ArgumentMatchers.eq("(cn=*)"),
+				ArgumentMatchers.any(SearchControls.class));
+		Mockito.verify(template, Mockito.never()).search(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.any(SearchControls.class), ArgumentMatchers.any(NameClassPairCallbackHandler.class));
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class of {@link ParallelFilter}
+ */
+public class ParallelFilterTest {
+
+	@Test
+	public void getChunks() {
+		final ForkJoinPool pool = ParallelFilter.newPool(4, "test");
+		try {
+			Assertions.assertEquals(1, ParallelFilter.getChunks(1000, 0, pool));
+			Assertions.assertEquals(1, ParallelFilter.getChunks(1000, -1, pool));
+			Assertions.assertEquals(1, ParallelFilter.getChunks(150, 100, pool));
+			Assertions.assertEquals(1, ParallelFilter.getChunks(1000, 100, null));
+			Assertions.assertEquals(4, ParallelFilter.getChunks(1000, 100, pool));
+			Assertions.assertEquals(3, ParallelFilter.getChunks(399, 100, pool));
+
+			// A shut down pool is no more used
+			pool.shutdown();
+			Assertions.assertEquals(1, ParallelFilter.getChunks(1000, 100, pool));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void newPool() {
+		final ForkJoinPool pool = ParallelFilter.newPool(0, "test");
+		try {
+			Assertions.assertEquals(Runtime.getRuntime().availableProcessors(), pool.getParallelism());
+			Assertions.assertTrue(pool.submit(() -> Thread.currentThread().getName()).join().startsWith("test-"));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void filter() {
+		final List<Integer> items = IntStream.range(0, 10000).boxed().collect(Collectors.toList());
+		final List<Integer> expected = items.stream().filter(i -> i % 3 == 0).collect(Collectors.toList());
+		final ForkJoinPool pool = ParallelFilter.newPool(4, "test");
+		try {
+			Assertions.assertEquals(expected, ParallelFilter.filter(items, i -> i % 3 == 0, 100, pool));
+			Assertions.assertEquals(expected, ParallelFilter.filter(items, i -> i % 3 == 0, 0, pool));
+			Assertions.assertEquals(expected, ParallelFilter.filter(items, i -> i % 3 == 0, 100, null));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void filterEmpty() {
+		Assertions.assertTrue(ParallelFilter.filter(Collections.<Integer>emptyList(), i -> true, 100, null).isEmpty());
+	}
+
+	@Test
+	public void sort() {
+		final List<Integer> items = new Random(42).ints(10000, 0, 5000).boxed().collect(Collectors.toList());
+		final List<Integer> expected = items.stream().filter(i -> i % 2 == 0).sorted(Comparator.reverseOrder())
+				.collect(Collectors.toList());
+		final ForkJoinPool pool = ParallelFilter.newPool(4, "test");
+		try {
+			Assertions.assertEquals(expected,
+					ParallelFilter.sort(items, i -> i % 2 == 0, Comparator.reverseOrder(), 100, pool));
+			Assertions.assertEquals(expected,
+					ParallelFilter.sort(items, i -> i % 2 == 0, Comparator.reverseOrder(), 0, pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void sortEmptyChunks() {
+		// Only the last chunk has matching items
+		final List<Integer> items = new ArrayList<>(IntStream.range(0, 1000).boxed().collect(Collectors.toList()));
+		final ForkJoinPool pool = ParallelFilter.newPool(4, "test");
+		try {
+			Assertions.assertEquals(Collections.singletonList(999),
+					ParallelFilter.sort(items, i -> i == 999, Comparator.naturalOrder(), 100, pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link SnapshotEditor}
+ */
+public class SnapshotEditorTest {
+
+	private UserOrg user;
+
+	private GroupOrg group;
+
+	private GroupOrg group2;
+
+	private LdapSnapshot snapshot;
+
+	@BeforeEach
+	public void init() {
+		user = new UserOrg();
+		user.setId("u");
+		user.setDn("uid=u,ou=company");
+		user.setFirstName("f");
+		user.setGroups(new ArrayList<>());
+		group = new GroupOrg("cn=group", "Group", new HashSet<>());
+		group2 = new GroupOrg("cn=group2", "Group2", new HashSet<>());
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u", user);
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("group", group);
+		groups.put("group2", group2);
+		snapshot = new LdapSnapshot(1, new HashMap<>(), groups, users);
+	}
+
+	@Test
+	public void link() {
+		final SnapshotEditor editor = new SnapshotEditor(snapshot);
+		editor.link("u", "group");
+		editor.linkGroup("group2", "group");
+		final LdapSnapshot snapshot2 = editor.publish();
+
+		// The published entries are copied
+		Assertions.assertEquals(2, snapshot2.getVersion());
+		Assertions.assertEquals(Collections.singletonList("group"), snapshot2.getUsers().get("u").getGroups());
+		Assertions.assertEquals(Collections.singleton("u"), snapshot2.getGroups().get("group").getMembers());
+		Assertions.assertEquals(Collections.singleton("group2"), snapshot2.getGroups().get("group").getSubGroups());
+		Assertions.assertEquals(Collections.singleton("group"), snapshot2.getGroups().get("group2").getGroups());
+		Assertions.assertEquals("f", snapshot2.getUsers().get("u").getFirstName());
+		Assertions.assertEquals("uid=u,ou=company", snapshot2.getUsers().get("u").getDn());
+
+		// The previous version is unchanged
+		Assertions.assertTrue(user.getGroups().isEmpty());
+		Assertions.assertTrue(group.getMembers().isEmpty());
+		Assertions.assertTrue(group.getSubGroups().isEmpty());
+		Assertions.assertTrue(group2.getGroups().isEmpty());
+		Assertions.assertSame(user, snapshot.getUsers().get("u"));
+	}
+
+	@Test
+	public void unlink() {
+		final SnapshotEditor editor = new SnapshotEditor(snapshot);
+		editor.link("u", "group");
+		editor.linkGroup("group2", "group");
+		final LdapSnapshot snapshot2 = editor.publish();
+
+		final SnapshotEditor editor2 = new SnapshotEditor(snapshot2);
+		editor2.unlink("u", "group");
+		editor2.unlinkGroup("group2", "group");
+
+		// Unknown entries are ignored
+		editor2.unlink("any", "group");
+		editor2.unlinkGroup("group2", "any");
+		final LdapSnapshot snapshot3 = editor2.publish();
+		Assertions.assertTrue(snapshot3.getUsers().get("u").getGroups().isEmpty());
+		Assertions.assertTrue(snapshot3.getGroups().get("group").getMembers().isEmpty());
+		Assertions.assertTrue(snapshot3.getGroups().get("group").getSubGroups().isEmpty());
+		Assertions.assertEquals(Collections.singleton("u"), snapshot2.getGroups().get("group").getMembers());
+	}
+
+	@Test
+	public void publishUnchanged() {
+		final LdapSnapshot snapshot2 = new SnapshotEditor(snapshot).publish();
+		Assertions.assertSame(snapshot.getGroups(), snapshot2.getGroups());
+		Assertions.assertSame(snapshot.getUsers(), snapshot2.getUsers());
+	}
+
+	@Test
+	public void publishMembershipIndexes() {
+		final UserSearchIndex index = snapshot.getSearchIndex();
+		final SnapshotEditor editor = new SnapshotEditor(snapshot);
+		editor.link("u", "group");
+		final LdapSnapshot snapshot2 = editor.publish();
+
+		// Only the membership has changed, the indexes of the users are kept
+		Assertions.assertSame(index, snapshot2.getSearchIndex());
+		Assertions.assertSame(snapshot2.getUsers().get("u"), snapshot2.getUserByDn("uid=u,ou=company"));
+		Assertions.assertSame(snapshot2.getUsers().get("u"),
+				snapshot2.getSortedUsers(UserLdapRepository.DEFAULT_COMPARATOR).get(0));
+	}
+
+	@Test
+	public void put() {
+		final SnapshotEditor editor = new SnapshotEditor(snapshot);
+		final UserOrg user2 = new UserOrg();
+		user2.setId("u");
+		user2.setGroups(new ArrayList<>());
+		editor.put(user2);
+
+		// The new instance is not copied again
+		editor.link("u", "group");
+		Assertions.assertSame(user2, editor.getUsers().get("u"));
+		Assertions.assertEquals(Collections.singletonList("group"), user2.getGroups());
+		Assertions.assertNull(editor.getUser("any"));
+		Assertions.assertNull(editor.getGroup("any"));
+	}
+}
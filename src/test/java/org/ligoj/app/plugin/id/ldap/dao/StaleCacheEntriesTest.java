@@ -0,0 +1,48 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link StaleCacheEntries}
+ */
+public class StaleCacheEntriesTest {
+
+	@Test
+	public void isEmpty() {
+		Assertions.assertTrue(new StaleCacheEntries(Collections.emptySet(), Collections.emptySet(),
+				Collections.emptySet()).isEmpty());
+		Assertions.assertFalse(new StaleCacheEntries(Collections.emptySet(), Collections.emptySet(),
+				Collections.singleton("u")).isEmpty());
+	}
+
+	@Test
+	public void without() {
+		final Map<String, GroupOrg> groups = new HashMap<>();
+		groups.put("g", new GroupOrg("cn=g", "G", new HashSet<>()));
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u", new UserOrg());
+		final LdapSnapshot snapshot = new LdapSnapshot(1, new HashMap<>(), groups, users);
+		final StaleCacheEntries stale = new StaleCacheEntries(Collections.singleton("c"), Collections.singleton("g"),
+				new HashSet<>(Arrays.asList("u", "u2")));
+
+		final StaleCacheEntries result = stale.without(snapshot);
+		Assertions.assertEquals(Collections.singleton("c"), result.getCompanies());
+		Assertions.assertTrue(result.getGroups().isEmpty());
+		Assertions.assertEquals(Collections.singleton("u2"), result.getUsers());
+
+		// The original entries are unchanged
+		Assertions.assertEquals(2, stale.getUsers().size());
+	}
+}
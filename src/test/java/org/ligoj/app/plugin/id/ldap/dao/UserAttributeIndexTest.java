@@ -0,0 +1,89 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.UserOrg;
+
+/**
+ * Test class of {@link UserAttributeIndex}
+ */
+public class UserAttributeIndexTest {
+
+	@Test
+	public void find() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u1", newUser("u1", "u1@sample.com", "Shared@sample.com", "U1@SAMPLE.COM"));
+		users.put("u2", newUser("u2", "shared@sample.com"));
+		users.put("u3", newUser("u3"));
+		final UserOrg noMail = new UserOrg();
+		noMail.setId("u4");
+		users.put("u4", noMail);
+		final UserAttributeIndex index = new UserAttributeIndex(users, UserOrg::getMails);
+
+		// Each user is listed once, whatever the case of its values
+		Assertions.assertEquals(Collections.singletonList("u1"), index.find("u1@sample.com"));
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("u1", "u2")),
+				new HashSet<>(index.find("SHARED@sample.com")));
+		Assertions.assertTrue(index.find("any").isEmpty());
+	}
+
+	@Test
+	public void findNullValue() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u1", new UserOrg());
+		final UserAttributeIndex index = new UserAttributeIndex(users,
+				u -> Collections.singletonList(u.getDepartment()));
+		Assertions.assertTrue(index.find("null").isEmpty());
+	}
+
+	@Test
+	public void with() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		final UserOrg u1 = newUser("u1", "u1@sample.com", "shared@sample.com");
+		users.put("u1", u1);
+		users.put("u2", newUser("u2", "shared@sample.com"));
+		final UserAttributeIndex index = new UserAttributeIndex(users, UserOrg::getMails);
+
+		final UserAttributeIndex index2 = index.with("u1", u1, newUser("u1", "U1@sample.com", "new@sample.com"))
+				.with("u3", null, newUser("u3", "shared@sample.com")).with("u2", users.get("u2"), null);
+		Assertions.assertEquals(Collections.singletonList("u1"), index2.find("u1@sample.com"));
+		Assertions.assertEquals(Collections.singletonList("u1"), index2.find("new@sample.com"));
+		Assertions.assertEquals(Collections.singletonList("u3"), index2.find("shared@sample.com"));
+
+		// This index is unchanged
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("u1", "u2")),
+				new HashSet<>(index.find("shared@sample.com")));
+		Assertions.assertTrue(index.find("new@sample.com").isEmpty());
+	}
+
+	@Test
+	public void withMerge() {
+		final Map<String, UserOrg> users = new HashMap<>();
+		users.put("u0", newUser("u0", "u0@sample.com"));
+		UserAttributeIndex index = new UserAttributeIndex(users, UserOrg::getMails);
+
+		// Many changes are merged in a new map
+		for (int i = 1; i < 50; i++) {
+			index = index.with("u" + i, null, newUser("u" + i, "u" + i + "@sample.com"));
+		}
+		for (int i = 0; i < 50; i++) {
+			Assertions.assertEquals(Collections.singletonList("u" + i), index.find("u" + i + "@sample.com"));
+		}
+	}
+
+	private UserOrg newUser(final String id, final String... mails) {
+		final UserOrg user = new UserOrg();
+		user.setId(id);
+		user.setMails(Arrays.asList(mails));
+		return user;
+	}
+}
@@ -3,15 +3,25 @@
  */
 package org.ligoj.app.plugin.id.ldap.dao;
 
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import javax.naming.AuthenticationException;
 import javax.naming.Name;
 import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
 import javax.naming.directory.InvalidAttributeValueException;
 import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
 
 import org.apache.commons.collections4.MapUtils;
@@ -28,11 +38,21 @@ import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort.Direction;
+import org.springframework.ldap.NameNotFoundException;
 import org.springframework.ldap.core.ContextExecutor;
 import org.springframework.ldap.core.ContextMapper;
+import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
 import org.springframework.ldap.core.support.AbstractContextMapper;
+import org.springframework.ldap.core.support.BaseLdapPathSource;
+import org.springframework.ldap.pool2.factory.PoolConfig;
+import org.springframework.ldap.support.LdapUtils;
 
 /**
  * Test class of {@link UserLdapRepository}
@@ -46,6 +66,24 @@ public class UserLdapRepositoryTest {
 		repository = new UserLdapRepository();
 	}
 
+	@Test
+	public void getPoolStatus() throws Exception {
+		Assertions.assertTrue(repository.getPoolStatus().isEmpty());
+		final PoolConfig config = new PoolConfig();
+		config.setMaxTotal(2);
+		final MonitoredPooledContextSource pool = new MonitoredPooledContextSource(config);
+		pool.setContextSource(Mockito.mock(ContextSource.class));
+		repository.setTemplate(new LdapTemplate(pool));
+		repository.setAuthenticationExecutor(new AuthenticationExecutor("test", 1, 0, 0));
+		final Map<String, Number> status = repository.getPoolStatus();
+		Assertions.assertEquals(0d, status.get("pool-utilization"));
+		Assertions.assertEquals(0L, status.get("pool-borrows"));
+		Assertions.assertEquals(0, status.get("auth-in-flight"));
+		Assertions.assertEquals(0L, status.get("auth-rejected"));
+		Assertions.assertFalse(status.containsKey("auth-pool-active"));
+		repository.close();
+	}
+
 	@Test
 	public void toCompanyNoMatch() {
 		repository.setCompanyPattern("[^,]+,ou=([^,]+),.*");
@@ -321,13 +359,14 @@ public class UserLdapRepositoryTest {
 		final UserOrg user = new UserOrg();
 		final LdapTemplate mock = Mockito.mock(LdapTemplate.class);
 		final DirContextOperations dirCtx = Mockito.mock(DirContextOperations.class);
-		Mockito.when(mock.search((String) ArgumentMatchers.any(), ArgumentMatchers.any(), ArgumentMatchers.eq(2),
-				ArgumentMatchers.any(), (AbstractContextMapper<UserOrg>) ArgumentMatchers.any())).thenAnswer(i -> {
-					((AbstractContextMapper<DirContextOperations>) i.getArgument(4)).mapFromContext(dirCtx);
-					user.setLocked(new Date(1517908964000L));
-					user.setLockedBy("_ppolicy");
-					return Collections.singletonList(user);
-				});
+		Mockito.doAnswer(i -> {
+			((NameClassPairCallbackHandler) i.getArgument(3))
+					.handleNameClassPair(new SearchResult("cn=Any", dirCtx, new BasicAttributes()));
+			user.setLocked(new Date(1517908964000L));
+			user.setLockedBy("_ppolicy");
+			return null;
+		}).when(mock).search((String) ArgumentMatchers.any(), ArgumentMatchers.any(),
+				ArgumentMatchers.any(SearchControls.class), ArgumentMatchers.any(NameClassPairCallbackHandler.class));
 		Mockito.when(dirCtx.getDn()).thenReturn(org.springframework.ldap.support.LdapUtils.newLdapName("cn=Any"));
 		Mockito.when(dirCtx.attributeExists(ArgumentMatchers.any())).thenReturn(true);
 		Mockito.when(dirCtx.getStringAttribute(ArgumentMatchers.any())).thenReturn("20180206102244Z");
@@ -338,4 +377,266 @@ public class UserLdapRepositoryTest {
 		Assertions.assertEquals(1517908964000L, user.getLocked().getTime());
 	}
 
+	@Test
+	public void findAllPage() {
+		final LdapSnapshot snapshot = newSnapshot();
+		Assertions.assertEquals(ids("u2", "u3"), findAll(snapshot, null, null, PageRequest.of(1, 2, Direction.ASC, "id")));
+		Assertions.assertEquals(ids("u4", "u3"), findAll(snapshot, null, null, PageRequest.of(0, 2, Direction.DESC, "id")));
+		final Page<UserOrg> page = repository.findAll(null, Collections.singleton("company"), null,
+				PageRequest.of(2, 2, Direction.ASC, "id"));
+		Assertions.assertEquals(5, page.getTotalElements());
+		Assertions.assertEquals(ids("u4"), toIds(page));
+
+		// The order is computed once
+		Assertions.assertSame(snapshot.getSortedUsers(UserLdapRepository.DEFAULT_COMPARATOR),
+				snapshot.getSortedUsers(UserLdapRepository.DEFAULT_COMPARATOR));
+	}
+
+	@Test
+	public void findAllPageCriteria() {
+		final LdapSnapshot snapshot = newSnapshot();
+		final Page<UserOrg> page = repository.findAll(null, Collections.singleton("company"), "last",
+				PageRequest.of(1, 2, Direction.DESC, "id"));
+		Assertions.assertEquals(5, page.getTotalElements());
+		Assertions.assertEquals(ids("u2", "u1"), toIds(page));
+		Assertions.assertEquals(ids(), findAll(snapshot, "any", null, PageRequest.of(0, 2, Direction.ASC, "id")));
+	}
+
+	@Test
+	public void findAllPageGroup() {
+		final LdapSnapshot snapshot = newSnapshot();
+		final GroupOrg group = snapshot.getGroups().get("group");
+		Assertions.assertEquals(ids("u3"),
+				findAll(snapshot, null, Collections.singleton(group), PageRequest.of(1, 1, Direction.ASC, "id")));
+		Assertions.assertEquals(ids("u3", "u1"),
+				findAll(snapshot, null, Collections.singleton(group), PageRequest.of(0, 5, Direction.DESC, "id")));
+	}
+
+	@Test
+	public void findAllPageNestedGroup() {
+		final LdapSnapshot snapshot = newSnapshot();
+		final GroupOrg group = snapshot.getGroups().get("group");
+		final GroupOrg subGroup = new GroupOrg("cn=sub,cn=group", "sub", Collections.singleton("u2"));
+		subGroup.setGroups(Collections.singleton("group"));
+		final Map<String, GroupOrg> groups = new HashMap<>(snapshot.getGroups());
+		groups.put("sub", subGroup);
+		final LdapCacheRepository cacheRepository = Mockito.mock(LdapCacheRepository.class);
+		Mockito.when(cacheRepository.getSnapshot()).thenReturn(snapshot.with(groups, snapshot.getUsers()));
+		repository.setLdapCacheRepository(cacheRepository);
+
+		// The members of the sub-groups are effective members of the group
+		Assertions.assertEquals(ids("u1", "u2", "u3"),
+				findAll(snapshot, null, Collections.singleton(group), PageRequest.of(0, 5, Direction.ASC, "id")));
+		Assertions.assertEquals(ids("u2"),
+				findAll(snapshot, null, Collections.singleton(subGroup), PageRequest.of(0, 5, Direction.ASC, "id")));
+	}
+
+	@Test
+	public void findAllByIndexed() {
+		final LdapSnapshot snapshot = newSnapshot();
+		snapshot.getUsers().get("u1").setMails(Arrays.asList("u1@sample.com", "first.last@sample.com"));
+		snapshot.getUsers().get("u2").setMails(Collections.singletonList("First.Last@sample.com"));
+		snapshot.getUsers().get("u3").setDepartment("D1");
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		repository.setTemplate(template);
+		Assertions.assertEquals(ids("u1"), toIds(repository.findAllBy("mail", "U1@sample.com")));
+		Assertions.assertEquals(ids("u1", "u2"), toIds(repository.findAllBy("Mail", "first.last@sample.com")).stream()
+				.sorted().collect(Collectors.toList()));
+		Assertions.assertEquals(ids("u3"), toIds(repository.findAllBy("employeeNumber", "d1")));
+		Assertions.assertEquals(ids(), toIds(repository.findAllBy("mail", "any@sample.com")));
+		Assertions.assertEquals(4, repository.getIndexHits());
+		Assertions.assertEquals(0, repository.getIndexMisses());
+		Mockito.verify(template, Mockito.never()).search(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.<ContextMapper<UserOrg>>any());
+	}
+
+	@Test
+	public void findAllByNotIndexed() {
+		newSnapshot();
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		repository.setTemplate(template);
+
+		// The UID is only indexed when configured
+		Assertions.assertEquals(ids(), toIds(repository.findAllBy("sAMAccountName", "u1")));
+		Assertions.assertEquals(ids(), toIds(repository.findAllBy("title", "any")));
+		Assertions.assertEquals(0, repository.getIndexHits());
+		Assertions.assertEquals(2, repository.getIndexMisses());
+		Mockito.verify(template, Mockito.times(2)).search(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.<ContextMapper<UserOrg>>any());
+
+		repository.setIndexedAttributes(" title, sAMAccountName,,givenName");
+		Assertions.assertEquals(new HashSet<>(Arrays.asList("title", "samaccountname", "givenname")),
+				repository.getIndexedAttributes());
+		Assertions.assertEquals(ids("u1"), toIds(repository.findAllBy("sAMAccountName", "U1")));
+		Assertions.assertEquals(5, repository.findAllBy("givenName", "first").size());
+		Assertions.assertEquals(ids(), toIds(repository.findAllBy("title", "any")));
+		Assertions.assertEquals(2, repository.getIndexHits());
+		Assertions.assertEquals(3, repository.getIndexMisses());
+	}
+
+	@Test
+	public void authenticateFromCache() {
+		final ContextSource contextSource = newAuthenticateSnapshot();
+		Mockito.when(contextSource.getContext("uid=u1,ou=company", "secret")).thenReturn(Mockito.mock(DirContext.class));
+		Assertions.assertTrue(repository.authenticate("U1", "secret"));
+		Assertions.assertTrue(repository.authenticate("first.last@sample.com", "secret"));
+		Assertions.assertFalse(repository.authenticate("U1", ""));
+		Mockito.verify(repository.getTemplate(), Mockito.never()).authenticate(ArgumentMatchers.anyString(),
+				ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+	}
+
+	@Test
+	public void authenticateFromCacheBaseDn() {
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		final ContextSource contextSource = Mockito.mock(ContextSource.class,
+				Mockito.withSettings().extraInterfaces(BaseLdapPathSource.class));
+		Mockito.when(((BaseLdapPathSource) contextSource).getBaseLdapName())
+				.thenReturn(LdapUtils.newLdapName("dc=sample,dc=com"));
+		Mockito.when(template.getContextSource()).thenReturn(contextSource);
+		newAuthenticateSnapshot();
+		repository.setTemplate(template);
+
+		// The bound DN is the absolute one
+		Mockito.when(contextSource.getContext("uid=u1,ou=company,dc=sample,dc=com", "secret"))
+				.thenReturn(Mockito.mock(DirContext.class));
+		Assertions.assertTrue(repository.authenticate("u1", "secret"));
+		Mockito.verify(template, Mockito.never()).authenticate(ArgumentMatchers.anyString(),
+				ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+	}
+
+	@Test
+	public void authenticateFromCacheTemplate() {
+		final ContextSource contextSource = newAuthenticateSnapshot();
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		final ContextSource authContextSource = Mockito.mock(ContextSource.class);
+		Mockito.when(template.getContextSource()).thenReturn(authContextSource);
+		repository.setAuthenticationTemplate(template);
+
+		// The bind uses the connections dedicated to the authentication
+		Mockito.when(authContextSource.getContext("uid=u1,ou=company", "secret"))
+				.thenReturn(Mockito.mock(DirContext.class));
+		Assertions.assertTrue(repository.authenticate("u1", "secret"));
+		Mockito.verify(contextSource, Mockito.never()).getContext(ArgumentMatchers.anyString(),
+				ArgumentMatchers.anyString());
+	}
+
+	@Test
+	public void authenticateFromCacheNotLoaded() {
+		newAuthenticateSnapshot();
+		final LdapCacheRepository cacheRepository = Mockito.mock(LdapCacheRepository.class);
+		repository.setLdapCacheRepository(cacheRepository);
+		Mockito.when(repository.getTemplate().authenticate(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.eq("secret"))).thenReturn(true);
+
+		// The cache is not loaded by the authentication, the entry is searched
+		Assertions.assertTrue(repository.authenticate("u1", "secret"));
+		Mockito.verify(cacheRepository, Mockito.never()).getSnapshot();
+	}
+
+	@Test
+	public void authenticateFromCacheInvalid() {
+		final ContextSource contextSource = newAuthenticateSnapshot();
+		Mockito.when(contextSource.getContext("uid=u1,ou=company", "any"))
+				.thenThrow(new org.springframework.ldap.AuthenticationException(new AuthenticationException()));
+		Mockito.when(repository.getTemplate().search(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.<ContextMapper<String>>any()))
+				.thenReturn(Collections.singletonList("uid=u1,ou=company"));
+
+		// The entry has not moved, the bind is not retried
+		Assertions.assertFalse(repository.authenticate("u1", "any"));
+		Mockito.verify(contextSource).getContext(ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+		Mockito.verify(repository.getTemplate(), Mockito.never()).authenticate(ArgumentMatchers.anyString(),
+				ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+	}
+
+	@Test
+	public void authenticateFromCacheMoved() {
+		final ContextSource contextSource = newAuthenticateSnapshot();
+		Mockito.when(contextSource.getContext("uid=u1,ou=company", "secret"))
+				.thenThrow(new org.springframework.ldap.AuthenticationException(new AuthenticationException()));
+		Mockito.when(repository.getTemplate().search(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.<ContextMapper<String>>any()))
+				.thenReturn(Collections.singletonList("uid=u1,ou=other"));
+		Mockito.when(contextSource.getContext("uid=u1,ou=other", "secret")).thenReturn(Mockito.mock(DirContext.class));
+
+		// Invalid credentials for the cached DN, the moved entry is found and bound
+		Assertions.assertTrue(repository.authenticate("u1", "secret"));
+		Mockito.verify(repository.getTemplate(), Mockito.never()).authenticate(ArgumentMatchers.anyString(),
+				ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+	}
+
+	@Test
+	public void authenticateFromCacheMiss() {
+		newAuthenticateSnapshot();
+		Mockito.when(repository.getTemplate().authenticate(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.eq("secret"))).thenReturn(true);
+
+		// Not cached user, and user without DN
+		Assertions.assertTrue(repository.authenticate("any", "secret"));
+		Assertions.assertTrue(repository.authenticate("u2", "secret"));
+		Mockito.verify(repository.getTemplate(), Mockito.times(2)).authenticate(ArgumentMatchers.anyString(),
+				ArgumentMatchers.anyString(), ArgumentMatchers.anyString());
+	}
+
+	@Test
+	public void authenticateFromCacheNotFound() {
+		final ContextSource contextSource = newAuthenticateSnapshot();
+		Mockito.when(contextSource.getContext("uid=u1,ou=company", "secret"))
+				.thenThrow(new NameNotFoundException("uid=u1,ou=company"));
+		Mockito.when(repository.getTemplate().authenticate(ArgumentMatchers.anyString(), ArgumentMatchers.anyString(),
+				ArgumentMatchers.eq("secret"))).thenReturn(true);
+		Assertions.assertTrue(repository.authenticate("u1", "secret"));
+	}
+
+	private ContextSource newAuthenticateSnapshot() {
+		final LdapSnapshot snapshot = newSnapshot();
+		snapshot.getUsers().get("u1").setDn("uid=u1,ou=company");
+		snapshot.getUsers().get("u1").setMails(Collections.singletonList("first.last@sample.com"));
+		final LdapTemplate template = Mockito.mock(LdapTemplate.class);
+		final ContextSource contextSource = Mockito.mock(ContextSource.class);
+		Mockito.when(template.getContextSource()).thenReturn(contextSource);
+		repository.setTemplate(template);
+		repository.setAuthenticateFromCache(true);
+		return contextSource;
+	}
+
+	private List<String> toIds(final List<UserOrg> users) {
+		return users.stream().map(UserOrg::getId).collect(Collectors.toList());
+	}
+
+	private List<String> findAll(final LdapSnapshot snapshot, final String criteria,
+			final Collection<GroupOrg> groups, final Pageable pageable) {
+		return toIds(repository.findAll(groups, Collections.singleton("company"), criteria, pageable));
+	}
+
+	private LdapSnapshot newSnapshot() {
+		final CompanyOrg company = new CompanyOrg("ou=company", "company");
+		company.setCompanyTree(Collections.singletonList(company));
+		final Map<String, UserOrg> users = new HashMap<>();
+		Arrays.asList("u3", "u1", "u4", "u0", "u2").forEach(id -> {
+			final UserOrg user = new UserOrg();
+			user.setId(id);
+			user.setFirstName("First");
+			user.setLastName("Last");
+			user.setCompany("company");
+			user.setMails(Collections.emptyList());
+			users.put(id, user);
+		});
+		final GroupOrg group = new GroupOrg("cn=group", "group", new HashSet<>(Arrays.asList("u1", "u3")));
+		final LdapSnapshot snapshot = new LdapSnapshot(1, Collections.singletonMap("company", company),
+				Collections.singletonMap("group", group), users);
+		final LdapCacheRepository cacheRepository = Mockito.mock(LdapCacheRepository.class);
+		Mockito.when(cacheRepository.getSnapshot()).thenReturn(snapshot);
+		Mockito.when(cacheRepository.getPublishedSnapshot()).thenReturn(snapshot);
+		repository.setLdapCacheRepository(cacheRepository);
+		return snapshot;
+	}
+
+	private List<String> toIds(final Page<UserOrg> page) {
+		return page.getContent().stream().map(UserOrg::getId).collect(Collectors.toList());
+	}
+
+	private List<String> ids(final String... ids) {
+		return Arrays.asList(ids);
+	}
 }
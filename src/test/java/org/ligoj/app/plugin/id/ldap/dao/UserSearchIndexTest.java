@@ -0,0 +1,151 @@
+/*
+ * Licensed under MIT (https://github.com/ligoj/ligoj/blob/master/LICENSE)
+ */
+package org.ligoj.app.plugin.id.ldap.dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.ligoj.app.iam.UserOrg;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Test class of {@link UserSearchIndex}
+ */
+@Slf4j
+public class UserSearchIndexTest {
+
+	private Map<String, UserOrg> users;
+
+	@BeforeEach
+	public void init() {
+		users = new HashMap<>();
+		newUser("jdoe", "John", "Doe", "john.doe@sample.com");
+		newUser("fdaugan", "Fabrice", "Daugan", null);
+		newUser("jdupont", "Jean", "DUPONT", "jean.dupont@sample.org");
+	}
+
+	@Test
+	public void find() {
+		final UserSearchIndex index = new UserSearchIndex(users);
+		Assertions.assertEquals(Collections.singleton("jdoe"), index.find("Doe"));
+		Assertions.assertEquals(Collections.singleton("jdupont"), index.find("dupo"));
+		Assertions.assertEquals(Collections.singleton("jdupont"), index.find("SAMPLE.ORG"));
+		Assertions.assertEquals(Collections.singleton("fdaugan"), index.find("augan"));
+		Assertions.assertTrue(index.find("any").isEmpty());
+
+		// Only the first mail is indexed
+		users.get("jdoe").getMails().add("second@other.net");
+		Assertions.assertTrue(new UserSearchIndex(users).find("other").isEmpty());
+	}
+
+	@Test
+	public void findShort() {
+		Assertions.assertNull(new UserSearchIndex(users).find("jd"));
+		Assertions.assertNull(new UserSearchIndex(users).find(""));
+	}
+
+	@Test
+	public void with() {
+		final UserSearchIndex index = new UserSearchIndex(users);
+		final UserOrg user = users.get("jdoe");
+		user.setFirstName("Johnny");
+		final UserSearchIndex updated = index.with("mmartin", newUser("mmartin", "Marc", "Martin", null))
+				.with("jdoe", user);
+		Assertions.assertEquals(Collections.singleton("jdoe"), updated.find("johnny"));
+		Assertions.assertEquals(Collections.singleton("mmartin"), updated.find("marc"));
+
+		// This index is not modified
+		Assertions.assertTrue(index.find("johnny").isEmpty());
+		Assertions.assertTrue(index.find("marc").isEmpty());
+	}
+
+	@Test
+	public void without() {
+		final UserSearchIndex index = new UserSearchIndex(users);
+		final UserSearchIndex updated = index.without("jdoe").without("any");
+		Assertions.assertTrue(updated.find("doe").isEmpty());
+		Assertions.assertEquals(Collections.singleton("jdoe"), index.find("doe"));
+	}
+
+	@Test
+	public void withMerge() {
+		UserSearchIndex index = new UserSearchIndex(users);
+
+		// Enough changes to merge them several times
+		for (int i = 0; i < 500; i++) {
+			index = index.with("user" + i, newUser("user" + i, "First" + i, "Last", null));
+			if (i % 3 == 0) {
+				index = index.without("user" + (i / 2));
+				users.remove("user" + (i / 2));
+			}
+		}
+
+		// Same result than a new index
+		final UserSearchIndex expected = new UserSearchIndex(users);
+		for (final String criteria : new String[] { "first1", "first49", "last", "doe", "user25", "user1" }) {
+			Assertions.assertEquals(expected.find(criteria), index.find(criteria), criteria);
+		}
+	}
+
+	/**
+	 * Compare the search latency with the scan of all users, for several directory sizes.
+	 */
+	@Test
+	@Tag("benchmark")
+	public void benchmark() {
+		for (final int size : new int[] { 1000, 10000, 80000 }) {
+			users.clear();
+			for (int i = 0; i < size; i++) {
+				newUser("user" + i, "First" + (i % 977), "Last" + i, "user" + i + "@sample.com");
+			}
+			final UserSearchIndex index = new UserSearchIndex(users);
+			final String criteria = "last" + (size / 2);
+
+			long start = System.nanoTime();
+			final Set<String> scanned = users.values().stream().filter(u -> matches(u, criteria)).map(UserOrg::getId)
+					.collect(Collectors.toSet());
+			final long scan = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			final Set<String> found = index.find(criteria).stream().map(users::get).filter(u -> matches(u, criteria))
+					.map(UserOrg::getId).collect(Collectors.toSet());
+			final long indexed = System.nanoTime() - start;
+
+			Assertions.assertEquals(scanned, found);
+			log.info("Search among {} users: scan={}us, index={}us", size, TimeUnit.NANOSECONDS.toMicros(scan),
+					TimeUnit.NANOSECONDS.toMicros(indexed));
+		}
+	}
+
+	private boolean matches(final UserOrg user, final String criteria) {
+		return StringUtils.containsIgnoreCase(user.getFirstName(), criteria)
+				|| StringUtils.containsIgnoreCase(user.getLastName(), criteria)
+				|| StringUtils.containsIgnoreCase(user.getId(), criteria)
+				|| StringUtils.containsIgnoreCase(user.getMails().get(0), criteria);
+	}
+
+	private UserOrg newUser(final String id, final String firstName, final String lastName, final String mail) {
+		final UserOrg user = new UserOrg();
+		user.setId(id);
+		user.setFirstName(firstName);
+		user.setLastName(lastName);
+		user.setMails(new ArrayList<>());
+		if (mail != null) {
+			user.getMails().add(mail);
+		}
+		users.put(id, user);
+		return user;
+	}
+}
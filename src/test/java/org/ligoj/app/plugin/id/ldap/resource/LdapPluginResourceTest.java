@@ -13,7 +13,11 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
 import javax.persistence.EntityNotFoundException;
 import javax.transaction.Transactional;
 import javax.ws.rs.NotAuthorizedException;
@@ -25,6 +29,9 @@ import org.junit.jupiter.api.Test;
 import org.ligoj.app.MatcherUtil;
 import org.ligoj.app.iam.Activity;
 import org.ligoj.app.iam.GroupOrg;
+import org.ligoj.app.iam.IUserRepository;
+import org.ligoj.app.iam.IamConfiguration;
+import org.ligoj.app.iam.IamProvider;
 import org.ligoj.app.iam.UserOrg;
 import org.ligoj.app.iam.model.CacheCompany;
 import org.ligoj.app.iam.model.CacheGroup;
@@ -34,6 +41,10 @@ import org.ligoj.app.model.Node;
 import org.ligoj.app.model.ParameterValue;
 import org.ligoj.app.model.Project;
 import org.ligoj.app.model.Subscription;
+import org.ligoj.app.plugin.id.ldap.dao.AuthenticationExecutor;
+import org.ligoj.app.plugin.id.ldap.dao.AuthenticationPool;
+import org.ligoj.app.plugin.id.ldap.dao.MonitoredPooledContextSource;
+import org.ligoj.app.plugin.id.ldap.dao.UserLdapRepository;
 import org.ligoj.app.plugin.id.resource.IdentityResource;
 import org.ligoj.app.plugin.id.resource.UserOrgEditionVo;
 import org.ligoj.app.plugin.id.resource.UserOrgResource;
@@ -44,6 +55,7 @@ import org.ligoj.bootstrap.core.validation.ValidationJsonException;
 import org.mockito.ArgumentMatchers;
 import org.mockito.Mockito;
 import org.springframework.ldap.UncategorizedLdapException;
+import org.springframework.security.authentication.AuthenticationServiceException;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
 import org.springframework.security.core.Authentication;
@@ -420,6 +432,21 @@ public class LdapPluginResourceTest extends AbstractLdapPluginResourceTest {
 				resource.checkStatus("service:id:ldap:dig", subscriptionResource.getParametersNoCheck(subscription)));
 	}
 
+	@Test
+	public void getPoolStatus() {
+		// No pool in this configuration
+		Assertions.assertTrue(resource.getPoolStatus("service:id:ldap:dig").isEmpty());
+	}
+
+	@Test
+	public void ensureCachedConfigurationUnchanged() {
+		final UserLdapRepository repository = getUser();
+
+		// The repository is kept while the parameters are unchanged
+		resource.ensureCachedConfiguration("service:id:ldap:dig");
+		Assertions.assertSame(repository, getUser());
+	}
+
 	@Test
 	public void checkSubscriptionStatus() {
 		Assertions.assertTrue(resource.checkSubscriptionStatus(subscriptionResource.getParametersNoCheck(subscription))
@@ -681,12 +708,125 @@ public class LdapPluginResourceTest extends AbstractLdapPluginResourceTest {
 				"service:id:ldap:test"));
 	}
 
+	private UserLdapRepository getUser() {
+		return (UserLdapRepository) resource.getConfiguration("service:id:ldap:dig").getUserRepository();
+	}
+
+	@Test
+	public void newPooledContextSource() throws Exception {
+		final Map<String, String> parameters = new HashMap<>();
+		parameters.put(LdapPluginResource.PARAMETER_POOL_MAX_TOTAL, "4");
+		parameters.put(LdapPluginResource.PARAMETER_POOL_MAX_IDLE, "2");
+		parameters.put(LdapPluginResource.PARAMETER_POOL_MAX_WAIT, "1000");
+		parameters.put(LdapPluginResource.PARAMETER_POOL_TEST_ON_BORROW, "true");
+		final MonitoredPooledContextSource pool = resource
+				.newPooledContextSource(getUser().getDirectTemplate().getContextSource(), parameters);
+		Assertions.assertEquals(4, pool.getMaxTotal());
+
+		// The pooled connection is validated, then released
+		pool.getReadOnlyContext().close();
+		Assertions.assertEquals(1, pool.getBorrowCount());
+		Assertions.assertEquals(0, pool.getUtilization());
+		pool.destroy();
+	}
+
 	@Test
 	public void authenticatePrimary() {
 		final Authentication authentication = new UsernamePasswordAuthenticationToken("fdaugan", "Azerty01");
 		Assertions.assertSame(authentication, resource.authenticate(authentication, "service:id:ldap:dig", true));
 	}
 
+	@Test
+	public void authenticatePool() {
+		final Map<String, String> parameters = pvResource.getNodeParameters("service:id:ldap:dig");
+		parameters.put(LdapPluginResource.PARAMETER_AUTH_POOL_MAX_TOTAL, "2");
+		final AuthenticationPool pool = resource.newAuthenticationPool(parameters);
+		getUser().setAuthenticationPool(pool);
+		try {
+			Assertions.assertTrue(getUser().authenticate("fdaugan", "Azerty01"));
+			Assertions.assertFalse(getUser().authenticate("fdaugan", "any"));
+			Assertions.assertTrue(getUser().authenticate("fdaugan", "Azerty01"));
+
+			// The same connection is used for all attempts
+			Assertions.assertEquals(1, pool.getNumIdle());
+		} finally {
+			getUser().setAuthenticationPool(null);
+			pool.close();
+		}
+	}
+
+	@Test
+	public void newAuthenticationContextSource() throws NamingException {
+		final Map<String, String> parameters = pvResource.getNodeParameters("service:id:ldap:dig");
+		parameters.put(LdapPluginResource.PARAMETER_AUTH_TIMEOUT, "5000");
+		final DirContext context = resource.newAuthenticationContextSource(parameters).getReadOnlyContext();
+		try {
+			// The blocked reads are released with the authentication
+			Assertions.assertEquals("5000", context.getEnvironment().get("com.sun.jndi.ldap.read.timeout"));
+			Assertions.assertEquals("5000", context.getEnvironment().get("com.sun.jndi.ldap.connect.timeout"));
+		} finally {
+			context.close();
+		}
+	}
+
+	@Test
+	public void authenticateFromCache() {
+		getUser().setAuthenticateFromCache(true);
+		try {
+			// The cached DN is relative to the base DN of the node
+			getUser().findAll();
+			Assertions.assertTrue(getUser().authenticate("fdaugan", "Azerty01"));
+			Assertions.assertFalse(getUser().authenticate("fdaugan", "any"));
+			Assertions.assertFalse(getUser().authenticate("any", "Azerty01"));
+		} finally {
+			getUser().setAuthenticateFromCache(false);
+		}
+	}
+
+	@Test
+	public void authenticateExecutor() {
+		final AuthenticationExecutor executor = new AuthenticationExecutor("test", 1, 0, 10000);
+		getUser().setAuthenticationExecutor(executor);
+		try {
+			final Authentication authentication = new UsernamePasswordAuthenticationToken("fdaugan", "Azerty01");
+			Assertions.assertSame(authentication, resource.authenticate(authentication, "service:id:ldap:dig", true));
+			final Authentication invalid = new UsernamePasswordAuthenticationToken("fdaugan", "any");
+			Assertions.assertThrows(BadCredentialsException.class,
+					() -> resource.authenticate(invalid, "service:id:ldap:dig", true));
+		} finally {
+			getUser().setAuthenticationExecutor(null);
+			executor.close();
+		}
+	}
+
+	@Test
+	public void authenticateExecutorTimeout() throws Exception {
+		final AuthenticationExecutor executor = Mockito.mock(AuthenticationExecutor.class);
+		Mockito.when(executor.execute(ArgumentMatchers.any())).thenThrow(new TimeoutException());
+		getUser().setAuthenticationExecutor(executor);
+		try {
+			final Authentication authentication = new UsernamePasswordAuthenticationToken("fdaugan", "Azerty01");
+			Assertions.assertEquals("ldap-timeout", Assertions.assertThrows(AuthenticationServiceException.class,
+					() -> resource.authenticate(authentication, "service:id:ldap:dig", true)).getMessage());
+		} finally {
+			getUser().setAuthenticationExecutor(null);
+		}
+	}
+
+	@Test
+	public void authenticateExecutorRejected() throws Exception {
+		final AuthenticationExecutor executor = Mockito.mock(AuthenticationExecutor.class);
+		Mockito.when(executor.execute(ArgumentMatchers.any())).thenThrow(new RejectedExecutionException());
+		getUser().setAuthenticationExecutor(executor);
+		try {
+			final Authentication authentication = new UsernamePasswordAuthenticationToken("fdaugan", "Azerty01");
+			Assertions.assertEquals("ldap-busy", Assertions.assertThrows(AuthenticationServiceException.class,
+					() -> resource.authenticate(authentication, "service:id:ldap:dig", true)).getMessage());
+		} finally {
+			getUser().setAuthenticationExecutor(null);
+		}
+	}
+
 	@Test
 	public void authenticateFail() {
 		final Authentication authentication = new UsernamePasswordAuthenticationToken("fdaugan", "any");
@@ -828,9 +968,34 @@ public class LdapPluginResourceTest extends AbstractLdapPluginResourceTest {
 		});
 	}
 
+	@Test
+	public void nextFreeLogin() {
+		Assertions.assertEquals("mmartin1", resource.nextFreeLogin("mmartin"));
+		Assertions.assertEquals("flast123", resource.nextFreeLogin("flast123"));
+	}
+
+	@Test
+	public void nextFreeLoginNotLdap() {
+		final LdapPluginResource resource = new LdapPluginResource();
+		mockPrimary(resource);
+		resource.userResource = Mockito.mock(UserOrgResource.class);
+		Mockito.when(resource.userResource.findByIdNoCache("flast123")).thenReturn(new UserOrg());
+		Mockito.when(resource.userResource.findByIdNoCache("flast1231")).thenReturn(new UserOrg());
+		Assertions.assertEquals("flast1232", resource.nextFreeLogin("flast123"));
+	}
+
+	private void mockPrimary(final LdapPluginResource resource) {
+		final IamConfiguration configuration = new IamConfiguration();
+		configuration.setUserRepository(Mockito.mock(IUserRepository.class));
+		final IamProvider provider = Mockito.mock(IamProvider.class);
+		Mockito.when(provider.getConfiguration()).thenReturn(configuration);
+		resource.iamProvider = new IamProvider[] { provider };
+	}
+
 	@Test
 	public void newApplicationUserSaveFail() {
 		final LdapPluginResource resource = new LdapPluginResource();
+		mockPrimary(resource);
 		resource.userResource = Mockito.mock(UserOrgResource.class);
 		Mockito.when(resource.userResource.findByIdNoCache("flast123")).thenReturn(null);
 		Mockito.doThrow(new UncategorizedLdapException("")).when(resource.userResource)
@@ -845,11 +1010,15 @@ public class LdapPluginResourceTest extends AbstractLdapPluginResourceTest {
 		Assertions.assertThrows(UncategorizedLdapException.class, () -> {
 			resource.newApplicationUser(user);
 		});
+
+		// The login of the failed creation is released
+		Assertions.assertEquals("flast123", resource.nextFreeLogin("flast123"));
 	}
 
 	@Test
 	public void newApplicationUserNextLoginFail() {
 		final LdapPluginResource resource = new LdapPluginResource();
+		mockPrimary(resource);
 		resource.userResource = Mockito.mock(UserOrgResource.class);
 		Mockito.doThrow(new RuntimeException()).when(resource.userResource).findByIdNoCache("flast123");
 
@@ -294,6 +294,9 @@ public class GroupLdapResourceTest extends AbstractContainerLdapResourceTest {
 		Assertions.assertEquals("SOME", contextAdapter.getStringAttribute("businessCategory"));
 		Assertions.assertEquals("uid=fdaugan,ou=gfi,ou=france,ou=people,dc=sample,dc=com", contextAdapter.getStringAttribute("owner"));
 
+		// The department of the new group is indexed by the cache
+		Assertions.assertEquals("New-Ax-1-z:Z 0", getGroup().findByDepartment("SOME").getName());
+
 		userResource.addUserToGroup("wuser", "New-Ax-1-z:Z 0");
 
 		// Pre check